@@ -21,7 +21,6 @@ import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.media.AudioAttributes;
@@ -33,9 +32,9 @@ import android.media.MediaPlayer.OnErrorListener;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.VibrationEffect;
 import android.os.Vibrator;
-import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.speech.tts.TextToSpeech;
 import android.telephony.PhoneStateListener;
@@ -45,6 +44,7 @@ import android.util.Log;
 
 import com.android.cellbroadcastreceiver.CellBroadcastAlertService.AlertType;
 
+import java.util.EnumMap;
 import java.util.Locale;
 
 /**
@@ -74,6 +74,10 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
     public static final String ALERT_AUDIO_VIBRATION_PATTERN_EXTRA =
             "com.android.cellbroadcastreceiver.ALERT_VIBRATION_PATTERN";
 
+    /** Extra for the elapsed realtime when the alert was received, to log the alert latency. */
+    public static final String ALERT_AUDIO_RECEIVED_TIME_EXTRA =
+            "com.android.cellbroadcastreceiver.ALERT_AUDIO_RECEIVED_TIME";
+
     private static final String TTS_UTTERANCE_ID = "com.android.cellbroadcastreceiver.UTTERANCE_ID";
 
     /** Pause duration between alert sound and alert speech. */
@@ -84,6 +88,16 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
     private static final int STATE_PAUSING = 2;
     private static final int STATE_SPEAKING = 3;
 
+    /**
+     * Players with an ETWS tone already loaded, so the alert of an ETWS primary notification
+     * starts without loading the tone. Each player is used once. Guarded by the class.
+     */
+    private static final EnumMap<AlertType, MediaPlayer> sPreparedTones =
+            new EnumMap<>(AlertType.class);
+
+    /** Whether the prepared players bypass DnD, see {@link #getAlertAudioAttributes}. */
+    private static boolean sPreparedTonesFullVolume;
+
     private int mState;
 
     private TextToSpeech mTts;
@@ -98,6 +112,8 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
     private boolean mResetAlarmVolumeNeeded;
     private int mUserSetAlarmVolume;
     private int[] mVibrationPattern;
+    private long mReceivedTime;
+    private boolean mUsedPreparedTone;
 
     private Vibrator mVibrator;
     private MediaPlayer mMediaPlayer;
@@ -137,7 +153,7 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
                     if (mMessageBody != null && mTtsEngineReady && mTtsLanguageSupported) {
                         if (DBG) log("Speaking broadcast text: " + mMessageBody);
 
-                        mTts.setAudioAttributes(getAlertAudioAttributes());
+                        mTts.setAudioAttributes(getAlertAudioAttributes(mUseFullVolume));
                         res = mTts.speak(mMessageBody, 2, null, TTS_UTTERANCE_ID);
                         mState = STATE_SPEAKING;
                     }
@@ -254,6 +270,14 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
         }
         // release the screen bright wakelock acquired by CellBroadcastAlertService
         CellBroadcastAlertWakeLock.releaseScreenBrightWakeLock();
+        if (mUsedPreparedTone) {
+            // Load the tone again for the next ETWS primary notification.
+            Context context = getApplicationContext();
+            boolean useFullVolume = mUseFullVolume;
+            CellBroadcastOperationExecutor.getInstance().execute(
+                    CellBroadcastOperationExecutor.LANE_HOUSEKEEPING,
+                    () -> prepareEtwsTones(context, useFullVolume));
+        }
     }
 
     @Override
@@ -269,17 +293,23 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
             return START_NOT_STICKY;
         }
 
+        mReceivedTime = intent.getLongExtra(ALERT_AUDIO_RECEIVED_TIME_EXTRA, 0);
+        if (mReceivedTime > 0) {
+            Log.i(TAG, "Alert audio started " + (SystemClock.elapsedRealtime() - mReceivedTime)
+                    + "ms after the broadcast was received");
+        }
+
         // Get text to speak (if enabled by user)
         mMessageBody = intent.getStringExtra(ALERT_AUDIO_MESSAGE_BODY);
         mMessageLanguage = intent.getStringExtra(ALERT_AUDIO_MESSAGE_LANGUAGE);
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        CellBroadcastAlertPreferences prefs = CellBroadcastAlertPreferences.get(this);
 
         // Get config of whether to always sound CBS alerts at full volume.
-        mUseFullVolume = prefs.getBoolean(CellBroadcastSettings.KEY_USE_FULL_VOLUME, false);
+        mUseFullVolume = prefs.isUseFullVolumeEnabled();
 
         // retrieve the vibrate settings from cellbroadcast receiver settings.
-        mEnableVibrate = prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_ALERT_VIBRATE, true);
+        mEnableVibrate = prefs.isAlertVibrateEnabled();
         // retrieve the vibration patterns
         mVibrationPattern = intent.getIntArrayExtra(ALERT_AUDIO_VIBRATION_PATTERN_EXTRA);
 
@@ -385,8 +415,9 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
 
 
         if (mEnableAudio) {
-            // future optimization: reuse media player object
-            mMediaPlayer = new MediaPlayer();
+            MediaPlayer preparedPlayer = takePreparedTone(alertType, mUseFullVolume);
+            mMediaPlayer = preparedPlayer != null ? preparedPlayer : new MediaPlayer();
+            mUsedPreparedTone |= preparedPlayer != null;
             mMediaPlayer.setOnErrorListener(new OnErrorListener() {
                 public boolean onError(MediaPlayer mp, int what, int extra) {
                     loge("Error occurred while playing audio.");
@@ -411,47 +442,43 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
             }
 
             try {
-                log("Locale=" + res.getConfiguration().getLocales() + ", alertType=" + alertType);
-
-                // Load the tones based on type
-                switch (alertType) {
-                    case ETWS_EARTHQUAKE:
-                        setDataSourceFromResource(res, mMediaPlayer, R.raw.etws_earthquake);
-                        break;
-                    case ETWS_TSUNAMI:
-                        setDataSourceFromResource(res, mMediaPlayer, R.raw.etws_tsunami);
-                        break;
-                    case OTHER:
-                        setDataSourceFromResource(res, mMediaPlayer, R.raw.etws_other_disaster);
-                        break;
-                    case ETWS_DEFAULT:
-                        setDataSourceFromResource(res, mMediaPlayer, R.raw.etws_default);
-                        break;
-                    case INFO:
-                        // for non-emergency alerts, we are using system default notification sound.
-                        String sound = Settings.System.getString(
-                                getApplicationContext().getContentResolver(),
-                                Settings.System.NOTIFICATION_SOUND);
-                        mMediaPlayer.setDataSource(sound);
-                        break;
-                    case TEST:
-                    case DEFAULT:
-                    default:
-                        setDataSourceFromResource(res, mMediaPlayer, R.raw.default_tone);
+                log("Locale=" + res.getConfiguration().getLocales() + ", alertType=" + alertType
+                        + ", prepared=" + (preparedPlayer != null));
+
+                // Load the tones based on type, unless already loaded
+                if (preparedPlayer != null) {
+                    // The tone is already loaded.
+                } else if (alertType == AlertType.INFO) {
+                    // for non-emergency alerts, we are using system default notification sound.
+                    String sound = Settings.System.getString(
+                            getApplicationContext().getContentResolver(),
+                            Settings.System.NOTIFICATION_SOUND);
+                    mMediaPlayer.setDataSource(sound);
+                } else {
+                    setDataSourceFromResource(res, mMediaPlayer, getAlertToneResId(alertType));
                 }
 
                 // Request audio focus (though we're going to play even if we don't get it)
                 mAudioManager.requestAudioFocus(null, AudioManager.STREAM_ALARM,
                         AudioManager.AUDIOFOCUS_GAIN_TRANSIENT);
-                mMediaPlayer.setAudioAttributes(getAlertAudioAttributes());
+                if (preparedPlayer == null) {
+                    mMediaPlayer.setAudioAttributes(getAlertAudioAttributes(mUseFullVolume));
+                }
                 setAlertVolume();
 
                 // If we are using the custom alert duration, set looping to true so we can repeat
                 // the alert. The tone playing will stop when ALERT_SOUND_FINISHED arrives.
                 // Otherwise we just play the alert tone once.
                 mMediaPlayer.setLooping(customAlertDuration >= 0);
-                mMediaPlayer.prepare();
+                if (preparedPlayer == null) {
+                    mMediaPlayer.prepare();
+                }
                 mMediaPlayer.start();
+                if (mReceivedTime > 0) {
+                    Log.i(TAG, "Alert tone started " + (SystemClock.elapsedRealtime()
+                            - mReceivedTime) + "ms after the broadcast was received, prepared="
+                            + (preparedPlayer != null));
+                }
 
             } catch (Exception ex) {
                 loge("Failed to play alert sound: " + ex);
@@ -471,6 +498,79 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
         mState = STATE_ALERTING;
     }
 
+    /**
+     * @param alertType the alert type, other than {@link AlertType#INFO}
+     * @return the raw resource of the alert tone
+     */
+    private static int getAlertToneResId(AlertType alertType) {
+        switch (alertType) {
+            case ETWS_EARTHQUAKE:
+                return R.raw.etws_earthquake;
+            case ETWS_TSUNAMI:
+                return R.raw.etws_tsunami;
+            case OTHER:
+                return R.raw.etws_other_disaster;
+            case ETWS_DEFAULT:
+                return R.raw.etws_default;
+            case TEST:
+            case DEFAULT:
+            default:
+                return R.raw.default_tone;
+        }
+    }
+
+    /**
+     * Load the earthquake and tsunami tones into players ahead of time, for the alerts of ETWS
+     * primary notifications. Tones that are already loaded are kept.
+     *
+     * @param context the application context
+     * @param useFullVolume whether the alerts bypass DnD, which cannot be changed once loaded
+     */
+    static synchronized void prepareEtwsTones(Context context, boolean useFullVolume) {
+        if (useFullVolume != sPreparedTonesFullVolume) {
+            releasePreparedTones();
+            sPreparedTonesFullVolume = useFullVolume;
+        }
+        Resources res = CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(context);
+        for (AlertType alertType : new AlertType[] {AlertType.ETWS_EARTHQUAKE,
+                AlertType.ETWS_TSUNAMI}) {
+            if (sPreparedTones.containsKey(alertType)) {
+                continue;
+            }
+            MediaPlayer player = new MediaPlayer();
+            try {
+                setDataSourceFromResource(res, player, getAlertToneResId(alertType));
+                player.setAudioAttributes(getAlertAudioAttributes(useFullVolume));
+                player.prepare();
+                sPreparedTones.put(alertType, player);
+            } catch (Exception ex) {
+                loge("Failed to prepare alert tone " + alertType + ": " + ex);
+                player.release();
+            }
+        }
+    }
+
+    /** Release the players loaded by {@link #prepareEtwsTones}. */
+    static synchronized void releasePreparedTones() {
+        for (MediaPlayer player : sPreparedTones.values()) {
+            player.release();
+        }
+        sPreparedTones.clear();
+    }
+
+    /**
+     * Take the player loaded with the tone of an alert type, if any.
+     *
+     * @return the prepared player, or null if the tone has to be loaded
+     */
+    private static synchronized MediaPlayer takePreparedTone(AlertType alertType,
+            boolean useFullVolume) {
+        if (useFullVolume != sPreparedTonesFullVolume) {
+            return null;
+        }
+        return sPreparedTones.remove(alertType);
+    }
+
     private static void setDataSourceFromResource(Resources resources,
             MediaPlayer player, int res) throws java.io.IOException {
         AssetFileDescriptor afd = resources.openRawResourceFd(res);
@@ -520,13 +620,14 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
 
     /**
      * Get audio attribute for the alarm.
+     * @param useFullVolume whether the alarm bypasses DnD
      */
-    private AudioAttributes getAlertAudioAttributes() {
+    private static AudioAttributes getAlertAudioAttributes(boolean useFullVolume) {
         AudioAttributes.Builder builder = new AudioAttributes.Builder();
 
         builder.setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION);
         builder.setUsage(AudioAttributes.USAGE_ALARM);
-        if (mUseFullVolume) {
+        if (useFullVolume) {
             // Set FLAG_BYPASS_INTERRUPTION_POLICY and FLAG_BYPASS_MUTE so that it enables
             // audio in any DnD mode, even in total silence DnD mode (requires MODIFY_PHONE_STATE).
             builder.setFlags(AudioAttributes.FLAG_BYPASS_INTERRUPTION_POLICY
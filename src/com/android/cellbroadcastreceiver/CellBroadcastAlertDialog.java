@@ -29,7 +29,6 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
 import android.preference.PreferenceManager;
-import android.provider.Telephony;
 import android.telephony.CellBroadcastMessage;
 import android.telephony.SmsCbCmasInfo;
 import android.util.Log;
@@ -63,6 +62,15 @@ public class CellBroadcastAlertDialog extends Activity {
     /** List of cell broadcast messages to display (oldest to newest). */
     protected ArrayList<CellBroadcastMessage> mMessageList;
 
+    /**
+     * Classifications parallel to {@link #mMessageList}. Entries are null until needed when the
+     * sender did not provide them.
+     */
+    private ArrayList<CellBroadcastMessageClassification> mClassificationList;
+
+    /** Delivery times of the dismissed alerts not yet marked read. */
+    private final ArrayList<Long> mDismissedDeliveryTimes = new ArrayList<>();
+
     /** Whether a CMAS alert other than Presidential Alert was displayed. */
     private boolean mShowOptOutDialog;
 
@@ -252,11 +260,17 @@ public class CellBroadcastAlertDialog extends Activity {
             Log.d(TAG, "onCreate getting message list from saved instance state");
             mMessageList = savedInstanceState.getParcelableArrayList(
                     CellBroadcastMessage.SMS_CB_MESSAGE_EXTRA);
+            mClassificationList = alignClassificationList(mMessageList,
+                    savedInstanceState.getParcelableArrayList(
+                            CellBroadcastMessageClassification.EXTRA_CLASSIFICATION_LIST));
         } else {
             Log.d(TAG, "onCreate getting message list from intent");
             Intent intent = getIntent();
             mMessageList = intent.getParcelableArrayListExtra(
                     CellBroadcastMessage.SMS_CB_MESSAGE_EXTRA);
+            mClassificationList = alignClassificationList(mMessageList,
+                    intent.getParcelableArrayListExtra(
+                            CellBroadcastMessageClassification.EXTRA_CLASSIFICATION_LIST));
 
             // If we were started from a notification, dismiss it.
             clearNotification(intent);
@@ -271,13 +285,15 @@ public class CellBroadcastAlertDialog extends Activity {
 
         // For emergency alerts, keep screen on so the user can read it
         CellBroadcastMessage message = getLatestMessage();
-        if (message != null && CellBroadcastChannelManager.isEmergencyMessage(
-                this, message)) {
-            Log.d(TAG, "onCreate setting screen on timer for emergency alert");
-            mScreenOffHandler.startScreenOnTimer();
-        }
+        if (message != null) {
+            CellBroadcastMessageClassification classification = getLatestClassification();
+            if (classification.isEmergency()) {
+                Log.d(TAG, "onCreate setting screen on timer for emergency alert");
+                mScreenOffHandler.startScreenOnTimer();
+            }
 
-        updateAlertText(message);
+            updateAlertText(message, classification);
+        }
     }
 
     /**
@@ -287,7 +303,7 @@ public class CellBroadcastAlertDialog extends Activity {
     protected void onResume() {
         super.onResume();
         CellBroadcastMessage message = getLatestMessage();
-        if (message != null && CellBroadcastChannelManager.isEmergencyMessage(this, message)) {
+        if (message != null && getLatestClassification().isEmergency()) {
             mAnimationHandler.startIconAnimation();
         }
     }
@@ -305,16 +321,32 @@ public class CellBroadcastAlertDialog extends Activity {
     @Override
     protected void onStop() {
         super.onStop();
+        markDismissedMessagesRead();
         // When the activity goes in background eg. clicking Home button, send notification.
         // Avoid doing this when activity will be recreated because of orientation change or if
         // screen goes off
         PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
         if (!(isChangingConfigurations() || getLatestMessage() == null) && pm.isScreenOn()) {
-            CellBroadcastAlertService.addToNotificationBar(getLatestMessage(), mMessageList,
+            CellBroadcastAlertService.addToNotificationBar(getLatestMessage(),
+                    getLatestClassification(), mMessageList, mClassificationList,
                     getApplicationContext(), true);
         }
     }
 
+    /** Mark the alerts dismissed so far as read on a background thread. */
+    private void markDismissedMessagesRead() {
+        if (mDismissedDeliveryTimes.isEmpty()) {
+            return;
+        }
+        long[] deliveryTimes = new long[mDismissedDeliveryTimes.size()];
+        for (int i = 0; i < deliveryTimes.length; i++) {
+            deliveryTimes[i] = mDismissedDeliveryTimes.get(i);
+        }
+        mDismissedDeliveryTimes.clear();
+        CellBroadcastContentProvider.markBroadcastsReadInBackground(getContentResolver(),
+                deliveryTimes);
+    }
+
     /** Returns the currently displayed message. */
     CellBroadcastMessage getLatestMessage() {
         int index = mMessageList.size() - 1;
@@ -326,16 +358,53 @@ public class CellBroadcastAlertDialog extends Activity {
         }
     }
 
+    /**
+     * Returns the classification of the currently displayed message, classifying it now if the
+     * sender did not provide it.
+     */
+    CellBroadcastMessageClassification getLatestClassification() {
+        int index = mMessageList.size() - 1;
+        if (index < 0) {
+            return null;
+        }
+        CellBroadcastMessageClassification classification = mClassificationList.get(index);
+        if (classification == null) {
+            classification = CellBroadcastMessageClassification.classify(
+                    getApplicationContext(), mMessageList.get(index));
+            mClassificationList.set(index, classification);
+        }
+        return classification;
+    }
+
     /** Removes and returns the currently displayed message. */
     private CellBroadcastMessage removeLatestMessage() {
         int index = mMessageList.size() - 1;
         if (index >= 0) {
+            mClassificationList.remove(index);
             return mMessageList.remove(index);
         } else {
             return null;
         }
     }
 
+    /**
+     * Returns a classification list parallel to the message list, reusing the given one if it
+     * matches. Missing classifications are left null and computed on first use.
+     */
+    private static ArrayList<CellBroadcastMessageClassification> alignClassificationList(
+            ArrayList<CellBroadcastMessage> messageList,
+            ArrayList<CellBroadcastMessageClassification> classificationList) {
+        int size = messageList != null ? messageList.size() : 0;
+        if (classificationList != null && classificationList.size() == size) {
+            return classificationList;
+        }
+        ArrayList<CellBroadcastMessageClassification> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(null);
+        }
+        return result;
+    }
+
     /**
      * Save the list of messages so the state can be restored later.
      * @param outState Bundle in which to place the saved state.
@@ -344,15 +413,20 @@ public class CellBroadcastAlertDialog extends Activity {
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         outState.putParcelableArrayList(CellBroadcastMessage.SMS_CB_MESSAGE_EXTRA, mMessageList);
+        outState.putParcelableArrayList(
+                CellBroadcastMessageClassification.EXTRA_CLASSIFICATION_LIST,
+                mClassificationList);
     }
 
     /**
      * Update alert text when a new emergency alert arrives.
      * @param message CB message which is used to update alert text.
+     * @param classification Classification of the message.
      */
-    private void updateAlertText(CellBroadcastMessage message) {
+    private void updateAlertText(CellBroadcastMessage message,
+            CellBroadcastMessageClassification classification) {
         Context context = getApplicationContext();
-        int titleId = CellBroadcastResources.getDialogTitleResource(context, message);
+        int titleId = classification.getTitleResId();
 
         String title = getText(titleId).toString();
         TextView titleTextView = findViewById(R.id.alertTitle);
@@ -386,13 +460,18 @@ public class CellBroadcastAlertDialog extends Activity {
         ArrayList<CellBroadcastMessage> newMessageList = intent.getParcelableArrayListExtra(
                 CellBroadcastMessage.SMS_CB_MESSAGE_EXTRA);
         if (newMessageList != null) {
+            ArrayList<CellBroadcastMessageClassification> newClassificationList =
+                    alignClassificationList(newMessageList, intent.getParcelableArrayListExtra(
+                            CellBroadcastMessageClassification.EXTRA_CLASSIFICATION_LIST));
             if (intent.getBooleanExtra(FROM_SAVE_STATE_NOTIFICATION_EXTRA, false)) {
                 mMessageList = newMessageList;
+                mClassificationList = newClassificationList;
             } else {
                 mMessageList.addAll(newMessageList);
+                mClassificationList.addAll(newClassificationList);
             }
             Log.d(TAG, "onNewIntent called with message list of size " + newMessageList.size());
-            updateAlertText(getLatestMessage());
+            updateAlertText(getLatestMessage(), getLatestClassification());
             // If the new intent was sent from a notification, dismiss it.
             clearNotification(intent);
         } else {
@@ -409,7 +488,7 @@ public class CellBroadcastAlertDialog extends Activity {
             NotificationManager notificationManager =
                     (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
             notificationManager.cancel(CellBroadcastAlertService.NOTIFICATION_ID);
-            CellBroadcastReceiverApp.clearNewMessageList();
+            CellBroadcastReceiverApp.clearNewMessageList(this);
         }
     }
 
@@ -433,18 +512,8 @@ public class CellBroadcastAlertDialog extends Activity {
             return;
         }
 
-        // Mark the alert as read.
-        final long deliveryTime = lastMessage.getDeliveryTime();
-
-        // Mark broadcast as read on a background thread.
-        new CellBroadcastContentProvider.AsyncCellBroadcastTask(getContentResolver())
-                .execute(new CellBroadcastContentProvider.CellBroadcastOperation() {
-                    @Override
-                    public boolean execute(CellBroadcastContentProvider provider) {
-                        return provider.markBroadcastRead(
-                                Telephony.CellBroadcasts.DELIVERY_TIME, deliveryTime);
-                    }
-                });
+        // Mark the alert as read once the stack is dismissed, together with the alerts under it.
+        mDismissedDeliveryTimes.add(lastMessage.getDeliveryTime());
 
         // Set the opt-out dialog flag if this is a CMAS alert (other than Presidential Alert).
         if (lastMessage.isCmasMessage() && lastMessage.getCmasMessageClass() !=
@@ -455,9 +524,9 @@ public class CellBroadcastAlertDialog extends Activity {
         // If there are older emergency alerts to display, update the alert text and return.
         CellBroadcastMessage nextMessage = getLatestMessage();
         if (nextMessage != null) {
-            updateAlertText(nextMessage);
-            if (CellBroadcastChannelManager.isEmergencyMessage(
-                    this, nextMessage)) {
+            CellBroadcastMessageClassification nextClassification = getLatestClassification();
+            updateAlertText(nextMessage, nextClassification);
+            if (nextClassification.isEmergency()) {
                 mAnimationHandler.startIconAnimation();
             } else {
                 mAnimationHandler.stopIconAnimation();
@@ -468,6 +537,8 @@ public class CellBroadcastAlertDialog extends Activity {
         // Remove pending screen-off messages (animation messages are removed in onPause()).
         mScreenOffHandler.stopScreenOnTimer();
 
+        markDismissedMessagesRead();
+
         // Show opt-in/opt-out dialog when the first CMAS alert is received.
         if (mShowOptOutDialog) {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
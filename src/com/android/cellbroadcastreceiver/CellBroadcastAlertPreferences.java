@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.ArraySet;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ArrayUtils;
+
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the user preferences that decide which alerts are received and how they
+ * are played.
+ *
+ * The current snapshot is published through a volatile reference and rebuilt as a whole whenever
+ * one of the preferences changes, so readers never see a mix of old and new values and never
+ * touch {@link SharedPreferences} on the alert path.
+ */
+public final class CellBroadcastAlertPreferences {
+    private static final String TAG = "CBAlertPreferences";
+
+    private static final Object sLock = new Object();
+
+    /** The current snapshot, or null if it has to be built. */
+    private static volatile CellBroadcastAlertPreferences sInstance;
+
+    /** Preferences {@link #sListener} is registered on. Guarded by sLock. */
+    private static SharedPreferences sRegisteredPreferences;
+
+    /**
+     * Rebuilds the snapshot on every change. SharedPreferences only keeps a weak reference to its
+     * listeners, so this one is held here.
+     */
+    private static final SharedPreferences.OnSharedPreferenceChangeListener sListener =
+            (sharedPreferences, key) -> {
+                synchronized (sLock) {
+                    if (sharedPreferences == sRegisteredPreferences) {
+                        sInstance = new CellBroadcastAlertPreferences(sharedPreferences);
+                    }
+                }
+            };
+
+    /** Keys of the boolean preferences in the snapshot. */
+    private static final String[] BOOLEAN_KEYS = {
+            CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE,
+            CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS,
+            CellBroadcastSettings.KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS,
+            CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS,
+            CellBroadcastSettings.KEY_ENABLE_EMERGENCY_ALERTS,
+            CellBroadcastSettings.KEY_ENABLE_PUBLIC_SAFETY_MESSAGES,
+            CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS,
+            CellBroadcastSettings.KEY_ENABLE_STATE_LOCAL_TEST_ALERTS,
+            CellBroadcastSettings.KEY_ENABLE_AREA_UPDATE_INFO_ALERTS,
+            CellBroadcastSettings.KEY_ENABLE_ALERT_VIBRATE,
+            CellBroadcastSettings.KEY_ENABLE_ALERT_SPEECH,
+            CellBroadcastSettings.KEY_USE_FULL_VOLUME,
+    };
+
+    private final boolean mAlertsMasterToggle;
+    private final boolean mCmasExtremeThreatAlerts;
+    private final boolean mCmasSevereThreatAlerts;
+    private final boolean mCmasAmberAlerts;
+    private final boolean mEmergencyAlerts;
+    private final boolean mPublicSafetyMessages;
+    private final boolean mTestAlerts;
+    private final boolean mStateLocalTestAlerts;
+    private final boolean mAreaUpdateInfoAlerts;
+    private final boolean mAlertVibrate;
+    private final boolean mAlertSpeech;
+    private final boolean mUseFullVolume;
+    private final String mAlertReminderInterval;
+    // Keys of the boolean preferences the user has set, so getBoolean can fall back to the
+    // caller's default for the others.
+    private final Set<String> mSetKeys = new ArraySet<>();
+
+    private CellBroadcastAlertPreferences(SharedPreferences prefs) {
+        for (String key : BOOLEAN_KEYS) {
+            if (prefs.contains(key)) {
+                mSetKeys.add(key);
+            }
+        }
+        mAlertsMasterToggle = prefs.getBoolean(
+                CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE, true);
+        mCmasExtremeThreatAlerts = prefs.getBoolean(
+                CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS, true);
+        mCmasSevereThreatAlerts = prefs.getBoolean(
+                CellBroadcastSettings.KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS, true);
+        mCmasAmberAlerts = prefs.getBoolean(
+                CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS, true);
+        mEmergencyAlerts = prefs.getBoolean(
+                CellBroadcastSettings.KEY_ENABLE_EMERGENCY_ALERTS, true);
+        mPublicSafetyMessages = prefs.getBoolean(
+                CellBroadcastSettings.KEY_ENABLE_PUBLIC_SAFETY_MESSAGES, true);
+        mTestAlerts = prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS, false);
+        mStateLocalTestAlerts = prefs.getBoolean(
+                CellBroadcastSettings.KEY_ENABLE_STATE_LOCAL_TEST_ALERTS, false);
+        mAreaUpdateInfoAlerts = prefs.getBoolean(
+                CellBroadcastSettings.KEY_ENABLE_AREA_UPDATE_INFO_ALERTS, false);
+        mAlertVibrate = prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_ALERT_VIBRATE, true);
+        mAlertSpeech = prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_ALERT_SPEECH, true);
+        mUseFullVolume = prefs.getBoolean(CellBroadcastSettings.KEY_USE_FULL_VOLUME, false);
+        mAlertReminderInterval = prefs.getString(
+                CellBroadcastSettings.KEY_ALERT_REMINDER_INTERVAL, null);
+    }
+
+    /**
+     * Get the current snapshot, building it on first use.
+     */
+    public static CellBroadcastAlertPreferences get(Context context) {
+        CellBroadcastAlertPreferences prefs = sInstance;
+        if (prefs != null) {
+            return prefs;
+        }
+        return reload(context);
+    }
+
+    /**
+     * Rebuild the snapshot from the stored preferences, without waiting for pending change
+     * notifications to be delivered.
+     */
+    public static CellBroadcastAlertPreferences reload(Context context) {
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(
+                context);
+        synchronized (sLock) {
+            if (sharedPreferences != sRegisteredPreferences) {
+                if (sRegisteredPreferences != null) {
+                    sRegisteredPreferences.unregisterOnSharedPreferenceChangeListener(sListener);
+                }
+                sharedPreferences.registerOnSharedPreferenceChangeListener(sListener);
+                sRegisteredPreferences = sharedPreferences;
+            }
+            CellBroadcastAlertPreferences prefs =
+                    new CellBroadcastAlertPreferences(sharedPreferences);
+            sInstance = prefs;
+            return prefs;
+        }
+    }
+
+    /**
+     * Drop the current snapshot so the next {@link #get} reads the preferences again.
+     */
+    @VisibleForTesting
+    public static void invalidate() {
+        sInstance = null;
+    }
+
+    /**
+     * Get a preference enabling alerts by its {@code CellBroadcastSettings.KEY_ENABLE_*} key.
+     *
+     * @param key The preference key
+     * @param defaultValue The value if the user never changed the preference
+     * @return The value of the preference
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        if (!mSetKeys.contains(key)) {
+            if (!ArrayUtils.contains(BOOLEAN_KEYS, key)) {
+                Log.e(TAG, "Preference " + key + " is not in the snapshot");
+            }
+            return defaultValue;
+        }
+        switch (key) {
+            case CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE:
+                return mAlertsMasterToggle;
+            case CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS:
+                return mCmasExtremeThreatAlerts;
+            case CellBroadcastSettings.KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS:
+                return mCmasSevereThreatAlerts;
+            case CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS:
+                return mCmasAmberAlerts;
+            case CellBroadcastSettings.KEY_ENABLE_EMERGENCY_ALERTS:
+                return mEmergencyAlerts;
+            case CellBroadcastSettings.KEY_ENABLE_PUBLIC_SAFETY_MESSAGES:
+                return mPublicSafetyMessages;
+            case CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS:
+                return mTestAlerts;
+            case CellBroadcastSettings.KEY_ENABLE_STATE_LOCAL_TEST_ALERTS:
+                return mStateLocalTestAlerts;
+            case CellBroadcastSettings.KEY_ENABLE_AREA_UPDATE_INFO_ALERTS:
+                return mAreaUpdateInfoAlerts;
+            case CellBroadcastSettings.KEY_ENABLE_ALERT_VIBRATE:
+                return mAlertVibrate;
+            case CellBroadcastSettings.KEY_ENABLE_ALERT_SPEECH:
+                return mAlertSpeech;
+            case CellBroadcastSettings.KEY_USE_FULL_VOLUME:
+                return mUseFullVolume;
+            default:
+                return defaultValue;
+        }
+    }
+
+    /** @return True if emergency alerts are enabled at all */
+    public boolean isAlertsMasterToggleEnabled() {
+        return mAlertsMasterToggle;
+    }
+
+    /** @return True if CMAS extreme threat alerts are enabled */
+    public boolean isCmasExtremeThreatAlertsEnabled() {
+        return mCmasExtremeThreatAlerts;
+    }
+
+    /** @return True if CMAS severe threat alerts are enabled */
+    public boolean isCmasSevereThreatAlertsEnabled() {
+        return mCmasSevereThreatAlerts;
+    }
+
+    /** @return True if CMAS amber alerts are enabled */
+    public boolean isCmasAmberAlertsEnabled() {
+        return mCmasAmberAlerts;
+    }
+
+    /** @return True if emergency alerts on the emergency channels are enabled */
+    public boolean isEmergencyAlertsEnabled() {
+        return mEmergencyAlerts;
+    }
+
+    /** @return True if public safety messages are enabled */
+    public boolean isPublicSafetyMessagesEnabled() {
+        return mPublicSafetyMessages;
+    }
+
+    /** @return True if test alerts are enabled */
+    public boolean isTestAlertsEnabled() {
+        return mTestAlerts;
+    }
+
+    /** @return True if state/local test alerts are enabled */
+    public boolean isStateLocalTestAlertsEnabled() {
+        return mStateLocalTestAlerts;
+    }
+
+    /**
+     * @param defaultValue The value if the user never changed the preference
+     * @return True if area update information broadcasts are enabled
+     */
+    public boolean isAreaUpdateInfoAlertsEnabled(boolean defaultValue) {
+        return getBoolean(CellBroadcastSettings.KEY_ENABLE_AREA_UPDATE_INFO_ALERTS, defaultValue);
+    }
+
+    /** @return True if alerts should vibrate */
+    public boolean isAlertVibrateEnabled() {
+        return mAlertVibrate;
+    }
+
+    /** @return True if the alert message should be spoken */
+    public boolean isAlertSpeechEnabled() {
+        return mAlertSpeech;
+    }
+
+    /** @return True if alerts should always sound at full volume */
+    public boolean isUseFullVolumeEnabled() {
+        return mUseFullVolume;
+    }
+
+    /** @return The alert reminder interval as stored, or null if it was never set */
+    public String getAlertReminderInterval() {
+        return mAlertReminderInterval;
+    }
+
+    @Override
+    public String toString() {
+        boolean hasAreaInfo = mSetKeys.contains(
+                CellBroadcastSettings.KEY_ENABLE_AREA_UPDATE_INFO_ALERTS);
+        return "{master=" + mAlertsMasterToggle + " extreme=" + mCmasExtremeThreatAlerts
+                + " severe=" + mCmasSevereThreatAlerts + " amber=" + mCmasAmberAlerts
+                + " emergency=" + mEmergencyAlerts + " publicSafety=" + mPublicSafetyMessages
+                + " test=" + mTestAlerts + " stateLocalTest=" + mStateLocalTestAlerts
+                + " areaInfo=" + (hasAreaInfo ? mAreaUpdateInfoAlerts : "unset")
+                + " vibrate=" + mAlertVibrate + " speech=" + mAlertSpeech
+                + " fullVolume=" + mUseFullVolume + " reminder=" + mAlertReminderInterval + "}";
+    }
+}
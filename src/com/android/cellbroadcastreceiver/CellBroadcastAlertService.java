@@ -26,7 +26,6 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.os.Binder;
@@ -38,23 +37,22 @@ import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
-import android.preference.PreferenceManager;
 import android.provider.Telephony;
 import android.telephony.CarrierConfigManager;
 import android.telephony.CellBroadcastMessage;
 import android.telephony.SmsCbEtwsInfo;
-import android.telephony.SmsCbLocation;
 import android.telephony.SmsCbMessage;
 import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseLongArray;
 
-import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.PhoneConstants;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.Locale;
 
 /**
@@ -69,6 +67,9 @@ public class CellBroadcastAlertService extends Service {
     /** Intent action to display alert dialog/notification, after verifying the alert is new. */
     static final String SHOW_NEW_ALERT_ACTION = "cellbroadcastreceiver.SHOW_NEW_ALERT";
 
+    /** Elapsed realtime when the broadcast was received, to measure the alert latency. */
+    static final String EXTRA_RECEIVED_TIME = "com.android.cellbroadcastreceiver.RECEIVED_TIME";
+
     /** Use the same notification ID for non-emergency alerts. */
     static final int NOTIFICATION_ID = 1;
 
@@ -120,64 +121,44 @@ public class CellBroadcastAlertService extends Service {
     }
 
     /**
-     *  Container for service category, serial number, location, body hash code, and ETWS primary/
-     *  secondary information for duplication detection.
+     * Message filter compiled from the last value of {@link #MESSAGE_FILTER_PROPERTY_KEY}, so
+     * it is only compiled again when the property changes.
      */
-    private static final class MessageServiceCategoryAndScope {
-        private final int mServiceCategory;
-        private final int mSerialNumber;
-        private final SmsCbLocation mLocation;
-        private final int mBodyHash;
-        private final boolean mIsEtwsPrimary;
-
-        MessageServiceCategoryAndScope(int serviceCategory, int serialNumber,
-                SmsCbLocation location, int bodyHash, boolean isEtwsPrimary) {
-            mServiceCategory = serviceCategory;
-            mSerialNumber = serialNumber;
-            mLocation = location;
-            mBodyHash = bodyHash;
-            mIsEtwsPrimary = isEtwsPrimary;
-        }
-
-        @Override
-        public int hashCode() {
-            return mLocation.hashCode() + 5 * mServiceCategory + 7 * mSerialNumber + 13 * mBodyHash
-                    + 17 * Boolean.hashCode(mIsEtwsPrimary);
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (o == this) {
-                return true;
-            }
-            if (o instanceof MessageServiceCategoryAndScope) {
-                MessageServiceCategoryAndScope other = (MessageServiceCategoryAndScope) o;
-                return (mServiceCategory == other.mServiceCategory &&
-                        mSerialNumber == other.mSerialNumber &&
-                        mLocation.equals(other.mLocation) &&
-                        mBodyHash == other.mBodyHash &&
-                        mIsEtwsPrimary == other.mIsEtwsPrimary);
-            }
-            return false;
-        }
-
-        @Override
-        public String toString() {
-            return "{mServiceCategory: " + mServiceCategory + " serial number: " + mSerialNumber +
-                    " location: " + mLocation.toString() + " body hash: " + mBodyHash +
-                    " mIsEtwsPrimary: " + mIsEtwsPrimary + "}";
-        }
-    }
+    private static volatile CellBroadcastMessageFilter sMessageFilter =
+            CellBroadcastMessageFilter.compile("");
 
     /** Maximum number of message IDs to save before removing the oldest message ID. */
     private static final int MAX_MESSAGE_ID_SIZE = 1024;
 
-    /** Linked hash map of the message identities for duplication detection purposes. The key is the
-     * the collection of different message keys used for duplication detection, and the value
-     * is the timestamp of message arriving time. Some carriers may require shorter expiration time.
+    /**
+     * Message identities for duplication detection purposes. An identity is the collection of
+     * different message keys used for duplication detection, recorded with the timestamp of the
+     * message arriving time. Some carriers may require shorter expiration time.
      */
-    private static final LinkedHashMap<MessageServiceCategoryAndScope, Long> sMessagesMap =
-            new LinkedHashMap<>();
+    private static final CellBroadcastDuplicateDetector sDuplicateDetector =
+            new CellBroadcastDuplicateDetector(MAX_MESSAGE_ID_SIZE);
+
+    /**
+     * Duplicate expiration time of each subscription, read from its carrier config when a
+     * duplicate of its broadcasts is first seen and again when its carrier config changes.
+     * Guarded by the class.
+     */
+    private static final SparseLongArray sExpirationTimes = new SparseLongArray();
+
+    /**
+     * Longest expiration time of the subscriptions in {@link #sExpirationTimes}, message
+     * identities older than this are evicted from {@link #sDuplicateDetector}. Guarded by the
+     * class.
+     */
+    private static long sMaxExpirationTime = DEFAULT_EXPIRATION_TIME;
+
+    /**
+     * Persistent copy of {@link #sDuplicateDetector}, so duplicates are still detected after the
+     * process is killed or the device reboots. Null if the journal is turned off. Both fields are
+     * guarded by the class.
+     */
+    private static CellBroadcastDuplicateJournal sDuplicateJournal;
+    private static boolean sDuplicateJournalLoaded;
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -187,15 +168,8 @@ public class CellBroadcastAlertService extends Service {
                 Telephony.Sms.Intents.SMS_CB_RECEIVED_ACTION.equals(action)) {
             handleCellBroadcastIntent(intent);
         } else if (SHOW_NEW_ALERT_ACTION.equals(action)) {
-            try {
-                if (UserHandle.myUserId() ==
-                        ActivityManager.getService().getCurrentUser().id) {
-                    showNewAlert(intent);
-                } else {
-                    Log.d(TAG,"Not active user, ignore the alert display");
-                }
-            } catch (RemoteException e) {
-                e.printStackTrace();
+            if (isCurrentUser()) {
+                showNewAlert(intent);
             }
         } else {
             Log.e(TAG, "Unrecognized intent action: " + action);
@@ -203,25 +177,142 @@ public class CellBroadcastAlertService extends Service {
         return START_NOT_STICKY;
     }
 
+    /**
+     * @return True if alerts are displayed to the user of this process
+     */
+    private static boolean isCurrentUser() {
+        try {
+            if (UserHandle.myUserId() == ActivityManager.getService().getCurrentUser().id) {
+                return true;
+            }
+            Log.d(TAG,"Not active user, ignore the alert display");
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
     /**
      * Reset the duplicate detection map.
      */
-    public static void resetMessageDuplicateDetection() {
+    public static synchronized void resetMessageDuplicateDetection(Context context) {
         Log.d(TAG, "Reset alert duplicate detection map.");
-        sMessagesMap.clear();
+        sDuplicateDetector.clear();
+        if (sDuplicateJournal != null) {
+            sDuplicateJournal.clear();
+        } else if (!sDuplicateJournalLoaded) {
+            // Not loaded yet in this process, drop what a previous process recorded.
+            context.deleteFile(CellBroadcastDuplicateJournal.FILE_NAME);
+        }
+    }
+
+    /**
+     * Load the duplicate detection journal into the duplicate detection map, the first time this
+     * is called after the process started.
+     *
+     * @return The journal to record new message IDs in, or null if the journal is turned off
+     */
+    static synchronized CellBroadcastDuplicateJournal loadDuplicateJournal(
+            Context context) {
+        if (sDuplicateJournalLoaded) {
+            return sDuplicateJournal;
+        }
+        sDuplicateJournalLoaded = true;
+
+        int mode = CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(context)
+                .getInteger(R.integer.duplicate_detection_journal_mode);
+        if (mode == CellBroadcastDuplicateJournal.MODE_OFF) {
+            context.deleteFile(CellBroadcastDuplicateJournal.FILE_NAME);
+            return null;
+        }
+
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        CellBroadcastDuplicateJournal journal = new CellBroadcastDuplicateJournal(
+                new File(context.getFilesDir(), CellBroadcastDuplicateJournal.FILE_NAME),
+                MAX_MESSAGE_ID_SIZE, mode);
+        try {
+            int count = journal.load(sDuplicateDetector, SystemClock.elapsedRealtime(),
+                    System.currentTimeMillis());
+            Log.d(TAG, "Loaded " + count + " message IDs from the duplicate journal in "
+                    + (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000 + "us, mode="
+                    + mode);
+            sDuplicateJournal = journal;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load the duplicate journal: " + e);
+            journal.close();
+        }
+        return sDuplicateJournal;
+    }
+
+    /**
+     * Read the duplicate expiration time of a subscription from its carrier config again, in
+     * the background.
+     *
+     * @param context Context
+     * @param subId Subscription index whose carrier config changed
+     */
+    static void updateDuplicateExpirationTimeInBackground(Context context, int subId) {
+        if (!SubscriptionManager.isValidSubscriptionId(subId)) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        CellBroadcastOperationExecutor.getInstance().execute(
+                CellBroadcastOperationExecutor.LANE_HOUSEKEEPING,
+                () -> updateDuplicateExpirationTime(appContext, subId));
+    }
+
+    /** @return The expiration time read from the carrier config of the subscription */
+    @VisibleForTesting
+    static long updateDuplicateExpirationTime(Context context, int subId) {
+        long expirationTime = getDuplicateExpirationTime(context, subId);
+        synchronized (CellBroadcastAlertService.class) {
+            sExpirationTimes.put(subId, expirationTime);
+            sMaxExpirationTime = DEFAULT_EXPIRATION_TIME;
+            for (int i = 0; i < sExpirationTimes.size(); i++) {
+                sMaxExpirationTime = Math.max(sMaxExpirationTime, sExpirationTimes.valueAt(i));
+            }
+        }
+        return expirationTime;
+    }
+
+    /**
+     * @return The longest expiration time of the subscriptions seen, or the default expiration
+     * time if it is longer
+     */
+    private static synchronized long getMaxExpirationTime() {
+        return sMaxExpirationTime;
+    }
+
+    /**
+     * Get the message duplicate expiration time of a subscription, reading its carrier config
+     * only the first time.
+     *
+     * @param context Context
+     * @param subId Subscription index
+     * @return The expiration time in milliseconds
+     */
+    private static long getCachedDuplicateExpirationTime(Context context, int subId) {
+        synchronized (CellBroadcastAlertService.class) {
+            int index = sExpirationTimes.indexOfKey(subId);
+            if (index >= 0) {
+                return sExpirationTimes.valueAt(index);
+            }
+        }
+        return updateDuplicateExpirationTime(context, subId);
     }
 
     /**
      * Get the carrier specific message duplicate expiration time.
      *
+     * @param context Context
      * @param subId Subscription index
      * @return The expiration time in milliseconds. Small values like 0 (or negative values)
      * indicate expiration immediately (meaning the duplicate will always be displayed), while large
      * values indicate the duplicate will always be ignored. The default value would be 24 hours.
      */
-    private long getDuplicateExpirationTime(int subId) {
+    private static long getDuplicateExpirationTime(Context context, int subId) {
         CarrierConfigManager configManager = (CarrierConfigManager)
-                getApplicationContext().getSystemService(Context.CARRIER_CONFIG_SERVICE);
+                context.getSystemService(Context.CARRIER_CONFIG_SERVICE);
         Log.d(TAG, "manager = " + configManager);
         if (configManager == null) {
             Log.e(TAG, "carrier config is not available.");
@@ -243,20 +334,20 @@ public class CellBroadcastAlertService extends Service {
      * Check if we should display the received cell broadcast message.
      *
      * @param cbm Cell broadcast message
+     * @param classification Classification of the message
      * @return True if the message should be displayed to the user
      */
-    private boolean shouldDisplayMessage(CellBroadcastMessage cbm) {
+    private boolean shouldDisplayMessage(CellBroadcastMessage cbm,
+            CellBroadcastMessageClassification classification) {
         // Check if the channel is enabled by the user or configuration.
-        if (!isChannelEnabled(cbm)) {
+        if (!isChannelEnabled(cbm, classification)) {
             Log.d(TAG, "ignoring alert of type " + cbm.getServiceCategory()
                     + " by user preference");
             return false;
         }
 
         // Check if we need to perform language filtering.
-        CellBroadcastChannelRange range = CellBroadcastChannelManager
-                .getCellBroadcastChannelRangeFromMessage(getApplicationContext(), cbm);
-        if (range != null && range.mFilterLanguage) {
+        if (classification.isFilterLanguage()) {
             // If the message's language does not match device's message, we don't display the
             // message.
             String messageLanguage = cbm.getLanguageCode();
@@ -272,14 +363,16 @@ public class CellBroadcastAlertService extends Service {
         // Check for custom filtering
         String messageFilters = SystemProperties.get(MESSAGE_FILTER_PROPERTY_KEY, "");
         if (!TextUtils.isEmpty(messageFilters)) {
-            String[] filters = messageFilters.split(",");
-            for (String filter : filters) {
-                if (!TextUtils.isEmpty(filter)) {
-                    if (cbm.getMessageBody().toLowerCase().contains(filter)) {
-                        Log.i(TAG, "Skipped message due to filter: " + filter);
-                        return false;
-                    }
-                }
+            CellBroadcastMessageFilter filter = sMessageFilter;
+            if (!messageFilters.equals(filter.getSource())) {
+                filter = CellBroadcastMessageFilter.compile(messageFilters);
+                sMessageFilter = filter;
+            }
+            int term = filter.match(cbm.getMessageBody());
+            if (term != CellBroadcastMessageFilter.NO_MATCH) {
+                Log.i(TAG, "Skipped message due to filter: " + filter.getTerm(term)
+                        + ", matched " + filter.getMatchCount(term) + " times");
+                return false;
             }
         }
 
@@ -293,6 +386,7 @@ public class CellBroadcastAlertService extends Service {
             return;
         }
 
+        long receivedTime = SystemClock.elapsedRealtime();
         SmsCbMessage message = (SmsCbMessage) extras.get(EXTRA_MESSAGE);
 
         if (message == null) {
@@ -308,17 +402,31 @@ public class CellBroadcastAlertService extends Service {
             Log.e(TAG, "Invalid subscription id");
         }
 
-        if (!shouldDisplayMessage(cbm)) {
+        if (CellBroadcastEtwsFastPath.isEtwsPrimary(message)) {
+            CellBroadcastEtwsFastPath fastPath =
+                    CellBroadcastEtwsFastPath.get(getApplicationContext());
+            if (fastPath.isArmed()) {
+                handleEtwsPrimaryNotification(message, cbm, subId, fastPath, receivedTime);
+                return;
+            }
+        }
+
+        // Classify the message once, everything down the pipeline reuses the result.
+        final CellBroadcastMessageClassification classification =
+                CellBroadcastMessageClassification.classify(getApplicationContext(), cbm);
+        Log.d(TAG, "message classification = " + classification);
+
+        if (!shouldDisplayMessage(cbm, classification)) {
             return;
         }
 
         // Check if message body should be used for duplicate detection.
-        boolean shouldCompareMessageBody =
-                CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(
-                                getApplicationContext())
-                        .getBoolean(R.bool.duplicate_compare_body);
+        Resources res = CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(
+                getApplicationContext());
+        boolean shouldCompareMessageBody = res.getBoolean(R.bool.duplicate_compare_body);
 
-        int hashCode = shouldCompareMessageBody ? message.getMessageBody().hashCode() : 0;
+        long bodyHash = shouldCompareMessageBody
+                ? CellBroadcastDuplicateDetector.hashBody(message.getMessageBody()) : 0;
 
         // If this is an ETWS message, we need to include primary/secondary message information to
         // be a factor for duplication detection as well. Per 3GPP TS 23.041 section 8.2,
@@ -334,58 +442,178 @@ public class CellBroadcastAlertService extends Service {
             }
         }
 
-        // Check for duplicate message IDs according to CMAS carrier requirements. Message IDs
-        // are stored in volatile memory. If the maximum of 1024 messages is reached, the
-        // message ID of the oldest message is deleted from the list.
-        MessageServiceCategoryAndScope newCmasId = new MessageServiceCategoryAndScope(
-                message.getServiceCategory(), message.getSerialNumber(), message.getLocation(),
-                hashCode, isEtwsPrimary);
+        if (!recordMessageId(message, subId, bodyHash, isEtwsPrimary)) {
+            return;
+        }
+        // Only journaled once the alert is stored, so the rebroadcasts of an alert lost with
+        // the process are not taken for duplicates.
+        Runnable journalMessageId = getJournalMessageId(
+                loadDuplicateJournal(getApplicationContext()), message, bodyHash, isEtwsPrimary);
+
+        final Intent alertIntent = new Intent(SHOW_NEW_ALERT_ACTION);
+        alertIntent.setClass(this, CellBroadcastAlertService.class);
+        alertIntent.putExtra(EXTRA_MESSAGE, cbm);
+        alertIntent.putExtra(CellBroadcastMessageClassification.EXTRA_CLASSIFICATION,
+                classification);
+
+        alertIntent.putExtra(EXTRA_RECEIVED_TIME, receivedTime);
+
+        // The broadcast is stored with the title of its classification, not classified again.
+        String titleKey = CellBroadcastDatabaseHelper.getTitleKey(this, classification);
+        int lane = classification.isEmergency() ? CellBroadcastOperationExecutor.LANE_EMERGENCY
+                : CellBroadcastOperationExecutor.LANE_NORMAL;
+        if (res.getBoolean(classification.isEmergency()
+                ? R.bool.display_before_persist_emergency_alerts
+                : R.bool.display_before_persist_other_broadcasts)) {
+            // Show the alert right away and store it in the background.
+            startService(alertIntent);
+            CellBroadcastWriteBehindQueue.enqueue(getApplicationContext(), cbm, titleKey, lane,
+                    journalMessageId);
+            return;
+        }
+
+        // write to database on a background thread, together with the other broadcasts
+        // received meanwhile, then show the alert or notification
+        CellBroadcastInsertBatcher.getInstance(getApplicationContext()).insert(cbm, titleKey,
+                classification.isEmergency(), () -> {
+                    journalMessageId.run();
+                    startService(alertIntent);
+                });
+    }
+
+    /**
+     * Show an ETWS primary notification from the fast path snapshot. The alert is started from
+     * this service right away, everything else is done in the background. Nothing but the
+     * snapshot is read, unless a duplicate arrives on a subscription activated since it was armed.
+     *
+     * @param message ETWS primary notification
+     * @param cbm The same notification, to display and store
+     * @param subId Subscription index
+     * @param fastPath Snapshot of the configuration
+     * @param receivedTime Elapsed realtime when the broadcast was received
+     */
+    private void handleEtwsPrimaryNotification(SmsCbMessage message, CellBroadcastMessage cbm,
+            int subId, CellBroadcastEtwsFastPath fastPath, long receivedTime) {
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        CellBroadcastMessageClassification classification =
+                fastPath.getClassification(getApplicationContext(), cbm);
+        Log.d(TAG, "ETWS primary notification classification = " + classification);
+
+        // Primary notifications carry no text, so neither the language filter nor the message
+        // filter applies.
+        if (!isChannelEnabled(cbm, classification)) {
+            Log.d(TAG, "ignoring alert of type " + cbm.getServiceCategory()
+                    + " by user preference");
+            return;
+        }
+
+        long bodyHash = fastPath.shouldCompareBody()
+                ? CellBroadcastDuplicateDetector.hashBody(cbm.getMessageBody()) : 0;
+        if (!recordMessageId(message, subId, bodyHash, true)) {
+            return;
+        }
+        CellBroadcastDuplicateJournal journal = fastPath.getDuplicateJournal();
+        Runnable journalMessageId = getJournalMessageId(journal, message, bodyHash, true);
+
+        boolean displayed = fastPath.isCurrentUser();
+        if (displayed) {
+            displayAlert(cbm, classification, receivedTime);
+            CellBroadcastEtwsFastPath.recordDispatchLatency(
+                    (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
+            // Journaled once shown, the journal is only forced to disk right away if it syncs.
+            if (journal != null && journal.isSync()) {
+                journalMessageId.run();
+            } else {
+                CellBroadcastOperationExecutor.getInstance().execute(
+                        CellBroadcastOperationExecutor.LANE_EMERGENCY, journalMessageId);
+            }
+        }
+
+        // Store the alert in the background, journaled then if it was not shown.
+        CellBroadcastWriteBehindQueue.enqueue(getApplicationContext(), cbm,
+                CellBroadcastDatabaseHelper.getTitleKey(this, classification),
+                CellBroadcastOperationExecutor.LANE_EMERGENCY,
+                displayed ? null : journalMessageId);
+    }
 
-        Log.d(TAG, "message ID = " + newCmasId);
+    /**
+     * Check for duplicate message IDs according to CMAS carrier requirements and record the ID
+     * of a new message in volatile memory. If the maximum of 1024 messages is reached, the
+     * message ID of the oldest message is deleted from the list.
+     *
+     * @param message Cell broadcast message
+     * @param subId Subscription index
+     * @param bodyHash Hash of the message body, or 0 if the body is not compared
+     * @param isEtwsPrimary True for an ETWS primary notification
+     * @return False if the message is a duplicate
+     */
+    private boolean recordMessageId(SmsCbMessage message, int subId, long bodyHash,
+            boolean isEtwsPrimary) {
+        int serviceCategory = message.getServiceCategory();
+        int serialNumber = message.getSerialNumber();
+        long locationHash = CellBroadcastDuplicateDetector.hashLocation(message.getLocation());
+
+        Log.d(TAG, "message ID = {serviceCategory: " + serviceCategory + " serial number: "
+                + serialNumber + " location: " + message.getLocation() + " body hash: " + bodyHash
+                + " isEtwsPrimary: " + isEtwsPrimary + "}");
 
         long nowTime = SystemClock.elapsedRealtime();
+        // Only evict the IDs expired for every subscription seen.
+        long minTimestamp = nowTime - getMaxExpirationTime();
+        long previousTime = sDuplicateDetector.getTimestamp(serviceCategory, serialNumber,
+                locationHash, bodyHash, isEtwsPrimary, minTimestamp);
         // Check if the identical message arrives again
-        if (sMessagesMap.get(newCmasId) != null) {
+        if (previousTime != CellBroadcastDuplicateDetector.NOT_FOUND) {
+            // The carrier config is only read for a duplicate, and kept until it changes.
+            long expirationTime = getCachedDuplicateExpirationTime(getApplicationContext(),
+                    subId);
             // And if the previous one has not expired yet, treat it as a duplicate message.
-            long previousTime = sMessagesMap.get(newCmasId);
-            long expirationTime = getDuplicateExpirationTime(subId);
             if (nowTime - previousTime < expirationTime) {
-                Log.d(TAG, "ignoring the duplicate alert " + newCmasId + ", nowTime=" + nowTime
+                Log.d(TAG, "ignoring the duplicate alert, nowTime=" + nowTime
                         + ", previous=" + previousTime + ", expiration=" + expirationTime);
-                return;
+                return false;
             }
             // otherwise, we don't treat it as a duplicate and will show the same message again.
             Log.d(TAG, "The same message shown up " + (nowTime - previousTime)
                     + " milliseconds ago. Not a duplicate.");
-        } else if (sMessagesMap.size() >= MAX_MESSAGE_ID_SIZE){
-            // If we reach the maximum, remove the first inserted message key.
-            MessageServiceCategoryAndScope oldestCmasId = sMessagesMap.keySet().iterator().next();
-            Log.d(TAG, "message ID limit reached, removing oldest message ID " + oldestCmasId);
-            sMessagesMap.remove(oldestCmasId);
-        } else {
-            Log.d(TAG, "New message. Not a duplicate. Map size = " + sMessagesMap.size());
         }
 
-        sMessagesMap.put(newCmasId, nowTime);
+        if (sDuplicateDetector.put(serviceCategory, serialNumber, locationHash, bodyHash,
+                isEtwsPrimary, nowTime, minTimestamp)) {
+            Log.d(TAG, "message ID limit reached, removed oldest message ID");
+        } else if (previousTime == CellBroadcastDuplicateDetector.NOT_FOUND) {
+            Log.d(TAG, "New message. Not a duplicate. Map size = " + sDuplicateDetector.size());
+        }
 
-        final Intent alertIntent = new Intent(SHOW_NEW_ALERT_ACTION);
-        alertIntent.setClass(this, CellBroadcastAlertService.class);
-        alertIntent.putExtra(EXTRA_MESSAGE, cbm);
+        return true;
+    }
 
-        // write to database on a background thread
-        new CellBroadcastContentProvider.AsyncCellBroadcastTask(getContentResolver())
-                .execute(new CellBroadcastContentProvider.CellBroadcastOperation() {
-                    @Override
-                    public boolean execute(CellBroadcastContentProvider provider) {
-                        if (provider.insertNewBroadcast(cbm)) {
-                            // new message, show the alert or notification on UI thread
-                            startService(alertIntent);
-                            return true;
-                        } else {
-                            return false;
-                        }
-                    }
-                });
+    /**
+     * Get the recording of a new message ID in the duplicate journal, to run once the alert is
+     * shown or stored. Recorded earlier, the rebroadcasts of an alert lost with the process
+     * would be ignored after it restarts.
+     *
+     * @param journal The duplicate detection journal, or null if the journal is turned off
+     * @param message Cell broadcast message
+     * @param bodyHash Hash of the message body, or 0 if the body is not compared
+     * @param isEtwsPrimary True for an ETWS primary notification
+     * @return Records the message ID in the journal, does nothing if the journal is turned off
+     */
+    private static Runnable getJournalMessageId(CellBroadcastDuplicateJournal journal,
+            SmsCbMessage message, long bodyHash, boolean isEtwsPrimary) {
+        if (journal == null) {
+            return () -> { };
+        }
+        int serviceCategory = message.getServiceCategory();
+        int serialNumber = message.getSerialNumber();
+        long locationHash = CellBroadcastDuplicateDetector.hashLocation(message.getLocation());
+        return () -> {
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            journal.append(serviceCategory, serialNumber, locationHash, bodyHash, isEtwsPrimary,
+                    System.currentTimeMillis());
+            Log.d(TAG, "Recorded message ID in the duplicate journal in "
+                    + (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000 + "us");
+        };
     }
 
     private void showNewAlert(Intent intent) {
@@ -402,15 +630,32 @@ public class CellBroadcastAlertService extends Service {
             return;
         }
 
-        if (CellBroadcastChannelManager.isEmergencyMessage(this, cbm)) {
+        CellBroadcastMessageClassification classification = intent.getParcelableExtra(
+                CellBroadcastMessageClassification.EXTRA_CLASSIFICATION);
+        if (classification == null) {
+            classification = CellBroadcastMessageClassification.classify(this, cbm);
+        }
+
+        displayAlert(cbm, classification, intent.getLongExtra(EXTRA_RECEIVED_TIME, 0));
+    }
+
+    /**
+     * Display a new alert.
+     * @param cbm the alert to display
+     * @param classification the classification of the alert
+     * @param receivedTime elapsed realtime when the broadcast was received, or 0 if unknown
+     */
+    private void displayAlert(CellBroadcastMessage cbm,
+            CellBroadcastMessageClassification classification, long receivedTime) {
+        if (classification.isEmergency()) {
             // start alert sound / vibration / TTS and display full-screen alert
-            openEmergencyAlertNotification(cbm);
+            openEmergencyAlertNotification(cbm, classification, receivedTime);
         } else {
             // add notification to the bar by passing the list of unread non-emergency
             // CellBroadcastMessages
             ArrayList<CellBroadcastMessage> messageList = CellBroadcastReceiverApp
                     .addNewMessageToList(cbm);
-            addToNotificationBar(cbm, messageList, this, false);
+            addToNotificationBar(cbm, classification, messageList, null, this, false);
         }
     }
 
@@ -418,148 +663,69 @@ public class CellBroadcastAlertService extends Service {
      * Check if the message's channel is enabled on the device.
      *
      * @param message the message to check
+     * @param classification the classification of the message
      * @return true if the channel is enabled on the device, otherwise false.
      */
-    private boolean isChannelEnabled(CellBroadcastMessage message) {
-
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        // Check if all emergency alerts are disabled.
-        boolean emergencyAlertEnabled =
-                prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE, true);
-
-        boolean enableAreaUpdateInfoAlerts = Resources.getSystem().getBoolean(
-                com.android.internal.R.bool.config_showAreaUpdateInfoSettings)
-                && prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_AREA_UPDATE_INFO_ALERTS,
-                true);
-
-        if (message.isEtwsTestMessage()) {
-            return emergencyAlertEnabled &&
-                    PreferenceManager.getDefaultSharedPreferences(this)
-                    .getBoolean(CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS, false);
-        }
-
-        if (message.isEtwsMessage()) {
-            // ETWS messages.
-            // Turn on/off emergency notifications is the only way to turn on/off ETWS messages.
-            return emergencyAlertEnabled;
-
-        }
-
-        int channel = message.getServiceCategory();
-
+    private boolean isChannelEnabled(CellBroadcastMessage message,
+            CellBroadcastMessageClassification classification) {
         // Check if the messages are on additional channels enabled by the resource config.
         // If those channels are enabled by the carrier, but the device is actually roaming, we
         // should not allow the messages.
-        ArrayList<CellBroadcastChannelRange> ranges = CellBroadcastChannelManager
-                .getInstance().getCellBroadcastChannelRanges(getApplicationContext(),
-                R.array.additional_cbs_channels_strings);
-
-        if (ranges != null) {
-            for (CellBroadcastChannelRange range : ranges) {
-                if (range.mStartId <= channel && range.mEndId >= channel) {
-                    // Check if the channel is within the scope. If not, ignore the alert message.
-                    if (!CellBroadcastChannelManager.checkScope(getApplicationContext(),
-                            message.getSubId(), range.mScope)) {
-                        Log.d(TAG, "The range [" + range.mStartId + "-" + range.mEndId
-                                + "] is not within the scope. mScope = " + range.mScope);
-                        return false;
-                    }
-
-                    // The area update information cell broadcast should not cause any pop-up.
-                    // Instead the setting's app SIM status will show its information.
-                    if (range.mAlertType == AlertType.AREA) {
-                        if (enableAreaUpdateInfoAlerts) {
-                            // save latest area info broadcast for Settings display and send as
-                            // broadcast.
-                            CellBroadcastReceiverApp.setLatestAreaInfo(message);
-                            Intent intent = new Intent(CB_AREA_INFO_RECEIVED_ACTION);
-                            intent.setPackage(SETTINGS_APP);
-                            intent.putExtra(EXTRA_MESSAGE, message);
-                            // Send broadcast twice, once for apps that have PRIVILEGED permission
-                            // and once for those that have the runtime one.
-                            sendBroadcastAsUser(intent, UserHandle.ALL,
-                                    android.Manifest.permission.READ_PRIVILEGED_PHONE_STATE);
-                            sendBroadcastAsUser(intent, UserHandle.ALL,
-                                    android.Manifest.permission.READ_PHONE_STATE);
-                            // area info broadcasts are displayed in Settings status screen
-                        }
-                        return false;
-                    } else if (range.mAlertType == AlertType.TEST) {
-                        return emergencyAlertEnabled
-                                && PreferenceManager.getDefaultSharedPreferences(this)
-                                .getBoolean(CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS,
-                                        false);
-                    }
-
-                    return emergencyAlertEnabled;
-                }
+        if (!classification.isInScope()) {
+            Log.d(TAG, "The channel " + message.getServiceCategory()
+                    + " is not within the scope.");
+            return false;
+        }
+
+        CellBroadcastAlertPreferences prefs = CellBroadcastAlertPreferences.get(this);
+
+        // The area update information cell broadcast should not cause any pop-up.
+        // Instead the setting's app SIM status will show its information.
+        if (classification.isAreaInfo()) {
+            boolean enableAreaUpdateInfoAlerts = Resources.getSystem().getBoolean(
+                    com.android.internal.R.bool.config_showAreaUpdateInfoSettings)
+                    && prefs.isAreaUpdateInfoAlertsEnabled(true);
+            if (enableAreaUpdateInfoAlerts) {
+                // save latest area info broadcast for Settings display and send as
+                // broadcast.
+                CellBroadcastReceiverApp.setLatestAreaInfo(message);
+                Intent intent = new Intent(CB_AREA_INFO_RECEIVED_ACTION);
+                intent.setPackage(SETTINGS_APP);
+                intent.putExtra(EXTRA_MESSAGE, message);
+                // Send broadcast twice, once for apps that have PRIVILEGED permission
+                // and once for those that have the runtime one.
+                sendBroadcastAsUser(intent, UserHandle.ALL,
+                        android.Manifest.permission.READ_PRIVILEGED_PHONE_STATE);
+                sendBroadcastAsUser(intent, UserHandle.ALL,
+                        android.Manifest.permission.READ_PHONE_STATE);
+                // area info broadcasts are displayed in Settings status screen
             }
+            return false;
         }
-        int subId = message.getSubId();
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                channel, R.array.emergency_alerts_channels_range_strings, this)) {
-            return emergencyAlertEnabled
-                    && PreferenceManager.getDefaultSharedPreferences(this).getBoolean(
-                            CellBroadcastSettings.KEY_ENABLE_EMERGENCY_ALERTS, true);
-        }
-        // CMAS warning types
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                channel, R.array.cmas_presidential_alerts_channels_range_strings, this)) {
-            // always enabled
+
+        String preferenceKey = classification.getPreferenceKey();
+        if (preferenceKey == null) {
+            // Always enabled, e.g. presidential alerts or channels not covered by any range.
             return true;
         }
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                channel, R.array.cmas_alert_extreme_channels_range_strings, this)) {
-            return emergencyAlertEnabled
-                    && PreferenceManager.getDefaultSharedPreferences(this).getBoolean(
-                            CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS, true);
-        }
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                channel, R.array.cmas_alerts_severe_range_strings, this)) {
-            return emergencyAlertEnabled
-                    && PreferenceManager.getDefaultSharedPreferences(this).getBoolean(
-                            CellBroadcastSettings.KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS, true);
-        }
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                channel, R.array.cmas_amber_alerts_channels_range_strings, this)) {
-            return emergencyAlertEnabled
-                    && PreferenceManager.getDefaultSharedPreferences(this)
-                            .getBoolean(CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS, true);
-        }
-
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                channel, R.array.required_monthly_test_range_strings, this)
-                || CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                channel, R.array.exercise_alert_range_strings, this)
-                || CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                channel, R.array.operator_defined_alert_range_strings, this)) {
-            return emergencyAlertEnabled
-                    && PreferenceManager.getDefaultSharedPreferences(this)
-                            .getBoolean(CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS,
-                                    false);
-        }
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                channel, R.array.public_safety_messages_channels_range_strings, this)) {
-            return emergencyAlertEnabled
-                    && PreferenceManager.getDefaultSharedPreferences(this)
-                    .getBoolean(CellBroadcastSettings.KEY_ENABLE_PUBLIC_SAFETY_MESSAGES,
-                            true);
-        }
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                channel, R.array.state_local_test_alert_range_strings, this)) {
-            return emergencyAlertEnabled
-                    && PreferenceManager.getDefaultSharedPreferences(this)
-                    .getBoolean(CellBroadcastSettings.KEY_ENABLE_STATE_LOCAL_TEST_ALERTS,
-                            false);
+
+        // Check if all emergency alerts are disabled.
+        boolean emergencyAlertEnabled = prefs.isAlertsMasterToggleEnabled();
+        if (CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE.equals(preferenceKey)) {
+            return emergencyAlertEnabled;
         }
-        return true;
+        return emergencyAlertEnabled
+                && prefs.getBoolean(preferenceKey, classification.getPreferenceDefault());
     }
 
     /**
      * Display an alert message for emergency alerts.
      * @param message the alert to display
+     * @param classification the classification of the alert
+     * @param receivedTime elapsed realtime when the broadcast was received, or 0 if unknown
      */
-    private void openEmergencyAlertNotification(CellBroadcastMessage message) {
+    private void openEmergencyAlertNotification(CellBroadcastMessage message,
+            CellBroadcastMessageClassification classification, long receivedTime) {
         // Acquire a screen bright wakelock until the alert dialog and audio start playing.
         CellBroadcastAlertWakeLock.acquireScreenBrightWakeLock(this);
 
@@ -570,58 +736,16 @@ public class CellBroadcastAlertService extends Service {
         // start audio/vibration/speech service for emergency alerts
         Intent audioIntent = new Intent(this, CellBroadcastAlertAudio.class);
         audioIntent.setAction(CellBroadcastAlertAudio.ACTION_START_ALERT_AUDIO);
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-
-        AlertType alertType = AlertType.DEFAULT;
-        if (message.isEtwsMessage()) {
-            alertType = AlertType.ETWS_DEFAULT;
-
-            if (message.getEtwsWarningInfo() != null) {
-                int warningType = message.getEtwsWarningInfo().getWarningType();
-
-                switch (warningType) {
-                    case SmsCbEtwsInfo.ETWS_WARNING_TYPE_EARTHQUAKE:
-                    case SmsCbEtwsInfo.ETWS_WARNING_TYPE_EARTHQUAKE_AND_TSUNAMI:
-                        alertType = AlertType.ETWS_EARTHQUAKE;
-                        break;
-                    case SmsCbEtwsInfo.ETWS_WARNING_TYPE_TSUNAMI:
-                        alertType = AlertType.ETWS_TSUNAMI;
-                        break;
-                    case SmsCbEtwsInfo.ETWS_WARNING_TYPE_TEST_MESSAGE:
-                        alertType = AlertType.TEST;
-                        break;
-                    case SmsCbEtwsInfo.ETWS_WARNING_TYPE_OTHER_EMERGENCY:
-                        alertType = AlertType.OTHER;
-                        break;
-                }
-            }
-        } else {
-            int channel = message.getServiceCategory();
-            ArrayList<CellBroadcastChannelRange> ranges = CellBroadcastChannelManager
-                    .getAllCellBroadcastChannelRanges(getApplicationContext());
-            if (ranges != null) {
-                for (CellBroadcastChannelRange range : ranges) {
-                    if (channel >= range.mStartId && channel <= range.mEndId) {
-                        alertType = range.mAlertType;
-                        break;
-                    }
-                }
-            }
-        }
-        CellBroadcastChannelRange range = CellBroadcastChannelManager
-                .getCellBroadcastChannelRangeFromMessage(getApplicationContext(), message);
-        audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_TONE_TYPE, alertType);
-        audioIntent.putExtra(
-                CellBroadcastAlertAudio.ALERT_AUDIO_VIBRATION_PATTERN_EXTRA,
-                (range != null)
-                        ? range.mVibrationPattern
-                        : CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(
-                                        getApplicationContext())
-                                .getIntArray(R.array.default_vibration_pattern));
+        audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_TONE_TYPE,
+                classification.getAlertType());
+        audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_VIBRATION_PATTERN_EXTRA,
+                classification.getVibrationPattern());
+        audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_RECEIVED_TIME_EXTRA,
+                receivedTime);
 
         String messageBody = message.getMessageBody();
 
-        if (prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_ALERT_SPEECH, true)) {
+        if (CellBroadcastAlertPreferences.get(this).isAlertSpeechEnabled()) {
             audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_MESSAGE_BODY, messageBody);
 
             String language = message.getLanguageCode();
@@ -634,13 +758,16 @@ public class CellBroadcastAlertService extends Service {
 
         ArrayList<CellBroadcastMessage> messageList = new ArrayList<CellBroadcastMessage>(1);
         messageList.add(message);
+        ArrayList<CellBroadcastMessageClassification> classificationList = new ArrayList<>(1);
+        classificationList.add(classification);
 
         // For FEATURE_WATCH, the dialog doesn't make sense from a UI/UX perspective
         if (getPackageManager().hasSystemFeature(PackageManager.FEATURE_WATCH)) {
-            addToNotificationBar(message, messageList, this, false);
+            addToNotificationBar(message, classification, messageList, classificationList, this,
+                    false);
         } else {
             Intent alertDialogIntent = createDisplayMessageIntent(this,
-                    CellBroadcastAlertDialog.class, messageList);
+                    CellBroadcastAlertDialog.class, messageList, classificationList);
             alertDialogIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
             PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
             // Wake up the device up regardless the scenario. (The device might be
@@ -660,11 +787,27 @@ public class CellBroadcastAlertService extends Service {
     static void addToNotificationBar(CellBroadcastMessage message,
                                      ArrayList<CellBroadcastMessage> messageList, Context context,
                                      boolean fromSaveState) {
+        addToNotificationBar(message,
+                CellBroadcastMessageClassification.classify(context, message), messageList,
+                null, context, fromSaveState);
+    }
+
+    /**
+     * Add the new alert to the notification bar (non-emergency alerts), or launch a
+     * high-priority immediate intent for emergency alerts.
+     * @param message the alert to display
+     * @param classification the classification of the alert
+     * @param classificationList classifications parallel to messageList, or null if unknown
+     */
+    static void addToNotificationBar(CellBroadcastMessage message,
+            CellBroadcastMessageClassification classification,
+            ArrayList<CellBroadcastMessage> messageList,
+            ArrayList<CellBroadcastMessageClassification> classificationList, Context context,
+            boolean fromSaveState) {
         Resources res = CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(context);
-        int channelTitleId = CellBroadcastResources.getDialogTitleResource(context, message);
+        int channelTitleId = classification.getTitleResId();
         CharSequence channelName = context.getText(channelTitleId);
         String messageBody = message.getMessageBody();
-        final NotificationManager notificationManager = NotificationManager.from(context);
         createNotificationChannels(context);
 
         // Create intent to show the new messages when user selects the notification.
@@ -675,7 +818,7 @@ public class CellBroadcastAlertService extends Service {
         } else {
             // For anything else we handle it normally
             intent = createDisplayMessageIntent(context, CellBroadcastAlertDialog.class,
-                    messageList);
+                    messageList, classificationList);
         }
 
         intent.putExtra(CellBroadcastAlertDialog.FROM_NOTIFICATION_EXTRA, true);
@@ -688,7 +831,7 @@ public class CellBroadcastAlertService extends Service {
             pi = PendingIntent.getActivity(context, NOTIFICATION_ID, intent,
                     PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_UPDATE_CURRENT);
         }
-        final String channelId = CellBroadcastChannelManager.isEmergencyMessage(context, message)
+        final String channelId = classification.isEmergency()
                 ? NOTIFICATION_CHANNEL_EMERGENCY_ALERTS : NOTIFICATION_CHANNEL_NON_EMERGENCY_ALERTS;
         // use default sound/vibration/lights for non-emergency broadcasts
         Notification.Builder builder =
@@ -714,6 +857,33 @@ public class CellBroadcastAlertService extends Service {
 
         // increment unread alert count (decremented when user dismisses alert dialog)
         int unreadCount = messageList.size();
+        if (classification.isEmergency()) {
+            notifyNotificationBar(builder, channelName, messageBody, unreadCount, false,
+                    context);
+            return;
+        }
+        // The list is lost when the process dies, the stored broadcasts are not, so the unread
+        // ones received since the notification was last cleared are counted. The list is ahead
+        // of the stored count while the latest broadcast is being written. The count is read in
+        // the background, behind the writes queued so far.
+        Context appContext = context.getApplicationContext();
+        CellBroadcastOperationExecutor.getInstance().execute(
+                CellBroadcastOperationExecutor.LANE_NORMAL,
+                () -> notifyNotificationBar(builder, channelName, messageBody,
+                        Math.max(unreadCount, CellBroadcastContentProvider
+                                .getUnreadNonEmergencyCount(appContext.getContentResolver(),
+                                        CellBroadcastReceiverApp.getNotificationClearedTime(
+                                                appContext))),
+                        true, appContext));
+    }
+
+    /**
+     * Post the notification of the latest alert, as a count if more than one alert is unread.
+     * @param nonEmergency true if the alert is not an emergency alert
+     */
+    private static void notifyNotificationBar(Notification.Builder builder,
+            CharSequence channelName, String messageBody, int unreadCount, boolean nonEmergency,
+            Context context) {
         if (unreadCount > 1) {
             // use generic count of unread broadcasts if more than one unread
             builder.setContentTitle(context.getString(R.string.notification_multiple_title));
@@ -725,7 +895,7 @@ public class CellBroadcastAlertService extends Service {
                             .bigText(messageBody));
         }
 
-        notificationManager.notify(NOTIFICATION_ID, builder.build());
+        NotificationManager.from(context).notify(NOTIFICATION_ID, builder.build());
 
         // FEATURE_WATCH devices do not have global sounds for notifications; only vibrate.
         // TW requires sounds for 911/919
@@ -733,8 +903,9 @@ public class CellBroadcastAlertService extends Service {
         // addToNotification for the emergency display on FEATURE WATCH devices vs the
         // Alert Dialog, it will call this and override the emergency audio tone.
         if (context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_WATCH)
-                && !CellBroadcastChannelManager.isEmergencyMessage(context, message)) {
-            if (res.getBoolean(R.bool.watch_enable_non_emergency_audio)) {
+                && nonEmergency) {
+            if (CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(context)
+                    .getBoolean(R.bool.watch_enable_non_emergency_audio)) {
                 // start audio/vibration/speech service for non emergency alerts
                 Intent audioIntent = new Intent(context, CellBroadcastAlertAudio.class);
                 audioIntent.setAction(CellBroadcastAlertAudio.ACTION_START_ALERT_AUDIO);
@@ -766,9 +937,23 @@ public class CellBroadcastAlertService extends Service {
 
     static Intent createDisplayMessageIntent(Context context, Class intentClass,
             ArrayList<CellBroadcastMessage> messageList) {
+        return createDisplayMessageIntent(context, intentClass, messageList, null);
+    }
+
+    /**
+     * @param classificationList classifications parallel to messageList, or null if unknown
+     */
+    static Intent createDisplayMessageIntent(Context context, Class intentClass,
+            ArrayList<CellBroadcastMessage> messageList,
+            ArrayList<CellBroadcastMessageClassification> classificationList) {
         // Trigger the list activity to fire up a dialog that shows the received messages
         Intent intent = new Intent(context, intentClass);
         intent.putParcelableArrayListExtra(CellBroadcastMessage.SMS_CB_MESSAGE_EXTRA, messageList);
+        if (classificationList != null && classificationList.size() == messageList.size()) {
+            intent.putParcelableArrayListExtra(
+                    CellBroadcastMessageClassification.EXTRA_CLASSIFICATION_LIST,
+                    classificationList);
+        }
         return intent;
     }
 
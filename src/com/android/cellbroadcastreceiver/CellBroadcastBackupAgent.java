@@ -45,7 +45,9 @@ public class CellBroadcastBackupAgent extends BackupAgentHelper
     @Override
     public void onRestoreFinished() {
         Log.d(TAG, "Restore finished.");
-        Intent intent = new Intent(CellBroadcastReceiver.CELLBROADCAST_START_CONFIG_ACTION);
+        // No receiver declares the action, so it is sent to the receiver directly.
+        Intent intent = new Intent(CellBroadcastReceiver.CELLBROADCAST_START_CONFIG_ACTION)
+                .setClass(this, CellBroadcastReceiver.class);
 
         // Cell broadcast was configured during boot up before the shared preference is restored,
         // we need to re-configure it.
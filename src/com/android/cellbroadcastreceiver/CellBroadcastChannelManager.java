@@ -16,19 +16,23 @@
 
 package com.android.cellbroadcastreceiver;
 
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.VDBG;
+
 import android.content.Context;
+import android.content.res.Resources;
 import android.telephony.CellBroadcastMessage;
 import android.telephony.ServiceState;
 import android.telephony.SmsManager;
+import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.cellbroadcastreceiver.CellBroadcastAlertService.AlertType;
 import com.android.internal.util.ArrayUtils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 /**
  * CellBroadcastChannelManager handles the additional cell broadcast channels that
@@ -50,23 +54,41 @@ public class CellBroadcastChannelManager {
 
     private static CellBroadcastChannelManager sInstance = null;
 
-    private static List<Integer> sCellBroadcastRangeResourceKeys = new ArrayList<>(
-            Arrays.asList(R.array.additional_cbs_channels_strings,
-                    R.array.emergency_alerts_channels_range_strings,
-                    R.array.cmas_presidential_alerts_channels_range_strings,
-                    R.array.cmas_alert_extreme_channels_range_strings,
-                    R.array.cmas_alerts_severe_range_strings,
-                    R.array.cmas_amber_alerts_channels_range_strings,
-                    R.array.required_monthly_test_range_strings,
-                    R.array.exercise_alert_range_strings,
-                    R.array.operator_defined_alert_range_strings,
-                    R.array.etws_alerts_range_strings,
-                    R.array.etws_test_alerts_range_strings,
-                    R.array.public_safety_messages_channels_range_strings,
-                    R.array.state_local_test_alert_range_strings
-            ));
-
-    private static ArrayList<CellBroadcastChannelRange> sAllCellBroadcastChannelRanges = null;
+    private static final int[] sCellBroadcastRangeResourceKeys = new int[] {
+            R.array.additional_cbs_channels_strings,
+            R.array.emergency_alerts_channels_range_strings,
+            R.array.cmas_presidential_alerts_channels_range_strings,
+            R.array.cmas_alert_extreme_channels_range_strings,
+            R.array.cmas_alerts_severe_range_strings,
+            R.array.cmas_amber_alerts_channels_range_strings,
+            R.array.required_monthly_test_range_strings,
+            R.array.exercise_alert_range_strings,
+            R.array.operator_defined_alert_range_strings,
+            R.array.etws_alerts_range_strings,
+            R.array.etws_test_alerts_range_strings,
+            R.array.public_safety_messages_channels_range_strings,
+            R.array.state_local_test_alert_range_strings
+    };
+
+    private static final Object sCacheLock = new Object();
+
+    /**
+     * Parsed channel ranges, keyed by subscription id and then by resource key. Guarded by
+     * sCacheLock.
+     */
+    private static final SparseArray<SparseArray<ArrayList<CellBroadcastChannelRange>>>
+            sChannelRangesCache = new SparseArray<>();
+
+    /** All channel ranges of each subscription, in resource key order. Guarded by sCacheLock. */
+    private static final SparseArray<ArrayList<CellBroadcastChannelRange>>
+            sAllCellBroadcastChannelRanges = new SparseArray<>();
+
+    /** Channel range cache statistics. Guarded by sCacheLock. */
+    private static long sCacheHits = 0;
+    private static long sCacheMisses = 0;
+
+    /** Compiled lookup table for the current default SMS subscription, built lazily. */
+    private static volatile ChannelLookupTable sChannelLookupTable = null;
 
     /**
      * Cell broadcast channel range
@@ -109,14 +131,24 @@ public class CellBroadcastChannelManager {
         public boolean mFilterLanguage;
 
         public CellBroadcastChannelRange(Context context, String channelRange) throws Exception {
+            this(channelRange,
+                    CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(context)
+                            .getIntArray(R.array.default_vibration_pattern));
+        }
+
+        /**
+         * @param channelRange The range string to parse
+         * @param defaultVibrationPattern Vibration pattern used when the range does not specify
+         * one. The array is shared, not copied.
+         */
+        public CellBroadcastChannelRange(String channelRange, int[] defaultVibrationPattern)
+                throws Exception {
 
             mAlertType = AlertType.DEFAULT;
             mEmergencyLevel = LEVEL_UNKNOWN;
             mRat = SmsManager.CELL_BROADCAST_RAN_TYPE_GSM;
             mScope = SCOPE_UNKNOWN;
-            mVibrationPattern =
-                    CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(context)
-                            .getIntArray(R.array.default_vibration_pattern);
+            mVibrationPattern = defaultVibrationPattern;
             mFilterLanguage = false;
 
             int colonIndex = channelRange.indexOf(':');
@@ -195,6 +227,135 @@ public class CellBroadcastChannelManager {
         }
     }
 
+    /**
+     * Compiled channel lookup table built from all the channel range resources.
+     *
+     * The channel space covered by the ranges is split into disjoint segments. Each segment keeps,
+     * in resource key order, the first range of every resource key that covers it, along with the
+     * emergency level that {@link #isEmergencyMessage} would resolve for it. Looking up a channel
+     * is a binary search over the segments instead of parsing and scanning every resource array.
+     */
+    private static final class ChannelLookupTable {
+        /** Subscription whose resources the table was built from. */
+        final int mSubId;
+        /** Inclusive first and last channel of each segment, sorted ascending. */
+        private final int[] mSegmentStart;
+        private final int[] mSegmentEnd;
+        /** Index into sCellBroadcastRangeResourceKeys of each candidate range, in key order. */
+        private final int[][] mKeyIndexes;
+        /** Candidate ranges covering each segment, one per resource key at most. */
+        private final CellBroadcastChannelRange[][] mRanges;
+        /** First known emergency level among the candidates, or LEVEL_UNKNOWN. */
+        private final int[] mEmergencyLevels;
+
+        ChannelLookupTable(Context context, int subId) {
+            mSubId = subId;
+            int keyCount = sCellBroadcastRangeResourceKeys.length;
+            ArrayList<ArrayList<CellBroadcastChannelRange>> rangesByKey =
+                    new ArrayList<>(keyCount);
+            int rangeCount = 0;
+            for (int key : sCellBroadcastRangeResourceKeys) {
+                ArrayList<CellBroadcastChannelRange> ranges =
+                        getCellBroadcastChannelRanges(context, key);
+                rangesByKey.add(ranges);
+                rangeCount += ranges.size();
+            }
+
+            // Every range start and every (range end + 1) starts a new segment.
+            long[] boundaries = new long[rangeCount * 2];
+            int boundaryCount = 0;
+            for (ArrayList<CellBroadcastChannelRange> ranges : rangesByKey) {
+                for (CellBroadcastChannelRange range : ranges) {
+                    if (range.mStartId > range.mEndId) continue;
+                    boundaries[boundaryCount++] = range.mStartId;
+                    boundaries[boundaryCount++] = (long) range.mEndId + 1;
+                }
+            }
+            Arrays.sort(boundaries, 0, boundaryCount);
+
+            int[] segmentStart = new int[boundaryCount];
+            int[] segmentEnd = new int[boundaryCount];
+            int[][] keyIndexes = new int[boundaryCount][];
+            CellBroadcastChannelRange[][] segmentRanges =
+                    new CellBroadcastChannelRange[boundaryCount][];
+            int[] emergencyLevels = new int[boundaryCount];
+            int segmentCount = 0;
+
+            int[] candidateKeys = new int[keyCount];
+            CellBroadcastChannelRange[] candidates = new CellBroadcastChannelRange[keyCount];
+            for (int i = 0; i + 1 < boundaryCount; i++) {
+                if (boundaries[i] == boundaries[i + 1]) continue;
+                int start = (int) boundaries[i];
+                int candidateCount = 0;
+                for (int k = 0; k < keyCount; k++) {
+                    // Segments never straddle a range boundary, so a range covering the first
+                    // channel of the segment covers all of it.
+                    for (CellBroadcastChannelRange range : rangesByKey.get(k)) {
+                        if (range.mStartId <= start && range.mEndId >= start) {
+                            candidateKeys[candidateCount] = k;
+                            candidates[candidateCount] = range;
+                            candidateCount++;
+                            break;
+                        }
+                    }
+                }
+                if (candidateCount == 0) continue;
+
+                segmentStart[segmentCount] = start;
+                segmentEnd[segmentCount] = (int) (boundaries[i + 1] - 1);
+                keyIndexes[segmentCount] = Arrays.copyOf(candidateKeys, candidateCount);
+                segmentRanges[segmentCount] = Arrays.copyOf(candidates, candidateCount);
+                emergencyLevels[segmentCount] = CellBroadcastChannelRange.LEVEL_UNKNOWN;
+                for (int c = 0; c < candidateCount; c++) {
+                    if (candidates[c].mEmergencyLevel != CellBroadcastChannelRange.LEVEL_UNKNOWN) {
+                        emergencyLevels[segmentCount] = candidates[c].mEmergencyLevel;
+                        break;
+                    }
+                }
+                segmentCount++;
+            }
+
+            mSegmentStart = Arrays.copyOf(segmentStart, segmentCount);
+            mSegmentEnd = Arrays.copyOf(segmentEnd, segmentCount);
+            mKeyIndexes = Arrays.copyOf(keyIndexes, segmentCount);
+            mRanges = Arrays.copyOf(segmentRanges, segmentCount);
+            mEmergencyLevels = Arrays.copyOf(emergencyLevels, segmentCount);
+            if (VDBG) log("Built channel lookup table with " + segmentCount + " segments");
+        }
+
+        /**
+         * @return The index of the segment containing the channel, or -1 if no range covers it.
+         */
+        int findSegment(int channel) {
+            int low = 0;
+            int high = mSegmentStart.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (mSegmentStart[mid] > channel) {
+                    high = mid - 1;
+                } else if (mSegmentEnd[mid] < channel) {
+                    low = mid + 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return The first range of the resource key at keyIndex covering the channel, or null.
+         */
+        CellBroadcastChannelRange getRange(int channel, int keyIndex) {
+            int segment = findSegment(channel);
+            if (segment < 0) return null;
+            int[] keyIndexes = mKeyIndexes[segment];
+            for (int c = 0; c < keyIndexes.length; c++) {
+                if (keyIndexes[c] == keyIndex) return mRanges[segment][c];
+            }
+            return null;
+        }
+    }
+
     /**
      * Get the instance of the cell broadcast other channel manager
      * @return The singleton instance
@@ -207,22 +368,48 @@ public class CellBroadcastChannelManager {
     }
 
     /**
-     * Get cell broadcast channels enabled by the carriers from resource key
+     * Get cell broadcast channels enabled by the carriers from resource key. The ranges are
+     * parsed once per default SMS subscription and cached until
+     * {@link #invalidateCellBroadcastChannelRanges()} is called. The returned list is shared and
+     * must not be modified.
+     *
      * @param context Application context
      * @param key Resource key
      * @return The list of channel ranges enabled by the carriers.
      */
     public static ArrayList<CellBroadcastChannelRange> getCellBroadcastChannelRanges(
             Context context, int key) {
+        int subId = SubscriptionManager.getDefaultSmsSubscriptionId();
+        synchronized (sCacheLock) {
+            SparseArray<ArrayList<CellBroadcastChannelRange>> subCache =
+                    sChannelRangesCache.get(subId);
+            if (subCache == null) {
+                subCache = new SparseArray<>();
+                sChannelRangesCache.put(subId, subCache);
+            }
+            ArrayList<CellBroadcastChannelRange> result = subCache.get(key);
+            if (result != null) {
+                sCacheHits++;
+                return result;
+            }
+            sCacheMisses++;
+            result = parseCellBroadcastChannelRanges(context, key);
+            subCache.put(key, result);
+            return result;
+        }
+    }
+
+    private static ArrayList<CellBroadcastChannelRange> parseCellBroadcastChannelRanges(
+            Context context, int key) {
         ArrayList<CellBroadcastChannelRange> result = new ArrayList<>();
-        String[] ranges =
-                CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(context)
-                        .getStringArray(key);
+        Resources res = CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(context);
+        String[] ranges = res.getStringArray(key);
 
         if (ranges != null) {
+            int[] defaultVibrationPattern = res.getIntArray(R.array.default_vibration_pattern);
             for (String range : ranges) {
                 try {
-                    result.add(new CellBroadcastChannelRange(context, range));
+                    result.add(new CellBroadcastChannelRange(range, defaultVibrationPattern));
                 } catch (Exception e) {
                     loge("Failed to parse \"" + range + "\". e=" + e);
                 }
@@ -236,20 +423,58 @@ public class CellBroadcastChannelManager {
      * Get all cell broadcast channels
      *
      * @param context Application context
-     * @return all cell broadcast channels
+     * @return all cell broadcast channels. The returned list is shared and must not be modified.
      */
     public static ArrayList<CellBroadcastChannelRange> getAllCellBroadcastChannelRanges(
             Context context) {
-        if (sAllCellBroadcastChannelRanges != null) return sAllCellBroadcastChannelRanges;
+        int subId = SubscriptionManager.getDefaultSmsSubscriptionId();
+        synchronized (sCacheLock) {
+            ArrayList<CellBroadcastChannelRange> result = sAllCellBroadcastChannelRanges.get(subId);
+            if (result != null) return result;
+
+            result = new ArrayList<>();
+            for (int key : sCellBroadcastRangeResourceKeys) {
+                result.addAll(getCellBroadcastChannelRanges(context, key));
+            }
 
-        ArrayList<CellBroadcastChannelRange> result = new ArrayList<>();
+            sAllCellBroadcastChannelRanges.put(subId, result);
+            return result;
+        }
+    }
+
+    /**
+     * Drop all the parsed channel ranges, the compiled lookup table and the ETWS fast path
+     * snapshot, so they are rebuilt from resources on next use. Called when the carrier config,
+     * the default SMS subscription or the locale changes, since any of them can select different
+     * resources.
+     */
+    public static void invalidateCellBroadcastChannelRanges() {
+        synchronized (sCacheLock) {
+            log("Invalidating channel range cache. hits=" + sCacheHits + ", misses="
+                    + sCacheMisses);
+            sChannelRangesCache.clear();
+            sAllCellBroadcastChannelRanges.clear();
+            sChannelLookupTable = null;
+        }
+        CellBroadcastEtwsFastPath.invalidate();
+    }
 
-        for (int key : sCellBroadcastRangeResourceKeys) {
-            result.addAll(getCellBroadcastChannelRanges(context, key));
+    /**
+     * @return The number of channel range lookups served from the cache
+     */
+    public static long getCacheHitCount() {
+        synchronized (sCacheLock) {
+            return sCacheHits;
         }
+    }
 
-        sAllCellBroadcastChannelRanges = result;
-        return result;
+    /**
+     * @return The number of channel range lookups that had to parse resources
+     */
+    public static long getCacheMissCount() {
+        synchronized (sCacheLock) {
+            return sCacheMisses;
+        }
     }
 
     /**
@@ -262,16 +487,87 @@ public class CellBroadcastChannelManager {
      */
     public static boolean checkCellBroadcastChannelRange(int subId, int channel, int key,
             Context context) {
-        ArrayList<CellBroadcastChannelRange> ranges = CellBroadcastChannelManager
-                .getInstance().getCellBroadcastChannelRanges(context, key);
-        if (ranges != null) {
+        int keyIndex = getResourceKeyIndex(key);
+        if (keyIndex < 0) {
+            // Not one of the compiled keys, scan the resource directly.
+            ArrayList<CellBroadcastChannelRange> ranges = CellBroadcastChannelManager
+                    .getInstance().getCellBroadcastChannelRanges(context, key);
             for (CellBroadcastChannelRange range : ranges) {
                 if (channel >= range.mStartId && channel <= range.mEndId) {
                     return checkScope(context, subId, range.mScope);
                 }
             }
+            return false;
+        }
+
+        CellBroadcastChannelRange range = getChannelLookupTable(context).getRange(channel,
+                keyIndex);
+        return range != null && checkScope(context, subId, range.mScope);
+    }
+
+    /**
+     * Get the first range of a resource key that covers the channel, regardless of its scope.
+     *
+     * @param context Application context
+     * @param channel Cell broadcast message channel
+     * @param key Resource key
+     * @return The first range of the resource key covering the channel, or null if none does
+     */
+    public static CellBroadcastChannelRange getCellBroadcastChannelRange(Context context,
+            int channel, int key) {
+        int keyIndex = getResourceKeyIndex(key);
+        if (keyIndex < 0) {
+            for (CellBroadcastChannelRange range : getCellBroadcastChannelRanges(context, key)) {
+                if (channel >= range.mStartId && channel <= range.mEndId) {
+                    return range;
+                }
+            }
+            return null;
         }
-        return false;
+        return getChannelLookupTable(context).getRange(channel, keyIndex);
+    }
+
+    /**
+     * Get the first range, in resource key order, that covers the channel regardless of its
+     * scope. This is the range {@link #getAllCellBroadcastChannelRanges} would find first.
+     *
+     * @param context Application context
+     * @param channel Cell broadcast message channel
+     * @return The first range covering the channel, or null if none does
+     */
+    public static CellBroadcastChannelRange getFirstCellBroadcastChannelRange(Context context,
+            int channel) {
+        ChannelLookupTable table = getChannelLookupTable(context);
+        int segment = table.findSegment(channel);
+        return segment >= 0 ? table.mRanges[segment][0] : null;
+    }
+
+    /**
+     * Get the compiled channel lookup table, rebuilding it if the default SMS subscription (and
+     * therefore the resources the ranges come from) changed since it was built.
+     */
+    private static ChannelLookupTable getChannelLookupTable(Context context) {
+        int subId = SubscriptionManager.getDefaultSmsSubscriptionId();
+        ChannelLookupTable table = sChannelLookupTable;
+        if (table == null || table.mSubId != subId) {
+            synchronized (sCacheLock) {
+                // Build under the cache lock so a concurrent invalidation can't be overwritten
+                // by a table compiled from stale ranges.
+                table = sChannelLookupTable;
+                if (table == null || table.mSubId != subId) {
+                    table = new ChannelLookupTable(context, subId);
+                    sChannelLookupTable = table;
+                }
+            }
+        }
+        return table;
+    }
+
+    private static int getResourceKeyIndex(int key) {
+        for (int i = 0; i < sCellBroadcastRangeResourceKeys.length; i++) {
+            if (sCellBroadcastRangeResourceKeys[i] == key) return i;
+        }
+        return -1;
     }
 
     /**
@@ -316,20 +612,15 @@ public class CellBroadcastChannelManager {
             Context context, CellBroadcastMessage message) {
         int subId = message.getSubId();
         int channel = message.getServiceCategory();
-        ArrayList<CellBroadcastChannelRange> ranges = null;
 
-        for (int key : sCellBroadcastRangeResourceKeys) {
-            if (checkCellBroadcastChannelRange(subId, channel, key, context)) {
-                ranges = getCellBroadcastChannelRanges(context, key);
-                break;
-            }
-        }
-        if (ranges != null) {
-            for (CellBroadcastChannelRange range : ranges) {
-                if (range.mStartId <= message.getServiceCategory()
-                        && range.mEndId >= message.getServiceCategory()) {
-                    return range;
-                }
+        ChannelLookupTable table = getChannelLookupTable(context);
+        int segment = table.findSegment(channel);
+        if (segment < 0) return null;
+
+        // The first resource key whose range covering the channel is in scope wins.
+        for (CellBroadcastChannelRange range : table.mRanges[segment]) {
+            if (checkScope(context, subId, range.mScope)) {
+                return range;
             }
         }
         return null;
@@ -348,24 +639,19 @@ public class CellBroadcastChannelManager {
 
         int id = message.getServiceCategory();
 
-        for (int key : sCellBroadcastRangeResourceKeys) {
-            ArrayList<CellBroadcastChannelRange> ranges =
-                    getCellBroadcastChannelRanges(context, key);
-            for (CellBroadcastChannelRange range : ranges) {
-                if (range.mStartId <= id && range.mEndId >= id) {
-                    switch (range.mEmergencyLevel) {
-                        case CellBroadcastChannelRange.LEVEL_EMERGENCY:
-                            Log.d(TAG, "isEmergencyMessage: true, message id = " + id);
-                            return true;
-                        case CellBroadcastChannelRange.LEVEL_NOT_EMERGENCY:
-                            Log.d(TAG, "isEmergencyMessage: false, message id = " + id);
-                            return false;
-                        case CellBroadcastChannelRange.LEVEL_UNKNOWN:
-                        default:
-                            break;
-                    }
+        ChannelLookupTable table = getChannelLookupTable(context);
+        int segment = table.findSegment(id);
+        if (segment >= 0) {
+            switch (table.mEmergencyLevels[segment]) {
+                case CellBroadcastChannelRange.LEVEL_EMERGENCY:
+                    Log.d(TAG, "isEmergencyMessage: true, message id = " + id);
+                    return true;
+                case CellBroadcastChannelRange.LEVEL_NOT_EMERGENCY:
+                    Log.d(TAG, "isEmergencyMessage: false, message id = " + id);
+                    return false;
+                case CellBroadcastChannelRange.LEVEL_UNKNOWN:
+                default:
                     break;
-                }
             }
         }
 
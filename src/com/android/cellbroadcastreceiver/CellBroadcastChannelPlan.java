@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.telephony.SmsManager;
+import android.util.Log;
+
+import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Plans the calls that enable and disable the channel ranges of a subscription on the radio.
+ *
+ * Ranges are added in groups, each group being enabled or disabled as a whole by one setting.
+ * The adjacent and overlapping ranges of a group are merged per RAT, and one call is made for
+ * each merged interval. Ranges of different groups are not merged: the radio only disables a
+ * range enabled with the very same bounds, so an interval must not depend on the settings of
+ * other groups. The radio enables the union of the intervals enabled by all groups.
+ *
+ * Given the intervals last enabled on the radio, {@link #applyChanges} only makes the calls that
+ * change them to the intervals of the plan.
+ */
+public final class CellBroadcastChannelPlan {
+    private static final String TAG = "CBChannelPlan";
+
+    /** Channels enabled or disabled by one call. */
+    static final class Interval {
+        final int mGroup;
+        final boolean mEnable;
+        final int mRat;
+        final int mStartId;
+        final int mEndId;
+
+        /** Index of the group and enable flag in the order they were first added. */
+        private final int mOrder;
+
+        Interval(int group, boolean enable, int rat, int startId, int endId, int order) {
+            mGroup = group;
+            mEnable = enable;
+            mRat = rat;
+            mStartId = startId;
+            mEndId = endId;
+            mOrder = order;
+        }
+
+        @Override
+        public String toString() {
+            return (mEnable ? "enable " : "disable ") + mStartId + "-" + mEndId + " rat=" + mRat
+                    + " group=" + mGroup;
+        }
+    }
+
+    /** Ranges as added, one interval per range. */
+    private final ArrayList<Interval> mRanges = new ArrayList<>();
+
+    /** Groups and enable flags in the order they were first added, as group * 2 + enable. */
+    private final ArrayList<Integer> mOrders = new ArrayList<>();
+
+    /**
+     * Add the ranges of a group.
+     *
+     * @param group Group of the ranges, enabled or disabled as a whole
+     * @param enable True to enable the ranges, false to disable them
+     * @param ranges Channel ranges, may be null
+     */
+    public void add(int group, boolean enable, List<CellBroadcastChannelRange> ranges) {
+        if (ranges == null) {
+            return;
+        }
+        for (CellBroadcastChannelRange range : ranges) {
+            add(group, enable, range.mRat, range.mStartId, range.mEndId);
+        }
+    }
+
+    /**
+     * Add a range of a group.
+     *
+     * @param group Group of the range, enabled or disabled as a whole
+     * @param enable True to enable the range, false to disable it
+     * @param rat RAT of the range
+     * @param startId First channel of the range
+     * @param endId Last channel of the range
+     */
+    public void add(int group, boolean enable, int rat, int startId, int endId) {
+        if (startId > endId) {
+            return;
+        }
+        Integer key = group * 2 + (enable ? 1 : 0);
+        int order = mOrders.indexOf(key);
+        if (order == -1) {
+            order = mOrders.size();
+            mOrders.add(key);
+        }
+        mRanges.add(new Interval(group, enable, rat, startId, endId, order));
+    }
+
+    /**
+     * @return the merged intervals, by group in the order they were added, then by RAT, then by
+     *         channel
+     */
+    public List<Interval> getIntervals() {
+        ArrayList<Interval> sorted = new ArrayList<>(mRanges);
+        Collections.sort(sorted, (a, b) -> {
+            if (a.mOrder != b.mOrder) {
+                return Integer.compare(a.mOrder, b.mOrder);
+            }
+            if (a.mRat != b.mRat) {
+                return Integer.compare(a.mRat, b.mRat);
+            }
+            return Integer.compare(a.mStartId, b.mStartId);
+        });
+
+        ArrayList<Interval> intervals = new ArrayList<>();
+        Interval last = null;
+        for (Interval range : sorted) {
+            if (last != null && last.mOrder == range.mOrder && last.mRat == range.mRat
+                    && range.mStartId <= (long) last.mEndId + 1) {
+                if (range.mEndId > last.mEndId) {
+                    last = new Interval(last.mGroup, last.mEnable, last.mRat, last.mStartId,
+                            range.mEndId, last.mOrder);
+                    intervals.set(intervals.size() - 1, last);
+                }
+                continue;
+            }
+            last = range;
+            intervals.add(last);
+        }
+        return intervals;
+    }
+
+    /**
+     * Enable and disable the merged intervals on the radio.
+     *
+     * @param manager SMS manager of the subscription
+     * @return The number of calls made
+     */
+    public int apply(SmsManager manager) {
+        return apply(manager, new HashSet<>());
+    }
+
+    /**
+     * Enable and disable the merged intervals on the radio.
+     *
+     * @param manager SMS manager of the subscription
+     * @param applied Set to the keys of the intervals enabled
+     * @return The number of calls made
+     */
+    public int apply(SmsManager manager, Set<String> applied) {
+        applied.clear();
+        List<Interval> intervals = getIntervals();
+        for (Interval interval : intervals) {
+            if (interval.mEnable) {
+                if (manager.enableCellBroadcastRange(interval.mStartId, interval.mEndId,
+                        interval.mRat)) {
+                    applied.add(getKey(interval.mRat, interval.mStartId, interval.mEndId));
+                }
+            } else {
+                manager.disableCellBroadcastRange(interval.mStartId, interval.mEndId,
+                        interval.mRat);
+            }
+        }
+        return intervals.size();
+    }
+
+    /**
+     * Change the intervals enabled on the radio to those enabled by the plan. The new intervals
+     * are enabled before the old ones are disabled, so channels enabled by both are never off.
+     *
+     * @param manager SMS manager of the subscription
+     * @param applied The keys of the intervals enabled on the radio, updated with the calls made
+     * @return The number of calls made
+     */
+    public int applyChanges(SmsManager manager, Set<String> applied) {
+        int calls = 0;
+        HashSet<String> enabled = new HashSet<>();
+        for (Interval interval : getIntervals()) {
+            if (!interval.mEnable) {
+                continue;
+            }
+            String key = getKey(interval.mRat, interval.mStartId, interval.mEndId);
+            enabled.add(key);
+            if (!applied.contains(key)) {
+                calls++;
+                if (manager.enableCellBroadcastRange(interval.mStartId, interval.mEndId,
+                        interval.mRat)) {
+                    applied.add(key);
+                }
+            }
+        }
+        Iterator<String> iterator = applied.iterator();
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            if (enabled.contains(key)) {
+                continue;
+            }
+            iterator.remove();
+            int[] interval = parseKey(key);
+            if (interval != null) {
+                calls++;
+                manager.disableCellBroadcastRange(interval[1], interval[2], interval[0]);
+            }
+        }
+        return calls;
+    }
+
+    /** @return the key of an interval in the sets of intervals applied */
+    static String getKey(int rat, int startId, int endId) {
+        return rat + ":" + startId + "-" + endId;
+    }
+
+    /** @return the RAT, first and last channel of the interval, or null if the key is invalid */
+    private static int[] parseKey(String key) {
+        int colon = key.indexOf(':');
+        int dash = key.indexOf('-', colon + 1);
+        try {
+            return new int[]{Integer.parseInt(key.substring(0, colon)),
+                    Integer.parseInt(key.substring(colon + 1, dash)),
+                    Integer.parseInt(key.substring(dash + 1))};
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            Log.e(TAG, "Invalid interval " + key);
+            return null;
+        }
+    }
+}
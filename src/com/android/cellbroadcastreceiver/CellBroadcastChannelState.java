@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The channel intervals last enabled on the radio of each SIM slot, keyed as by
+ * {@link CellBroadcastChannelPlan#getKey}.
+ *
+ * The radio keeps the channels it was told to enable until it restarts, so the next configuration
+ * of a slot only makes the calls that change them. The state is dropped when the device boots,
+ * when the radio powers off or is ready again, and when the carrier configuration or the default
+ * SMS subscription changes, as both follow a SIM or radio reset. Every channel is configured
+ * again after that, so only the configurations triggered by the settings send the changes. It is
+ * kept apart from the preferences, which are backed up.
+ *
+ * A configuration reads the state of a slot with the {@link #getGeneration generation} of the
+ * state, and stores the intervals it enabled only if the state was not invalidated meanwhile.
+ */
+public final class CellBroadcastChannelState {
+    private static final String TAG = "CBChannelState";
+
+    private static final String PREFS_NAME = "channel_state";
+
+    /** Boot count of the device when the state was stored. */
+    private static final String KEY_BOOT_COUNT = "boot_count";
+
+    /** Prefix of the intervals enabled on the radio of a SIM slot. */
+    private static final String KEY_APPLIED_PREFIX = "applied_";
+
+    /** Number of times the state was invalidated by this process. */
+    private static int sGeneration;
+
+    private CellBroadcastChannelState() {
+    }
+
+    /**
+     * @return The generation of the state, to read before {@link #getApplied} and pass to
+     * {@link #setApplied}
+     */
+    public static synchronized int getGeneration() {
+        return sGeneration;
+    }
+
+    /**
+     * @param context Context
+     * @param slotIndex SIM slot of the radio
+     * @return The keys of the intervals enabled on the radio, or null to configure every channel
+     */
+    public static Set<String> getApplied(Context context, int slotIndex) {
+        SharedPreferences prefs = getPrefs(context);
+        int bootCount = getBootCount(context);
+        if (bootCount == -1 || prefs.getInt(KEY_BOOT_COUNT, -1) != bootCount) {
+            // The device rebooted since, or may have if the boot count is unknown.
+            return null;
+        }
+        Set<String> applied = prefs.getStringSet(KEY_APPLIED_PREFIX + slotIndex, null);
+        // The returned set must not be modified.
+        return applied != null ? new HashSet<>(applied) : null;
+    }
+
+    /**
+     * Store the intervals enabled on the radio of a SIM slot. Slots may be stored from several
+     * threads at once. Nothing is stored if the state was invalidated since it was read, as the
+     * radio may have been reset in between.
+     *
+     * @param context Context
+     * @param slotIndex SIM slot of the radio
+     * @param applied The keys of the intervals enabled on the radio
+     * @param generation The {@link #getGeneration generation} read with the state
+     */
+    public static synchronized void setApplied(Context context, int slotIndex,
+            Set<String> applied, int generation) {
+        if (generation != sGeneration) {
+            Log.d(TAG, "Dropping channel state of slot " + slotIndex + ", invalidated meanwhile");
+            return;
+        }
+        SharedPreferences prefs = getPrefs(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        int bootCount = getBootCount(context);
+        if (prefs.getInt(KEY_BOOT_COUNT, -1) != bootCount) {
+            // The intervals of the other slots are not on the radio anymore.
+            editor.clear().putInt(KEY_BOOT_COUNT, bootCount);
+        }
+        editor.putStringSet(KEY_APPLIED_PREFIX + slotIndex, applied).apply();
+    }
+
+    /**
+     * Drop the state of every SIM slot after the radio was reset, so every channel is configured
+     * again.
+     *
+     * @param context Context
+     */
+    public static synchronized void invalidate(Context context) {
+        Log.d(TAG, "Invalidating channel state");
+        sGeneration++;
+        getPrefs(context).edit().clear().apply();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static int getBootCount(Context context) {
+        return Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT,
+                -1);
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Merges the triggers of a channel reconfiguration, so a burst of them at boot or after a SIM
+ * change configures the radio a couple of times instead of once per trigger.
+ *
+ * A reconfiguration covers every subscription and runs on the thread of the scheduler, one at a
+ * time. A trigger starts one right away if none started within the window, otherwise one is
+ * scheduled for when the window has passed since the last one started. The triggers received
+ * until then, including those received while a reconfiguration runs, are merged into it.
+ *
+ * The subscriptions of a reconfiguration are configured in parallel on a bounded pool, see
+ * {@link #configureSubscriptions}.
+ */
+public class CellBroadcastConfigScheduler {
+    private static final String TAG = "CBConfigScheduler";
+
+    /** Runs the reconfigurations. */
+    interface Configurator {
+        /** Configure the channels of every subscription, on the thread of the scheduler. */
+        void configure();
+
+        /**
+         * Called on the thread of the scheduler after the last reconfiguration, if no other one
+         * was triggered meanwhile.
+         */
+        void onIdle();
+    }
+
+    /** Maximum number of subscriptions configured in parallel. */
+    private static final int MAX_PARALLEL_SUBSCRIPTIONS = 4;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static CellBroadcastConfigScheduler sInstance;
+
+    private final Handler mHandler;
+    private final long mWindowMillis;
+    private final ThreadPoolExecutor mSubscriptionExecutor;
+
+    private final Object mLock = new Object();
+
+    // Guarded by mLock.
+    private Configurator mConfigurator;
+    private boolean mPending;
+    private boolean mStarted;
+    private long mLastStartMillis;
+
+    // Metrics, guarded by mLock.
+    private long mTriggerCount;
+    private long mRunCount;
+    private long mTotalRunMillis;
+    private long mMaxRunMillis;
+    /** Configurations, last and longest time in milliseconds of each subscription. */
+    private final SparseArray<long[]> mSubscriptionMillis = new SparseArray<>();
+
+    private final Runnable mRunRunnable = this::run;
+
+    @VisibleForTesting
+    CellBroadcastConfigScheduler(Looper looper, long windowMillis) {
+        mHandler = new Handler(looper);
+        mWindowMillis = windowMillis;
+        mSubscriptionExecutor = new ThreadPoolExecutor(MAX_PARALLEL_SUBSCRIPTIONS,
+                MAX_PARALLEL_SUBSCRIPTIONS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }, TAG));
+        mSubscriptionExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Get the scheduler shared by the app.
+     *
+     * @param context Context
+     * @return The scheduler
+     */
+    public static synchronized CellBroadcastConfigScheduler getInstance(Context context) {
+        if (sInstance == null) {
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            Resources res = CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(context);
+            sInstance = new CellBroadcastConfigScheduler(thread.getLooper(),
+                    res.getInteger(R.integer.channel_config_window_ms));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Trigger a reconfiguration, merged with the one pending if any.
+     *
+     * @param configurator Runs the reconfiguration, in place of the one given by the triggers
+     *                     merged with this one
+     */
+    public void schedule(Configurator configurator) {
+        synchronized (mLock) {
+            mTriggerCount++;
+            mConfigurator = configurator;
+            if (mPending) {
+                Log.d(TAG, "Merged with the pending reconfiguration");
+                return;
+            }
+            mPending = true;
+            long delayMillis = mStarted ? Math.max(0,
+                    mLastStartMillis + mWindowMillis - SystemClock.elapsedRealtime()) : 0;
+            mHandler.postDelayed(mRunRunnable, delayMillis);
+        }
+    }
+
+    /**
+     * Configure subscriptions in parallel and wait until all of them are configured. Called by
+     * {@link Configurator#configure}, so the configurations of a subscription never overlap and
+     * run in the order they were triggered.
+     *
+     * @param subIds The subscriptions
+     * @param configuration Configures the subscription it is given
+     */
+    public void configureSubscriptions(int[] subIds, IntConsumer configuration) {
+        ArrayList<Callable<Void>> tasks = new ArrayList<>();
+        for (int subId : subIds) {
+            tasks.add(() -> {
+                long startMillis = SystemClock.elapsedRealtime();
+                try {
+                    configuration.accept(subId);
+                } finally {
+                    recordSubscription(subId, SystemClock.elapsedRealtime() - startMillis);
+                }
+                return null;
+            });
+        }
+        List<Future<Void>> futures;
+        try {
+            futures = mSubscriptionExecutor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted configuring subscriptions", e);
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException | InterruptedException e) {
+                Log.e(TAG, "Failed to configure sub " + subIds[i], e);
+            }
+        }
+    }
+
+    private void recordSubscription(int subId, long millis) {
+        synchronized (mLock) {
+            long[] times = mSubscriptionMillis.get(subId);
+            if (times == null) {
+                times = new long[3];
+                mSubscriptionMillis.put(subId, times);
+            }
+            times[0]++;
+            times[1] = millis;
+            times[2] = Math.max(times[2], millis);
+        }
+        Log.d(TAG, "Configured sub " + subId + " in " + millis + "ms");
+    }
+
+    private void run() {
+        Configurator configurator;
+        long startMillis = SystemClock.elapsedRealtime();
+        synchronized (mLock) {
+            // Triggers from now on need another reconfiguration, the settings may have been read.
+            mPending = false;
+            mStarted = true;
+            mLastStartMillis = startMillis;
+            configurator = mConfigurator;
+        }
+        try {
+            configurator.configure();
+        } finally {
+            long runMillis = SystemClock.elapsedRealtime() - startMillis;
+            boolean idle;
+            synchronized (mLock) {
+                mRunCount++;
+                mTotalRunMillis += runMillis;
+                mMaxRunMillis = Math.max(mMaxRunMillis, runMillis);
+                idle = !mPending;
+                if (idle) {
+                    mConfigurator = null;
+                }
+            }
+            Log.d(TAG, "Reconfigured in " + runMillis + "ms, " + this);
+            if (idle) {
+                configurator.onIdle();
+            }
+        }
+    }
+
+    /** @return The number of reconfigurations triggered */
+    public long getTriggerCount() {
+        synchronized (mLock) {
+            return mTriggerCount;
+        }
+    }
+
+    /** @return The number of reconfigurations run */
+    public long getRunCount() {
+        synchronized (mLock) {
+            return mRunCount;
+        }
+    }
+
+    /** @return The time spent running reconfigurations, in milliseconds */
+    public long getTotalRunMillis() {
+        synchronized (mLock) {
+            return mTotalRunMillis;
+        }
+    }
+
+    /** @return The longest time a reconfiguration took, in milliseconds */
+    public long getMaxRunMillis() {
+        synchronized (mLock) {
+            return mMaxRunMillis;
+        }
+    }
+
+    /**
+     * @param subId Subscription ID
+     * @return The time the last configuration of the subscription took in milliseconds, or -1
+     *         if it was never configured
+     */
+    public long getLastSubscriptionMillis(int subId) {
+        synchronized (mLock) {
+            long[] times = mSubscriptionMillis.get(subId);
+            return times == null ? -1 : times[1];
+        }
+    }
+
+    /**
+     * @param subId Subscription ID
+     * @return The longest time a configuration of the subscription took in milliseconds, or -1
+     *         if it was never configured
+     */
+    public long getMaxSubscriptionMillis(int subId) {
+        synchronized (mLock) {
+            long[] times = mSubscriptionMillis.get(subId);
+            return times == null ? -1 : times[2];
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            StringBuilder sb = new StringBuilder("CellBroadcastConfigScheduler{triggers=")
+                    .append(mTriggerCount).append(" runs=").append(mRunCount)
+                    .append(" totalRun=").append(mTotalRunMillis).append("ms maxRun=")
+                    .append(mMaxRunMillis).append("ms");
+            for (int i = 0; i < mSubscriptionMillis.size(); i++) {
+                long[] times = mSubscriptionMillis.valueAt(i);
+                sb.append(", sub ").append(mSubscriptionMillis.keyAt(i)).append(": runs=")
+                        .append(times[0]).append(" last=").append(times[1])
+                        .append("ms max=").append(times[2]).append("ms");
+            }
+            return sb.append('}').toString();
+        }
+    }
+}
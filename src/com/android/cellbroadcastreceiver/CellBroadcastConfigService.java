@@ -18,11 +18,10 @@ package com.android.cellbroadcastreceiver;
 
 import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.VDBG;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.res.Resources;
-import android.preference.PreferenceManager;
+import android.os.IBinder;
 import android.telephony.SmsManager;
 import android.telephony.SubscriptionManager;
 import android.util.Log;
@@ -30,85 +29,139 @@ import android.util.Log;
 import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
 import com.android.internal.annotations.VisibleForTesting;
 
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.IntFunction;
 
 /**
  * This service manages enabling and disabling ranges of message identifiers
  * that the radio should listen for. It operates independently of the other
- * services and runs at boot time and after exiting airplane mode.
+ * services and runs at boot time and after exiting airplane mode. The requests
+ * received in a burst are merged by {@link CellBroadcastConfigScheduler}.
  *
  * Note that the entire range of emergency channels is enabled. Test messages
  * and lower priority broadcasts are filtered out in CellBroadcastAlertService
  * if the user has not enabled them in settings.
  *
- * TODO: add notification to re-enable channels after a radio reset.
+ * The channels enabled on the radio of each SIM slot are kept in
+ * {@link CellBroadcastChannelState}, so a configuration only makes the calls that change
+ * them. All channels are configured again after a reboot or a radio reset.
  */
-public class CellBroadcastConfigService extends IntentService {
+public class CellBroadcastConfigService extends Service {
     private static final String TAG = "CellBroadcastConfigService";
 
     static final String ACTION_ENABLE_CHANNELS = "ACTION_ENABLE_CHANNELS";
 
-    public CellBroadcastConfigService() {
-        super(TAG);          // use class name for worker thread name
-    }
+    /**
+     * Groups of channel ranges enabled by the same setting. The ranges of a group are merged
+     * when planning the radio calls, see {@link CellBroadcastChannelPlan}.
+     */
+    static final int GROUP_PRESIDENTIAL = 1 << 0;
+    /** ETWS and additional channels, enabled by the alerts master toggle. */
+    static final int GROUP_ALERTS = 1 << 1;
+    static final int GROUP_CMAS_EXTREME = 1 << 2;
+    static final int GROUP_CMAS_SEVERE = 1 << 3;
+    static final int GROUP_CMAS_AMBER = 1 << 4;
+    static final int GROUP_TEST = 1 << 5;
+    static final int GROUP_PUBLIC_SAFETY = 1 << 6;
+    static final int GROUP_STATE_LOCAL_TEST = 1 << 7;
+    static final int GROUP_EMERGENCY = 1 << 8;
+    static final int GROUP_AREA_INFO = 1 << 9;
+    static final int ALL_GROUPS = (1 << 10) - 1;
 
     @Override
-    protected void onHandleIntent(Intent intent) {
-        if (ACTION_ENABLE_CHANNELS.equals(intent.getAction())) {
-            try {
-
-                SubscriptionManager subManager = SubscriptionManager.from(getApplicationContext());
-                int subId = SubscriptionManager.getDefaultSmsSubscriptionId();
-                if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
-                    subId = SubscriptionManager.getDefaultSubscriptionId();
-                    if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID &&
-                            subManager != null) {
-                        int [] subIds = subManager.getActiveSubscriptionIdList();
-                        if (subIds.length != 0) {
-                            subId = subIds[0];
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_ENABLE_CHANNELS.equals(intent.getAction())) {
+            CellBroadcastConfigScheduler.getInstance(this).schedule(
+                    new CellBroadcastConfigScheduler.Configurator() {
+                        @Override
+                        public void configure() {
+                            enableChannels();
                         }
+
+                        @Override
+                        public void onIdle() {
+                            // Keeps running if started again since.
+                            stopSelf(startId);
+                        }
+                    });
+        } else {
+            Log.w(TAG, "Unexpected intent " + intent);
+            stopSelf(startId);
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /**
+     * Enable cell broadcast messages on the default SMS subscription, and disable them on the
+     * others. Runs on the thread of {@link CellBroadcastConfigScheduler}.
+     */
+    private void enableChannels() {
+        try {
+            SubscriptionManager subManager = SubscriptionManager.from(getApplicationContext());
+            int subId = SubscriptionManager.getDefaultSmsSubscriptionId();
+            if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+                subId = SubscriptionManager.getDefaultSubscriptionId();
+                if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID &&
+                        subManager != null) {
+                    int [] subIds = subManager.getActiveSubscriptionIdList();
+                    if (subIds.length != 0) {
+                        subId = subIds[0];
                     }
                 }
+            }
 
-                if (subManager != null) {
-                    // Retrieve all the active sub ids. We only want to enable
-                    // cell broadcast on the sub we are interested in and we'll disable
-                    // it on other subs so the users will not receive duplicate messages from
-                    // multiple carriers (e.g. for multi-sim users).
-                    int [] subIds = subManager.getActiveSubscriptionIdList();
-                    if (subIds.length != 0)
-                    {
-                        for (int id : subIds) {
-                            SmsManager manager = SmsManager.getSmsManagerForSubscriptionId(id);
-                            if (manager != null) {
-                                if (id == subId) {
+            if (subManager != null) {
+                // Retrieve all the active sub ids. We only want to enable
+                // cell broadcast on the sub we are interested in and we'll disable
+                // it on other subs so the users will not receive duplicate messages from
+                // multiple carriers (e.g. for multi-sim users).
+                int [] subIds = subManager.getActiveSubscriptionIdList();
+                if (subIds.length != 0)
+                {
+                    // Plan once, the subscriptions are configured in parallel.
+                    CellBroadcastChannelPlan enablePlan = getChannelPlan(true);
+                    CellBroadcastChannelPlan disablePlan = getChannelPlan(false);
+                    int defaultSubId = subId;
+                    CellBroadcastConfigScheduler.getInstance(this).configureSubscriptions(subIds,
+                            id -> {
+                                SmsManager manager = SmsManager.getSmsManagerForSubscriptionId(id);
+                                if (manager == null) {
+                                    return;
+                                }
+                                if (id == defaultSubId) {
                                     // Enable cell broadcast messages on this sub.
                                     log("Enable CellBroadcast on sub " + id);
-                                    setCellBroadcastOnSub(manager, true);
+                                    setCellBroadcastOnSub(manager, id, enablePlan);
                                 }
                                 else {
                                     // Disable all cell broadcast message on this sub.
                                     // This is only for multi-sim scenario. For single SIM device
                                     // we should not reach here.
                                     log("Disable CellBroadcast on sub " + id);
-                                    setCellBroadcastOnSub(manager, false);
+                                    setCellBroadcastOnSub(manager, id, disablePlan);
                                 }
-                            }
-                        }
-                    }
-                    else {
-                        // For no sim scenario.
-                        SmsManager manager = SmsManager.getDefault();
-                        if (manager != null) {
-                            setCellBroadcastOnSub(manager, true);
-                        }
+                            });
+                }
+                else {
+                    // For no sim scenario.
+                    SmsManager manager = SmsManager.getDefault();
+                    if (manager != null) {
+                        setCellBroadcastOnSub(manager, true);
                     }
                 }
-            } catch (Exception ex) {
-                Log.e(TAG, "exception enabling cell broadcast channels", ex);
             }
+
+            // Get ready to show ETWS primary notifications of the channels just enabled.
+            CellBroadcastEtwsFastPath.arm(getApplicationContext());
+        } catch (Exception ex) {
+            Log.e(TAG, "exception enabling cell broadcast channels", ex);
         }
     }
 
@@ -121,15 +174,57 @@ public class CellBroadcastConfigService extends IntentService {
      */
     @VisibleForTesting
     public void setCellBroadcastOnSub(SmsManager manager, boolean enableForSub) {
+        int calls = getChannelPlan(enableForSub).apply(manager);
+        log("Configured channels with " + calls + " calls");
+    }
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+    /**
+     * Enable/disable cell broadcast messages id on one subscription, with only the calls that
+     * change the channels enabled on its radio by the last configuration. Subscriptions may be
+     * configured in parallel.
+     * @param manager SMS manager
+     * @param subId Subscription ID
+     * @param plan Channel plan of the subscription
+     */
+    private void setCellBroadcastOnSub(SmsManager manager, int subId,
+            CellBroadcastChannelPlan plan) {
+        int slotIndex = SubscriptionManager.getSlotIndex(subId);
+        if (slotIndex == SubscriptionManager.INVALID_SIM_SLOT_INDEX) {
+            int calls = plan.apply(manager);
+            log("Configured channels of sub " + subId + " with " + calls + " calls");
+            return;
+        }
+        int generation = CellBroadcastChannelState.getGeneration();
+        Set<String> applied = CellBroadcastChannelState.getApplied(this, slotIndex);
+        int calls;
+        if (applied == null) {
+            // The radio may have lost the channels, configure all of them.
+            applied = new HashSet<>();
+            calls = plan.apply(manager, applied);
+        } else {
+            calls = plan.applyChanges(manager, applied);
+        }
+        CellBroadcastChannelState.setApplied(this, slotIndex, applied, generation);
+        log("Configured channels of slot " + slotIndex + " with " + calls + " calls");
+    }
+
+    /**
+     * Plan the channel ranges to enable and disable on a subscription from the settings.
+     * @param enableForSub True if want to enable messages on this sub (e.g default SMS). False
+     *                     will disable all messages
+     * @return The channel plan
+     */
+    private CellBroadcastChannelPlan getChannelPlan(boolean enableForSub) {
+        // Read the stored values, a change notification may still be pending for a preference
+        // that was just changed.
+        CellBroadcastAlertPreferences prefs = CellBroadcastAlertPreferences.reload(this);
 
         // boolean for each user preference checkbox, true for checked, false for unchecked
         // Note: If enableAlertsMasterToggle is false, it disables ALL emergency broadcasts
         // except for CMAS presidential. i.e. to receive CMAS severe alerts, both
         // enableAlertsMasterToggle AND enableCmasSevereAlerts must be true.
-        boolean enableAlertsMasterToggle = enableForSub && prefs.getBoolean(
-                CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE, true);
+        boolean enableAlertsMasterToggle = enableForSub
+                && prefs.isAlertsMasterToggleEnabled();
 
         boolean enableEtwsAlerts = enableAlertsMasterToggle;
 
@@ -137,32 +232,29 @@ public class CellBroadcastConfigService extends IntentService {
         // user's preference
         boolean enablePresidential = enableForSub;
 
-        boolean enableCmasExtremeAlerts = enableAlertsMasterToggle && prefs.getBoolean(
-                CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS, true);
+        boolean enableCmasExtremeAlerts = enableAlertsMasterToggle
+                && prefs.isCmasExtremeThreatAlertsEnabled();
 
-        boolean enableCmasSevereAlerts = enableAlertsMasterToggle && prefs.getBoolean(
-                CellBroadcastSettings.KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS, true);
+        boolean enableCmasSevereAlerts = enableAlertsMasterToggle
+                && prefs.isCmasSevereThreatAlertsEnabled();
 
-        boolean enableCmasAmberAlerts = enableAlertsMasterToggle && prefs.getBoolean(
-                CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS, true);
+        boolean enableCmasAmberAlerts = enableAlertsMasterToggle
+                && prefs.isCmasAmberAlertsEnabled();
 
         boolean enableTestAlerts = enableAlertsMasterToggle
-                && prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS, false);
+                && prefs.isTestAlertsEnabled();
 
         boolean enableAreaUpdateInfoAlerts = Resources.getSystem().getBoolean(
                 com.android.internal.R.bool.config_showAreaUpdateInfoSettings)
-                && prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_AREA_UPDATE_INFO_ALERTS,
-                false);
+                && prefs.isAreaUpdateInfoAlertsEnabled(false);
 
         boolean enablePublicSafetyMessagesChannelAlerts = enableAlertsMasterToggle
-                && prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_PUBLIC_SAFETY_MESSAGES,
-                true);
+                && prefs.isPublicSafetyMessagesEnabled();
         boolean enableStateLocalTestAlerts = enableAlertsMasterToggle
-                && prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_STATE_LOCAL_TEST_ALERTS,
-                false);
+                && prefs.isStateLocalTestAlertsEnabled();
 
-        boolean enableEmergencyAlerts = enableAlertsMasterToggle && prefs.getBoolean(
-                CellBroadcastSettings.KEY_ENABLE_EMERGENCY_ALERTS, true);
+        boolean enableEmergencyAlerts = enableAlertsMasterToggle
+                && prefs.isEmergencyAlertsEnabled();
 
         if (VDBG) {
             log("enableAlertsMasterToggle = " + enableAlertsMasterToggle);
@@ -179,103 +271,119 @@ public class CellBroadcastConfigService extends IntentService {
             log("enableEmergencyAlerts = " + enableEmergencyAlerts);
         }
 
+        int enabledGroups = (enablePresidential ? GROUP_PRESIDENTIAL : 0)
+                | (enableAlertsMasterToggle ? GROUP_ALERTS : 0)
+                | (enableCmasExtremeAlerts ? GROUP_CMAS_EXTREME : 0)
+                | (enableCmasSevereAlerts ? GROUP_CMAS_SEVERE : 0)
+                | (enableCmasAmberAlerts ? GROUP_CMAS_AMBER : 0)
+                | (enableTestAlerts ? GROUP_TEST : 0)
+                | (enablePublicSafetyMessagesChannelAlerts ? GROUP_PUBLIC_SAFETY : 0)
+                | (enableStateLocalTestAlerts ? GROUP_STATE_LOCAL_TEST : 0)
+                | (enableEmergencyAlerts ? GROUP_EMERGENCY : 0)
+                | (enableAreaUpdateInfoAlerts ? GROUP_AREA_INFO : 0);
+        return getChannelPlan(key -> CellBroadcastChannelManager.getInstance()
+                .getCellBroadcastChannelRanges(this, key), enabledGroups);
+    }
+
+    /**
+     * Plan the channel ranges to enable and disable on a subscription.
+     *
+     * @param channelRanges Channel ranges of each resource key
+     * @param enabledGroups Groups of channel ranges to enable, the others are disabled
+     * @return The channel plan
+     */
+    @VisibleForTesting
+    static CellBroadcastChannelPlan getChannelPlan(
+            IntFunction<List<CellBroadcastChannelRange>> channelRanges, int enabledGroups) {
+        CellBroadcastChannelPlan plan = new CellBroadcastChannelPlan();
+
         /** Enable CMAS series messages. */
 
         // Enable/Disable Presidential messages.
-        setCellBroadcastRange(manager, enablePresidential,
-                CellBroadcastChannelManager.getInstance().getCellBroadcastChannelRanges(this,
-                R.array.cmas_presidential_alerts_channels_range_strings));
+        addGroup(plan, GROUP_PRESIDENTIAL, enabledGroups,
+                channelRanges.apply(R.array.cmas_presidential_alerts_channels_range_strings));
 
         // Enable/Disable CMAS extreme messages.
-        setCellBroadcastRange(manager, enableCmasExtremeAlerts,
-                CellBroadcastChannelManager.getInstance().getCellBroadcastChannelRanges(this,
-                R.array.cmas_alert_extreme_channels_range_strings));
+        addGroup(plan, GROUP_CMAS_EXTREME, enabledGroups,
+                channelRanges.apply(R.array.cmas_alert_extreme_channels_range_strings));
 
         // Enable/Disable CMAS severe messages.
-        setCellBroadcastRange(manager, enableCmasSevereAlerts,
-                CellBroadcastChannelManager.getInstance().getCellBroadcastChannelRanges(this,
-                R.array.cmas_alerts_severe_range_strings));
+        addGroup(plan, GROUP_CMAS_SEVERE, enabledGroups,
+                channelRanges.apply(R.array.cmas_alerts_severe_range_strings));
 
         // Enable/Disable CMAS amber alert messages.
-        setCellBroadcastRange(manager, enableCmasAmberAlerts,
-                CellBroadcastChannelManager.getInstance().getCellBroadcastChannelRanges(this,
-                R.array.cmas_amber_alerts_channels_range_strings));
+        addGroup(plan, GROUP_CMAS_AMBER, enabledGroups,
+                channelRanges.apply(R.array.cmas_amber_alerts_channels_range_strings));
 
         // Enable/Disable test messages.
-        setCellBroadcastRange(manager, enableTestAlerts,
-                CellBroadcastChannelManager.getInstance().getCellBroadcastChannelRanges(this,
-                R.array.required_monthly_test_range_strings));
-        setCellBroadcastRange(manager, enableTestAlerts,
-                CellBroadcastChannelManager.getInstance().getCellBroadcastChannelRanges(this,
-                        R.array.exercise_alert_range_strings));
-        setCellBroadcastRange(manager, enableTestAlerts,
-                CellBroadcastChannelManager.getInstance().getCellBroadcastChannelRanges(this,
-                        R.array.operator_defined_alert_range_strings));
+        addGroup(plan, GROUP_TEST, enabledGroups,
+                channelRanges.apply(R.array.required_monthly_test_range_strings));
+        addGroup(plan, GROUP_TEST, enabledGroups,
+                channelRanges.apply(R.array.exercise_alert_range_strings));
+        addGroup(plan, GROUP_TEST, enabledGroups,
+                channelRanges.apply(R.array.operator_defined_alert_range_strings));
 
         // Enable/Disable GSM ETWS messages.
-        setCellBroadcastRange(manager, enableEtwsAlerts,
-                CellBroadcastChannelManager.getInstance().getCellBroadcastChannelRanges(this,
-                R.array.etws_alerts_range_strings));
+        addGroup(plan, GROUP_ALERTS, enabledGroups,
+                channelRanges.apply(R.array.etws_alerts_range_strings));
 
         // Enable/Disable GSM ETWS test messages.
-        setCellBroadcastRange(manager, enableTestAlerts,
-                CellBroadcastChannelManager.getInstance().getCellBroadcastChannelRanges(this,
-                R.array.etws_test_alerts_range_strings));
+        addGroup(plan, GROUP_TEST, enabledGroups,
+                channelRanges.apply(R.array.etws_test_alerts_range_strings));
 
         // Enable/Disable GSM public safety messages.
-        setCellBroadcastRange(manager, enablePublicSafetyMessagesChannelAlerts,
-                CellBroadcastChannelManager.getInstance().getCellBroadcastChannelRanges(this,
-                        R.array.public_safety_messages_channels_range_strings));
+        addGroup(plan, GROUP_PUBLIC_SAFETY, enabledGroups,
+                channelRanges.apply(R.array.public_safety_messages_channels_range_strings));
 
         // Enable/Disable GSM state/local test alerts.
-        setCellBroadcastRange(manager, enableStateLocalTestAlerts,
-                CellBroadcastChannelManager.getInstance().getCellBroadcastChannelRanges(this,
-                        R.array.state_local_test_alert_range_strings));
+        addGroup(plan, GROUP_STATE_LOCAL_TEST, enabledGroups,
+                channelRanges.apply(R.array.state_local_test_alert_range_strings));
 
         /** Enable non-CMAS series messages. */
 
-        setCellBroadcastRange(manager, enableEmergencyAlerts,
-                CellBroadcastChannelManager.getInstance().getCellBroadcastChannelRanges(this,
-                R.array.emergency_alerts_channels_range_strings));
+        addGroup(plan, GROUP_EMERGENCY, enabledGroups,
+                channelRanges.apply(R.array.emergency_alerts_channels_range_strings));
 
         // Enable/Disable additional channels based on carrier specific requirement.
-        ArrayList<CellBroadcastChannelRange> ranges = CellBroadcastChannelManager
-                .getInstance().getCellBroadcastChannelRanges(this,
-                R.array.additional_cbs_channels_strings);
+        List<CellBroadcastChannelRange> ranges =
+                channelRanges.apply(R.array.additional_cbs_channels_strings);
         if (ranges != null) {
             for (CellBroadcastChannelRange range: ranges) {
-                boolean enableAlerts;
+                int group;
                 switch (range.mAlertType) {
                     case AREA:
-                        enableAlerts = enableAreaUpdateInfoAlerts;
+                        group = GROUP_AREA_INFO;
                         break;
                     case TEST:
-                        enableAlerts = enableTestAlerts;
+                        group = GROUP_TEST;
                         break;
                     default:
-                        enableAlerts = enableAlertsMasterToggle;
+                        group = GROUP_ALERTS;
                 }
-                setCellBroadcastRange(manager, enableAlerts, new ArrayList<>(Arrays.asList(range)));
+                plan.add(group, (enabledGroups & group) != 0, range.mRat, range.mStartId,
+                        range.mEndId);
             }
         }
+        return plan;
     }
+
+    private static void addGroup(CellBroadcastChannelPlan plan, int group, int enabledGroups,
+            List<CellBroadcastChannelRange> ranges) {
+        plan.add(group, (enabledGroups & group) != 0, ranges);
+    }
+
     /**
      * Enable/disable cell broadcast with messages id range
      * @param manager SMS manager
      * @param enable True for enabling cell broadcast with id range, otherwise for disabling.
-     * @param ranges Cell broadcast id ranges
+     * @param ranges Cell broadcast id ranges, merged when adjacent or overlapping
      */
-    private void setCellBroadcastRange(
+    @VisibleForTesting
+    void setCellBroadcastRange(
             SmsManager manager, boolean enable, List<CellBroadcastChannelRange> ranges) {
-        if (ranges != null) {
-            for (CellBroadcastChannelRange range: ranges) {
-                if (enable) {
-                    manager.enableCellBroadcastRange(range.mStartId, range.mEndId, range.mRat);
-                } else {
-                    manager.disableCellBroadcastRange(range.mStartId, range.mEndId, range.mRat);
-                }
-            }
-        }
+        CellBroadcastChannelPlan plan = new CellBroadcastChannelPlan();
+        plan.add(0, enable, ranges);
+        plan.apply(manager);
     }
 
     private static void log(String msg) {
@@ -20,19 +20,27 @@ import android.app.AppOpsManager;
 import android.content.ContentProvider;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.provider.Telephony;
 import android.telephony.CellBroadcastMessage;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * ContentProvider for the database of received cell broadcasts.
  */
@@ -45,15 +53,99 @@ public class CellBroadcastContentProvider extends ContentProvider {
     /** Authority string for content URIs. */
     static final String CB_AUTHORITY = "cellbroadcasts";
 
-    /** Content URI for notifying observers. */
+    /**
+     * Content URI for notifying observers. Changes to a few broadcasts are notified on the URI
+     * of each broadcast instead, {@code content://cellbroadcasts/<row ID>}, with the
+     * {@link #CHANGE_PARAMETER} telling how it changed.
+     */
     static final Uri CONTENT_URI = Uri.parse("content://cellbroadcasts/");
 
+    /** Query parameter of a change notification telling how the broadcast changed. */
+    static final String CHANGE_PARAMETER = "change";
+
+    /** Value of {@link #CHANGE_PARAMETER} for an inserted broadcast. */
+    static final String CHANGE_INSERT = "insert";
+
+    /** Value of {@link #CHANGE_PARAMETER} for an updated broadcast. */
+    static final String CHANGE_UPDATE = "update";
+
+    /** Value of {@link #CHANGE_PARAMETER} for a deleted broadcast. */
+    static final String CHANGE_DELETE = "delete";
+
+    /**
+     * Maximum number of broadcasts notified one by one. Larger changes are notified once on
+     * {@link #CONTENT_URI}.
+     */
+    private static final int MAX_ROW_CHANGES = 20;
+
     /** URI matcher type to get all cell broadcasts. */
     private static final int CB_ALL = 0;
 
     /** URI matcher type to get a cell broadcast by ID. */
     private static final int CB_ALL_ID = 1;
 
+    /** URI matcher type to get a page of cell broadcasts. */
+    private static final int CB_PAGE = 2;
+
+    /**
+     * Content URI for a page of cell broadcasts, from most recently received to least recently
+     * received. The page is selected by the {@link #PAGE_SIZE_PARAMETER}, and by the
+     * {@link #PAGE_BEFORE_DATE_PARAMETER} and {@link #PAGE_BEFORE_ID_PARAMETER} of the last
+     * broadcast of the previous page, if any. Pages are only notified of changes on
+     * {@link #CONTENT_URI}, as the list applies the changes to single broadcasts itself.
+     */
+    static final Uri PAGE_URI = Uri.parse("content://cellbroadcasts/page");
+
+    /** Query parameter for the maximum number of broadcasts in a page. */
+    static final String PAGE_SIZE_PARAMETER = "limit";
+
+    /** Query parameter for the delivery time of the last broadcast of the previous page. */
+    static final String PAGE_BEFORE_DATE_PARAMETER = "before_date";
+
+    /** Query parameter for the row ID of the last broadcast of the previous page. */
+    static final String PAGE_BEFORE_ID_PARAMETER = "before_id";
+
+    /** URI matcher type to search cell broadcasts. */
+    private static final int CB_SEARCH = 3;
+
+    /**
+     * Content URI to search the message bodies for words starting with the words of the
+     * {@link #SEARCH_QUERY_PARAMETER}. Returns up to
+     * {@link #PAGE_SIZE_PARAMETER} broadcasts with the {@link #SEARCH_COLUMNS}, the ones matching
+     * most often first. Like pages, search results are only notified of changes on
+     * {@link #CONTENT_URI}.
+     */
+    static final Uri SEARCH_URI = Uri.parse("content://cellbroadcasts/search");
+
+    /** Query parameter for the words to search. */
+    static final String SEARCH_QUERY_PARAMETER = "q";
+
+    /** URI matcher type to get the broadcast statistics. */
+    private static final int CB_STATS = 4;
+
+    /**
+     * Content URI for the number of broadcasts and unread broadcasts, one row per service
+     * category, subscription and kind of broadcast. Reading a total is a scan of a handful of
+     * rows, however many broadcasts are stored.
+     */
+    static final Uri STATS_URI = Uri.parse("content://cellbroadcasts/stats");
+
+    /** Column of the search results holding the part of the body around the matches. */
+    static final String SEARCH_SNIPPET = "snippet";
+
+    /** Marks the start of a match in {@link #SEARCH_SNIPPET}. */
+    static final char SNIPPET_MATCH_START = '\u0002';
+
+    /** Marks the end of a match in {@link #SEARCH_SNIPPET}. */
+    static final char SNIPPET_MATCH_END = '\u0003';
+
+    /** Number of words in {@link #SEARCH_SNIPPET}. */
+    private static final int SNIPPET_WORDS = 12;
+
+    /** Order of the broadcasts in a page, following deliveryTimeIndex. */
+    private static final String PAGE_SORT_ORDER = Telephony.CellBroadcasts.DELIVERY_TIME
+            + " DESC," + Telephony.CellBroadcasts._ID + " DESC";
+
     /** MIME type for the list of all cell broadcasts. */
     private static final String CB_LIST_TYPE = "vnd.android.cursor.dir/cellbroadcast";
 
@@ -63,10 +155,128 @@ public class CellBroadcastContentProvider extends ContentProvider {
     static {
         sUriMatcher.addURI(CB_AUTHORITY, null, CB_ALL);
         sUriMatcher.addURI(CB_AUTHORITY, "#", CB_ALL_ID);
+        sUriMatcher.addURI(CB_AUTHORITY, "page", CB_PAGE);
+        sUriMatcher.addURI(CB_AUTHORITY, "search", CB_SEARCH);
+        sUriMatcher.addURI(CB_AUTHORITY, "stats", CB_STATS);
     }
 
+    /** Columns bound by {@link #mInsertStatement}, in order. */
+    private static final String[] INSERT_COLUMNS = {
+            Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE,
+            Telephony.CellBroadcasts.PLMN,
+            Telephony.CellBroadcasts.LAC,
+            Telephony.CellBroadcasts.CID,
+            Telephony.CellBroadcasts.SERIAL_NUMBER,
+            Telephony.CellBroadcasts.SERVICE_CATEGORY,
+            Telephony.CellBroadcasts.LANGUAGE_CODE,
+            Telephony.CellBroadcasts.MESSAGE_BODY,
+            Telephony.CellBroadcasts.DELIVERY_TIME,
+            Telephony.CellBroadcasts.MESSAGE_READ,
+            Telephony.CellBroadcasts.MESSAGE_FORMAT,
+            Telephony.CellBroadcasts.MESSAGE_PRIORITY,
+            Telephony.CellBroadcasts.ETWS_WARNING_TYPE,
+            Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS,
+            Telephony.CellBroadcasts.CMAS_CATEGORY,
+            Telephony.CellBroadcasts.CMAS_RESPONSE_TYPE,
+            Telephony.CellBroadcasts.CMAS_SEVERITY,
+            Telephony.CellBroadcasts.CMAS_URGENCY,
+            Telephony.CellBroadcasts.CMAS_CERTAINTY,
+            CellBroadcastDatabaseHelper.BODY_PREVIEW,
+            CellBroadcastDatabaseHelper.TITLE_KEY,
+            CellBroadcastDatabaseHelper.SUB_ID,
+    };
+
+    /**
+     * Columns needed to show a broadcast in the list, all read from the summary index. The full
+     * broadcast is read by row ID when it is opened.
+     */
+    static final String[] SUMMARY_COLUMNS = {
+            Telephony.CellBroadcasts._ID,
+            Telephony.CellBroadcasts.DELIVERY_TIME,
+            Telephony.CellBroadcasts.MESSAGE_READ,
+            Telephony.CellBroadcasts.SERVICE_CATEGORY,
+            CellBroadcastDatabaseHelper.TITLE_KEY,
+            CellBroadcastDatabaseHelper.BODY_PREVIEW,
+    };
+
+    /** Columns of the search results. */
+    static final String[] SEARCH_COLUMNS = {
+            Telephony.CellBroadcasts._ID,
+            Telephony.CellBroadcasts.DELIVERY_TIME,
+            Telephony.CellBroadcasts.MESSAGE_READ,
+            Telephony.CellBroadcasts.SERVICE_CATEGORY,
+            CellBroadcastDatabaseHelper.TITLE_KEY,
+            CellBroadcastDatabaseHelper.BODY_PREVIEW,
+            SEARCH_SNIPPET,
+    };
+
+    /**
+     * Search query, ranking the broadcasts by the number of matches (FTS4 has no built-in
+     * ranking function, but offsets() lists each match), then by delivery time.
+     */
+    private static final String SEARCH_SQL = "SELECT b." + Telephony.CellBroadcasts._ID
+            + ",b." + Telephony.CellBroadcasts.DELIVERY_TIME
+            + ",b." + Telephony.CellBroadcasts.MESSAGE_READ
+            + ",b." + Telephony.CellBroadcasts.SERVICE_CATEGORY
+            + ",b." + CellBroadcastDatabaseHelper.TITLE_KEY
+            + ",b." + CellBroadcastDatabaseHelper.BODY_PREVIEW
+            + ",snippet(" + CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME + ",char("
+            + (int) SNIPPET_MATCH_START + "),char(" + (int) SNIPPET_MATCH_END + "),'\u2026',-1,"
+            + SNIPPET_WORDS + ") AS " + SEARCH_SNIPPET
+            + " FROM " + CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME
+            + " JOIN " + CellBroadcastDatabaseHelper.TABLE_NAME + " b ON b."
+            + Telephony.CellBroadcasts._ID + "=" + CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME
+            + ".docid WHERE " + CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME + " MATCH ?"
+            + " ORDER BY length(offsets(" + CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME
+            + ")) DESC,b." + Telephony.CellBroadcasts.DELIVERY_TIME + " DESC LIMIT ?";
+
     /** The database for this content provider. */
-    private SQLiteOpenHelper mOpenHelper;
+    private CellBroadcastDatabaseHelper mOpenHelper;
+
+    // Write statements compiled on first use and kept for the lifetime of the provider. Each
+    // is guarded by itself, since its bindings are shared.
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mMarkReadByIdStatement;
+    private SQLiteStatement mDeleteByIdStatement;
+
+    /**
+     * Change notifications waiting for the end of the running operation, or null once more
+     * than {@link #MAX_ROW_CHANGES} broadcasts changed. Reset when an operation starts, so the
+     * changes of an operation that did not notify are not notified by the next one. Guarded by
+     * this.
+     */
+    private ArrayList<Uri> mPendingChanges = new ArrayList<>();
+
+    /**
+     * Get the URI of a page of cell broadcasts.
+     * @param pageSize the maximum number of broadcasts in the page
+     * @param beforeDate the delivery time of the last broadcast of the previous page
+     * @param beforeId the row ID of the last broadcast of the previous page, or -1 for the first
+     *  page
+     * @return the page URI
+     */
+    static Uri getPageUri(int pageSize, long beforeDate, long beforeId) {
+        Uri.Builder builder = PAGE_URI.buildUpon()
+                .appendQueryParameter(PAGE_SIZE_PARAMETER, Integer.toString(pageSize));
+        if (beforeId != -1) {
+            builder.appendQueryParameter(PAGE_BEFORE_DATE_PARAMETER, Long.toString(beforeDate))
+                    .appendQueryParameter(PAGE_BEFORE_ID_PARAMETER, Long.toString(beforeId));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Get the URI to search the cell broadcasts.
+     * @param query the words to search
+     * @param limit the maximum number of broadcasts returned
+     * @return the search URI
+     */
+    static Uri getSearchUri(String query, int limit) {
+        return SEARCH_URI.buildUpon()
+                .appendQueryParameter(SEARCH_QUERY_PARAMETER, query)
+                .appendQueryParameter(PAGE_SIZE_PARAMETER, Integer.toString(limit))
+                .build();
+    }
 
     /**
      * Initialize content provider.
@@ -95,6 +305,14 @@ public class CellBroadcastContentProvider extends ContentProvider {
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         qb.setTables(CellBroadcastDatabaseHelper.TABLE_NAME);
 
+        String orderBy;
+        if (!TextUtils.isEmpty(sortOrder)) {
+            orderBy = sortOrder;
+        } else {
+            orderBy = Telephony.CellBroadcasts.DEFAULT_SORT_ORDER;
+        }
+        String limit = null;
+
         int match = sUriMatcher.match(uri);
         switch (match) {
             case CB_ALL:
@@ -106,26 +324,92 @@ public class CellBroadcastContentProvider extends ContentProvider {
                 qb.appendWhere("(_id=" + uri.getPathSegments().get(0) + ')');
                 break;
 
+            case CB_SEARCH:
+                return search(uri);
+
+            case CB_STATS:
+                qb.setTables(CellBroadcastDatabaseHelper.STATS_TABLE_NAME);
+                orderBy = sortOrder;
+                break;
+
+            case CB_PAGE:
+                // get the page after the given broadcast, walking deliveryTimeIndex
+                try {
+                    limit = Integer.toString(Integer.parseInt(
+                            uri.getQueryParameter(PAGE_SIZE_PARAMETER)));
+                    String beforeDate = uri.getQueryParameter(PAGE_BEFORE_DATE_PARAMETER);
+                    if (beforeDate != null) {
+                        long date = Long.parseLong(beforeDate);
+                        long id = Long.parseLong(uri.getQueryParameter(PAGE_BEFORE_ID_PARAMETER));
+                        qb.appendWhere("(" + Telephony.CellBroadcasts.DELIVERY_TIME + "<=" + date
+                                + " AND (" + Telephony.CellBroadcasts.DELIVERY_TIME + "<" + date
+                                + " OR " + Telephony.CellBroadcasts._ID + "<" + id + "))");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid page: " + uri);
+                }
+                orderBy = PAGE_SORT_ORDER;
+                break;
+
             default:
                 Log.e(TAG, "Invalid query: " + uri);
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
 
-        String orderBy;
-        if (!TextUtils.isEmpty(sortOrder)) {
-            orderBy = sortOrder;
-        } else {
-            orderBy = Telephony.CellBroadcasts.DEFAULT_SORT_ORDER;
-        }
-
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy,
+                limit);
         if (c != null) {
-            c.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+            c.setNotificationUri(getContext().getContentResolver(),
+                    match == CB_PAGE ? PAGE_URI : CONTENT_URI);
         }
         return c;
     }
 
+    /**
+     * Search the message bodies.
+     * @param uri the search URI
+     * @return a Cursor with the {@link #SEARCH_COLUMNS} of the matching broadcasts
+     */
+    private Cursor search(Uri uri) {
+        String match = getMatchQuery(uri.getQueryParameter(SEARCH_QUERY_PARAMETER));
+        int limit;
+        try {
+            limit = Integer.parseInt(uri.getQueryParameter(PAGE_SIZE_PARAMETER));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid search: " + uri);
+        }
+
+        Cursor c;
+        if (match.isEmpty()) {
+            c = new MatrixCursor(SEARCH_COLUMNS, 0);
+        } else {
+            c = mOpenHelper.getReadableDatabase().rawQuery(SEARCH_SQL,
+                    new String[]{match, Integer.toString(limit)});
+        }
+        c.setNotificationUri(getContext().getContentResolver(), SEARCH_URI);
+        return c;
+    }
+
+    /**
+     * Build the full-text query matching all the words typed, each one as a prefix since the
+     * user may still be typing it. Words are quoted, so the search syntax cannot be misused.
+     * @param query the words typed, or null
+     * @return the full-text query, empty if there is nothing to search
+     */
+    @VisibleForTesting
+    static String getMatchQuery(String query) {
+        StringBuilder match = new StringBuilder();
+        if (query != null) {
+            for (String word : query.replace("\"", " ").trim().split("\\s+")) {
+                if (!word.isEmpty()) {
+                    match.append(match.length() == 0 ? "\"" : " \"").append(word).append("*\"");
+                }
+            }
+        }
+        return match.toString();
+    }
+
     /**
      * Return the MIME type of the data at the specified URI.
      * @param uri the URI to query.
@@ -136,6 +420,9 @@ public class CellBroadcastContentProvider extends ContentProvider {
         int match = sUriMatcher.match(uri);
         switch (match) {
             case CB_ALL:
+            case CB_PAGE:
+            case CB_SEARCH:
+            case CB_STATS:
                 return CB_LIST_TYPE;
 
             case CB_ALL_ID:
@@ -186,19 +473,29 @@ public class CellBroadcastContentProvider extends ContentProvider {
     /**
      * Internal method to insert a new Cell Broadcast into the database and notify observers.
      * @param message the message to insert
+     * @param titleKey the title key of the message, or null to classify the message for it
      * @return true if the broadcast is new, false if it's a duplicate broadcast.
      */
-    boolean insertNewBroadcast(CellBroadcastMessage message) {
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        ContentValues cv = message.getContentValues();
-
+    boolean insertNewBroadcast(CellBroadcastMessage message, String titleKey) {
         // Note: this method previously queried the database for duplicate message IDs, but this
         // is not compatible with CMAS carrier requirements and could also cause other emergency
         // alerts, e.g. ETWS, to not display if the database is filled with old messages.
         // Use duplicate message ID detection in CellBroadcastAlertService instead of DB query.
 
-        long rowId = db.insert(CellBroadcastDatabaseHelper.TABLE_NAME, null, cv);
-        if (rowId == -1) {
+        long rowId;
+        SQLiteStatement statement = getInsertStatement();
+        synchronized (statement) {
+            bindBroadcast(statement, message, titleKey);
+            try {
+                rowId = statement.executeInsert();
+            } catch (SQLException e) {
+                Log.e(TAG, "insert failed: " + e);
+                rowId = -1;
+            }
+        }
+        if (rowId != -1) {
+            recordChange(rowId, CHANGE_INSERT);
+        } else {
             Log.e(TAG, "failed to insert new broadcast into database");
             // Return true on DB write failure because we still want to notify the user.
             // The CellBroadcastMessage will be passed with the intent, so the message will be
@@ -209,18 +506,57 @@ public class CellBroadcastContentProvider extends ContentProvider {
         return true;    // broadcast is not a duplicate
     }
 
+    /**
+     * Internal method to insert new Cell Broadcasts into the database in one transaction.
+     * @param messages the messages to insert
+     * @param titleKeys the title keys parallel to messages, null for the messages to classify,
+     *                  or null to classify every message
+     * @return true if any broadcast is new, false otherwise
+     */
+    boolean insertNewBroadcasts(List<CellBroadcastMessage> messages, List<String> titleKeys) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean changed = false;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < messages.size(); i++) {
+                changed |= insertNewBroadcast(messages.get(i),
+                        titleKeys != null ? titleKeys.get(i) : null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return changed;
+    }
+
+    /**
+     * Internal method to check whether a broadcast was already stored.
+     * @param deliveryTime the delivery time of the broadcast
+     * @param serialNumber the serial number of the broadcast
+     * @return true if a broadcast with this delivery time and serial number is in the database
+     */
+    boolean isBroadcastPresent(long deliveryTime, int serialNumber) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        return DatabaseUtils.queryNumEntries(db, CellBroadcastDatabaseHelper.TABLE_NAME,
+                Telephony.CellBroadcasts.DELIVERY_TIME + "=? AND "
+                        + Telephony.CellBroadcasts.SERIAL_NUMBER + "=?",
+                new String[]{Long.toString(deliveryTime), Integer.toString(serialNumber)}) > 0;
+    }
+
     /**
      * Internal method to delete a cell broadcast by row ID and notify observers.
      * @param rowId the row ID of the broadcast to delete
      * @return true if the database was updated, false otherwise
      */
     boolean deleteBroadcast(long rowId) {
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-
-        int rowCount = db.delete(CellBroadcastDatabaseHelper.TABLE_NAME,
-                Telephony.CellBroadcasts._ID + "=?",
-                new String[]{Long.toString(rowId)});
+        int rowCount;
+        SQLiteStatement statement = getDeleteByIdStatement();
+        synchronized (statement) {
+            statement.bindLong(1, rowId);
+            rowCount = statement.executeUpdateDelete();
+        }
         if (rowCount != 0) {
+            recordChange(rowId, CHANGE_DELETE);
             return true;
         } else {
             Log.e(TAG, "failed to delete broadcast at row " + rowId);
@@ -228,6 +564,26 @@ public class CellBroadcastContentProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Internal method to delete several cell broadcasts by row ID in one transaction.
+     * @param rowIds the row IDs of the broadcasts to delete
+     * @return true if the database was updated, false otherwise
+     */
+    boolean deleteBroadcasts(long[] rowIds) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean changed = false;
+        db.beginTransaction();
+        try {
+            for (long rowId : rowIds) {
+                changed |= deleteBroadcast(rowId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return changed;
+    }
+
     /**
      * Internal method to delete all cell broadcasts and notify observers.
      * @return true if the database was updated, false otherwise
@@ -237,6 +593,7 @@ public class CellBroadcastContentProvider extends ContentProvider {
 
         int rowCount = db.delete(CellBroadcastDatabaseHelper.TABLE_NAME, null, null);
         if (rowCount != 0) {
+            recordChange(-1, null);
             return true;
         } else {
             Log.e(TAG, "failed to delete all broadcasts");
@@ -254,15 +611,45 @@ public class CellBroadcastContentProvider extends ContentProvider {
      * @return true if the database was updated, false otherwise
      */
     boolean markBroadcastRead(String columnName, long columnValue) {
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int rowCount;
+        if (Telephony.CellBroadcasts.DELIVERY_TIME.equals(columnName)) {
+            // Mark each broadcast by row ID, so the change is notified on its URI.
+            rowCount = 0;
+            try (Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                    CellBroadcastDatabaseHelper.TABLE_NAME,
+                    new String[]{Telephony.CellBroadcasts._ID},
+                    Telephony.CellBroadcasts.DELIVERY_TIME + "=?",
+                    new String[]{Long.toString(columnValue)}, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    if (markBroadcastRead(Telephony.CellBroadcasts._ID, cursor.getLong(0))) {
+                        rowCount++;
+                    }
+                }
+            }
+        } else if (Telephony.CellBroadcasts._ID.equals(columnName)) {
+            SQLiteStatement statement = getMarkReadByIdStatement();
+            synchronized (statement) {
+                statement.bindLong(1, columnValue);
+                rowCount = statement.executeUpdateDelete();
+            }
+            if (rowCount != 0) {
+                recordChange(columnValue, CHANGE_UPDATE);
+            }
+        } else {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-        ContentValues cv = new ContentValues(1);
-        cv.put(Telephony.CellBroadcasts.MESSAGE_READ, 1);
+            ContentValues cv = new ContentValues(1);
+            cv.put(Telephony.CellBroadcasts.MESSAGE_READ, 1);
 
-        String whereClause = columnName + "=?";
-        String[] whereArgs = new String[]{Long.toString(columnValue)};
+            String whereClause = columnName + "=?";
+            String[] whereArgs = new String[]{Long.toString(columnValue)};
 
-        int rowCount = db.update(CellBroadcastDatabaseHelper.TABLE_NAME, cv, whereClause, whereArgs);
+            rowCount = db.update(CellBroadcastDatabaseHelper.TABLE_NAME, cv, whereClause,
+                    whereArgs);
+            if (rowCount != 0) {
+                recordChange(-1, null);
+            }
+        }
         if (rowCount != 0) {
             return true;
         } else {
@@ -271,6 +658,254 @@ public class CellBroadcastContentProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Internal method to mark several broadcasts as read in one transaction. The caller is
+     * responsible for decrementing the unread non-emergency alert count, if necessary.
+     *
+     * @param columnName the column name to query (ID or delivery time)
+     * @param columnValues the IDs or delivery times of the broadcasts to mark read
+     * @return true if the database was updated, false otherwise
+     */
+    boolean markBroadcastsRead(String columnName, long[] columnValues) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean changed = false;
+        db.beginTransaction();
+        try {
+            for (long columnValue : columnValues) {
+                changed |= markBroadcastRead(columnName, columnValue);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return changed;
+    }
+
+    /**
+     * Internal method to mark all broadcasts as read. The caller is responsible for clearing the
+     * unread non-emergency alert count, if necessary.
+     * @return true if the database was updated, false otherwise
+     */
+    boolean markAllBroadcastsRead() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        ContentValues cv = new ContentValues(1);
+        cv.put(Telephony.CellBroadcasts.MESSAGE_READ, 1);
+
+        if (db.update(CellBroadcastDatabaseHelper.TABLE_NAME, cv,
+                Telephony.CellBroadcasts.MESSAGE_READ + "=0", null) != 0) {
+            recordChange(-1, null);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Mark broadcasts read by delivery time in the background. Broadcasts marked while a task is
+     * queued are added to it, so a burst of dismissals is written in one transaction with one
+     * change notification.
+     *
+     * @param resolver this app's content resolver
+     * @param deliveryTimes the delivery times of the broadcasts to mark read
+     */
+    static void markBroadcastsReadInBackground(ContentResolver resolver, long... deliveryTimes) {
+        if (deliveryTimes.length == 0) {
+            return;
+        }
+        synchronized (sPendingReadDeliveryTimes) {
+            boolean queued = !sPendingReadDeliveryTimes.isEmpty();
+            for (long deliveryTime : deliveryTimes) {
+                sPendingReadDeliveryTimes.add(deliveryTime);
+            }
+            if (queued) {
+                return;
+            }
+        }
+        new AsyncCellBroadcastTask(resolver).execute(provider -> {
+            long[] pending;
+            synchronized (sPendingReadDeliveryTimes) {
+                pending = new long[sPendingReadDeliveryTimes.size()];
+                for (int i = 0; i < pending.length; i++) {
+                    pending[i] = sPendingReadDeliveryTimes.get(i);
+                }
+                sPendingReadDeliveryTimes.clear();
+            }
+            return provider.markBroadcastsRead(Telephony.CellBroadcasts.DELIVERY_TIME, pending);
+        });
+    }
+
+    /**
+     * Count the unread broadcasts other than emergency alerts delivered after the given time,
+     * walking the delivery time index from that time on.
+     * @param resolver this app's content resolver
+     * @param afterTime the delivery time after which broadcasts are counted
+     * @return the number of unread broadcasts, 0 if it could not be read
+     */
+    static int getUnreadNonEmergencyCount(ContentResolver resolver, long afterTime) {
+        try (Cursor cursor = resolver.query(CONTENT_URI, new String[]{"COUNT(*)"},
+                Telephony.CellBroadcasts.DELIVERY_TIME + ">? AND "
+                        + Telephony.CellBroadcasts.MESSAGE_READ + "=0 AND NOT "
+                        + CellBroadcastDatabaseHelper.getEmergencySelection(""),
+                new String[]{Long.toString(afterTime)}, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getInt(0);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Internal method to delete the next chunk of broadcasts the retention policy does not keep.
+     * @param policy the retention policy
+     * @return the number of broadcasts deleted, 0 once the database follows the policy
+     */
+    int deleteExpiredBroadcasts(CellBroadcastRetentionPolicy policy) {
+        int count = policy.deleteChunk(mOpenHelper.getWritableDatabase(),
+                System.currentTimeMillis());
+        if (count > 0) {
+            recordChange(-1, null);
+        }
+        return count;
+    }
+
+    /**
+     * Migrate the broadcasts stored before the last database upgrade in the background, one
+     * chunk per housekeeping task so alerts stored meanwhile are written between chunks.
+     * Observers are notified once, after the last chunk.
+     *
+     * @param resolver this app's content resolver
+     */
+    static void migrateRowsInBackground(ContentResolver resolver) {
+        migrateNextChunkInBackground(resolver, false);
+    }
+
+    private static void migrateNextChunkInBackground(ContentResolver resolver,
+            boolean migrated) {
+        new AsyncCellBroadcastTask(resolver).execute(provider -> {
+            if (provider.mOpenHelper.migrateNextChunk(
+                    provider.mOpenHelper.getWritableDatabase())) {
+                migrateNextChunkInBackground(resolver, true);
+                return false;
+            }
+            return migrated;
+        });
+    }
+
+    /**
+     * Internal method to return the next chunk of free database pages to the file system.
+     * @return true if free pages are left for another call
+     */
+    boolean compactDatabase() {
+        return CellBroadcastRetentionPolicy.vacuumChunk(mOpenHelper.getWritableDatabase());
+    }
+
+    private synchronized SQLiteStatement getInsertStatement() {
+        if (mInsertStatement == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ")
+                    .append(CellBroadcastDatabaseHelper.TABLE_NAME).append(" (")
+                    .append(TextUtils.join(",", INSERT_COLUMNS)).append(") VALUES (?");
+            for (int i = 1; i < INSERT_COLUMNS.length; i++) {
+                sql.append(",?");
+            }
+            sql.append(')');
+            mInsertStatement = mOpenHelper.getWritableDatabase().compileStatement(
+                    sql.toString());
+        }
+        return mInsertStatement;
+    }
+
+    private synchronized SQLiteStatement getMarkReadByIdStatement() {
+        if (mMarkReadByIdStatement == null) {
+            mMarkReadByIdStatement = mOpenHelper.getWritableDatabase().compileStatement(
+                    "UPDATE " + CellBroadcastDatabaseHelper.TABLE_NAME + " SET "
+                            + Telephony.CellBroadcasts.MESSAGE_READ + "=1 WHERE "
+                            + Telephony.CellBroadcasts._ID + "=?");
+        }
+        return mMarkReadByIdStatement;
+    }
+
+    private synchronized SQLiteStatement getDeleteByIdStatement() {
+        if (mDeleteByIdStatement == null) {
+            mDeleteByIdStatement = mOpenHelper.getWritableDatabase().compileStatement(
+                    "DELETE FROM " + CellBroadcastDatabaseHelper.TABLE_NAME + " WHERE "
+                            + Telephony.CellBroadcasts._ID + "=?");
+        }
+        return mDeleteByIdStatement;
+    }
+
+    /**
+     * Bind the columns of a broadcast to {@link #mInsertStatement}. The columns not set for the
+     * broadcast, e.g. the CMAS columns of an ETWS alert, are bound to null as
+     * {@link SQLiteDatabase#insert} would store them. The title key is only computed if the
+     * caller did not already classify the broadcast.
+     */
+    private void bindBroadcast(SQLiteStatement statement, CellBroadcastMessage message,
+            String titleKey) {
+        // The location, scope, format and priority are only exposed through the content values.
+        ContentValues cv = message.getContentValues();
+        cv.put(CellBroadcastDatabaseHelper.BODY_PREVIEW,
+                CellBroadcastDatabaseHelper.getBodyPreview(message.getMessageBody()));
+        cv.put(CellBroadcastDatabaseHelper.TITLE_KEY, titleKey != null ? titleKey
+                : CellBroadcastDatabaseHelper.getTitleKey(getContext(), message));
+        cv.put(CellBroadcastDatabaseHelper.SUB_ID, message.getSubId());
+        for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, cv.get(INSERT_COLUMNS[i]));
+        }
+    }
+
+    /**
+     * Record a change to notify at the end of the running operation.
+     * @param rowId the row ID of the changed broadcast, or -1 if any broadcast may have changed
+     * @param change one of the {@code CHANGE_*} constants, or null if rowId is -1
+     */
+    private synchronized void recordChange(long rowId, String change) {
+        if (mPendingChanges == null) {
+            return;
+        }
+        if (rowId == -1 || mPendingChanges.size() == MAX_ROW_CHANGES) {
+            mPendingChanges = null;
+        } else {
+            mPendingChanges.add(getChangeUri(rowId, change));
+        }
+    }
+
+    /** Drop the changes recorded before the operation about to run. */
+    private synchronized void resetChanges() {
+        mPendingChanges = new ArrayList<>();
+    }
+
+    /**
+     * Notify observers of the changes recorded so far. If none was recorded, e.g. by a caller
+     * writing the database directly, any broadcast may have changed.
+     * @param resolver this app's content resolver
+     */
+    private void notifyChanges(ContentResolver resolver) {
+        ArrayList<Uri> changes;
+        synchronized (this) {
+            changes = mPendingChanges;
+            mPendingChanges = new ArrayList<>();
+        }
+        if (changes == null || changes.isEmpty()) {
+            resolver.notifyChange(CONTENT_URI, null, false);
+        } else {
+            for (Uri uri : changes) {
+                resolver.notifyChange(uri, null, false);
+            }
+        }
+    }
+
+    /**
+     * Get the URI a change to a broadcast is notified on.
+     * @param rowId the row ID of the broadcast
+     * @param change one of the {@code CHANGE_*} constants
+     * @return the change URI
+     */
+    static Uri getChangeUri(long rowId, String change) {
+        return ContentUris.withAppendedId(CONTENT_URI, rowId).buildUpon()
+                .appendQueryParameter(CHANGE_PARAMETER, change)
+                .build();
+    }
+
     /** Callback for users of AsyncCellBroadcastOperation. */
     interface CellBroadcastOperation {
         /**
@@ -281,46 +916,91 @@ public class CellBroadcastContentProvider extends ContentProvider {
         boolean execute(CellBroadcastContentProvider provider);
     }
 
+    /** Delivery times waiting for the queued mark read task. Guarded by itself. */
+    private static final ArrayList<Long> sPendingReadDeliveryTimes = new ArrayList<>();
+
+    /** Provider client kept for the lifetime of the process. Guarded by the class. */
+    private static ContentProviderClient sProviderClient;
+
+    /** This app's provider, or null if it was not acquired yet. */
+    private static volatile CellBroadcastContentProvider sLocalProvider;
+
+    /**
+     * Get this app's provider, acquiring a client for it the first time. The client is never
+     * released, since the provider lives in this process as long as the app does.
+     */
+    private static CellBroadcastContentProvider getLocalProvider(ContentResolver resolver) {
+        CellBroadcastContentProvider provider = sLocalProvider;
+        if (provider != null) {
+            return provider;
+        }
+        synchronized (CellBroadcastContentProvider.class) {
+            if (sLocalProvider == null) {
+                if (sProviderClient == null) {
+                    sProviderClient = resolver.acquireContentProviderClient(CB_AUTHORITY);
+                }
+                if (sProviderClient != null) {
+                    sLocalProvider = (CellBroadcastContentProvider)
+                            sProviderClient.getLocalContentProvider();
+                }
+            }
+            return sLocalProvider;
+        }
+    }
+
     /**
-     * Async task to call this content provider's internal methods on a background thread.
+     * Task to call this content provider's internal methods on a background thread.
      * The caller supplies the CellBroadcastOperation object to call for this provider.
+     *
+     * Tasks run on {@link CellBroadcastOperationExecutor} in the lane given at construction, so
+     * inserting an emergency alert never waits behind queued housekeeping.
      */
-    static class AsyncCellBroadcastTask extends AsyncTask<CellBroadcastOperation, Void, Void> {
+    static class AsyncCellBroadcastTask {
         /** Reference to this app's content resolver. */
         private ContentResolver mContentResolver;
 
+        /** Lane of {@link CellBroadcastOperationExecutor} to run in. */
+        private final int mLane;
+
+        /**
+         * Create a task for user housekeeping, such as marking broadcasts read or deleting them.
+         */
         AsyncCellBroadcastTask(ContentResolver contentResolver) {
+            this(contentResolver, CellBroadcastOperationExecutor.LANE_HOUSEKEEPING);
+        }
+
+        /**
+         * @param lane One of the {@code CellBroadcastOperationExecutor.LANE_*} constants
+         */
+        AsyncCellBroadcastTask(ContentResolver contentResolver, int lane) {
             mContentResolver = contentResolver;
+            mLane = lane;
         }
 
         /**
-         * Perform a generic operation on the CellBroadcastContentProvider.
-         * @param params the CellBroadcastOperation object to call for this provider
-         * @return void
+         * Queue a generic operation on the CellBroadcastContentProvider.
+         * @param operation the CellBroadcastOperation object to call for this provider
          */
-        @Override
-        protected Void doInBackground(CellBroadcastOperation... params) {
-            ContentProviderClient cpc = mContentResolver.acquireContentProviderClient(
-                    CellBroadcastContentProvider.CB_AUTHORITY);
-            CellBroadcastContentProvider provider = (CellBroadcastContentProvider)
-                    cpc.getLocalContentProvider();
+        void execute(CellBroadcastOperation operation) {
+            CellBroadcastOperationExecutor.getInstance().execute(mLane,
+                    () -> doInBackground(operation));
+        }
+
+        private void doInBackground(CellBroadcastOperation operation) {
+            CellBroadcastContentProvider provider = getLocalProvider(mContentResolver);
 
             if (provider != null) {
-                try {
-                    boolean changed = params[0].execute(provider);
-                    if (changed) {
-                        Log.d(TAG, "database changed: notifying observers...");
-                        mContentResolver.notifyChange(CONTENT_URI, null, false);
-                    }
-                } finally {
-                    cpc.release();
+                provider.resetChanges();
+                boolean changed = operation.execute(provider);
+                if (changed) {
+                    Log.d(TAG, "database changed: notifying observers...");
+                    provider.notifyChanges(mContentResolver);
                 }
             } else {
                 Log.e(TAG, "getLocalContentProvider() returned null");
             }
 
             mContentResolver = null;    // free reference to content resolver
-            return null;
         }
     }
 }
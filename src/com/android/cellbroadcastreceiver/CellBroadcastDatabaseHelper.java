@@ -19,17 +19,27 @@ package com.android.cellbroadcastreceiver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.Telephony;
+import android.telephony.CellBroadcastMessage;
 import android.telephony.SmsCbCmasInfo;
 import android.telephony.SmsCbEtwsInfo;
 import android.telephony.SmsCbMessage;
+import android.telephony.SubscriptionManager;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.gsm.SmsCbConstants;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Open, create, and upgrade the cell broadcast SQLite database. Previously an inner class of
  * {@code CellBroadcastDatabase}, this is now a top-level class. The column definitions in
@@ -46,43 +56,107 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
     /** Temporary table for upgrading the database version. */
     static final String TEMP_TABLE_NAME = "old_broadcasts";
 
+    /** Full-text index of the message bodies, kept up to date by triggers. */
+    static final String SEARCH_TABLE_NAME = "broadcasts_fts";
+
+    /** Start of the message body, as shown in the broadcast list. */
+    static final String BODY_PREVIEW = "body_preview";
+
+    /** Resource entry name of the broadcast title, as shown in the broadcast list. */
+    static final String TITLE_KEY = "title_key";
+
+    /** Maximum length of {@link #BODY_PREVIEW}. */
+    static final int BODY_PREVIEW_LENGTH = 100;
+
+    /** Subscription the broadcast was received on. */
+    static final String SUB_ID = "sub_id";
+
+    /**
+     * Number of broadcasts and unread broadcasts for each service category, subscription and
+     * kind of broadcast, kept up to date by triggers.
+     */
+    static final String STATS_TABLE_NAME = "broadcast_stats";
+
+    /** 1 for the counts of emergency alerts, 0 for the counts of other broadcasts. */
+    static final String STATS_EMERGENCY = "emergency";
+
+    /** Number of broadcasts. */
+    static final String STATS_TOTAL = "total";
+
+    /** Number of unread broadcasts. */
+    static final String STATS_UNREAD = "unread";
+
     /**
      * Database version 1: initial version
      * Database version 2-9: (reserved for OEM database customization)
      * Database version 10: adds ETWS and CMAS columns and CDMA support
      * Database version 11: adds delivery time index
+     * Database version 12: adds body preview and title key columns, and summary index
+     * Database version 13: adds full-text search index
+     * Database version 14: adds subscription column and statistics table
      */
-    static final int DATABASE_VERSION = 11;
+    static final int DATABASE_VERSION = 14;
+
+    /** Columns of the table at version 10. Later versions add columns at the end. */
+    @VisibleForTesting
+    static final String COLUMNS_V10 =
+            Telephony.CellBroadcasts._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE + " INTEGER,"
+            + Telephony.CellBroadcasts.PLMN + " TEXT,"
+            + Telephony.CellBroadcasts.LAC + " INTEGER,"
+            + Telephony.CellBroadcasts.CID + " INTEGER,"
+            + Telephony.CellBroadcasts.SERIAL_NUMBER + " INTEGER,"
+            + Telephony.CellBroadcasts.SERVICE_CATEGORY + " INTEGER,"
+            + Telephony.CellBroadcasts.LANGUAGE_CODE + " TEXT,"
+            + Telephony.CellBroadcasts.MESSAGE_BODY + " TEXT,"
+            + Telephony.CellBroadcasts.DELIVERY_TIME + " INTEGER,"
+            + Telephony.CellBroadcasts.MESSAGE_READ + " INTEGER,"
+            + Telephony.CellBroadcasts.MESSAGE_FORMAT + " INTEGER,"
+            + Telephony.CellBroadcasts.MESSAGE_PRIORITY + " INTEGER,"
+            + Telephony.CellBroadcasts.ETWS_WARNING_TYPE + " INTEGER,"
+            + Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS + " INTEGER,"
+            + Telephony.CellBroadcasts.CMAS_CATEGORY + " INTEGER,"
+            + Telephony.CellBroadcasts.CMAS_RESPONSE_TYPE + " INTEGER,"
+            + Telephony.CellBroadcasts.CMAS_SEVERITY + " INTEGER,"
+            + Telephony.CellBroadcasts.CMAS_URGENCY + " INTEGER,"
+            + Telephony.CellBroadcasts.CMAS_CERTAINTY + " INTEGER";
+
+    /** Maximum number of broadcasts migrated in one transaction after an upgrade. */
+    private static final int MIGRATION_CHUNK_SIZE = 1000;
+
+    private final Context mContext;
+
+    private final CellBroadcastDatabaseMigrator mMigrator;
 
     CellBroadcastDatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+        mMigrator = new CellBroadcastDatabaseMigrator(getUpgradeSteps(), MIGRATION_CHUNK_SIZE);
+        // Let the list read while an alert is inserted.
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        if (db.getVersion() == 0) {
+            // The database was just created, with the Android metadata table only, so it is
+            // rebuilt with incremental vacuum at no cost before the broadcast table is created.
+            CellBroadcastRetentionPolicy.enableIncrementalVacuum(db);
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
-                + Telephony.CellBroadcasts._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
-                + Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE + " INTEGER,"
-                + Telephony.CellBroadcasts.PLMN + " TEXT,"
-                + Telephony.CellBroadcasts.LAC + " INTEGER,"
-                + Telephony.CellBroadcasts.CID + " INTEGER,"
-                + Telephony.CellBroadcasts.SERIAL_NUMBER + " INTEGER,"
-                + Telephony.CellBroadcasts.SERVICE_CATEGORY + " INTEGER,"
-                + Telephony.CellBroadcasts.LANGUAGE_CODE + " TEXT,"
-                + Telephony.CellBroadcasts.MESSAGE_BODY + " TEXT,"
-                + Telephony.CellBroadcasts.DELIVERY_TIME + " INTEGER,"
-                + Telephony.CellBroadcasts.MESSAGE_READ + " INTEGER,"
-                + Telephony.CellBroadcasts.MESSAGE_FORMAT + " INTEGER,"
-                + Telephony.CellBroadcasts.MESSAGE_PRIORITY + " INTEGER,"
-                + Telephony.CellBroadcasts.ETWS_WARNING_TYPE + " INTEGER,"
-                + Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS + " INTEGER,"
-                + Telephony.CellBroadcasts.CMAS_CATEGORY + " INTEGER,"
-                + Telephony.CellBroadcasts.CMAS_RESPONSE_TYPE + " INTEGER,"
-                + Telephony.CellBroadcasts.CMAS_SEVERITY + " INTEGER,"
-                + Telephony.CellBroadcasts.CMAS_URGENCY + " INTEGER,"
-                + Telephony.CellBroadcasts.CMAS_CERTAINTY + " INTEGER);");
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " (" + COLUMNS_V10 + ","
+                + BODY_PREVIEW + " TEXT,"
+                + TITLE_KEY + " TEXT,"
+                + SUB_ID + " INTEGER DEFAULT " + SubscriptionManager.INVALID_SUBSCRIPTION_ID
+                + ");");
 
         createDeliveryTimeIndex(db);
+        createSummaryIndex(db);
+        createSearchIndex(db);
+        createStatsTable(db);
     }
 
     private void createDeliveryTimeIndex(SQLiteDatabase db) {
@@ -90,6 +164,162 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
                 + " (" + Telephony.CellBroadcasts.DELIVERY_TIME + ");");
     }
 
+    /**
+     * Create the index covering the columns of the broadcast list, so a page of the list is read
+     * from the index alone.
+     */
+    private void createSummaryIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS summaryIndex ON " + TABLE_NAME + " ("
+                + Telephony.CellBroadcasts.DELIVERY_TIME + ","
+                + Telephony.CellBroadcasts._ID + ","
+                + Telephony.CellBroadcasts.MESSAGE_READ + ","
+                + Telephony.CellBroadcasts.SERVICE_CATEGORY + ","
+                + TITLE_KEY + ","
+                + BODY_PREVIEW + ");");
+    }
+
+    /**
+     * Create the full-text index of the message bodies. The index reads the bodies from the
+     * broadcast table rather than keeping a copy, and triggers keep it in step with the table.
+     */
+    private void createSearchIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + SEARCH_TABLE_NAME + " USING fts4("
+                + "content=\"" + TABLE_NAME + "\", " + Telephony.CellBroadcasts.MESSAGE_BODY
+                + ", tokenize=unicode61);");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + SEARCH_TABLE_NAME + "_ai AFTER INSERT ON "
+                + TABLE_NAME + " BEGIN " + insertSearchRow() + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + SEARCH_TABLE_NAME + "_bd BEFORE DELETE ON "
+                + TABLE_NAME + " BEGIN " + deleteSearchRow() + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + SEARCH_TABLE_NAME + "_bu BEFORE UPDATE OF "
+                + Telephony.CellBroadcasts.MESSAGE_BODY + " ON " + TABLE_NAME + " BEGIN "
+                + deleteSearchRow() + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + SEARCH_TABLE_NAME + "_au AFTER UPDATE OF "
+                + Telephony.CellBroadcasts.MESSAGE_BODY + " ON " + TABLE_NAME + " BEGIN "
+                + insertSearchRow() + " END;");
+    }
+
+    private static String insertSearchRow() {
+        return "INSERT INTO " + SEARCH_TABLE_NAME + " (docid, "
+                + Telephony.CellBroadcasts.MESSAGE_BODY + ") VALUES (new."
+                + Telephony.CellBroadcasts._ID + ", new." + Telephony.CellBroadcasts.MESSAGE_BODY
+                + ");";
+    }
+
+    private static String deleteSearchRow() {
+        return "DELETE FROM " + SEARCH_TABLE_NAME + " WHERE docid=old."
+                + Telephony.CellBroadcasts._ID + ";";
+    }
+
+    /**
+     * Create the statistics table and the triggers counting the broadcasts in it. The service
+     * category, subscription and kind of a broadcast are never updated, so only updates of the
+     * read flag are counted.
+     */
+    private void createStatsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + STATS_TABLE_NAME + " ("
+                + Telephony.CellBroadcasts.SERVICE_CATEGORY + " INTEGER NOT NULL,"
+                + SUB_ID + " INTEGER NOT NULL,"
+                + STATS_EMERGENCY + " INTEGER NOT NULL,"
+                + STATS_TOTAL + " INTEGER NOT NULL DEFAULT 0,"
+                + STATS_UNREAD + " INTEGER NOT NULL DEFAULT 0,"
+                + "PRIMARY KEY (" + Telephony.CellBroadcasts.SERVICE_CATEGORY + "," + SUB_ID
+                + "," + STATS_EMERGENCY + ")) WITHOUT ROWID;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + STATS_TABLE_NAME + "_ai AFTER INSERT ON "
+                + TABLE_NAME + " BEGIN INSERT OR IGNORE INTO " + STATS_TABLE_NAME + " ("
+                + Telephony.CellBroadcasts.SERVICE_CATEGORY + "," + SUB_ID + ","
+                + STATS_EMERGENCY + ") VALUES (" + getStatsKey("new.") + "); UPDATE "
+                + STATS_TABLE_NAME + " SET " + STATS_TOTAL + "=" + STATS_TOTAL + "+1,"
+                + STATS_UNREAD + "=" + STATS_UNREAD + "+" + getUnread("new.") + " WHERE "
+                + getStatsSelection("new.") + "; END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + STATS_TABLE_NAME + "_ad AFTER DELETE ON "
+                + TABLE_NAME + " BEGIN UPDATE " + STATS_TABLE_NAME + " SET " + STATS_TOTAL + "="
+                + STATS_TOTAL + "-1," + STATS_UNREAD + "=" + STATS_UNREAD + "-"
+                + getUnread("old.") + " WHERE " + getStatsSelection("old.") + "; DELETE FROM "
+                + STATS_TABLE_NAME + " WHERE " + getStatsSelection("old.") + " AND "
+                + STATS_TOTAL + "<=0; END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + STATS_TABLE_NAME + "_au AFTER UPDATE OF "
+                + Telephony.CellBroadcasts.MESSAGE_READ + " ON " + TABLE_NAME + " WHEN "
+                + getUnread("old.") + "!=" + getUnread("new.") + " BEGIN UPDATE "
+                + STATS_TABLE_NAME + " SET " + STATS_UNREAD + "=" + STATS_UNREAD + "+"
+                + getUnread("new.") + "-" + getUnread("old.") + " WHERE "
+                + getStatsSelection("new.") + "; END;");
+    }
+
+    /** Count the broadcasts stored before the statistics table existed. */
+    private static void fillStatsTable(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + STATS_TABLE_NAME + ";");
+        db.execSQL("INSERT INTO " + STATS_TABLE_NAME + " SELECT " + getStatsKey("")
+                + ",COUNT(*),SUM(" + getUnread("") + ") FROM " + TABLE_NAME
+                + " GROUP BY 1,2,3;");
+    }
+
+    /** @return the key of the statistics row counting the broadcast of the given row */
+    private static String getStatsKey(String row) {
+        return getServiceCategory(row) + "," + getSubId(row) + ","
+                + getEmergencySelection(row);
+    }
+
+    /** @return the selection of the statistics row counting the broadcast of the given row */
+    private static String getStatsSelection(String row) {
+        return Telephony.CellBroadcasts.SERVICE_CATEGORY + "=" + getServiceCategory(row)
+                + " AND " + SUB_ID + "=" + getSubId(row)
+                + " AND " + STATS_EMERGENCY + "=" + getEmergencySelection(row);
+    }
+
+    private static String getServiceCategory(String row) {
+        return "IFNULL(" + row + Telephony.CellBroadcasts.SERVICE_CATEGORY + ",0)";
+    }
+
+    private static String getSubId(String row) {
+        return "IFNULL(" + row + SUB_ID + "," + SubscriptionManager.INVALID_SUBSCRIPTION_ID + ")";
+    }
+
+    /** @return 1 if the broadcast of the given row is unread, 0 otherwise */
+    private static String getUnread(String row) {
+        return "(IFNULL(" + row + Telephony.CellBroadcasts.MESSAGE_READ + ",0)=0)";
+    }
+
+    /**
+     * @param row the row prefix, e.g. "new." in a trigger, or empty
+     * @return the selection of the rows holding an emergency alert
+     */
+    static String getEmergencySelection(String row) {
+        return "(IFNULL(" + row + Telephony.CellBroadcasts.MESSAGE_PRIORITY + ",0)="
+                + SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY + " OR "
+                + row + Telephony.CellBroadcasts.ETWS_WARNING_TYPE + " IS NOT NULL OR "
+                + row + Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS + " IS NOT NULL)";
+    }
+
+    /**
+     * @param body the message body
+     * @return the start of the body to store as {@link #BODY_PREVIEW}
+     */
+    static String getBodyPreview(String body) {
+        if (body == null || body.length() <= BODY_PREVIEW_LENGTH) {
+            return body;
+        }
+        return body.substring(0, BODY_PREVIEW_LENGTH);
+    }
+
+    /**
+     * @param context the context
+     * @param message the broadcast
+     * @return the resource entry name of the broadcast title to store as {@link #TITLE_KEY}
+     */
+    static String getTitleKey(Context context, CellBroadcastMessage message) {
+        return getTitleKey(context, CellBroadcastMessageClassification.classify(context, message));
+    }
+
+    /**
+     * @param context the context
+     * @param classification the classification of the broadcast
+     * @return the resource entry name of the broadcast title to store as {@link #TITLE_KEY}
+     */
+    static String getTitleKey(Context context,
+            CellBroadcastMessageClassification classification) {
+        return context.getResources().getResourceEntryName(classification.getTitleResId());
+    }
+
     /** Columns to copy on database upgrade. */
     private static final String[] COLUMNS_V1 = {
             Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE,
@@ -111,6 +341,24 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
     private static final int COLUMN_V1_DELIVERY_TIME        = 6;
     private static final int COLUMN_V1_MESSAGE_READ         = 7;
 
+    /** Columns set when copying a broadcast on upgrade from version 1, in order. */
+    private static final String[] COLUMNS_V10_INSERTED = {
+            Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE,
+            Telephony.CellBroadcasts.SERIAL_NUMBER,
+            Telephony.CellBroadcasts.SERVICE_CATEGORY,
+            Telephony.CellBroadcasts.LANGUAGE_CODE,
+            Telephony.CellBroadcasts.MESSAGE_BODY,
+            Telephony.CellBroadcasts.DELIVERY_TIME,
+            Telephony.CellBroadcasts.MESSAGE_READ,
+            Telephony.CellBroadcasts.MESSAGE_FORMAT,
+            Telephony.CellBroadcasts.MESSAGE_PRIORITY,
+            Telephony.CellBroadcasts.ETWS_WARNING_TYPE,
+            Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS,
+            Telephony.CellBroadcasts.CMAS_SEVERITY,
+            Telephony.CellBroadcasts.CMAS_URGENCY,
+            Telephony.CellBroadcasts.CMAS_CERTAINTY,
+    };
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         if (oldVersion == newVersion) {
@@ -121,52 +369,195 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
 
         // Upgrade from V1 to V10
         if (oldVersion == 1) {
-            db.beginTransaction();
-            try {
-                // Step 1: rename original table
-                db.execSQL("DROP TABLE IF EXISTS " + TEMP_TABLE_NAME);
-                db.execSQL("ALTER TABLE " + TABLE_NAME + " RENAME TO " + TEMP_TABLE_NAME);
-
-                // Step 2: create new table and indices
-                onCreate(db);
-
-                // Step 3: copy each message into the new table
-                Cursor cursor = db.query(TEMP_TABLE_NAME, COLUMNS_V1, null, null, null, null,
-                        null);
-                try {
-                    while (cursor.moveToNext()) {
-                        upgradeMessageV1ToV2(db, cursor);
+            upgradeFromV1(db);
+            oldVersion = 10;    // skip to version 10
+        }
+
+        // Note to OEMs: if you have customized the database schema since V1, you will need to
+        // add your own code here to convert from your version to version 10. A customized
+        // table that only adds columns to the version 10 table is upgraded as is.
+        if (oldVersion < 10) {
+            if (!hasColumn(db, Telephony.CellBroadcasts.CMAS_CERTAINTY)) {
+                throw new SQLiteException("CellBroadcastDatabase doesn't know how to upgrade "
+                        + " DB version " + oldVersion + " (customized by OEM?)");
+            }
+            oldVersion = 10;
+        }
+
+        mMigrator.upgrade(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Migrate the next chunk of the broadcasts stored before the last upgrade. Called in the
+     * background until it returns false, so opening the database never waits for the migration.
+     * Until then, the columns added by the upgrade are NULL for the broadcasts not migrated yet.
+     *
+     * @param db The writable database
+     * @return True if broadcasts are left to migrate
+     */
+    boolean migrateNextChunk(SQLiteDatabase db) {
+        return mMigrator.migrateNextChunk(db);
+    }
+
+    /**
+     * Upgrade steps from version 10, in order. Schema changes are made in the upgrade
+     * transaction, the broadcasts stored so far are migrated in chunks once it is committed.
+     */
+    @VisibleForTesting
+    List<CellBroadcastDatabaseMigrator.Step> getUpgradeSteps() {
+        return Arrays.asList(
+                new CellBroadcastDatabaseMigrator.Step(11) {
+                    @Override
+                    void upgradeSchema(SQLiteDatabase db) {
+                        createDeliveryTimeIndex(db);
+                    }
+                },
+                new CellBroadcastDatabaseMigrator.Step(12) {
+                    @Override
+                    void upgradeSchema(SQLiteDatabase db) {
+                        if (!hasColumn(db, BODY_PREVIEW)) {
+                            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                                    + BODY_PREVIEW + " TEXT;");
+                            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + TITLE_KEY
+                                    + " TEXT;");
+                        }
+                        createSummaryIndex(db);
+                    }
+
+                    @Override
+                    boolean migratesRows() {
+                        return true;
+                    }
+
+                    @Override
+                    void migrateRows(SQLiteDatabase db, long afterRowId, long lastRowId) {
+                        upgradeSummaryColumns(db, afterRowId, lastRowId);
+                    }
+                },
+                new CellBroadcastDatabaseMigrator.Step(13) {
+                    @Override
+                    void upgradeSchema(SQLiteDatabase db) {
+                        createSearchIndex(db);
+                    }
+
+                    @Override
+                    boolean migratesRows() {
+                        return true;
                     }
-                } finally {
-                    cursor.close();
-                }
 
-                // Step 4: drop the original table and commit transaction
-                db.execSQL("DROP TABLE " + TEMP_TABLE_NAME);
-                db.setTransactionSuccessful();
+                    @Override
+                    void migrateRows(SQLiteDatabase db, long afterRowId, long lastRowId) {
+                        // Index the broadcasts stored so far. The triggers index the new ones.
+                        db.execSQL("INSERT INTO " + SEARCH_TABLE_NAME + " (docid,"
+                                + Telephony.CellBroadcasts.MESSAGE_BODY + ") SELECT "
+                                + Telephony.CellBroadcasts._ID + ","
+                                + Telephony.CellBroadcasts.MESSAGE_BODY + " FROM " + TABLE_NAME
+                                + " WHERE " + getRowIdRange(afterRowId, lastRowId) + ";");
+                    }
+                },
+                new CellBroadcastDatabaseMigrator.Step(14) {
+                    @Override
+                    void upgradeSchema(SQLiteDatabase db) {
+                        if (!hasColumn(db, SUB_ID)) {
+                            // The subscription of the broadcasts stored so far is unknown.
+                            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + SUB_ID
+                                    + " INTEGER DEFAULT "
+                                    + SubscriptionManager.INVALID_SUBSCRIPTION_ID + ";");
+                        }
+                        createStatsTable(db);
+                        // Counted in the upgrade transaction rather than in chunks, since the
+                        // triggers would otherwise update the counts of broadcasts not counted
+                        // yet. One grouped scan is fast even for a large history.
+                        fillStatsTable(db);
+                    }
+                });
+    }
+
+    /**
+     * Upgrade the table from version 1 to version 10. Version 1 predates 2012, so its tables
+     * are small enough to be copied in the upgrade transaction.
+     */
+    private static void upgradeFromV1(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            // Step 1: rename original table
+            db.execSQL("DROP TABLE IF EXISTS " + TEMP_TABLE_NAME);
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " RENAME TO " + TEMP_TABLE_NAME);
+
+            // Step 2: create the version 10 table, the next steps upgrade it
+            db.execSQL("CREATE TABLE " + TABLE_NAME + " (" + COLUMNS_V10 + ");");
+
+            // Step 3: copy each message into the new table
+            SQLiteStatement statement = db.compileStatement("INSERT INTO " + TABLE_NAME + " ("
+                    + TextUtils.join(",", COLUMNS_V10_INSERTED) + ") VALUES (?"
+                    + TextUtils.join("", Collections.nCopies(COLUMNS_V10_INSERTED.length - 1,
+                            ",?")) + ")");
+            Cursor cursor = db.query(TEMP_TABLE_NAME, COLUMNS_V1, null, null, null, null,
+                    null);
+            try {
+                while (cursor.moveToNext()) {
+                    upgradeMessageV1ToV2(statement, cursor);
+                }
             } finally {
-                db.endTransaction();
+                cursor.close();
+                statement.close();
             }
-            oldVersion = 10;    // skip to version 10
+
+            // Step 4: drop the original table and commit transaction
+            db.execSQL("DROP TABLE " + TEMP_TABLE_NAME);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
+    }
 
-        // Note to OEMs: if you have customized the database schema since V1, you will need to
-        // add your own code here to convert from your version to version 10.
-        if (oldVersion < 10) {
-            throw new SQLiteException("CellBroadcastDatabase doesn't know how to upgrade "
-                    + " DB version " + oldVersion + " (customized by OEM?)");
+    private static String getRowIdRange(long afterRowId, long lastRowId) {
+        return Telephony.CellBroadcasts._ID + ">" + afterRowId + " AND "
+                + Telephony.CellBroadcasts._ID + "<=" + lastRowId;
+    }
+
+    private static boolean hasColumn(SQLiteDatabase db, String column) {
+        Cursor cursor = db.query(TABLE_NAME, null, null, null, null, null, null, "0");
+        try {
+            return cursor.getColumnIndex(column) != -1;
+        } finally {
+            cursor.close();
         }
+    }
 
-        if (oldVersion == 10) {
-            createDeliveryTimeIndex(db);
-            oldVersion++;
+    /**
+     * Fills the body preview and title key of a chunk of the broadcasts stored before
+     * version 12.
+     */
+    private void upgradeSummaryColumns(SQLiteDatabase db, long afterRowId, long lastRowId) {
+        String range = getRowIdRange(afterRowId, lastRowId);
+        db.execSQL("UPDATE " + TABLE_NAME + " SET " + BODY_PREVIEW + "=substr("
+                + Telephony.CellBroadcasts.MESSAGE_BODY + ",1," + BODY_PREVIEW_LENGTH
+                + ") WHERE " + range + ";");
+
+        SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE_NAME + " SET "
+                + TITLE_KEY + "=? WHERE " + Telephony.CellBroadcasts._ID + "=?");
+        Cursor cursor = db.query(TABLE_NAME, null, range, null, null, null, null);
+        try {
+            int idIndex = cursor.getColumnIndexOrThrow(Telephony.CellBroadcasts._ID);
+            while (cursor.moveToNext()) {
+                statement.bindString(1, getTitleKey(mContext,
+                        CellBroadcastMessage.createFromCursor(cursor)));
+                statement.bindLong(2, cursor.getLong(idIndex));
+                statement.executeUpdateDelete();
+            }
+        } finally {
+            cursor.close();
+            statement.close();
         }
     }
 
     /**
      * Upgrades a single broadcast message from version 1 to version 2.
+     * @param statement the insert statement of the {@link #COLUMNS_V10_INSERTED}
+     * @param cursor the broadcast at version 1
      */
-    private static void upgradeMessageV1ToV2(SQLiteDatabase db, Cursor cursor) {
+    private static void upgradeMessageV1ToV2(SQLiteStatement statement, Cursor cursor) {
         int geographicalScope = cursor.getInt(COLUMN_V1_GEOGRAPHICAL_SCOPE);
         int updateNumber = cursor.getInt(COLUMN_V1_SERIAL_NUMBER);
         int messageCode = cursor.getInt(COLUMN_V1_MESSAGE_CODE);
@@ -321,7 +712,11 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
             cv.put(Telephony.CellBroadcasts.CMAS_CERTAINTY, cmasCertainty);
         }
 
-        db.insert(TABLE_NAME, null, cv);
+        // Columns not set are bound to null, as db.insert() would store them.
+        for (int i = 0; i < COLUMNS_V10_INSERTED.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, cv.get(COLUMNS_V10_INSERTED[i]));
+        }
+        statement.executeInsert();
     }
 
     private static void log(String msg) {
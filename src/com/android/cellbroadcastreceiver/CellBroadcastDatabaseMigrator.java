@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.os.SystemClock;
+import android.provider.Telephony;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Upgrades the broadcast database through an ordered list of {@link Step}s.
+ *
+ * Each step changes the schema within the upgrade transaction of
+ * {@link android.database.sqlite.SQLiteOpenHelper}, which must stay quick whatever the size of
+ * the table. Steps that also rewrite the stored broadcasts do so afterwards, in the background,
+ * in chunks of bounded size committed one by one. The progress of these row migrations is
+ * stored in the database with each chunk, so a migration interrupted by the process dying
+ * resumes from the last chunk committed the next time the process starts.
+ *
+ * Row migrations run in the order of their steps while the database is in use. Each one only
+ * migrates the broadcasts stored when the schema was changed; the broadcasts stored afterwards
+ * are written in the new schema already. Queries must tolerate the columns added by a step being
+ * NULL until its row migration is done.
+ */
+public final class CellBroadcastDatabaseMigrator {
+    private static final String TAG = "CBDatabaseMigrator";
+
+    /** Row migrations left, with the row ID of the last broadcast each one migrated. */
+    static final String PROGRESS_TABLE_NAME = "upgrade_progress";
+
+    private static final String PROGRESS_VERSION = "version";
+    private static final String PROGRESS_LAST_ROW_ID = "last_row_id";
+    private static final String PROGRESS_MAX_ROW_ID = "max_row_id";
+
+    /** Broadcasts left to migrate, after the last row ID migrated and up to the last one. */
+    private static final String RANGE_SELECTION =
+            Telephony.CellBroadcasts._ID + ">? AND " + Telephony.CellBroadcasts._ID + "<=?";
+
+    /** A step of the upgrade from one database version to the next. */
+    abstract static class Step {
+        /** Database version the step upgrades to. */
+        final int mVersion;
+
+        Step(int version) {
+            mVersion = version;
+        }
+
+        /**
+         * Change the schema to the version of this step. Runs in the upgrade transaction, so it
+         * must not rewrite the stored broadcasts. Steps must be idempotent, as the upgrade
+         * from version 1 re-creates the table.
+         *
+         * @param db The database at the previous version
+         */
+        abstract void upgradeSchema(SQLiteDatabase db);
+
+        /** @return True if the step rewrites the stored broadcasts with {@link #migrateRows} */
+        boolean migratesRows() {
+            return false;
+        }
+
+        /**
+         * Rewrite a chunk of the broadcasts stored before the upgrade. Runs in a transaction
+         * with the update of the progress, once the schema of every step was changed.
+         *
+         * @param db The database
+         * @param afterRowId Migrate the broadcasts with a row ID greater than this one
+         * @param lastRowId Migrate the broadcasts with a row ID up to this one
+         */
+        void migrateRows(SQLiteDatabase db, long afterRowId, long lastRowId) {
+        }
+    }
+
+    /** Receives the progress of the row migrations. */
+    interface ProgressListener {
+        /**
+         * Called after each chunk of a row migration.
+         *
+         * @param version The version of the step
+         * @param migratedRows Number of broadcasts migrated since the database was opened
+         * @param totalRows Number of broadcasts left to migrate when the database was opened
+         */
+        void onProgress(int version, long migratedRows, long totalRows);
+    }
+
+    private final List<Step> mSteps;
+    private final int mChunkSize;
+    private ProgressListener mProgressListener;
+
+    /**
+     * @param steps The upgrade steps, in version order
+     * @param chunkSize Maximum number of broadcasts migrated in one transaction
+     */
+    CellBroadcastDatabaseMigrator(List<Step> steps, int chunkSize) {
+        mSteps = steps;
+        mChunkSize = chunkSize;
+    }
+
+    void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * Change the schema from the old version to the new one, and record the row migrations of
+     * the steps for {@link #migrateRows}.
+     *
+     * @param db The database, in the upgrade transaction
+     * @param oldVersion The version the database is at
+     * @param newVersion The version to upgrade to
+     */
+    void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (Step step : mSteps) {
+            if (step.mVersion <= oldVersion || step.mVersion > newVersion) {
+                continue;
+            }
+            Log.d(TAG, "Upgrading schema to version " + step.mVersion);
+            step.upgradeSchema(db);
+            if (step.migratesRows()) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS " + PROGRESS_TABLE_NAME + " ("
+                        + PROGRESS_VERSION + " INTEGER PRIMARY KEY,"
+                        + PROGRESS_LAST_ROW_ID + " INTEGER NOT NULL,"
+                        + PROGRESS_MAX_ROW_ID + " INTEGER NOT NULL);");
+                db.execSQL("INSERT OR REPLACE INTO " + PROGRESS_TABLE_NAME + " VALUES ("
+                        + step.mVersion + ",0,(SELECT IFNULL(MAX(" + Telephony.CellBroadcasts._ID
+                        + "),0) FROM " + CellBroadcastDatabaseHelper.TABLE_NAME + "));");
+            }
+        }
+    }
+
+    /**
+     * Run the row migrations left, one chunk at a time.
+     *
+     * @param db The writable database
+     */
+    void migrateRows(SQLiteDatabase db) {
+        if (!hasProgressTable(db)) {
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        int version = -1;
+        long migratedRows = 0;
+        long totalRows = 0;
+        long[] progress;
+        while ((progress = getNextMigration(db)) != null) {
+            if (progress[0] != version) {
+                version = (int) progress[0];
+                migratedRows = 0;
+                totalRows = DatabaseUtils.queryNumEntries(db,
+                        CellBroadcastDatabaseHelper.TABLE_NAME, RANGE_SELECTION,
+                        getRangeArgs(progress[1], progress[2]));
+            }
+            migratedRows += migrateChunk(db, version, progress[1], progress[2]);
+            Log.d(TAG, "Migrated " + migratedRows + "/" + totalRows
+                    + " broadcasts to version " + version);
+            if (mProgressListener != null) {
+                mProgressListener.onProgress(version, migratedRows, totalRows);
+            }
+        }
+        db.execSQL("DROP TABLE IF EXISTS " + PROGRESS_TABLE_NAME + ";");
+        Log.d(TAG, "Row migrations done in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    /**
+     * Run the next chunk of the row migrations left.
+     *
+     * @param db The writable database
+     * @return True if row migrations are left
+     */
+    boolean migrateNextChunk(SQLiteDatabase db) {
+        if (!hasProgressTable(db)) {
+            return false;
+        }
+        long[] progress = getNextMigration(db);
+        if (progress == null) {
+            db.execSQL("DROP TABLE IF EXISTS " + PROGRESS_TABLE_NAME + ";");
+            return false;
+        }
+        migrateChunk(db, (int) progress[0], progress[1], progress[2]);
+        return true;
+    }
+
+    /** @return the number of broadcasts migrated */
+    private int migrateChunk(SQLiteDatabase db, int version, long afterRowId, long maxRowId) {
+        Step step = getStep(version);
+        String[] args = getRangeArgs(afterRowId, maxRowId);
+        db.beginTransaction();
+        try {
+            // Find the row ID of the last broadcast of the chunk.
+            long lastRowId;
+            int count = mChunkSize;
+            try {
+                lastRowId = DatabaseUtils.longForQuery(db, "SELECT "
+                        + Telephony.CellBroadcasts._ID + " FROM "
+                        + CellBroadcastDatabaseHelper.TABLE_NAME + " WHERE " + RANGE_SELECTION
+                        + " ORDER BY " + Telephony.CellBroadcasts._ID
+                        + " LIMIT 1 OFFSET " + (mChunkSize - 1),
+                        args);
+            } catch (SQLiteDoneException e) {
+                // This is the last chunk.
+                count = (int) DatabaseUtils.queryNumEntries(db,
+                        CellBroadcastDatabaseHelper.TABLE_NAME, RANGE_SELECTION, args);
+                lastRowId = maxRowId;
+            }
+            if (count == 0 || step == null) {
+                count = 0;
+                db.delete(PROGRESS_TABLE_NAME, PROGRESS_VERSION + "=" + version, null);
+            } else {
+                step.migrateRows(db, afterRowId, lastRowId);
+                db.execSQL("UPDATE " + PROGRESS_TABLE_NAME + " SET " + PROGRESS_LAST_ROW_ID
+                        + "=" + lastRowId + " WHERE " + PROGRESS_VERSION + "=" + version + ";");
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the version, last row ID migrated and last row ID to migrate of the first row
+     *         migration left, or null
+     */
+    private static long[] getNextMigration(SQLiteDatabase db) {
+        try (Cursor cursor = db.query(PROGRESS_TABLE_NAME,
+                new String[]{PROGRESS_VERSION, PROGRESS_LAST_ROW_ID, PROGRESS_MAX_ROW_ID}, null,
+                null, null, null, PROGRESS_VERSION, "1")) {
+            if (cursor.moveToFirst()) {
+                return new long[]{cursor.getLong(0), cursor.getLong(1), cursor.getLong(2)};
+            }
+            return null;
+        }
+    }
+
+    /** @return the arguments of {@link #RANGE_SELECTION} */
+    private static String[] getRangeArgs(long afterRowId, long maxRowId) {
+        return new String[]{Long.toString(afterRowId), Long.toString(maxRowId)};
+    }
+
+    private Step getStep(int version) {
+        for (Step step : mSteps) {
+            if (step.mVersion == version) {
+                return step;
+            }
+        }
+        Log.e(TAG, "No step for version " + version);
+        return null;
+    }
+
+    private static boolean hasProgressTable(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, "sqlite_master", "type='table' AND name=?",
+                new String[]{PROGRESS_TABLE_NAME}) > 0;
+    }
+}
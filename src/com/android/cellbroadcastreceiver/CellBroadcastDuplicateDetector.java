@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.telephony.SmsCbLocation;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-capacity table of recently received message identities for duplicate detection.
+ *
+ * A message identity is its service category, serial number, a 64-bit hash of its location, a
+ * 64-bit hash of its body and the ETWS primary flag. Identities are kept in insertion order in a
+ * ring of primitive arrays, indexed by an open-addressing hash table, so lookups and inserts do
+ * not allocate. Recording an identity that is already present refreshes its timestamp but keeps
+ * its position; once the table is full the oldest identity is evicted, like the
+ * {@link java.util.LinkedHashMap} it replaces. Identities recorded before a given time are
+ * expired, and evicted from the oldest end of the ring when looking up or recording one.
+ *
+ * All methods are thread-safe.
+ */
+public class CellBroadcastDuplicateDetector {
+
+    /** Returned by {@link #getTimestamp} when the identity is not in the table. */
+    public static final long NOT_FOUND = Long.MIN_VALUE;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int mCapacity;
+
+    // Ring of identities, oldest first starting at mHead. Guarded by this.
+    private final long[] mCategoryAndSerial;
+    private final long[] mLocationHash;
+    private final long[] mBodyHash;
+    private final boolean[] mEtwsPrimary;
+    private final long[] mTimestamp;
+    private final int[] mHash;
+    private int mHead;
+    private int mSize;
+
+    // Open-addressing index holding (ring slot + 1), 0 for an empty bucket. Guarded by this.
+    private final int[] mIndex;
+    private final int mIndexMask;
+
+    /**
+     * @param capacity Maximum number of identities to keep before evicting the oldest one
+     */
+    public CellBroadcastDuplicateDetector(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mCapacity = capacity;
+        mCategoryAndSerial = new long[capacity];
+        mLocationHash = new long[capacity];
+        mBodyHash = new long[capacity];
+        mEtwsPrimary = new boolean[capacity];
+        mTimestamp = new long[capacity];
+        mHash = new int[capacity];
+
+        // Keep the load factor at or below one half so probe sequences stay short.
+        int indexSize = Integer.highestOneBit(capacity) << 2;
+        mIndex = new int[indexSize];
+        mIndexMask = indexSize - 1;
+    }
+
+    /**
+     * Get the time an identity was last recorded.
+     *
+     * @return The timestamp passed to {@link #put}, or {@link #NOT_FOUND}
+     */
+    public long getTimestamp(int serviceCategory, int serialNumber, long locationHash,
+            long bodyHash, boolean isEtwsPrimary) {
+        return getTimestamp(serviceCategory, serialNumber, locationHash, bodyHash, isEtwsPrimary,
+                Long.MIN_VALUE);
+    }
+
+    /**
+     * Get the time an identity was last recorded, after evicting the oldest identities recorded
+     * before the minimum timestamp.
+     *
+     * @param minTimestamp Identities recorded before this time are expired
+     * @return The timestamp passed to {@link #put}, or {@link #NOT_FOUND}
+     */
+    public synchronized long getTimestamp(int serviceCategory, int serialNumber,
+            long locationHash, long bodyHash, boolean isEtwsPrimary, long minTimestamp) {
+        removeExpired(minTimestamp);
+        long categoryAndSerial = packCategoryAndSerial(serviceCategory, serialNumber);
+        int bucket = findBucket(categoryAndSerial, locationHash, bodyHash, isEtwsPrimary,
+                hash(categoryAndSerial, locationHash, bodyHash, isEtwsPrimary));
+        return mIndex[bucket] == 0 ? NOT_FOUND : mTimestamp[mIndex[bucket] - 1];
+    }
+
+    /**
+     * Record an identity. An identity already present keeps its position and gets the new
+     * timestamp. Otherwise it is appended, evicting the oldest identity if the table is full.
+     *
+     * @return True if the oldest identity was evicted to make room
+     */
+    public boolean put(int serviceCategory, int serialNumber, long locationHash, long bodyHash,
+            boolean isEtwsPrimary, long timestamp) {
+        return put(serviceCategory, serialNumber, locationHash, bodyHash, isEtwsPrimary,
+                timestamp, Long.MIN_VALUE);
+    }
+
+    /**
+     * Record an identity, after evicting the oldest identities recorded before the minimum
+     * timestamp.
+     *
+     * @param minTimestamp Identities recorded before this time are expired
+     * @return True if the oldest identity was evicted to make room, expired identities aside
+     */
+    public synchronized boolean put(int serviceCategory, int serialNumber, long locationHash,
+            long bodyHash, boolean isEtwsPrimary, long timestamp, long minTimestamp) {
+        removeExpired(minTimestamp);
+        long categoryAndSerial = packCategoryAndSerial(serviceCategory, serialNumber);
+        int hash = hash(categoryAndSerial, locationHash, bodyHash, isEtwsPrimary);
+        int bucket = findBucket(categoryAndSerial, locationHash, bodyHash, isEtwsPrimary, hash);
+        if (mIndex[bucket] != 0) {
+            mTimestamp[mIndex[bucket] - 1] = timestamp;
+            return false;
+        }
+
+        boolean evicted = false;
+        if (mSize == mCapacity) {
+            removeOldest();
+            evicted = true;
+            // The bucket found above may have moved during the backward shift.
+            bucket = findBucket(categoryAndSerial, locationHash, bodyHash, isEtwsPrimary, hash);
+        }
+
+        int slot = (mHead + mSize) % mCapacity;
+        mCategoryAndSerial[slot] = categoryAndSerial;
+        mLocationHash[slot] = locationHash;
+        mBodyHash[slot] = bodyHash;
+        mEtwsPrimary[slot] = isEtwsPrimary;
+        mTimestamp[slot] = timestamp;
+        mHash[slot] = hash;
+        mIndex[bucket] = slot + 1;
+        mSize++;
+        return evicted;
+    }
+
+    /** @return The number of identities in the table */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /** Remove all identities. */
+    public synchronized void clear() {
+        Arrays.fill(mIndex, 0);
+        mHead = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Visit the identities from oldest to newest.
+     */
+    public synchronized void forEach(Visitor visitor) {
+        for (int i = 0; i < mSize; i++) {
+            int slot = (mHead + i) % mCapacity;
+            visitor.visit((int) (mCategoryAndSerial[slot] >>> 32), (int) mCategoryAndSerial[slot],
+                    mLocationHash[slot], mBodyHash[slot], mEtwsPrimary[slot], mTimestamp[slot]);
+        }
+    }
+
+    /** Receives the identities of {@link #forEach}. */
+    public interface Visitor {
+        /** Called once per identity. */
+        void visit(int serviceCategory, int serialNumber, long locationHash, long bodyHash,
+                boolean isEtwsPrimary, long timestamp);
+    }
+
+    /**
+     * @return A 64-bit hash of the location, equal for equal locations
+     */
+    public static long hashLocation(SmsCbLocation location) {
+        if (location == null) return 0;
+        long h = hashString(FNV_OFFSET_BASIS, location.getPlmn());
+        h = hashInt(h, location.getLac());
+        return hashInt(h, location.getCid());
+    }
+
+    /**
+     * @return A 64-bit hash of the message body, equal for equal bodies
+     */
+    public static long hashBody(String body) {
+        if (body == null) return 0;
+        return hashString(FNV_OFFSET_BASIS, body);
+    }
+
+    private static long hashString(long h, String s) {
+        if (s == null) return hashInt(h, -1);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            h = (h ^ (c & 0xff)) * FNV_PRIME;
+            h = (h ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static long hashInt(long h, int value) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            h = (h ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static long packCategoryAndSerial(int serviceCategory, int serialNumber) {
+        return ((long) serviceCategory << 32) | (serialNumber & 0xffffffffL);
+    }
+
+    private static int hash(long categoryAndSerial, long locationHash, long bodyHash,
+            boolean isEtwsPrimary) {
+        long h = categoryAndSerial * 0x9e3779b97f4a7c15L;
+        h ^= locationHash + 0x632be59bd9b4e019L + (h << 6) + (h >>> 2);
+        h ^= bodyHash + 0x632be59bd9b4e019L + (h << 6) + (h >>> 2);
+        if (isEtwsPrimary) h = ~h;
+        // Final avalanche so the low bits used for the bucket depend on every input bit.
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * @return The bucket holding the identity, or the empty bucket where it would be inserted
+     */
+    private int findBucket(long categoryAndSerial, long locationHash, long bodyHash,
+            boolean isEtwsPrimary, int hash) {
+        int bucket = hash & mIndexMask;
+        while (true) {
+            int entry = mIndex[bucket];
+            if (entry == 0) return bucket;
+            int slot = entry - 1;
+            if (mHash[slot] == hash
+                    && mCategoryAndSerial[slot] == categoryAndSerial
+                    && mLocationHash[slot] == locationHash
+                    && mBodyHash[slot] == bodyHash
+                    && mEtwsPrimary[slot] == isEtwsPrimary) {
+                return bucket;
+            }
+            bucket = (bucket + 1) & mIndexMask;
+        }
+    }
+
+    /**
+     * Evict the identities recorded before the minimum timestamp from the oldest end of the
+     * ring. A refreshed identity keeps its position, so an expired identity recorded after it
+     * stays until it reaches the oldest end.
+     */
+    private void removeExpired(long minTimestamp) {
+        while (mSize > 0 && mTimestamp[mHead] < minTimestamp) {
+            removeOldest();
+        }
+    }
+
+    private void removeOldest() {
+        int slot = mHead;
+        int bucket = mHash[slot] & mIndexMask;
+        while (mIndex[bucket] != slot + 1) {
+            bucket = (bucket + 1) & mIndexMask;
+        }
+
+        // Backward-shift deletion keeps every probe sequence free of holes without tombstones.
+        mIndex[bucket] = 0;
+        int hole = bucket;
+        int next = bucket;
+        while (true) {
+            next = (next + 1) & mIndexMask;
+            int entry = mIndex[next];
+            if (entry == 0) break;
+            int home = mHash[entry - 1] & mIndexMask;
+            // Leave the entry alone if its home bucket lies cyclically in (hole, next].
+            boolean stays = hole <= next
+                    ? (home > hole && home <= next)
+                    : (home > hole || home <= next);
+            if (!stays) {
+                mIndex[hole] = entry;
+                mIndex[next] = 0;
+                hole = next;
+            }
+        }
+
+        mHead = (mHead + 1) % mCapacity;
+        mSize--;
+    }
+}
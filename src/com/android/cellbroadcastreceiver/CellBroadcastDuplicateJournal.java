@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Memory-mapped ring file mirroring the identities recorded in a
+ * {@link CellBroadcastDuplicateDetector}, so duplicate detection survives the process being
+ * killed and the device rebooting.
+ *
+ * Every {@link #append} writes one fixed-size record into the mapping. Since the kernel owns the
+ * mapped pages, a record survives the process dying as soon as it is written; it reaches the disk
+ * with normal writeback, or immediately in {@link #MODE_SYNC}. Each record carries a sequence
+ * number and a checksum, so the header is never rewritten and a record torn by a power loss is
+ * ignored on load.
+ *
+ * Timestamps are stored as wall clock time, because the elapsed realtime used by the detector
+ * restarts from zero on reboot.
+ */
+public class CellBroadcastDuplicateJournal {
+    private static final String TAG = "CBDuplicateJournal";
+
+    /** Identities are only kept in memory. */
+    public static final int MODE_OFF = 0;
+    /** Identities are written to the mapping and flushed to disk by normal writeback. */
+    public static final int MODE_MAPPED = 1;
+    /** Identities are written to the mapping and forced to disk as soon as they are recorded. */
+    public static final int MODE_SYNC = 2;
+
+    /** Name of the journal file in the app's files directory. */
+    static final String FILE_NAME = "duplicate_detection.journal";
+
+    private static final int MAGIC = 0x43424444; // "CBDD"
+    private static final int VERSION = 1;
+
+    // Header: magic, version, capacity, reserved.
+    private static final int HEADER_SIZE = 16;
+
+    // Record: sequence (0 for an empty record), service category, serial number, location hash,
+    // body hash, wall clock time, flags, checksum.
+    private static final int RECORD_SIZE = 48;
+    private static final int OFFSET_SEQUENCE = 0;
+    private static final int OFFSET_CATEGORY = 8;
+    private static final int OFFSET_SERIAL = 12;
+    private static final int OFFSET_LOCATION_HASH = 16;
+    private static final int OFFSET_BODY_HASH = 24;
+    private static final int OFFSET_WALL_TIME = 32;
+    private static final int OFFSET_FLAGS = 40;
+    private static final int OFFSET_CHECKSUM = 44;
+
+    private static final int FLAG_ETWS_PRIMARY = 1;
+
+    private final File mFile;
+    private final int mCapacity;
+    private final boolean mSync;
+
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+    private long mNextSequence;
+
+    /**
+     * @param file The journal file, created if it does not exist
+     * @param capacity Number of records in the ring
+     * @param mode {@link #MODE_MAPPED} or {@link #MODE_SYNC}
+     */
+    public CellBroadcastDuplicateJournal(File file, int capacity, int mode) {
+        mFile = file;
+        mCapacity = capacity;
+        mSync = mode == MODE_SYNC;
+    }
+
+    /** @return True if every record is forced to disk before {@link #append} returns */
+    public boolean isSync() {
+        return mSync;
+    }
+
+    /**
+     * Map the journal file and replay its records into the detector, oldest first.
+     *
+     * @param detector Detector to fill
+     * @param nowElapsed Current elapsed realtime, in the time base of the detector
+     * @param nowWall Current wall clock time
+     * @return The number of records replayed
+     */
+    public synchronized int load(CellBroadcastDuplicateDetector detector, long nowElapsed,
+            long nowWall) throws IOException {
+        long size = HEADER_SIZE + (long) mCapacity * RECORD_SIZE;
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        boolean valid = mRandomAccessFile.length() == size;
+        mRandomAccessFile.setLength(size);
+        mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        valid = valid && mBuffer.getInt(0) == MAGIC && mBuffer.getInt(4) == VERSION
+                && mBuffer.getInt(8) == mCapacity;
+        if (!valid) {
+            Log.d(TAG, "Initializing journal " + mFile);
+            reset();
+            return 0;
+        }
+
+        long[] sequences = new long[mCapacity];
+        int count = 0;
+        for (int slot = 0; slot < mCapacity; slot++) {
+            long sequence = mBuffer.getLong(recordOffset(slot) + OFFSET_SEQUENCE);
+            if (sequence != 0 && (int) (sequence % mCapacity) == slot && isRecordValid(slot)) {
+                sequences[count++] = sequence;
+            }
+        }
+        Arrays.sort(sequences, 0, count);
+
+        for (int i = 0; i < count; i++) {
+            int offset = recordOffset((int) (sequences[i] % mCapacity));
+            long wallTime = mBuffer.getLong(offset + OFFSET_WALL_TIME);
+            detector.put(mBuffer.getInt(offset + OFFSET_CATEGORY),
+                    mBuffer.getInt(offset + OFFSET_SERIAL),
+                    mBuffer.getLong(offset + OFFSET_LOCATION_HASH),
+                    mBuffer.getLong(offset + OFFSET_BODY_HASH),
+                    (mBuffer.getInt(offset + OFFSET_FLAGS) & FLAG_ETWS_PRIMARY) != 0,
+                    nowElapsed - (nowWall - wallTime));
+        }
+        mNextSequence = count > 0 ? sequences[count - 1] + 1 : 1;
+        return count;
+    }
+
+    /**
+     * Record an identity that was just put into the detector.
+     */
+    public synchronized void append(int serviceCategory, int serialNumber, long locationHash,
+            long bodyHash, boolean isEtwsPrimary, long wallTime) {
+        if (mBuffer == null) return;
+        long sequence = mNextSequence++;
+        int offset = recordOffset((int) (sequence % mCapacity));
+        int flags = isEtwsPrimary ? FLAG_ETWS_PRIMARY : 0;
+        mBuffer.putLong(offset + OFFSET_SEQUENCE, sequence);
+        mBuffer.putInt(offset + OFFSET_CATEGORY, serviceCategory);
+        mBuffer.putInt(offset + OFFSET_SERIAL, serialNumber);
+        mBuffer.putLong(offset + OFFSET_LOCATION_HASH, locationHash);
+        mBuffer.putLong(offset + OFFSET_BODY_HASH, bodyHash);
+        mBuffer.putLong(offset + OFFSET_WALL_TIME, wallTime);
+        mBuffer.putInt(offset + OFFSET_FLAGS, flags);
+        mBuffer.putInt(offset + OFFSET_CHECKSUM, checksum(sequence, serviceCategory,
+                serialNumber, locationHash, bodyHash, wallTime, flags));
+        if (mSync) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Remove all records.
+     */
+    public synchronized void clear() {
+        if (mBuffer == null) return;
+        reset();
+    }
+
+    /**
+     * Unmap the journal. Further appends are ignored.
+     */
+    public synchronized void close() {
+        mBuffer = null;
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close journal: " + e);
+            }
+            mRandomAccessFile = null;
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < mCapacity; i++) {
+            mBuffer.putLong(recordOffset(i) + OFFSET_SEQUENCE, 0);
+        }
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putInt(8, mCapacity);
+        mBuffer.putInt(12, 0);
+        mBuffer.force();
+        mNextSequence = 1;
+    }
+
+    private boolean isRecordValid(int slot) {
+        int offset = recordOffset(slot);
+        return mBuffer.getInt(offset + OFFSET_CHECKSUM) == checksum(
+                mBuffer.getLong(offset + OFFSET_SEQUENCE),
+                mBuffer.getInt(offset + OFFSET_CATEGORY),
+                mBuffer.getInt(offset + OFFSET_SERIAL),
+                mBuffer.getLong(offset + OFFSET_LOCATION_HASH),
+                mBuffer.getLong(offset + OFFSET_BODY_HASH),
+                mBuffer.getLong(offset + OFFSET_WALL_TIME),
+                mBuffer.getInt(offset + OFFSET_FLAGS));
+    }
+
+    private static int recordOffset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private static int checksum(long sequence, int serviceCategory, int serialNumber,
+            long locationHash, long bodyHash, long wallTime, int flags) {
+        long h = sequence;
+        h = h * 31 + serviceCategory;
+        h = h * 31 + serialNumber;
+        h = h * 31 + locationHash;
+        h = h * 31 + bodyHash;
+        h = h * 31 + wallTime;
+        h = h * 31 + flags;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Resources;
+import android.os.UserHandle;
+import android.telephony.CellBroadcastMessage;
+import android.telephony.ServiceState;
+import android.telephony.SmsCbEtwsInfo;
+import android.telephony.SmsCbLocation;
+import android.telephony.SmsCbMessage;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.SparseIntArray;
+
+import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snapshot of everything needed to decide on an ETWS primary notification, so the alert can be
+ * shown without reading resources, scanning channel ranges or making binder calls when it
+ * arrives.
+ *
+ * The snapshot is built by {@link #arm} when the channels are configured, and dropped together
+ * with the channel range cache. It holds the classifications, the duplicate detection journal,
+ * the duplicate expiration time of each active subscription and the user in the foreground.
+ * Notifications arriving before the snapshot is armed take the regular path.
+ *
+ * The vibration pattern and the language filter of a classification come from the first range
+ * in scope of the roaming state of the subscription, so classifications are kept per
+ * subscription and replaced by {@link #onServiceStateChanged} when the roaming state changes.
+ */
+public final class CellBroadcastEtwsFastPath {
+    private static final String TAG = "CBEtwsFastPath";
+
+    /** ETWS warning types classified by {@link #arm}. */
+    private static final int[] ARMED_WARNING_TYPES = {
+            SmsCbEtwsInfo.ETWS_WARNING_TYPE_EARTHQUAKE,
+            SmsCbEtwsInfo.ETWS_WARNING_TYPE_TSUNAMI,
+            SmsCbEtwsInfo.ETWS_WARNING_TYPE_EARTHQUAKE_AND_TSUNAMI,
+            SmsCbEtwsInfo.ETWS_WARNING_TYPE_TEST_MESSAGE,
+            SmsCbEtwsInfo.ETWS_WARNING_TYPE_OTHER_EMERGENCY,
+    };
+
+    private static final Object sLock = new Object();
+
+    /** Current snapshot, null until built. Guarded by sLock. */
+    private static CellBroadcastEtwsFastPath sInstance;
+
+    // Time taken to decide on a notification and start its alert, in microseconds.
+    private static final AtomicLong sDispatchCount = new AtomicLong();
+    private static final AtomicLong sTotalDispatchMicros = new AtomicLong();
+    private static final AtomicLong sMaxDispatchMicros = new AtomicLong();
+
+    /** User in the foreground, followed from the user switches once armed. */
+    private static volatile int sCurrentUserId = UserHandle.USER_NULL;
+
+    /**
+     * Voice registration state and roaming type of each subscription, as last classified.
+     * Guarded by sLock.
+     */
+    private static final SparseIntArray sServiceStates = new SparseIntArray();
+
+    /** True once the user switches are followed. Guarded by sLock. */
+    private static boolean sUserSwitchReceiverRegistered;
+
+    private final boolean mEnabled;
+    private final boolean mCompareBody;
+
+    /** True once {@link #arm} prepared the snapshot. */
+    private volatile boolean mArmed;
+
+    /** Duplicate detection journal loaded by {@link #arm}, null if the journal is turned off. */
+    private volatile CellBroadcastDuplicateJournal mJournal;
+
+    /**
+     * Classifications keyed by {@link #getKey}, replaced as a whole when classified again.
+     * Guarded by itself.
+     */
+    private volatile LongSparseArray<CellBroadcastMessageClassification> mClassifications =
+            new LongSparseArray<>();
+
+    private CellBroadcastEtwsFastPath(Resources res) {
+        // The alert is shown before it is stored, so only if emergency alerts may be.
+        mEnabled = res.getBoolean(R.bool.enable_etws_primary_fast_path)
+                && res.getBoolean(R.bool.display_before_persist_emergency_alerts);
+        mCompareBody = res.getBoolean(R.bool.duplicate_compare_body);
+    }
+
+    /**
+     * @param message Cell broadcast message
+     * @return True if the message is an ETWS primary notification
+     */
+    public static boolean isEtwsPrimary(SmsCbMessage message) {
+        SmsCbEtwsInfo etwsInfo = message.getEtwsWarningInfo();
+        return etwsInfo != null && etwsInfo.isPrimary();
+    }
+
+    /**
+     * Get the current snapshot, building it if needed.
+     *
+     * @param context Application context
+     * @return The snapshot
+     */
+    public static CellBroadcastEtwsFastPath get(Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new CellBroadcastEtwsFastPath(
+                        CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(context));
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Build the snapshot and classify the ETWS primary notifications of the configured channels
+     * ahead of time, load the duplicate detection journal, read the duplicate expiration times
+     * and the current user, and prepare the alert tones.
+     *
+     * @param context Application context
+     */
+    public static void arm(Context context) {
+        CellBroadcastEtwsFastPath fastPath = get(context);
+        if (!fastPath.mEnabled) {
+            return;
+        }
+
+        fastPath.mClassifications = fastPath.classifyArmedNotifications(context);
+        for (int subId : SubscriptionManager.from(context).getActiveSubscriptionIdList()) {
+            CellBroadcastAlertService.updateDuplicateExpirationTime(context, subId);
+        }
+        fastPath.mJournal = CellBroadcastAlertService.loadDuplicateJournal(context);
+        followCurrentUser(context);
+        CellBroadcastAlertAudio.prepareEtwsTones(context,
+                CellBroadcastAlertPreferences.get(context).isUseFullVolumeEnabled());
+        fastPath.mArmed = true;
+        Log.d(TAG, "Armed " + fastPath.mClassifications.size() + " ETWS primary notifications");
+    }
+
+    /** Read the user in the foreground, and follow the user switches from then on. */
+    private static void followCurrentUser(Context context) {
+        synchronized (sLock) {
+            if (!sUserSwitchReceiverRegistered) {
+                context.registerReceiver(new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        sCurrentUserId = intent.getIntExtra(Intent.EXTRA_USER_HANDLE,
+                                UserHandle.USER_NULL);
+                    }
+                }, new IntentFilter(Intent.ACTION_USER_SWITCHED));
+                sUserSwitchReceiverRegistered = true;
+            }
+        }
+        sCurrentUserId = ActivityManager.getCurrentUser();
+    }
+
+    /** Drop the snapshot, it is built again from the current configuration when needed. */
+    public static void invalidate() {
+        synchronized (sLock) {
+            sInstance = null;
+        }
+        CellBroadcastAlertAudio.releasePreparedTones();
+    }
+
+    /**
+     * Classify the ETWS primary notifications of the snapshot again in the background if the
+     * voice registration state or roaming type of a subscription changed, as the roaming state
+     * decides which channel ranges are in scope. The classifications are replaced once all are
+     * built, notifications arriving meanwhile use the previous ones.
+     *
+     * @param context Application context
+     * @param subId Subscription whose service state changed
+     * @param serviceState The new service state
+     */
+    public static void onServiceStateChanged(Context context, int subId,
+            ServiceState serviceState) {
+        int state = (serviceState.getState() << 16) | serviceState.getVoiceRoamingType();
+        CellBroadcastEtwsFastPath fastPath;
+        synchronized (sLock) {
+            if (sServiceStates.get(subId, -1) == state) {
+                // Only the signal, cell or data registration changed.
+                return;
+            }
+            sServiceStates.put(subId, state);
+            fastPath = sInstance;
+        }
+        if (fastPath == null || !fastPath.mArmed) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        CellBroadcastOperationExecutor.getInstance().execute(
+                CellBroadcastOperationExecutor.LANE_HOUSEKEEPING,
+                () -> fastPath.mClassifications = fastPath.classifyArmedNotifications(appContext));
+    }
+
+    /**
+     * Classify the ETWS primary notifications of the configured channels for every active
+     * subscription.
+     *
+     * @return The classifications keyed by {@link #getKey}
+     */
+    private LongSparseArray<CellBroadcastMessageClassification> classifyArmedNotifications(
+            Context context) {
+        int[] subIds = SubscriptionManager.from(context).getActiveSubscriptionIdList();
+        LongSparseArray<CellBroadcastMessageClassification> classifications =
+                new LongSparseArray<>();
+        for (CellBroadcastChannelRange range : CellBroadcastChannelManager.getInstance()
+                .getCellBroadcastChannelRanges(context, R.array.etws_alerts_range_strings)) {
+            for (int channel = range.mStartId; channel <= range.mEndId; channel++) {
+                for (int warningType : ARMED_WARNING_TYPES) {
+                    for (int subId : subIds) {
+                        classifications.put(getKey(subId, channel, warningType),
+                                CellBroadcastMessageClassification.classify(context,
+                                        createPrimaryNotification(subId, channel, warningType)));
+                    }
+                }
+            }
+        }
+        return classifications;
+    }
+
+    /** @return True if ETWS primary notifications are shown from the snapshot */
+    public boolean isArmed() {
+        return mEnabled && mArmed;
+    }
+
+    /** @return The duplicate detection journal, or null if the journal is turned off */
+    public CellBroadcastDuplicateJournal getDuplicateJournal() {
+        return mJournal;
+    }
+
+    /** @return True if alerts are displayed to the user of this process */
+    public boolean isCurrentUser() {
+        return UserHandle.myUserId() == sCurrentUserId;
+    }
+
+    /** @return True if the message body is part of the duplicate detection */
+    public boolean shouldCompareBody() {
+        return mCompareBody;
+    }
+
+    /**
+     * Get the classification of an ETWS primary notification, classifying it only the first time
+     * its subscription, channel and warning type are seen in the current service state.
+     *
+     * @param context Application context
+     * @param message ETWS primary notification
+     * @return The classification
+     */
+    public CellBroadcastMessageClassification getClassification(Context context,
+            CellBroadcastMessage message) {
+        long key = getKey(message.getSubId(), message.getServiceCategory(),
+                message.getEtwsWarningInfo().getWarningType());
+        LongSparseArray<CellBroadcastMessageClassification> classifications = mClassifications;
+        synchronized (classifications) {
+            CellBroadcastMessageClassification classification = classifications.get(key);
+            if (classification != null) {
+                return classification;
+            }
+        }
+        CellBroadcastMessageClassification classification =
+                CellBroadcastMessageClassification.classify(context, message);
+        synchronized (classifications) {
+            classifications.put(key, classification);
+        }
+        return classification;
+    }
+
+    /**
+     * Record the time it took to decide on an ETWS primary notification and start its alert.
+     *
+     * @param micros Time from handling the broadcast to starting the alert
+     */
+    public static void recordDispatchLatency(long micros) {
+        sDispatchCount.incrementAndGet();
+        sTotalDispatchMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = sMaxDispatchMicros.get())
+                && !sMaxDispatchMicros.compareAndSet(max, micros)) {
+            // Retry until the maximum is updated or another thread set a larger one.
+        }
+        Log.i(TAG, "ETWS primary alert dispatched in " + micros + "us, average "
+                + getAverageDispatchMicros() + "us, max " + sMaxDispatchMicros.get() + "us over "
+                + sDispatchCount.get() + " notifications");
+    }
+
+    /** @return The average time taken to start the alert, in microseconds */
+    public static long getAverageDispatchMicros() {
+        long count = sDispatchCount.get();
+        return count == 0 ? 0 : sTotalDispatchMicros.get() / count;
+    }
+
+    private static long getKey(int subId, int serviceCategory, int warningType) {
+        return ((long) subId << 32) | ((serviceCategory & 0xffff) << 16) | (warningType & 0xffff);
+    }
+
+    private static CellBroadcastMessage createPrimaryNotification(int subId, int channel,
+            int warningType) {
+        CellBroadcastMessage message = new CellBroadcastMessage(new SmsCbMessage(
+                SmsCbMessage.MESSAGE_FORMAT_3GPP,
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_CELL_WIDE_IMMEDIATE, 0, new SmsCbLocation(),
+                channel, null, null, SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY,
+                new SmsCbEtwsInfo(warningType, true, true, true, null), null));
+        message.setSubId(subId);
+        return message;
+    }
+}
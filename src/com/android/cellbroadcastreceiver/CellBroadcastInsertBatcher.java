@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.telephony.CellBroadcastMessage;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Collects the broadcasts to store for a short window, so a storm of broadcasts is written in
+ * few transactions with one change notification each, instead of one of each per broadcast.
+ *
+ * A broadcast received while no other was received within the window is written right away, so
+ * a lone broadcast is never delayed. The following ones start a batch, written once the window
+ * has passed since its first broadcast or once it holds the maximum number of broadcasts. An
+ * emergency alert is always written right away on its own, ahead of the batch collected so far.
+ */
+public class CellBroadcastInsertBatcher {
+    private static final String TAG = "CBInsertBatcher";
+
+    /** Writes a batch of broadcasts. */
+    interface BatchWriter {
+        /**
+         * Store the broadcasts in one transaction in the background, then call onStored.
+         *
+         * @param lane Lane of {@link CellBroadcastOperationExecutor} to write in
+         * @param messages The broadcasts to store
+         * @param titleKeys Title keys parallel to messages, null for the broadcasts to classify
+         * @param onStored Called on the background thread with the time taken by the
+         *                 transaction in microseconds, once the broadcasts are stored
+         */
+        void write(int lane, List<CellBroadcastMessage> messages, List<String> titleKeys,
+                LongConsumer onStored);
+    }
+
+    private static CellBroadcastInsertBatcher sInstance;
+
+    private final Handler mHandler;
+    private final long mWindowMillis;
+    private final int mMaxBatchSize;
+    private final BatchWriter mWriter;
+
+    private final Object mLock = new Object();
+
+    // Guarded by mLock.
+    private ArrayList<CellBroadcastMessage> mPending = new ArrayList<>();
+    private ArrayList<String> mPendingTitleKeys = new ArrayList<>();
+    private ArrayList<Runnable> mPendingCallbacks = new ArrayList<>();
+    /** Elapsed realtime until which a broadcast is part of the current burst. */
+    private long mBurstEndMillis;
+
+    // Metrics, guarded by mLock.
+    private long mBatchCount;
+    private long mMessageCount;
+    private int mMaxBatchSizeSeen;
+    private long mTotalCommitMicros;
+    private long mMaxCommitMicros;
+
+    private final Runnable mFlushRunnable =
+            () -> flush(CellBroadcastOperationExecutor.LANE_NORMAL);
+
+    @VisibleForTesting
+    CellBroadcastInsertBatcher(Looper looper, long windowMillis, int maxBatchSize,
+            BatchWriter writer) {
+        mHandler = new Handler(looper);
+        mWindowMillis = windowMillis;
+        mMaxBatchSize = maxBatchSize;
+        mWriter = writer;
+    }
+
+    /**
+     * Get the batcher shared by the app, writing to this app's provider.
+     *
+     * @param context Context
+     * @return The batcher
+     */
+    public static synchronized CellBroadcastInsertBatcher getInstance(Context context) {
+        if (sInstance == null) {
+            Resources res = CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(context);
+            sInstance = new CellBroadcastInsertBatcher(Looper.getMainLooper(),
+                    res.getInteger(R.integer.broadcast_insert_batch_window_ms),
+                    res.getInteger(R.integer.broadcast_insert_batch_max_size),
+                    new ProviderWriter(context.getApplicationContext().getContentResolver()));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Add a broadcast to store.
+     *
+     * @param message The broadcast to store
+     * @param titleKey The title key of the broadcast, or null to classify it when it is stored
+     * @param flushNow True to store it on its own in the emergency lane right away
+     * @param onStored Run on the background thread once the broadcast is stored, may be null
+     */
+    public void insert(CellBroadcastMessage message, String titleKey, boolean flushNow,
+            Runnable onStored) {
+        if (flushNow) {
+            List<Runnable> callbacks = onStored == null
+                    ? Collections.<Runnable>emptyList() : Collections.singletonList(onStored);
+            write(CellBroadcastOperationExecutor.LANE_EMERGENCY,
+                    Collections.singletonList(message), Collections.singletonList(titleKey),
+                    callbacks);
+            return;
+        }
+        synchronized (mLock) {
+            long nowMillis = SystemClock.elapsedRealtime();
+            boolean inBurst = nowMillis < mBurstEndMillis;
+            mBurstEndMillis = nowMillis + mWindowMillis;
+            mPending.add(message);
+            mPendingTitleKeys.add(titleKey);
+            if (onStored != null) {
+                mPendingCallbacks.add(onStored);
+            }
+            if ((inBurst || mPending.size() > 1) && mPending.size() < mMaxBatchSize) {
+                if (mPending.size() == 1) {
+                    mHandler.postDelayed(mFlushRunnable, mWindowMillis);
+                }
+                return;
+            }
+        }
+        flush(CellBroadcastOperationExecutor.LANE_NORMAL);
+    }
+
+    /**
+     * Write the broadcasts collected so far.
+     *
+     * @param lane Lane of {@link CellBroadcastOperationExecutor} to write in
+     */
+    public void flush(int lane) {
+        ArrayList<CellBroadcastMessage> messages;
+        ArrayList<String> titleKeys;
+        ArrayList<Runnable> callbacks;
+        synchronized (mLock) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            if (mPending.isEmpty()) {
+                return;
+            }
+            messages = mPending;
+            titleKeys = mPendingTitleKeys;
+            callbacks = mPendingCallbacks;
+            mPending = new ArrayList<>();
+            mPendingTitleKeys = new ArrayList<>();
+            mPendingCallbacks = new ArrayList<>();
+        }
+        write(lane, messages, titleKeys, callbacks);
+    }
+
+    private void write(int lane, List<CellBroadcastMessage> messages, List<String> titleKeys,
+            List<Runnable> callbacks) {
+        mWriter.write(lane, messages, titleKeys, commitMicros -> {
+            recordBatch(messages.size(), commitMicros);
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        });
+    }
+
+    private void recordBatch(int size, long commitMicros) {
+        synchronized (mLock) {
+            mBatchCount++;
+            mMessageCount += size;
+            mMaxBatchSizeSeen = Math.max(mMaxBatchSizeSeen, size);
+            mTotalCommitMicros += commitMicros;
+            mMaxCommitMicros = Math.max(mMaxCommitMicros, commitMicros);
+        }
+        Log.d(TAG, "Stored " + size + " broadcasts in " + commitMicros + "us, " + this);
+    }
+
+    /** @return The number of batches written */
+    public long getBatchCount() {
+        synchronized (mLock) {
+            return mBatchCount;
+        }
+    }
+
+    /** @return The largest number of broadcasts written in one batch */
+    public int getMaxBatchSize() {
+        synchronized (mLock) {
+            return mMaxBatchSizeSeen;
+        }
+    }
+
+    /** @return The average time taken by the transaction of a batch, in microseconds */
+    public long getAverageCommitMicros() {
+        synchronized (mLock) {
+            return mBatchCount == 0 ? 0 : mTotalCommitMicros / mBatchCount;
+        }
+    }
+
+    /** Writes to this app's provider, in one transaction per batch. */
+    private static final class ProviderWriter implements BatchWriter {
+        private final ContentResolver mResolver;
+
+        ProviderWriter(ContentResolver resolver) {
+            mResolver = resolver;
+        }
+
+        @Override
+        public void write(int lane, List<CellBroadcastMessage> messages, List<String> titleKeys,
+                LongConsumer onStored) {
+            new CellBroadcastContentProvider.AsyncCellBroadcastTask(mResolver, lane)
+                    .execute(provider -> {
+                        long startNanos = SystemClock.elapsedRealtimeNanos();
+                        boolean changed = provider.insertNewBroadcasts(messages, titleKeys);
+                        onStored.accept((SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
+                        return changed;
+                    });
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "CellBroadcastInsertBatcher{batches=" + mBatchCount + " averageSize="
+                    + (mBatchCount == 0 ? 0 : mMessageCount / mBatchCount) + " maxSize="
+                    + mMaxBatchSizeSeen + " averageCommit=" + getAverageCommitMicros()
+                    + "us maxCommit=" + mMaxCommitMicros + "us}";
+        }
+    }
+}
@@ -23,14 +23,19 @@ import android.app.FragmentManager;
 import android.app.ListFragment;
 import android.app.LoaderManager;
 import android.app.NotificationManager;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
 import android.content.Loader;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.provider.Telephony;
 import android.telephony.CellBroadcastMessage;
 import android.view.ContextMenu;
@@ -42,11 +47,13 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnCreateContextMenuListener;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
+import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.ListView;
+import android.widget.SearchView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.function.Consumer;
 
 /**
  * This activity provides a list view of received cell broadcasts. Most of the work is handled
@@ -94,17 +101,68 @@ public class CellBroadcastListActivity extends Activity {
      * List fragment queries SQLite database on worker thread.
      */
     public static class CursorLoaderListFragment extends ListFragment
-            implements LoaderManager.LoaderCallbacks<Cursor> {
+            implements LoaderManager.LoaderCallbacks<Cursor>,
+            CellBroadcastPagedListAdapter.PageLoader {
+
+        // IDs of the loaders.
+        private static final int LOADER_FIRST_PAGE         = 0;
+        private static final int LOADER_NEXT_PAGE          = 1;
+        private static final int LOADER_SEARCH             = 2;
+        private static final int LOADER_STATS              = 3;
+
+        // Arguments of the next page and search loaders.
+        private static final String ARG_BEFORE_DATE        = "before_date";
+        private static final String ARG_BEFORE_ID          = "before_id";
+        private static final String ARG_QUERY              = "query";
+
+        // Maximum number of search results shown.
+        private static final int SEARCH_LIMIT              = 100;
 
         // IDs of the main menu items.
         private static final int MENU_DELETE_ALL           = 3;
+        private static final int MENU_MARK_ALL_READ        = 4;
+        private static final int MENU_SEARCH               = 5;
 
         // IDs of the context menu items (package local, accessed from inner DeleteThreadListener).
         static final int MENU_DELETE               = 0;
         static final int MENU_VIEW_DETAILS         = 1;
 
         // This is the Adapter being used to display the list's data.
-        CursorAdapter mAdapter;
+        CellBroadcastPagedListAdapter mAdapter;
+
+        // Number of broadcasts requested by the first page loader.
+        private int mFirstPageLimit;
+
+        // Handler to show the broadcasts read in the background.
+        private final Handler mHandler = new Handler();
+
+        // Applies the changes to single broadcasts to the list. The list loaders only reload
+        // when many broadcasts changed at once.
+        private final ContentObserver mChangeObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                String change = uri == null ? null
+                        : uri.getQueryParameter(CellBroadcastContentProvider.CHANGE_PARAMETER);
+                if (change == null || mAdapter == null) {
+                    return;
+                }
+                if (CellBroadcastContentProvider.CHANGE_INSERT.equals(change)
+                        && !mSearchQuery.isEmpty()) {
+                    // The new broadcast may match, search again.
+                    getLoaderManager().restartLoader(LOADER_SEARCH,
+                            getSearchArgs(mSearchQuery), CursorLoaderListFragment.this);
+                    return;
+                }
+                loadChange(ContentUris.parseId(uri));
+            }
+        };
+
+        // Words searched, empty when the whole history is shown.
+        private String mSearchQuery = "";
+
+        // Number of broadcasts and unread broadcasts in the history, from the statistics.
+        private long mTotalCount;
+        private long mUnreadCount;
 
         @Override
         public void onCreate(Bundle savedInstanceState) {
@@ -112,6 +170,16 @@ public class CellBroadcastListActivity extends Activity {
 
             // We have a menu item to show in action bar.
             setHasOptionsMenu(true);
+
+            if (savedInstanceState != null) {
+                mSearchQuery = savedInstanceState.getString(ARG_QUERY, "");
+            }
+        }
+
+        @Override
+        public void onSaveInstanceState(Bundle outState) {
+            super.onSaveInstanceState(outState);
+            outState.putString(ARG_QUERY, mSearchQuery);
         }
 
         @Override
@@ -128,44 +196,217 @@ public class CellBroadcastListActivity extends Activity {
             ListView listView = getListView();
             listView.setOnCreateContextMenuListener(mOnCreateContextMenuListener);
 
-            // Create a cursor adapter to display the loaded data.
-            mAdapter = new CellBroadcastCursorAdapter(getActivity(), null);
+            // Create an adapter to display the loaded pages.
+            mAdapter = new CellBroadcastPagedListAdapter(getActivity(), this);
             setListAdapter(mAdapter);
 
             // Prepare the loader.  Either re-connect with an existing one,
             // or start a new one.
-            getLoaderManager().initLoader(0, null, this);
+            if (mSearchQuery.isEmpty()) {
+                getLoaderManager().initLoader(LOADER_FIRST_PAGE, null, this);
+            } else {
+                getLoaderManager().initLoader(LOADER_SEARCH, getSearchArgs(mSearchQuery), this);
+            }
+            getLoaderManager().initLoader(LOADER_STATS, null, this);
+
+            getActivity().getContentResolver().registerContentObserver(
+                    CellBroadcastContentProvider.CONTENT_URI, true, mChangeObserver);
+        }
+
+        @Override
+        public void onDestroyView() {
+            getActivity().getContentResolver().unregisterContentObserver(mChangeObserver);
+            super.onDestroyView();
         }
 
         @Override
         public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+            SearchView searchView = new SearchView(getActivity());
+            searchView.setQueryHint(getString(R.string.search_hint));
+            MenuItem searchItem = menu.add(0, MENU_SEARCH, 0, R.string.menu_search)
+                    .setIcon(android.R.drawable.ic_menu_search)
+                    .setActionView(searchView);
+            searchItem.setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM
+                    | MenuItem.SHOW_AS_ACTION_COLLAPSE_ACTION_VIEW);
+            if (!mSearchQuery.isEmpty()) {
+                searchItem.expandActionView();
+                searchView.setQuery(mSearchQuery, false);
+            }
+            // Search as the user types. Collapsing the search box clears the query.
+            searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+                @Override
+                public boolean onQueryTextSubmit(String query) {
+                    search(query);
+                    return true;
+                }
+
+                @Override
+                public boolean onQueryTextChange(String newText) {
+                    search(newText);
+                    return true;
+                }
+            });
+
             menu.add(0, MENU_DELETE_ALL, 0, R.string.menu_delete_all).setIcon(
                     android.R.drawable.ic_menu_delete);
+            menu.add(0, MENU_MARK_ALL_READ, 0, R.string.menu_mark_all_read);
+        }
+
+        /**
+         * Show the broadcasts matching the query, or the whole history if the query is empty.
+         * @param query the words typed in the search box
+         */
+        private void search(String query) {
+            query = query.trim();
+            if (query.equals(mSearchQuery)) {
+                return;
+            }
+            mSearchQuery = query;
+            LoaderManager loaderManager = getLoaderManager();
+            if (query.isEmpty()) {
+                loaderManager.destroyLoader(LOADER_SEARCH);
+                loaderManager.restartLoader(LOADER_FIRST_PAGE, null, this);
+            } else {
+                // Stop paging the history, its loaders would replace the results on changes.
+                loaderManager.destroyLoader(LOADER_FIRST_PAGE);
+                loaderManager.destroyLoader(LOADER_NEXT_PAGE);
+                loaderManager.restartLoader(LOADER_SEARCH, getSearchArgs(query), this);
+            }
+        }
+
+        private static Bundle getSearchArgs(String query) {
+            Bundle args = new Bundle();
+            args.putString(ARG_QUERY, query);
+            return args;
         }
 
         @Override
         public void onPrepareOptionsMenu(Menu menu) {
-            menu.findItem(MENU_DELETE_ALL).setVisible(!mAdapter.isEmpty());
+            menu.findItem(MENU_DELETE_ALL).setVisible(mTotalCount > 0);
+            menu.findItem(MENU_MARK_ALL_READ).setVisible(mUnreadCount > 0);
         }
 
         @Override
         public void onListItemClick(ListView l, View v, int position, long id) {
-            CellBroadcastListItem cbli = (CellBroadcastListItem) v;
-            showDialogAndMarkRead(cbli.getMessage());
+            // The item ID is the row ID of the broadcast.
+            loadMessage(id, this::showDialogAndMarkRead);
+        }
+
+        /**
+         * Read the full broadcast in the background, as the list only holds its summary.
+         * @param rowId the row ID of the broadcast
+         * @param onLoaded called on the main thread with the broadcast, unless it was deleted or
+         *                 the fragment was detached meanwhile
+         */
+        private void loadMessage(long rowId, Consumer<CellBroadcastMessage> onLoaded) {
+            final ContentResolver resolver = getActivity().getContentResolver();
+            CellBroadcastOperationExecutor.getReaderInstance().execute(
+                    CellBroadcastOperationExecutor.LANE_NORMAL, () -> {
+                        CellBroadcastMessage message = null;
+                        try (Cursor cursor = resolver.query(ContentUris.withAppendedId(
+                                CellBroadcastContentProvider.CONTENT_URI, rowId),
+                                Telephony.CellBroadcasts.QUERY_COLUMNS, null, null, null)) {
+                            if (cursor != null && cursor.moveToFirst()) {
+                                message = CellBroadcastMessage.createFromCursor(cursor);
+                            }
+                        }
+                        final CellBroadcastMessage loaded = message;
+                        mHandler.post(() -> {
+                            if (loaded != null && isAdded()) {
+                                onLoaded.accept(loaded);
+                            }
+                        });
+                    });
+        }
+
+        /**
+         * Read the summary of a changed broadcast in the background, then apply the change to
+         * the list. Changes are read in the order they were notified, as they all run in the
+         * same lane of the reader.
+         * @param rowId the row ID of the broadcast
+         */
+        private void loadChange(long rowId) {
+            final ContentResolver resolver = getActivity().getContentResolver();
+            CellBroadcastOperationExecutor.getReaderInstance().execute(
+                    CellBroadcastOperationExecutor.LANE_NORMAL, () -> {
+                        Cursor cursor = resolver.query(ContentUris.withAppendedId(
+                                CellBroadcastContentProvider.CONTENT_URI, rowId),
+                                CellBroadcastContentProvider.SUMMARY_COLUMNS, null, null, null);
+                        if (cursor != null) {
+                            // Fill the cursor window here rather than on the main thread.
+                            cursor.getCount();
+                        }
+                        mHandler.post(() -> {
+                            try {
+                                if (cursor != null && isAdded()) {
+                                    mAdapter.applyChange(rowId, cursor);
+                                }
+                            } finally {
+                                if (cursor != null) {
+                                    cursor.close();
+                                }
+                            }
+                        });
+                    });
+        }
+
+        @Override
+        public void loadPage(long beforeDate, long beforeId) {
+            Bundle args = new Bundle();
+            args.putLong(ARG_BEFORE_DATE, beforeDate);
+            args.putLong(ARG_BEFORE_ID, beforeId);
+            getLoaderManager().restartLoader(LOADER_NEXT_PAGE, args, this);
         }
 
         @Override
         public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-            return new CursorLoader(getActivity(), CellBroadcastContentProvider.CONTENT_URI,
-                    Telephony.CellBroadcasts.QUERY_COLUMNS, null, null,
-                    Telephony.CellBroadcasts.DELIVERY_TIME + " DESC");
+            Uri uri;
+            if (id == LOADER_STATS) {
+                return new CursorLoader(getActivity(), CellBroadcastContentProvider.STATS_URI,
+                        new String[]{"SUM(" + CellBroadcastDatabaseHelper.STATS_TOTAL + ")",
+                                "SUM(" + CellBroadcastDatabaseHelper.STATS_UNREAD + ")"},
+                        null, null, null);
+            } else if (id == LOADER_SEARCH) {
+                return new CursorLoader(getActivity(), CellBroadcastContentProvider.getSearchUri(
+                        args.getString(ARG_QUERY), SEARCH_LIMIT), null, null, null, null);
+            } else if (id == LOADER_NEXT_PAGE) {
+                uri = CellBroadcastContentProvider.getPageUri(
+                        CellBroadcastPagedListAdapter.PAGE_SIZE, args.getLong(ARG_BEFORE_DATE),
+                        args.getLong(ARG_BEFORE_ID));
+            } else {
+                // Reload as many broadcasts as are shown, so the list keeps its position.
+                mFirstPageLimit = Math.max(CellBroadcastPagedListAdapter.PAGE_SIZE,
+                        mAdapter.getCount());
+                uri = CellBroadcastContentProvider.getPageUri(mFirstPageLimit, 0, -1);
+            }
+            return new CursorLoader(getActivity(), uri,
+                    CellBroadcastContentProvider.SUMMARY_COLUMNS, null, null, null);
         }
 
         @Override
         public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-            // Swap the new cursor in.  (The framework will take care of closing the
-            // old cursor once we return.)
-            mAdapter.swapCursor(data);
+            // Copy the broadcasts out of the cursor. (The framework will take care of closing
+            // it once we return.)
+            if (loader.getId() == LOADER_STATS) {
+                if (data != null && data.moveToFirst()) {
+                    mTotalCount = data.getLong(0);
+                    mUnreadCount = data.getLong(1);
+                }
+            } else if (loader.getId() == LOADER_SEARCH) {
+                mAdapter.swapSearchResults(data);
+            } else if (loader.getId() == LOADER_NEXT_PAGE) {
+                Uri uri = ((CursorLoader) loader).getUri();
+                mAdapter.appendPage(Long.parseLong(uri.getQueryParameter(
+                        CellBroadcastContentProvider.PAGE_BEFORE_DATE_PARAMETER)),
+                        Long.parseLong(uri.getQueryParameter(
+                                CellBroadcastContentProvider.PAGE_BEFORE_ID_PARAMETER)), data);
+            } else if (mAdapter.getCount() > mFirstPageLimit) {
+                // The database changed after more pages were loaded, reload all of them.
+                getLoaderManager().restartLoader(LOADER_FIRST_PAGE, null, this);
+                return;
+            } else {
+                mAdapter.swapFirstPage(data, mFirstPageLimit);
+            }
             getActivity().invalidateOptionsMenu();
             updateNoAlertTextVisibility();
         }
@@ -173,9 +414,7 @@ public class CellBroadcastListActivity extends Activity {
         @Override
         public void onLoaderReset(Loader<Cursor> loader) {
             // This is called when the last Cursor provided to onLoadFinished()
-            // above is about to be closed.  We need to make sure we are no
-            // longer using it.
-            mAdapter.swapCursor(null);
+            // above is about to be closed. The adapter keeps its own copy of the broadcasts.
         }
 
         private void showDialogAndMarkRead(CellBroadcastMessage cbm) {
@@ -220,21 +459,21 @@ public class CellBroadcastListActivity extends Activity {
          * @return {@code true} if the alert history database has any item
          */
         private boolean hasAlertsInHistory() {
-            return mAdapter.getCursor().getCount() > 0;
+            return mTotalCount > 0;
         }
 
         @Override
         public boolean onContextItemSelected(MenuItem item) {
-            Cursor cursor = mAdapter.getCursor();
-            if (cursor != null && cursor.getPosition() >= 0) {
+            AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
+            if (info != null && info.position < mAdapter.getCount()) {
                 switch (item.getItemId()) {
                     case MENU_DELETE:
-                        confirmDeleteThread(cursor.getLong(cursor.getColumnIndexOrThrow(
-                                Telephony.CellBroadcasts._ID)));
+                        // The item ID is the row ID of the broadcast.
+                        confirmDeleteThread(info.id);
                         break;
 
                     case MENU_VIEW_DETAILS:
-                        showBroadcastDetails(CellBroadcastMessage.createFromCursor(cursor));
+                        loadMessage(info.id, this::showBroadcastDetails);
                         break;
 
                     default:
@@ -251,12 +490,30 @@ public class CellBroadcastListActivity extends Activity {
                     confirmDeleteThread(-1);
                     break;
 
+                case MENU_MARK_ALL_READ:
+                    markAllRead();
+                    break;
+
                 default:
                     return true;
             }
             return false;
         }
 
+        /**
+         * Mark all the broadcasts as read, including the ones not loaded yet.
+         */
+        private void markAllRead() {
+            new CellBroadcastContentProvider.AsyncCellBroadcastTask(
+                    getActivity().getContentResolver()).execute(
+                    new CellBroadcastContentProvider.CellBroadcastOperation() {
+                        @Override
+                        public boolean execute(CellBroadcastContentProvider provider) {
+                            return provider.markAllBroadcastsRead();
+                        }
+                    });
+        }
+
         /**
          * Start the process of putting up a dialog to confirm deleting a broadcast.
          * @param rowId the row ID of the broadcast to delete, or -1 to delete all broadcasts
@@ -287,10 +544,14 @@ public class CellBroadcastListActivity extends Activity {
         }
 
         public class DeleteThreadListener implements OnClickListener {
-            private final long mRowId;
+            /** Row IDs of the broadcasts to delete, or null to delete all broadcasts. */
+            private final long[] mRowIds;
 
+            /**
+             * @param rowId the row ID of the broadcast to delete, or -1 to delete all broadcasts
+             */
             public DeleteThreadListener(long rowId) {
-                mRowId = rowId;
+                mRowIds = rowId == -1 ? null : new long[]{rowId};
             }
 
             @Override
@@ -301,8 +562,8 @@ public class CellBroadcastListActivity extends Activity {
                         new CellBroadcastContentProvider.CellBroadcastOperation() {
                             @Override
                             public boolean execute(CellBroadcastContentProvider provider) {
-                                if (mRowId != -1) {
-                                    return provider.deleteBroadcast(mRowId);
+                                if (mRowIds != null) {
+                                    return provider.deleteBroadcasts(mRowIds);
                                 } else {
                                     return provider.deleteAllBroadcasts();
                                 }
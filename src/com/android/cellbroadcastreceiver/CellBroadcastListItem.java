@@ -18,7 +18,6 @@ package com.android.cellbroadcastreceiver;
 
 import android.content.Context;
 import android.graphics.Typeface;
-import android.telephony.CellBroadcastMessage;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.style.StyleSpan;
@@ -32,20 +31,14 @@ import android.widget.TextView;
  */
 public class CellBroadcastListItem extends RelativeLayout {
 
-    private CellBroadcastMessage mCbMessage;
+    private CellBroadcastPagedListAdapter.Summary mSummary;
 
     private TextView mChannelView;
     private TextView mMessageView;
     private TextView mDateView;
-    private Context mContext;
 
     public CellBroadcastListItem(Context context, AttributeSet attrs) {
         super(context, attrs);
-        mContext = context;
-    }
-
-    CellBroadcastMessage getMessage() {
-        return mCbMessage;
     }
 
     @Override
@@ -59,22 +52,22 @@ public class CellBroadcastListItem extends RelativeLayout {
 
     /**
      * Only used for header binding.
-     * @param message the message contents to bind
+     * @param summary the summary of the message to bind
      */
-    public void bind(CellBroadcastMessage message) {
-        mCbMessage = message;
-        mChannelView.setText(CellBroadcastResources.getDialogTitleResource(mContext, message));
-        mDateView.setText(message.getDateString(getContext()));
-        mMessageView.setText(formatMessage(message));
+    public void bind(CellBroadcastPagedListAdapter.Summary summary) {
+        mSummary = summary;
+        mChannelView.setText(summary.mTitleResId);
+        mDateView.setText(summary.getDateString(getContext()));
+        mMessageView.setText(formatMessage(summary));
     }
 
-    private static CharSequence formatMessage(CellBroadcastMessage message) {
-        String body = message.getMessageBody();
+    private static CharSequence formatMessage(CellBroadcastPagedListAdapter.Summary summary) {
+        CharSequence body = summary.mBodyPreview;
 
         SpannableStringBuilder buf = new SpannableStringBuilder(body);
 
         // Unread messages are shown in bold
-        if (!message.isRead()) {
+        if (!summary.mRead) {
             buf.setSpan(new StyleSpan(Typeface.BOLD), 0, buf.length(),
                     Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
         }
@@ -84,7 +77,7 @@ public class CellBroadcastListItem extends RelativeLayout {
     @Override
     public boolean dispatchPopulateAccessibilityEvent(AccessibilityEvent event) {
         // Speak the date first, then channel name, then message body
-        event.getText().add(mCbMessage.getSpokenDateString(getContext()));
+        event.getText().add(mSummary.getSpokenDateString(getContext()));
         mChannelView.dispatchPopulateAccessibilityEvent(event);
         mMessageView.dispatchPopulateAccessibilityEvent(event);
         return true;
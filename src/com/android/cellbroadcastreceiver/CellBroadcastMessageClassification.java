@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.telephony.CellBroadcastMessage;
+import android.telephony.SmsCbEtwsInfo;
+
+import com.android.cellbroadcastreceiver.CellBroadcastAlertService.AlertType;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
+
+import java.util.Arrays;
+
+/**
+ * Classification of a cell broadcast message against the channel configuration: alert type,
+ * emergency level, dialog title, the preference that enables the channel, scope and vibration
+ * pattern.
+ *
+ * The classification is computed once by {@link CellBroadcastAlertService} when the message
+ * arrives and then travels with the message to the alert dialog, the notification and the alert
+ * audio, so the channel ranges are not walked again for the same message.
+ */
+public final class CellBroadcastMessageClassification implements Parcelable {
+
+    /** Intent extra for passing a single classification along with its message. */
+    static final String EXTRA_CLASSIFICATION =
+            "com.android.cellbroadcastreceiver.CLASSIFICATION";
+
+    /** Intent extra for passing classifications parallel to a message list. */
+    static final String EXTRA_CLASSIFICATION_LIST =
+            "com.android.cellbroadcastreceiver.CLASSIFICATION_LIST";
+
+    /**
+     * Range resources that decide the dialog title and the enabling preference, in priority
+     * order. Additional channels and ETWS are handled separately.
+     */
+    private static final int[] CLASSIFIED_RANGE_KEYS = new int[] {
+            R.array.emergency_alerts_channels_range_strings,
+            R.array.cmas_presidential_alerts_channels_range_strings,
+            R.array.cmas_alert_extreme_channels_range_strings,
+            R.array.cmas_alerts_severe_range_strings,
+            R.array.cmas_amber_alerts_channels_range_strings,
+            R.array.required_monthly_test_range_strings,
+            R.array.exercise_alert_range_strings,
+            R.array.operator_defined_alert_range_strings,
+            R.array.public_safety_messages_channels_range_strings,
+            R.array.state_local_test_alert_range_strings
+    };
+
+    private final AlertType mAlertType;
+    private final boolean mIsEmergency;
+    private final int mTitleResId;
+    private final int mRangeResourceKey;
+    private final String mPreferenceKey;
+    private final boolean mPreferenceDefault;
+    private final boolean mInScope;
+    private final int[] mVibrationPattern;
+    private final boolean mFilterLanguage;
+
+    private CellBroadcastMessageClassification(AlertType alertType, boolean isEmergency,
+            int titleResId, int rangeResourceKey, String preferenceKey, boolean preferenceDefault,
+            boolean inScope, int[] vibrationPattern, boolean filterLanguage) {
+        mAlertType = alertType;
+        mIsEmergency = isEmergency;
+        mTitleResId = titleResId;
+        mRangeResourceKey = rangeResourceKey;
+        mPreferenceKey = preferenceKey;
+        mPreferenceDefault = preferenceDefault;
+        mInScope = inScope;
+        mVibrationPattern = vibrationPattern;
+        mFilterLanguage = filterLanguage;
+    }
+
+    /**
+     * Classify a message against the channel ranges of the default SMS subscription.
+     *
+     * @param context Application context
+     * @param message Cell broadcast message
+     * @return The classification of the message
+     */
+    public static CellBroadcastMessageClassification classify(Context context,
+            CellBroadcastMessage message) {
+        int subId = message.getSubId();
+        int channel = message.getServiceCategory();
+
+        boolean isEmergency = CellBroadcastChannelManager.isEmergencyMessage(context, message);
+
+        // Vibration pattern and language filter come from the first in-scope range.
+        CellBroadcastChannelRange ownRange = CellBroadcastChannelManager
+                .getCellBroadcastChannelRangeFromMessage(context, message);
+        int[] vibrationPattern = ownRange != null ? ownRange.mVibrationPattern
+                : CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(context)
+                        .getIntArray(R.array.default_vibration_pattern);
+        boolean filterLanguage = ownRange != null && ownRange.mFilterLanguage;
+
+        AlertType alertType = AlertType.DEFAULT;
+        if (message.isEtwsMessage()) {
+            alertType = getEtwsAlertType(message.getEtwsWarningInfo());
+        } else {
+            CellBroadcastChannelRange range = CellBroadcastChannelManager
+                    .getFirstCellBroadcastChannelRange(context, channel);
+            if (range != null) {
+                alertType = range.mAlertType;
+            }
+        }
+
+        int rangeKey = 0;
+        String preferenceKey = null;
+        boolean preferenceDefault = true;
+        boolean inScope = true;
+
+        // The order below mirrors how the user preferences are applied to the channels.
+        if (message.isEtwsTestMessage()) {
+            preferenceKey = CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS;
+            preferenceDefault = false;
+        } else if (message.isEtwsMessage()) {
+            // Turn on/off emergency notifications is the only way to turn on/off ETWS messages.
+            preferenceKey = CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE;
+        } else {
+            CellBroadcastChannelRange additionalRange = CellBroadcastChannelManager
+                    .getCellBroadcastChannelRange(context, channel,
+                            R.array.additional_cbs_channels_strings);
+            if (additionalRange != null) {
+                rangeKey = R.array.additional_cbs_channels_strings;
+                inScope = CellBroadcastChannelManager.checkScope(context, subId,
+                        additionalRange.mScope);
+                if (additionalRange.mAlertType == AlertType.AREA) {
+                    preferenceKey = CellBroadcastSettings.KEY_ENABLE_AREA_UPDATE_INFO_ALERTS;
+                } else if (additionalRange.mAlertType == AlertType.TEST) {
+                    preferenceKey = CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS;
+                    preferenceDefault = false;
+                } else {
+                    preferenceKey = CellBroadcastSettings.KEY_ENABLE_ALERTS_MASTER_TOGGLE;
+                }
+            }
+        }
+
+        // The title ignores the additional channels unless no other range covers the channel.
+        int titleRangeKey = message.getEtwsWarningInfo() != null ? 0
+                : getTitleRangeKey(context, subId, channel);
+        if (rangeKey == 0 && preferenceKey == null && titleRangeKey != 0) {
+            rangeKey = titleRangeKey;
+            preferenceKey = getPreferenceKey(titleRangeKey);
+            preferenceDefault = getPreferenceDefault(titleRangeKey);
+        }
+
+        int titleResId = CellBroadcastResources.getDialogTitleResource(context, message,
+                titleRangeKey, isEmergency);
+
+        return new CellBroadcastMessageClassification(alertType, isEmergency, titleResId,
+                rangeKey, preferenceKey, preferenceDefault, inScope, vibrationPattern,
+                filterLanguage);
+    }
+
+    private static AlertType getEtwsAlertType(SmsCbEtwsInfo etwsInfo) {
+        if (etwsInfo == null) return AlertType.ETWS_DEFAULT;
+        switch (etwsInfo.getWarningType()) {
+            case SmsCbEtwsInfo.ETWS_WARNING_TYPE_EARTHQUAKE:
+            case SmsCbEtwsInfo.ETWS_WARNING_TYPE_EARTHQUAKE_AND_TSUNAMI:
+                return AlertType.ETWS_EARTHQUAKE;
+            case SmsCbEtwsInfo.ETWS_WARNING_TYPE_TSUNAMI:
+                return AlertType.ETWS_TSUNAMI;
+            case SmsCbEtwsInfo.ETWS_WARNING_TYPE_TEST_MESSAGE:
+                return AlertType.TEST;
+            case SmsCbEtwsInfo.ETWS_WARNING_TYPE_OTHER_EMERGENCY:
+                return AlertType.OTHER;
+            default:
+                return AlertType.ETWS_DEFAULT;
+        }
+    }
+
+    /**
+     * @return The first range resource key whose in-scope range covers the channel, or 0 if none
+     */
+    private static int getTitleRangeKey(Context context, int subId, int channel) {
+        for (int key : CLASSIFIED_RANGE_KEYS) {
+            if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId, channel, key,
+                    context)) {
+                return key;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return The preference enabling the channels of the range resource, or null if those
+     * channels are always enabled
+     */
+    private static String getPreferenceKey(int rangeKey) {
+        if (rangeKey == R.array.emergency_alerts_channels_range_strings) {
+            return CellBroadcastSettings.KEY_ENABLE_EMERGENCY_ALERTS;
+        } else if (rangeKey == R.array.cmas_presidential_alerts_channels_range_strings) {
+            return null;
+        } else if (rangeKey == R.array.cmas_alert_extreme_channels_range_strings) {
+            return CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS;
+        } else if (rangeKey == R.array.cmas_alerts_severe_range_strings) {
+            return CellBroadcastSettings.KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS;
+        } else if (rangeKey == R.array.cmas_amber_alerts_channels_range_strings) {
+            return CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS;
+        } else if (rangeKey == R.array.required_monthly_test_range_strings
+                || rangeKey == R.array.exercise_alert_range_strings
+                || rangeKey == R.array.operator_defined_alert_range_strings) {
+            return CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS;
+        } else if (rangeKey == R.array.public_safety_messages_channels_range_strings) {
+            return CellBroadcastSettings.KEY_ENABLE_PUBLIC_SAFETY_MESSAGES;
+        } else if (rangeKey == R.array.state_local_test_alert_range_strings) {
+            return CellBroadcastSettings.KEY_ENABLE_STATE_LOCAL_TEST_ALERTS;
+        }
+        return null;
+    }
+
+    private static boolean getPreferenceDefault(int rangeKey) {
+        return !(rangeKey == R.array.required_monthly_test_range_strings
+                || rangeKey == R.array.exercise_alert_range_strings
+                || rangeKey == R.array.operator_defined_alert_range_strings
+                || rangeKey == R.array.state_local_test_alert_range_strings);
+    }
+
+    /** @return The alert type used to pick the alert tone */
+    public AlertType getAlertType() {
+        return mAlertType;
+    }
+
+    /** @return True if the message should be shown as an emergency alert */
+    public boolean isEmergency() {
+        return mIsEmergency;
+    }
+
+    /** @return The string resource of the alert dialog and notification title */
+    public int getTitleResId() {
+        return mTitleResId;
+    }
+
+    /**
+     * @return The range resource key that decides whether the channel is enabled, or 0 for ETWS
+     * messages and channels not covered by any range
+     */
+    public int getRangeResourceKey() {
+        return mRangeResourceKey;
+    }
+
+    /**
+     * @return The preference key that enables the channel, or null if the channel is always
+     * enabled
+     */
+    public String getPreferenceKey() {
+        return mPreferenceKey;
+    }
+
+    /** @return The value to assume when the preference has never been set */
+    public boolean getPreferenceDefault() {
+        return mPreferenceDefault;
+    }
+
+    /** @return False if the channel is an additional channel out of its roaming scope */
+    public boolean isInScope() {
+        return mInScope;
+    }
+
+    /** @return True if the message is an area info broadcast on an additional channel */
+    public boolean isAreaInfo() {
+        return mRangeResourceKey == R.array.additional_cbs_channels_strings
+                && mAlertType == AlertType.AREA;
+    }
+
+    /**
+     * @return A copy of the vibration pattern of the alert, or null if it has none. The pattern
+     *         itself is shared with the channel range it came from.
+     */
+    public int[] getVibrationPattern() {
+        return mVibrationPattern != null ? mVibrationPattern.clone() : null;
+    }
+
+    /** @return True if the alert is only shown when its language matches the device's */
+    public boolean isFilterLanguage() {
+        return mFilterLanguage;
+    }
+
+    @Override
+    public String toString() {
+        return "Classification:[type=" + mAlertType + ",emergency=" + mIsEmergency
+                + ",pref=" + mPreferenceKey + ",inScope=" + mInScope + ",vibration="
+                + Arrays.toString(mVibrationPattern) + ",filterLanguage=" + mFilterLanguage + "]";
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeInt(mAlertType.ordinal());
+        out.writeInt(mIsEmergency ? 1 : 0);
+        out.writeInt(mTitleResId);
+        out.writeInt(mRangeResourceKey);
+        out.writeString(mPreferenceKey);
+        out.writeInt(mPreferenceDefault ? 1 : 0);
+        out.writeInt(mInScope ? 1 : 0);
+        out.writeIntArray(mVibrationPattern);
+        out.writeInt(mFilterLanguage ? 1 : 0);
+    }
+
+    public static final Parcelable.Creator<CellBroadcastMessageClassification> CREATOR =
+            new Parcelable.Creator<CellBroadcastMessageClassification>() {
+                @Override
+                public CellBroadcastMessageClassification createFromParcel(Parcel in) {
+                    return new CellBroadcastMessageClassification(
+                            AlertType.values()[in.readInt()],
+                            in.readInt() != 0,
+                            in.readInt(),
+                            in.readInt(),
+                            in.readString(),
+                            in.readInt() != 0,
+                            in.readInt() != 0,
+                            in.createIntArray(),
+                            in.readInt() != 0);
+                }
+
+                @Override
+                public CellBroadcastMessageClassification[] newArray(int size) {
+                    return new CellBroadcastMessageClassification[size];
+                }
+            };
+}
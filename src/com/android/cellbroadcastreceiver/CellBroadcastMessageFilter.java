@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.text.TextUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Case-insensitive multi-term filter for message bodies, compiled from a comma separated list of
+ * terms such as the value of the {@code persist.cellbroadcast.message_filter} property.
+ *
+ * The terms are compiled into an Aho-Corasick automaton, so a body is checked against all of them
+ * in a single pass without allocating, whatever the number of terms. The number of matches of
+ * each term is counted for instrumentation.
+ */
+public class CellBroadcastMessageFilter {
+
+    /** Returned by {@link #match} when no term matches. */
+    public static final int NO_MATCH = -1;
+
+    private static final int ROOT = 0;
+
+    private final String mSource;
+    private final String[] mTerms;
+    private final AtomicIntegerArray mMatchCounts;
+
+    // Transitions of state s are mEdgeLabels/mEdgeTargets[mEdgeStart[s]..mEdgeStart[s + 1]),
+    // sorted by label.
+    private final int[] mEdgeStart;
+    private final char[] mEdgeLabels;
+    private final int[] mEdgeTargets;
+    // Longest proper suffix of each state that is also a state.
+    private final int[] mFailure;
+    // Index of a term ending at each state or at one of its suffixes, or NO_MATCH.
+    private final int[] mOutput;
+
+    private CellBroadcastMessageFilter(String source, String[] terms, int[] edgeStart,
+            char[] edgeLabels, int[] edgeTargets, int[] failure, int[] output) {
+        mSource = source;
+        mTerms = terms;
+        mMatchCounts = new AtomicIntegerArray(terms.length);
+        mEdgeStart = edgeStart;
+        mEdgeLabels = edgeLabels;
+        mEdgeTargets = edgeTargets;
+        mFailure = failure;
+        mOutput = output;
+    }
+
+    /**
+     * Compile a filter.
+     *
+     * @param source Comma separated terms. Empty terms are ignored.
+     * @return The compiled filter
+     */
+    public static CellBroadcastMessageFilter compile(String source) {
+        if (source == null) source = "";
+        ArrayList<String> terms = new ArrayList<>();
+        for (String term : source.split(",")) {
+            if (!TextUtils.isEmpty(term)) {
+                terms.add(term);
+            }
+        }
+
+        // Build the trie over the lower case terms. Each edge is packed as (label << 32 | target)
+        // so sorting the edges of a state sorts them by label.
+        ArrayList<ArrayList<Long>> children = new ArrayList<>();
+        ArrayList<Integer> ownOutput = new ArrayList<>();
+        children.add(new ArrayList<>());
+        ownOutput.add(NO_MATCH);
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.get(i);
+            int state = ROOT;
+            for (int j = 0; j < term.length(); j++) {
+                char c = Character.toLowerCase(term.charAt(j));
+                int next = NO_MATCH;
+                for (long edge : children.get(state)) {
+                    if ((char) (edge >>> 32) == c) {
+                        next = (int) edge;
+                        break;
+                    }
+                }
+                if (next == NO_MATCH) {
+                    next = children.size();
+                    children.add(new ArrayList<>());
+                    ownOutput.add(NO_MATCH);
+                    children.get(state).add(((long) c << 32) | next);
+                }
+                state = next;
+            }
+            if (ownOutput.get(state) == NO_MATCH) {
+                ownOutput.set(state, i);
+            }
+        }
+
+        // Flatten the trie into sorted edge arrays.
+        int stateCount = children.size();
+        int[] edgeStart = new int[stateCount + 1];
+        char[] edgeLabels = new char[stateCount - 1];
+        int[] edgeTargets = new int[stateCount - 1];
+        int e = 0;
+        for (int s = 0; s < stateCount; s++) {
+            edgeStart[s] = e;
+            ArrayList<Long> edges = children.get(s);
+            Collections.sort(edges);
+            for (long edge : edges) {
+                edgeLabels[e] = (char) (edge >>> 32);
+                edgeTargets[e] = (int) edge;
+                e++;
+            }
+        }
+        edgeStart[stateCount] = e;
+
+        // Breadth-first computation of the failure and output links.
+        int[] failure = new int[stateCount];
+        int[] output = new int[stateCount];
+        output[ROOT] = NO_MATCH;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int i = edgeStart[ROOT]; i < edgeStart[ROOT + 1]; i++) {
+            int child = edgeTargets[i];
+            failure[child] = ROOT;
+            output[child] = ownOutput.get(child);
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = edgeStart[state]; i < edgeStart[state + 1]; i++) {
+                int child = edgeTargets[i];
+                char c = edgeLabels[i];
+                int f = failure[state];
+                int target;
+                while ((target = findEdge(edgeStart, edgeLabels, edgeTargets, f, c)) == NO_MATCH
+                        && f != ROOT) {
+                    f = failure[f];
+                }
+                failure[child] = target == NO_MATCH ? ROOT : target;
+                output[child] = ownOutput.get(child) != NO_MATCH
+                        ? ownOutput.get(child) : output[failure[child]];
+                queue.add(child);
+            }
+        }
+
+        return new CellBroadcastMessageFilter(source, terms.toArray(new String[0]), edgeStart,
+                edgeLabels, edgeTargets, failure, output);
+    }
+
+    /** @return The string the filter was compiled from */
+    public String getSource() {
+        return mSource;
+    }
+
+    /** @return True if the filter has no terms */
+    public boolean isEmpty() {
+        return mTerms.length == 0;
+    }
+
+    /**
+     * Find the first term contained in a message body, ignoring case.
+     *
+     * @param body The message body
+     * @return The index of the term ending first in the body, or {@link #NO_MATCH}
+     */
+    public int match(CharSequence body) {
+        if (body == null || mTerms.length == 0) return NO_MATCH;
+        int state = ROOT;
+        for (int i = 0; i < body.length(); i++) {
+            char c = Character.toLowerCase(body.charAt(i));
+            int next;
+            while ((next = findEdge(mEdgeStart, mEdgeLabels, mEdgeTargets, state, c)) == NO_MATCH
+                    && state != ROOT) {
+                state = mFailure[state];
+            }
+            state = next == NO_MATCH ? ROOT : next;
+            if (mOutput[state] != NO_MATCH) {
+                int term = mOutput[state];
+                mMatchCounts.incrementAndGet(term);
+                return term;
+            }
+        }
+        return NO_MATCH;
+    }
+
+    /** @return The term at the index returned by {@link #match} */
+    public String getTerm(int index) {
+        return mTerms[index];
+    }
+
+    /** @return How many bodies the term matched since the filter was compiled */
+    public int getMatchCount(int index) {
+        return mMatchCounts.get(index);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CellBroadcastMessageFilter{");
+        for (int i = 0; i < mTerms.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append('"').append(mTerms[i]).append("\"=").append(mMatchCounts.get(i));
+        }
+        return sb.append('}').toString();
+    }
+
+    private static int findEdge(int[] edgeStart, char[] edgeLabels, int[] edgeTargets, int state,
+            char c) {
+        int i = Arrays.binarySearch(edgeLabels, edgeStart[state], edgeStart[state + 1], c);
+        return i >= 0 ? edgeTargets[i] : NO_MATCH;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Single background thread running database operations in priority lanes: emergency alert
+ * inserts first, then other inserts, then housekeeping requested by the user such as marking
+ * alerts read or deleting them. Operations of the same lane run in submission order.
+ *
+ * A running operation is never interrupted, so an emergency insert waits at most for the
+ * operation in progress.
+ *
+ * Reads for the UI run on a separate {@link #getReaderInstance reader} with its own thread, so
+ * they never wait behind writes. The database uses write-ahead logging, so they do not block
+ * writes either.
+ */
+public class CellBroadcastOperationExecutor {
+    private static final String TAG = "CBOperationExecutor";
+
+    /** Lane for inserting emergency alerts. */
+    public static final int LANE_EMERGENCY = 0;
+    /** Lane for inserting other broadcasts. */
+    public static final int LANE_NORMAL = 1;
+    /** Lane for user housekeeping such as marking read and deleting. */
+    public static final int LANE_HOUSEKEEPING = 2;
+
+    private static final int LANE_COUNT = 3;
+
+    private static final String[] LANE_NAMES = {"emergency", "normal", "housekeeping"};
+
+    /** Operations waiting longer than this are logged. */
+    private static final long SLOW_WAIT_MS = 100;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final CellBroadcastOperationExecutor sInstance =
+            new CellBroadcastOperationExecutor();
+
+    private static final CellBroadcastOperationExecutor sReaderInstance =
+            new CellBroadcastOperationExecutor("CBReader");
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // Metrics per lane.
+    private final AtomicIntegerArray mQueueDepth = new AtomicIntegerArray(LANE_COUNT);
+    private final AtomicLongArray mCompleted = new AtomicLongArray(LANE_COUNT);
+    private final AtomicLongArray mTotalWaitMillis = new AtomicLongArray(LANE_COUNT);
+    private final AtomicLongArray mMaxWaitMillis = new AtomicLongArray(LANE_COUNT);
+
+    CellBroadcastOperationExecutor() {
+        this(TAG);
+    }
+
+    private CellBroadcastOperationExecutor(String threadName) {
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(() -> {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }, threadName);
+                    return thread;
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** @return The executor shared by the app */
+    public static CellBroadcastOperationExecutor getInstance() {
+        return sInstance;
+    }
+
+    /** @return The executor for the reads of the UI, which never writes */
+    public static CellBroadcastOperationExecutor getReaderInstance() {
+        return sReaderInstance;
+    }
+
+    /**
+     * Queue an operation.
+     *
+     * @param lane {@link #LANE_EMERGENCY}, {@link #LANE_NORMAL} or {@link #LANE_HOUSEKEEPING}
+     * @param operation The operation to run on the background thread
+     */
+    public void execute(int lane, Runnable operation) {
+        if (lane < LANE_EMERGENCY || lane > LANE_HOUSEKEEPING) {
+            throw new IllegalArgumentException("Invalid lane " + lane);
+        }
+        mQueueDepth.incrementAndGet(lane);
+        mExecutor.execute(new LaneOperation(lane, mSequence.getAndIncrement(), operation));
+    }
+
+    /** @return The number of operations waiting in the lane */
+    public int getQueueDepth(int lane) {
+        return mQueueDepth.get(lane);
+    }
+
+    /** @return The number of operations of the lane that ran */
+    public long getCompletedCount(int lane) {
+        return mCompleted.get(lane);
+    }
+
+    /** @return The average time operations of the lane waited before running */
+    public long getAverageWaitMillis(int lane) {
+        long completed = mCompleted.get(lane);
+        return completed == 0 ? 0 : mTotalWaitMillis.get(lane) / completed;
+    }
+
+    /** @return The longest time an operation of the lane waited before running */
+    public long getMaxWaitMillis(int lane) {
+        return mMaxWaitMillis.get(lane);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CellBroadcastOperationExecutor{");
+        for (int lane = 0; lane < LANE_COUNT; lane++) {
+            if (lane > 0) sb.append(", ");
+            sb.append(LANE_NAMES[lane]).append(": depth=").append(getQueueDepth(lane))
+                    .append(" completed=").append(getCompletedCount(lane))
+                    .append(" avgWait=").append(getAverageWaitMillis(lane))
+                    .append("ms maxWait=").append(getMaxWaitMillis(lane)).append("ms");
+        }
+        return sb.append('}').toString();
+    }
+
+    private final class LaneOperation implements Runnable, Comparable<LaneOperation> {
+        private final int mLane;
+        private final long mSequence;
+        private final Runnable mOperation;
+        private final long mQueuedTime = SystemClock.elapsedRealtime();
+
+        LaneOperation(int lane, long sequence, Runnable operation) {
+            mLane = lane;
+            mSequence = sequence;
+            mOperation = operation;
+        }
+
+        @Override
+        public int compareTo(LaneOperation other) {
+            if (mLane != other.mLane) {
+                return Integer.compare(mLane, other.mLane);
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+
+        @Override
+        public void run() {
+            int depth = mQueueDepth.decrementAndGet(mLane);
+            long waitMillis = SystemClock.elapsedRealtime() - mQueuedTime;
+            mTotalWaitMillis.addAndGet(mLane, waitMillis);
+            long max;
+            while (waitMillis > (max = mMaxWaitMillis.get(mLane))
+                    && !mMaxWaitMillis.compareAndSet(mLane, max, waitMillis)) {
+                // Retry until the maximum is updated or another thread set a larger one.
+            }
+            if (waitMillis >= SLOW_WAIT_MS) {
+                Log.w(TAG, LANE_NAMES[mLane] + " operation waited " + waitMillis
+                        + "ms, remaining depth=" + depth);
+            }
+            try {
+                mOperation.run();
+            } finally {
+                mCompleted.incrementAndGet(mLane);
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Typeface;
+import android.provider.Telephony;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.format.DateUtils;
+import android.text.style.StyleSpan;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The back-end data adapter for {@link CellBroadcastListActivity}. Broadcasts are loaded a page
+ * at a time from {@link CellBroadcastContentProvider#PAGE_URI}, and the next page is requested
+ * when the list gets close to the last broadcast loaded. Changes to single broadcasts are
+ * applied in place with {@link #applyChange}.
+ */
+public class CellBroadcastPagedListAdapter extends BaseAdapter {
+
+    /** Number of broadcasts loaded at a time. */
+    static final int PAGE_SIZE = 50;
+
+    /** Requests the page after the last broadcast loaded. */
+    interface PageLoader {
+        /**
+         * Load the page after the given broadcast, then pass it to {@link #appendPage}.
+         * @param beforeDate the delivery time of the last broadcast loaded
+         * @param beforeId the row ID of the last broadcast loaded
+         */
+        void loadPage(long beforeDate, long beforeId);
+    }
+
+    /**
+     * What the list shows of a broadcast, read from
+     * {@link CellBroadcastContentProvider#SUMMARY_COLUMNS}.
+     */
+    static final class Summary {
+        final long mRowId;
+        final long mDeliveryTime;
+        final boolean mRead;
+        final int mTitleResId;
+        final CharSequence mBodyPreview;
+
+        Summary(long rowId, long deliveryTime, boolean read, int titleResId,
+                CharSequence bodyPreview) {
+            mRowId = rowId;
+            mDeliveryTime = deliveryTime;
+            mRead = read;
+            mTitleResId = titleResId;
+            mBodyPreview = bodyPreview;
+        }
+
+        /** @return the delivery time formatted as shown in the list */
+        String getDateString(Context context) {
+            return DateUtils.formatDateTime(context, mDeliveryTime,
+                    DateUtils.FORMAT_NO_NOON_MIDNIGHT | DateUtils.FORMAT_SHOW_TIME
+                            | DateUtils.FORMAT_ABBREV_ALL | DateUtils.FORMAT_SHOW_DATE
+                            | DateUtils.FORMAT_CAP_AMPM);
+        }
+
+        /** @return the delivery time formatted for accessibility */
+        String getSpokenDateString(Context context) {
+            return DateUtils.formatDateTime(context, mDeliveryTime,
+                    DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_DATE);
+        }
+    }
+
+    private final Context mContext;
+    private final PageLoader mPageLoader;
+
+    /** Broadcasts loaded so far, from most recently received to least recently received. */
+    private final ArrayList<Summary> mSummaries = new ArrayList<>();
+
+    /** Title resource IDs keyed by their {@link CellBroadcastDatabaseHelper#TITLE_KEY}. */
+    private final HashMap<String, Integer> mTitleResIds = new HashMap<>();
+
+    /** Whether broadcasts older than the last one loaded may exist. */
+    private boolean mHasMore;
+
+    /** Whether the page after the last broadcast loaded was requested. */
+    private boolean mLoading;
+
+    /** Whether the broadcasts are in delivery order, false for search results. */
+    private boolean mSorted;
+
+    public CellBroadcastPagedListAdapter(Context context, PageLoader pageLoader) {
+        mContext = context;
+        mPageLoader = pageLoader;
+    }
+
+    /**
+     * Replace the broadcasts with the first ones received, e.g. after the database changed.
+     * @param cursor the first broadcasts, from {@link CellBroadcastContentProvider#PAGE_URI}
+     * @param limit the page size the cursor was requested with
+     */
+    public void swapFirstPage(Cursor cursor, int limit) {
+        mSummaries.clear();
+        mLoading = false;
+        mSorted = true;
+        mHasMore = addRows(cursor, limit);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Replace the broadcasts with search results. Search results are not paged.
+     * @param cursor the results, from {@link CellBroadcastContentProvider#SEARCH_URI}
+     */
+    public void swapSearchResults(Cursor cursor) {
+        mSummaries.clear();
+        mLoading = false;
+        mSorted = false;
+        addRows(cursor, 0);
+        mHasMore = false;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Add the page following the last broadcast loaded. The page is dropped if it does not
+     * follow the last broadcast anymore, e.g. because the first page was reloaded or the last
+     * broadcast deleted meanwhile.
+     * @param beforeDate the delivery time the page was requested after
+     * @param beforeId the row ID the page was requested after
+     * @param cursor the page, from {@link CellBroadcastContentProvider#PAGE_URI}
+     */
+    public void appendPage(long beforeDate, long beforeId, Cursor cursor) {
+        if (!mLoading) {
+            return;
+        }
+        mLoading = false;
+        int last = mSummaries.size() - 1;
+        if (last >= 0 && mSummaries.get(last).mRowId == beforeId
+                && mSummaries.get(last).mDeliveryTime == beforeDate) {
+            mHasMore = addRows(cursor, PAGE_SIZE);
+        }
+        // Otherwise the page after the new last broadcast is requested when it is shown.
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Apply a change to a single broadcast without reloading the list. A new broadcast older
+     * than the ones loaded is left for the next page, and search results only get the changes
+     * to the broadcasts they show.
+     * @param rowId the row ID of the changed broadcast
+     * @param cursor the broadcast with the {@link CellBroadcastContentProvider#SUMMARY_COLUMNS},
+     *               empty if it was deleted
+     */
+    public void applyChange(long rowId, Cursor cursor) {
+        ArrayList<Summary> changed = new ArrayList<>(1);
+        readRows(cursor, changed);
+        int position = indexOf(rowId);
+        if (changed.isEmpty()) {
+            if (position == -1) {
+                return;
+            }
+            mSummaries.remove(position);
+        } else if (position != -1) {
+            Summary summary = changed.get(0);
+            if (!mSorted) {
+                // Keep the snippet of the search result.
+                summary = new Summary(summary.mRowId, summary.mDeliveryTime, summary.mRead,
+                        summary.mTitleResId, mSummaries.get(position).mBodyPreview);
+            }
+            mSummaries.set(position, summary);
+        } else if (mSorted) {
+            Summary summary = changed.get(0);
+            position = getSortedPosition(summary);
+            if (position == mSummaries.size() && mHasMore) {
+                return;
+            }
+            mSummaries.add(position, summary);
+        } else {
+            return;
+        }
+        notifyDataSetChanged();
+    }
+
+    /** @return the position of the broadcast with the row ID, or -1 if it is not loaded */
+    private int indexOf(long rowId) {
+        for (int i = 0; i < mSummaries.size(); i++) {
+            if (mSummaries.get(i).mRowId == rowId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the position of the broadcast in the delivery order of the list */
+    private int getSortedPosition(Summary summary) {
+        int low = 0;
+        int high = mSummaries.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            Summary other = mSummaries.get(mid);
+            if (other.mDeliveryTime > summary.mDeliveryTime
+                    || (other.mDeliveryTime == summary.mDeliveryTime
+                            && other.mRowId > summary.mRowId)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** @return true if the cursor held as many broadcasts as requested */
+    private boolean addRows(Cursor cursor, int limit) {
+        return readRows(cursor, mSummaries) >= limit;
+    }
+
+    /** @return the number of broadcasts read from the cursor into the list */
+    private int readRows(Cursor cursor, ArrayList<Summary> summaries) {
+        if (cursor == null) {
+            return 0;
+        }
+        int idIndex = cursor.getColumnIndexOrThrow(Telephony.CellBroadcasts._ID);
+        int dateIndex = cursor.getColumnIndexOrThrow(Telephony.CellBroadcasts.DELIVERY_TIME);
+        int readIndex = cursor.getColumnIndexOrThrow(Telephony.CellBroadcasts.MESSAGE_READ);
+        int titleIndex = cursor.getColumnIndexOrThrow(CellBroadcastDatabaseHelper.TITLE_KEY);
+        int previewIndex = cursor.getColumnIndexOrThrow(
+                CellBroadcastDatabaseHelper.BODY_PREVIEW);
+        // Search results show the part of the body around the matches instead.
+        int snippetIndex = cursor.getColumnIndex(CellBroadcastContentProvider.SEARCH_SNIPPET);
+        cursor.moveToPosition(-1);
+        // Broadcasts not migrated since the last database upgrade have no title key or preview
+        // yet, they are shown with the generic title and an empty body until the list is
+        // reloaded. Reading the body instead would keep the page query off the summary index.
+        while (cursor.moveToNext()) {
+            CharSequence preview;
+            if (snippetIndex != -1) {
+                preview = formatSnippet(cursor.getString(snippetIndex));
+            } else if (cursor.isNull(previewIndex)) {
+                preview = "";
+            } else {
+                preview = cursor.getString(previewIndex);
+            }
+            summaries.add(new Summary(cursor.getLong(idIndex), cursor.getLong(dateIndex),
+                    cursor.getInt(readIndex) != 0, getTitleResId(cursor.getString(titleIndex)),
+                    preview));
+        }
+        return cursor.getCount();
+    }
+
+    /** @return the snippet with its matches in bold instead of between markers */
+    private static CharSequence formatSnippet(String snippet) {
+        SpannableStringBuilder buf = new SpannableStringBuilder();
+        int matchStart = -1;
+        for (int i = 0; i < snippet.length(); i++) {
+            char c = snippet.charAt(i);
+            if (c == CellBroadcastContentProvider.SNIPPET_MATCH_START) {
+                matchStart = buf.length();
+            } else if (c == CellBroadcastContentProvider.SNIPPET_MATCH_END && matchStart != -1) {
+                buf.setSpan(new StyleSpan(Typeface.BOLD), matchStart, buf.length(),
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                matchStart = -1;
+            } else {
+                buf.append(c);
+            }
+        }
+        return buf;
+    }
+
+    private int getTitleResId(String titleKey) {
+        Integer titleResId = mTitleResIds.get(titleKey);
+        if (titleResId == null) {
+            titleResId = titleKey == null ? 0 : mContext.getResources().getIdentifier(titleKey,
+                    "string", mContext.getPackageName());
+            if (titleResId == 0) {
+                titleResId = R.string.cb_other_message_identifiers;
+            }
+            mTitleResIds.put(titleKey, titleResId);
+        }
+        return titleResId;
+    }
+
+    @Override
+    public int getCount() {
+        return mSummaries.size();
+    }
+
+    @Override
+    public Summary getItem(int position) {
+        return mSummaries.get(position);
+    }
+
+    /** @return the row ID of the broadcast */
+    @Override
+    public long getItemId(int position) {
+        return mSummaries.get(position).mRowId;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (mHasMore && !mLoading && position >= mSummaries.size() - PAGE_SIZE / 2) {
+            mLoading = true;
+            Summary last = mSummaries.get(mSummaries.size() - 1);
+            mPageLoader.loadPage(last.mDeliveryTime, last.mRowId);
+        }
+
+        CellBroadcastListItem listItem = (CellBroadcastListItem) convertView;
+        if (listItem == null) {
+            listItem = (CellBroadcastListItem) LayoutInflater.from(mContext).inflate(
+                    R.layout.cell_broadcast_list_item, parent, false);
+        }
+        listItem.bind(mSummaries.get(position));
+        return listItem;
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.cellbroadcastreceiver;
 
 import android.app.ActivityManager;
+import android.app.backup.BackupManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -26,15 +27,19 @@ import android.os.Bundle;
 import android.os.UserManager;
 import android.preference.PreferenceManager;
 import android.provider.Telephony;
-import android.provider.Telephony.CellBroadcasts;
 import android.telephony.CarrierConfigManager;
 import android.telephony.ServiceState;
 import android.telephony.SubscriptionManager;
 import android.telephony.cdma.CdmaSmsCbProgramData;
+import android.util.ArrayMap;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.cdma.sms.SmsEnvelope;
 
+import java.util.Map;
+
 public class CellBroadcastReceiver extends BroadcastReceiver {
     private static final String TAG = "CellBroadcastReceiver";
     static final boolean DBG = true;
@@ -46,6 +51,9 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
     // Intent actions and extras
     public static final String CELLBROADCAST_START_CONFIG_ACTION =
             "com.android.cellbroadcastreceiver.intent.START_CONFIG";
+    /** Sent by the platform when the radio is ready, declared in the manifest. */
+    public static final String RADIO_START_CONFIG_ACTION =
+            "android.cellbroadcastreceiver.START_CONFIG";
     public static final String ACTION_MARK_AS_READ =
             "com.android.cellbroadcastreceiver.intent.action.MARK_AS_READ";
     public static final String EXTRA_DELIVERY_TIME =
@@ -63,19 +71,30 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
 
         if (ACTION_MARK_AS_READ.equals(action)) {
             final long deliveryTime = intent.getLongExtra(EXTRA_DELIVERY_TIME, -1);
-            new CellBroadcastContentProvider.AsyncCellBroadcastTask(context.getContentResolver())
-                    .execute(new CellBroadcastContentProvider.CellBroadcastOperation() {
-                        @Override
-                        public boolean execute(CellBroadcastContentProvider provider) {
-                            return provider.markBroadcastRead(CellBroadcasts.DELIVERY_TIME,
-                                    deliveryTime);
-                        }
-                    });
+            // Sent when the notification is dismissed.
+            CellBroadcastReceiverApp.setNotificationClearedTime(context);
+            CellBroadcastContentProvider.markBroadcastsReadInBackground(
+                    context.getContentResolver(), deliveryTime);
         } else if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(action)) {
+            // Carrier config can select a different set of channel range resources. It is also
+            // sent after the SIM or the radio was reset, which may have dropped the channels.
+            CellBroadcastChannelManager.invalidateCellBroadcastChannelRanges();
+            CellBroadcastChannelState.invalidate(context);
+            CellBroadcastAlertService.updateDuplicateExpirationTimeInBackground(context,
+                    intent.getIntExtra(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX,
+                            SubscriptionManager.INVALID_SUBSCRIPTION_ID));
             initializeSharedPreference(context.getApplicationContext());
             startConfigService(context.getApplicationContext());
-        } else if (CELLBROADCAST_START_CONFIG_ACTION.equals(action)
-                || SubscriptionManager.ACTION_DEFAULT_SMS_SUBSCRIPTION_CHANGED.equals(action)) {
+        } else if (SubscriptionManager.ACTION_DEFAULT_SMS_SUBSCRIPTION_CHANGED.equals(action)) {
+            CellBroadcastChannelManager.invalidateCellBroadcastChannelRanges();
+            CellBroadcastChannelState.invalidate(context);
+            startConfigService(context.getApplicationContext());
+        } else if (RADIO_START_CONFIG_ACTION.equals(action)) {
+            // Sent when the radio is ready, it may have been reset meanwhile.
+            CellBroadcastChannelState.invalidate(context);
+            startConfigService(context.getApplicationContext());
+        } else if (CELLBROADCAST_START_CONFIG_ACTION.equals(action)) {
+            // Sent after the settings were restored, only the changes need to be configured.
             startConfigService(context.getApplicationContext());
         } else if (Telephony.Sms.Intents.SMS_EMERGENCY_CB_RECEIVED_ACTION.equals(action) ||
                 Telephony.Sms.Intents.SMS_CB_RECEIVED_ACTION.equals(action)) {
@@ -103,15 +122,22 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
                 loge("ignoring unprivileged action received " + action);
             }
         } else if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+            CellBroadcastChannelManager.invalidateCellBroadcastChannelRanges();
             // rename registered notification channels on locale change
             CellBroadcastAlertService.createNotificationChannels(context);
         } else if (Intent.ACTION_SERVICE_STATE.equals(action)) {
-            if (CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(context).getBoolean(
-                    R.bool.reset_duplicate_detection_on_airplane_mode)) {
-                Bundle extras = intent.getExtras();
-                ServiceState ss = ServiceState.newFromBundle(extras);
-                if (ss.getState() == ServiceState.STATE_POWER_OFF) {
-                    CellBroadcastAlertService.resetMessageDuplicateDetection();
+            Bundle extras = intent.getExtras();
+            ServiceState ss = ServiceState.newFromBundle(extras);
+            // The roaming state decides which channel ranges are in scope.
+            CellBroadcastEtwsFastPath.onServiceStateChanged(context,
+                    intent.getIntExtra(PhoneConstants.SUBSCRIPTION_KEY,
+                            SubscriptionManager.INVALID_SUBSCRIPTION_ID), ss);
+            if (ss.getState() == ServiceState.STATE_POWER_OFF) {
+                // The radio may not keep the channels enabled across a power off.
+                CellBroadcastChannelState.invalidate(context);
+                if (CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(context)
+                        .getBoolean(R.bool.reset_duplicate_detection_on_airplane_mode)) {
+                    CellBroadcastAlertService.resetMessageDuplicateDetection(context);
                 }
             }
         } else {
@@ -169,7 +195,8 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
     }
 
     /**
-     * Handle Service Category Program Data message.
+     * Handle Service Category Program Data message. The settings changed by the whole list are
+     * written at once, then the channels are configured again and a backup is requested.
      * TODO: Send Service Category Program Results response message to sender
      *
      * @param context
@@ -177,24 +204,54 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
      */
     private void handleCdmaSmsCbProgramData(Context context,
                                             CdmaSmsCbProgramData[] programDataList) {
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Editor editor = null;
+        Map<String, Boolean> settings = getCdmaCategorySettings(programDataList);
+        for (Map.Entry<String, Boolean> setting : settings.entrySet()) {
+            boolean enable = setting.getValue();
+            if (sharedPrefs.contains(setting.getKey())
+                    && sharedPrefs.getBoolean(setting.getKey(), enable) == enable) {
+                continue;
+            }
+            if (editor == null) {
+                editor = sharedPrefs.edit();
+            }
+            editor.putBoolean(setting.getKey(), enable);
+        }
+        if (editor == null) {
+            log("SCPD changed no setting");
+            return;
+        }
+        editor.apply();
+        startConfigService(context.getApplicationContext());
+        new BackupManager(context).dataChanged();
+    }
+
+    /**
+     * @param programDataList Service Category Program Data operations, in the order received
+     * @return The value of each setting changed by the operations
+     */
+    @VisibleForTesting
+    static Map<String, Boolean> getCdmaCategorySettings(CdmaSmsCbProgramData[] programDataList) {
+        ArrayMap<String, Boolean> settings = new ArrayMap<>();
         for (CdmaSmsCbProgramData programData : programDataList) {
             switch (programData.getOperation()) {
                 case CdmaSmsCbProgramData.OPERATION_ADD_CATEGORY:
-                    tryCdmaSetCategory(context, programData.getCategory(), true);
+                    tryCdmaSetCategory(settings, programData.getCategory(), true);
                     break;
 
                 case CdmaSmsCbProgramData.OPERATION_DELETE_CATEGORY:
-                    tryCdmaSetCategory(context, programData.getCategory(), false);
+                    tryCdmaSetCategory(settings, programData.getCategory(), false);
                     break;
 
                 case CdmaSmsCbProgramData.OPERATION_CLEAR_CATEGORIES:
-                    tryCdmaSetCategory(context,
+                    tryCdmaSetCategory(settings,
                             SmsEnvelope.SERVICE_CATEGORY_CMAS_EXTREME_THREAT, false);
-                    tryCdmaSetCategory(context,
+                    tryCdmaSetCategory(settings,
                             SmsEnvelope.SERVICE_CATEGORY_CMAS_SEVERE_THREAT, false);
-                    tryCdmaSetCategory(context,
+                    tryCdmaSetCategory(settings,
                             SmsEnvelope.SERVICE_CATEGORY_CMAS_CHILD_ABDUCTION_EMERGENCY, false);
-                    tryCdmaSetCategory(context,
+                    tryCdmaSetCategory(settings,
                             SmsEnvelope.SERVICE_CATEGORY_CMAS_TEST_MESSAGE, false);
                     break;
 
@@ -202,32 +259,26 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
                     loge("Ignoring unknown SCPD operation " + programData.getOperation());
             }
         }
+        return settings;
     }
 
-    private void tryCdmaSetCategory(Context context, int category, boolean enable) {
-        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
-
+    private static void tryCdmaSetCategory(Map<String, Boolean> settings, int category,
+            boolean enable) {
         switch (category) {
             case SmsEnvelope.SERVICE_CATEGORY_CMAS_EXTREME_THREAT:
-                sharedPrefs.edit().putBoolean(
-                        CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS, enable)
-                        .apply();
+                settings.put(CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS, enable);
                 break;
 
             case SmsEnvelope.SERVICE_CATEGORY_CMAS_SEVERE_THREAT:
-                sharedPrefs.edit().putBoolean(
-                        CellBroadcastSettings.KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS, enable)
-                        .apply();
+                settings.put(CellBroadcastSettings.KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS, enable);
                 break;
 
             case SmsEnvelope.SERVICE_CATEGORY_CMAS_CHILD_ABDUCTION_EMERGENCY:
-                sharedPrefs.edit().putBoolean(
-                        CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS, enable).apply();
+                settings.put(CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS, enable);
                 break;
 
             case SmsEnvelope.SERVICE_CATEGORY_CMAS_TEST_MESSAGE:
-                sharedPrefs.edit().putBoolean(
-                        CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS, enable).apply();
+                settings.put(CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS, enable);
                 break;
 
             default:
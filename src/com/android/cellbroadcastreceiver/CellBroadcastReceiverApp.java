@@ -17,6 +17,8 @@
 package com.android.cellbroadcastreceiver;
 
 import android.app.Application;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.telephony.CellBroadcastMessage;
 
 import java.util.ArrayList;
@@ -28,6 +30,26 @@ import java.util.ArrayList;
 public class CellBroadcastReceiverApp extends Application {
     private static final String TAG = "CellBroadcastReceiverApp";
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Store the broadcasts that were shown but not stored before the process died.
+        CellBroadcastWriteBehindQueue.recover(this);
+        // Finish the migration of the broadcasts stored before the last database upgrade.
+        CellBroadcastContentProvider.migrateRowsInBackground(getContentResolver());
+        // Get ready to show ETWS primary notifications, in case the channels are not configured
+        // again before the next one arrives.
+        CellBroadcastOperationExecutor.getInstance().execute(
+                CellBroadcastOperationExecutor.LANE_HOUSEKEEPING,
+                () -> CellBroadcastEtwsFastPath.arm(this));
+        CellBroadcastRetentionJobService.schedule(this);
+    }
+
+    /** Preferences holding the state of the notification, kept out of the backup. */
+    private static final String NOTIFICATION_PREFS_NAME = "notification_state";
+
+    private static final String KEY_NOTIFICATION_CLEARED_TIME = "notification_cleared_time";
+
     /** List of unread non-emergency alerts to show when user selects the notification. */
     private static final ArrayList<CellBroadcastMessage> sNewMessageList =
             new ArrayList<CellBroadcastMessage>(4);
@@ -41,9 +63,28 @@ public class CellBroadcastReceiverApp extends Application {
         return sNewMessageList;
     }
 
-    /** Clears the list of unread non-emergency messages. */
-    static void clearNewMessageList() {
+    /** Clears the list of unread non-emergency messages, as their notification is cleared. */
+    static void clearNewMessageList(Context context) {
         sNewMessageList.clear();
+        setNotificationClearedTime(context);
+    }
+
+    /** Records that the notification of unread non-emergency messages was cleared. */
+    static void setNotificationClearedTime(Context context) {
+        getNotificationPrefs(context).edit()
+                .putLong(KEY_NOTIFICATION_CLEARED_TIME, System.currentTimeMillis()).apply();
+    }
+
+    /**
+     * Returns the wall clock time the notification of unread non-emergency messages was last
+     * cleared, the messages delivered since are counted in it.
+     */
+    static long getNotificationClearedTime(Context context) {
+        return getNotificationPrefs(context).getLong(KEY_NOTIFICATION_CLEARED_TIME, 0);
+    }
+
+    private static SharedPreferences getNotificationPrefs(Context context) {
+        return context.getSharedPreferences(NOTIFICATION_PREFS_NAME, Context.MODE_PRIVATE);
     }
 
     /** Saves the latest area info broadcast received. */
@@ -240,7 +240,22 @@ public class CellBroadcastResources {
         }
     }
 
+    /**
+     * Returns the string resource ID of the title of the alert dialog and notification.
+     */
     public static int getDialogTitleResource(Context context, CellBroadcastMessage cbm) {
+        return CellBroadcastMessageClassification.classify(context, cbm).getTitleResId();
+    }
+
+    /**
+     * Returns the string resource ID of the title of the alert dialog and notification.
+     *
+     * @param rangeKey The first range resource key, among the ones with a dedicated title, whose
+     * in-scope range covers the message channel, or 0 if none does
+     * @param isEmergency Whether the message is an emergency message
+     */
+    static int getDialogTitleResource(Context context, CellBroadcastMessage cbm, int rangeKey,
+            boolean isEmergency) {
         // ETWS warning types
         SmsCbEtwsInfo etwsInfo = cbm.getEtwsWarningInfo();
         if (etwsInfo != null) {
@@ -264,23 +279,17 @@ public class CellBroadcastResources {
         }
 
         SmsCbCmasInfo cmasInfo = cbm.getCmasWarningInfo();
-        int subId = cbm.getSubId();
         final int serviceCategory = cbm.getServiceCategory();
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                serviceCategory,
-                R.array.emergency_alerts_channels_range_strings, context)) {
+        if (rangeKey == R.array.emergency_alerts_channels_range_strings) {
             return R.string.pws_other_message_identifiers;
         }
         // CMAS warning types
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                serviceCategory,
-                R.array.cmas_presidential_alerts_channels_range_strings, context)) {
+        if (rangeKey == R.array.cmas_presidential_alerts_channels_range_strings) {
             return R.string.cmas_presidential_level_alert;
         }
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                serviceCategory,
-                R.array.cmas_alert_extreme_channels_range_strings, context)) {
-            if (cmasInfo.getSeverity() == SmsCbCmasInfo.CMAS_SEVERITY_EXTREME
+        if (rangeKey == R.array.cmas_alert_extreme_channels_range_strings) {
+            if (cmasInfo != null
+                    && cmasInfo.getSeverity() == SmsCbCmasInfo.CMAS_SEVERITY_EXTREME
                     && cmasInfo.getUrgency() == SmsCbCmasInfo.CMAS_URGENCY_IMMEDIATE) {
                 if (cmasInfo.getCertainty() == SmsCbCmasInfo.CMAS_CERTAINTY_OBSERVED) {
                     return R.string.cmas_extreme_immediate_observed_alert;
@@ -290,37 +299,29 @@ public class CellBroadcastResources {
             }
             return R.string.cmas_extreme_alert;
         }
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                serviceCategory, R.array.cmas_alerts_severe_range_strings, context)) {
+        if (rangeKey == R.array.cmas_alerts_severe_range_strings) {
             return R.string.cmas_severe_alert;
         }
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                serviceCategory,
-                R.array.cmas_amber_alerts_channels_range_strings, context)) {
+        if (rangeKey == R.array.cmas_amber_alerts_channels_range_strings) {
             return R.string.cmas_amber_alert;
         }
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                serviceCategory, R.array.required_monthly_test_range_strings, context)) {
+        if (rangeKey == R.array.required_monthly_test_range_strings) {
             return R.string.cmas_required_monthly_test;
         }
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                serviceCategory, R.array.exercise_alert_range_strings, context)) {
+        if (rangeKey == R.array.exercise_alert_range_strings) {
             return R.string.cmas_exercise_alert;
         }
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                serviceCategory, R.array.operator_defined_alert_range_strings, context)) {
+        if (rangeKey == R.array.operator_defined_alert_range_strings) {
             return R.string.cmas_operator_defined_alert;
         }
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                serviceCategory, R.array.public_safety_messages_channels_range_strings, context)) {
+        if (rangeKey == R.array.public_safety_messages_channels_range_strings) {
             return R.string.public_safety_message;
         }
-        if (CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId,
-                serviceCategory, R.array.state_local_test_alert_range_strings, context)) {
+        if (rangeKey == R.array.state_local_test_alert_range_strings) {
             return R.string.state_local_test_alert;
         }
 
-        if (CellBroadcastChannelManager.isEmergencyMessage(context, cbm)) {
+        if (isEmergency) {
             ArrayList<CellBroadcastChannelRange> ranges = CellBroadcastChannelManager
                     .getInstance().getCellBroadcastChannelRanges(context,
                     R.array.additional_cbs_channels_strings);
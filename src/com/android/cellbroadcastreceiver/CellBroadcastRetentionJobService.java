@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+/**
+ * Applies the {@link CellBroadcastRetentionPolicy} to the broadcast history while the device is
+ * idle, then returns the freed database pages to the file system.
+ *
+ * Each chunk of work is queued separately in the housekeeping lane of
+ * {@link CellBroadcastOperationExecutor}, so alerts stored meanwhile are written between chunks.
+ * Observers are notified once, after the last chunk.
+ */
+public class CellBroadcastRetentionJobService extends JobService {
+    private static final String TAG = "CBRetentionJobService";
+
+    private static final int JOB_ID = 1;
+
+    /** Parameters of the running job, null when it is not running. */
+    private volatile JobParameters mParams;
+
+    /** Number of broadcasts deleted by the running job. */
+    private int mDeletedCount;
+
+    private long mStartTime;
+
+    /**
+     * Schedule the daily retention job, unless it is already scheduled.
+     *
+     * @param context Context
+     */
+    public static void schedule(Context context) {
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        if (jobScheduler == null || jobScheduler.getPendingJob(JOB_ID) != null) {
+            return;
+        }
+        jobScheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, CellBroadcastRetentionJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setPeriodic(DateUtils.DAY_IN_MILLIS)
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        mParams = params;
+        mDeletedCount = 0;
+        mStartTime = SystemClock.elapsedRealtime();
+        deleteNextChunk(CellBroadcastRetentionPolicy.fromResources(
+                CellBroadcastSettings.getResourcesForDefaultSmsSubscriptionId(this)));
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Log.d(TAG, "Stopped after deleting " + mDeletedCount + " broadcasts");
+        mParams = null;
+        return true;
+    }
+
+    private void deleteNextChunk(CellBroadcastRetentionPolicy policy) {
+        new CellBroadcastContentProvider.AsyncCellBroadcastTask(getContentResolver())
+                .execute(provider -> {
+                    if (mParams == null) {
+                        return mDeletedCount > 0;
+                    }
+                    int count = provider.deleteExpiredBroadcasts(policy);
+                    mDeletedCount += count;
+                    if (count > 0) {
+                        deleteNextChunk(policy);
+                        return false;
+                    }
+                    Log.d(TAG, "Deleted " + mDeletedCount + " broadcasts in "
+                            + (SystemClock.elapsedRealtime() - mStartTime) + "ms");
+                    compactNextChunk();
+                    return mDeletedCount > 0;
+                });
+    }
+
+    private void compactNextChunk() {
+        new CellBroadcastContentProvider.AsyncCellBroadcastTask(getContentResolver())
+                .execute(provider -> {
+                    JobParameters params = mParams;
+                    if (params == null) {
+                        return false;
+                    }
+                    if (provider.compactDatabase()) {
+                        compactNextChunk();
+                    } else {
+                        mParams = null;
+                        jobFinished(params, false);
+                    }
+                    return false;
+                });
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.res.Resources;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.provider.Telephony;
+import android.text.format.DateUtils;
+import android.util.Log;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Retention policy of the broadcast history: how old the broadcasts may get, how many of them
+ * are kept, and how many are kept for a given service category.
+ *
+ * Emergency alerts have their own maximum age and are never removed to make room for other
+ * broadcasts. Broadcasts are deleted in chunks of bounded size, each one in its own short write,
+ * so an alert arriving meanwhile is not held up behind the cleanup. A policy is meant for one
+ * cleanup run.
+ */
+public final class CellBroadcastRetentionPolicy {
+    private static final String TAG = "CBRetentionPolicy";
+
+    /** Rows holding an emergency alert. */
+    @VisibleForTesting
+    static final String EMERGENCY_SELECTION =
+            CellBroadcastDatabaseHelper.getEmergencySelection("");
+
+    private static final String NON_EMERGENCY_SELECTION = "NOT " + EMERGENCY_SELECTION;
+
+    /** Chunk size used when none is configured. */
+    private static final int DEFAULT_CHUNK_SIZE = 500;
+
+    /** Database pages released by each incremental vacuum step. */
+    private static final int VACUUM_CHUNK_PAGES = 256;
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * Largest database, in used pages, switched over to incremental vacuum. Switching over
+     * rebuilds the whole database in one write, holding up the alerts arriving meanwhile.
+     */
+    private static final long MAX_CONVERSION_PAGES = 2048;
+
+    /** Key of the overall maximum number of broadcasts in {@link #mCutoffs}. */
+    private static final int ALL_CATEGORIES = -1;
+
+    private final long mMaxAgeMillis;
+    private final long mEmergencyMaxAgeMillis;
+    private final int mMaxRows;
+    private final SparseIntArray mCategoryMaxRows;
+    private final int mChunkSize;
+
+    /**
+     * Delivery time before which broadcasts are deleted, keyed by service category or
+     * {@link #ALL_CATEGORIES} for the overall maximum. Computed once per policy, as the
+     * broadcasts stored meanwhile are newer.
+     */
+    private final SparseLongArray mCutoffs = new SparseLongArray();
+
+    /**
+     * @param maxAgeMillis Maximum age of a broadcast other than an emergency alert, 0 for no
+     *                     limit
+     * @param emergencyMaxAgeMillis Maximum age of an emergency alert, 0 for no limit
+     * @param maxRows Maximum number of broadcasts other than emergency alerts, 0 for no limit
+     * @param categoryMaxRows Maximum number of broadcasts other than emergency alerts for each
+     *                        service category
+     * @param chunkSize Maximum number of broadcasts deleted at once
+     */
+    @VisibleForTesting
+    CellBroadcastRetentionPolicy(long maxAgeMillis, long emergencyMaxAgeMillis, int maxRows,
+            SparseIntArray categoryMaxRows, int chunkSize) {
+        mMaxAgeMillis = maxAgeMillis;
+        mEmergencyMaxAgeMillis = emergencyMaxAgeMillis;
+        mMaxRows = maxRows;
+        mCategoryMaxRows = categoryMaxRows;
+        mChunkSize = chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE;
+    }
+
+    /**
+     * Read the policy from the configuration.
+     *
+     * @param res Resources of the default SMS subscription
+     * @return The retention policy
+     */
+    public static CellBroadcastRetentionPolicy fromResources(Resources res) {
+        SparseIntArray categoryMaxRows = new SparseIntArray();
+        String[] caps = res.getStringArray(R.array.broadcast_retention_category_max_rows);
+        if (caps != null) {
+            for (String cap : caps) {
+                // Each entry is "<service category>:<maximum number of broadcasts>".
+                String[] parts = cap.split(":");
+                try {
+                    categoryMaxRows.put(Integer.decode(parts[0].trim()),
+                            Integer.parseInt(parts[1].trim()));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    Log.e(TAG, "Invalid category retention: " + cap);
+                }
+            }
+        }
+        return new CellBroadcastRetentionPolicy(
+                res.getInteger(R.integer.broadcast_retention_max_age_days)
+                        * DateUtils.DAY_IN_MILLIS,
+                res.getInteger(R.integer.broadcast_retention_emergency_max_age_days)
+                        * DateUtils.DAY_IN_MILLIS,
+                res.getInteger(R.integer.broadcast_retention_max_rows),
+                categoryMaxRows,
+                res.getInteger(R.integer.broadcast_retention_chunk_size));
+    }
+
+    /**
+     * Delete the next chunk of broadcasts the policy does not keep.
+     *
+     * @param db The broadcast database
+     * @param now Current wall clock time in milliseconds
+     * @return The number of broadcasts deleted, 0 once the database follows the policy
+     */
+    public int deleteChunk(SQLiteDatabase db, long now) {
+        int count;
+        if (mMaxAgeMillis > 0) {
+            count = deleteOlderThan(db, NON_EMERGENCY_SELECTION, now - mMaxAgeMillis);
+            if (count > 0) {
+                return count;
+            }
+        }
+        if (mEmergencyMaxAgeMillis > 0) {
+            count = deleteOlderThan(db, EMERGENCY_SELECTION, now - mEmergencyMaxAgeMillis);
+            if (count > 0) {
+                return count;
+            }
+        }
+        for (int i = 0; i < mCategoryMaxRows.size(); i++) {
+            int serviceCategory = mCategoryMaxRows.keyAt(i);
+            count = deleteBeyond(db, serviceCategory, NON_EMERGENCY_SELECTION + " AND "
+                    + Telephony.CellBroadcasts.SERVICE_CATEGORY + "=" + serviceCategory,
+                    mCategoryMaxRows.valueAt(i));
+            if (count > 0) {
+                return count;
+            }
+        }
+        if (mMaxRows > 0) {
+            return deleteBeyond(db, ALL_CATEGORIES, NON_EMERGENCY_SELECTION, mMaxRows);
+        }
+        return 0;
+    }
+
+    /** Delete a chunk of the broadcasts matching the selection delivered before the time. */
+    private int deleteOlderThan(SQLiteDatabase db, String selection, long time) {
+        return db.delete(CellBroadcastDatabaseHelper.TABLE_NAME,
+                Telephony.CellBroadcasts._ID + " IN (SELECT " + Telephony.CellBroadcasts._ID
+                        + " FROM " + CellBroadcastDatabaseHelper.TABLE_NAME + " WHERE "
+                        + Telephony.CellBroadcasts.DELIVERY_TIME + "<? AND " + selection
+                        + " LIMIT " + mChunkSize + ")",
+                new String[]{Long.toString(time)});
+    }
+
+    /**
+     * Delete a chunk of the broadcasts matching the selection older than the newest maxRows.
+     * Broadcasts delivered at the same time as the oldest one kept are kept as well.
+     */
+    private int deleteBeyond(SQLiteDatabase db, int key, String selection, int maxRows) {
+        // Find the delivery time of the oldest broadcast kept once per policy, so each chunk is
+        // a range scan of the delivery time index rather than a scan past all kept broadcasts.
+        int index = mCutoffs.indexOfKey(key);
+        long cutoff;
+        if (index >= 0) {
+            cutoff = mCutoffs.valueAt(index);
+        } else {
+            cutoff = getCutoff(db, selection, maxRows);
+            mCutoffs.put(key, cutoff);
+        }
+        return deleteOlderThan(db, selection, cutoff);
+    }
+
+    /** @return the delivery time of the maxRows-th newest broadcast matching the selection */
+    private static long getCutoff(SQLiteDatabase db, String selection, int maxRows) {
+        if (maxRows <= 0) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            return DatabaseUtils.longForQuery(db, "SELECT "
+                    + Telephony.CellBroadcasts.DELIVERY_TIME + " FROM "
+                    + CellBroadcastDatabaseHelper.TABLE_NAME + " WHERE " + selection
+                    + " ORDER BY " + Telephony.CellBroadcasts.DELIVERY_TIME + " DESC LIMIT 1"
+                    + " OFFSET " + (maxRows - 1), null);
+        } catch (SQLiteDoneException e) {
+            // There are no more than maxRows broadcasts.
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Rebuild the database with incremental vacuum, so free pages can be returned to the file
+     * system in small steps. Must not be called in a transaction.
+     *
+     * @param db The broadcast database
+     */
+    static void enableIncrementalVacuum(SQLiteDatabase db) {
+        // The mode of a database with tables only changes when it is rebuilt.
+        db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+        db.execSQL("VACUUM");
+    }
+
+    /**
+     * Return the next chunk of free pages to the file system. A database created without
+     * incremental vacuum is switched over once the retention job has deleted the broadcasts
+     * beyond the limits, if it is small enough by then; otherwise SQLite reuses its free pages.
+     * Must not be called in a transaction.
+     *
+     * @param db The broadcast database
+     * @return True if free pages are left for another step
+     */
+    public static boolean vacuumChunk(SQLiteDatabase db) {
+        return vacuumChunk(db, MAX_CONVERSION_PAGES);
+    }
+
+    @VisibleForTesting
+    static boolean vacuumChunk(SQLiteDatabase db, long maxConversionPages) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL) {
+            long usedPages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                    - DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+            if (usedPages <= maxConversionPages) {
+                Log.d(TAG, "Switching " + usedPages + " pages to incremental vacuum");
+                // Rebuilding the database also returns all of its free pages.
+                enableIncrementalVacuum(db);
+            }
+            return false;
+        }
+        db.execSQL("PRAGMA incremental_vacuum(" + VACUUM_CHUNK_PAGES + ")");
+        return DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) > 0;
+    }
+}
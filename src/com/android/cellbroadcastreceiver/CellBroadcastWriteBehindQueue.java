@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.telephony.CellBroadcastMessage;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Write-behind persistence for broadcasts that are displayed before they are stored.
+ *
+ * Each broadcast is first written to a small pending file and synced, in the background, and
+ * then inserted into the database by {@link CellBroadcastInsertBatcher}. The pending file is
+ * deleted once the insert is done. If the process dies or the device loses power in between,
+ * {@link #recover} inserts the broadcasts of the remaining pending files the next time the
+ * process starts.
+ *
+ * A broadcast is only guaranteed to be stored eventually once its pending file is synced, which
+ * happens right after it is displayed. It is lost if the process dies before that.
+ */
+public class CellBroadcastWriteBehindQueue {
+    private static final String TAG = "CBWriteBehindQueue";
+
+    @VisibleForTesting
+    static final String PENDING_DIR = "pending_broadcasts";
+
+    private static final String PENDING_SUFFIX = ".pending";
+
+    /** Format of the pending files, increased whenever it changes. */
+    private static final int PENDING_FORMAT_VERSION = 1;
+
+    /** Names of the pending files written by this process, never recovered. */
+    private static final Set<String> sOwnPendingFiles =
+            Collections.synchronizedSet(new HashSet<>());
+
+    /**
+     * Store a broadcast in the background. Nothing is written on the calling thread.
+     *
+     * @param context Context
+     * @param message The broadcast to store
+     * @param titleKey The title key of the broadcast, or null to classify it when it is stored
+     * @param lane Lane of {@link CellBroadcastOperationExecutor} to insert the broadcast in, the
+     *             emergency lane stores it right away instead of batching it
+     * @param onStored Run on the background thread once the broadcast is in the database, may be
+     *                 null
+     */
+    public static void enqueue(Context context, CellBroadcastMessage message, String titleKey,
+            int lane, Runnable onStored) {
+        CellBroadcastInsertBatcher batcher = CellBroadcastInsertBatcher.getInstance(context);
+        CellBroadcastOperationExecutor.getInstance().execute(lane, () -> {
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            File pending = writePendingFile(context, message);
+            Log.d(TAG, "Wrote pending broadcast in "
+                    + (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000 + "us");
+
+            boolean flushNow = lane == CellBroadcastOperationExecutor.LANE_EMERGENCY;
+            batcher.insert(message, titleKey, flushNow, () -> {
+                deletePendingFile(pending);
+                if (onStored != null) {
+                    onStored.run();
+                }
+            });
+        });
+    }
+
+    /**
+     * Insert the broadcasts left pending by a previous process into the database, in the
+     * background. The pending directory is scanned in the housekeeping lane, so nothing is read
+     * on the calling thread.
+     *
+     * @param context Context
+     */
+    public static void recover(Context context) {
+        CellBroadcastOperationExecutor.getInstance().execute(
+                CellBroadcastOperationExecutor.LANE_HOUSEKEEPING, () -> {
+                    File[] files = getPendingDir(context).listFiles();
+                    if (files != null && files.length > 0) {
+                        recoverFiles(context, files);
+                    }
+                });
+    }
+
+    private static void recoverFiles(Context context, File[] files) {
+        new CellBroadcastContentProvider.AsyncCellBroadcastTask(context.getContentResolver(),
+                CellBroadcastOperationExecutor.LANE_NORMAL).execute(provider -> {
+                    ArrayList<CellBroadcastMessage> messages = new ArrayList<>();
+                    ArrayList<File> recoveredFiles = new ArrayList<>();
+                    for (File file : files) {
+                        if (sOwnPendingFiles.contains(file.getName())) {
+                            continue;
+                        }
+                        CellBroadcastMessage message = readPendingFile(file);
+                        // The insert may have completed right before the process died.
+                        if (message != null && !provider.isBroadcastPresent(
+                                message.getDeliveryTime(), message.getSerialNumber())) {
+                            messages.add(message);
+                        }
+                        recoveredFiles.add(file);
+                    }
+                    boolean changed = !messages.isEmpty()
+                            && provider.insertNewBroadcasts(messages, null);
+                    for (File file : recoveredFiles) {
+                        file.delete();
+                    }
+                    Log.i(TAG, "Recovered " + messages.size() + " pending broadcasts");
+                    return changed;
+                });
+    }
+
+    private static File getPendingDir(Context context) {
+        return new File(context.getFilesDir(), PENDING_DIR);
+    }
+
+    private static File writePendingFile(Context context, CellBroadcastMessage message) {
+        File dir = getPendingDir(context);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Failed to create " + dir);
+            return null;
+        }
+        File file = new File(dir, message.getDeliveryTime() + "_" + message.getServiceCategory()
+                + "_" + message.getSerialNumber() + PENDING_SUFFIX);
+
+        Parcel parcel = Parcel.obtain();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            parcel.writeInt(PENDING_FORMAT_VERSION);
+            message.writeToParcel(parcel, 0);
+            out.write(parcel.marshall());
+            // The broadcast is not stored anywhere else until it is inserted.
+            out.getFD().sync();
+            sOwnPendingFiles.add(file.getName());
+            return file;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write pending broadcast: " + e);
+            file.delete();
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static void deletePendingFile(File file) {
+        if (file != null) {
+            file.delete();
+            sOwnPendingFiles.remove(file.getName());
+        }
+    }
+
+    @VisibleForTesting
+    static CellBroadcastMessage readPendingFile(File file) {
+        Parcel parcel = Parcel.obtain();
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) break;
+                read += count;
+            }
+            parcel.unmarshall(data, 0, read);
+            parcel.setDataPosition(0);
+            if (parcel.readInt() != PENDING_FORMAT_VERSION) {
+                Log.e(TAG, "Dropping pending broadcast of another format: " + file);
+                return null;
+            }
+            return CellBroadcastMessage.CREATOR.createFromParcel(parcel);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Dropping unreadable pending broadcast " + file + ": " + e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
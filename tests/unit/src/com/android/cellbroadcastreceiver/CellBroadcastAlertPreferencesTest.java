@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.verify;
+
+import android.content.SharedPreferences;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+public class CellBroadcastAlertPreferencesTest extends CellBroadcastTest {
+
+    @Mock
+    SharedPreferences mSharedPreferences;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        doReturn(mSharedPreferences).when(mContext).getSharedPreferences(anyString(), anyInt());
+        // Unset preferences return the default value.
+        doAnswer(invocation -> invocation.getArguments()[1]).when(mSharedPreferences)
+                .getBoolean(anyString(), anyBoolean());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    @SmallTest
+    public void testDefaults() throws Exception {
+        CellBroadcastAlertPreferences prefs = CellBroadcastAlertPreferences.get(mContext);
+        assertTrue(prefs.isAlertsMasterToggleEnabled());
+        assertTrue(prefs.isCmasExtremeThreatAlertsEnabled());
+        assertTrue(prefs.isEmergencyAlertsEnabled());
+        assertFalse(prefs.isTestAlertsEnabled());
+        assertFalse(prefs.isStateLocalTestAlertsEnabled());
+        assertTrue(prefs.isAlertVibrateEnabled());
+        assertFalse(prefs.isUseFullVolumeEnabled());
+        assertNull(prefs.getAlertReminderInterval());
+
+        // The area info default is up to the caller until the user sets it.
+        assertTrue(prefs.isAreaUpdateInfoAlertsEnabled(true));
+        assertFalse(prefs.isAreaUpdateInfoAlertsEnabled(false));
+        assertTrue(prefs.getBoolean(
+                CellBroadcastSettings.KEY_ENABLE_AREA_UPDATE_INFO_ALERTS, true));
+
+        // So is the default of any other unset preference read by key.
+        assertFalse(prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_EMERGENCY_ALERTS, false));
+        assertTrue(prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS, true));
+
+        assertSame(prefs, CellBroadcastAlertPreferences.get(mContext));
+    }
+
+    @Test
+    @SmallTest
+    public void testRebuiltOnChange() throws Exception {
+        CellBroadcastAlertPreferences prefs = CellBroadcastAlertPreferences.get(mContext);
+        ArgumentCaptor<SharedPreferences.OnSharedPreferenceChangeListener> listener =
+                ArgumentCaptor.forClass(SharedPreferences.OnSharedPreferenceChangeListener.class);
+        verify(mSharedPreferences).registerOnSharedPreferenceChangeListener(listener.capture());
+
+        doReturn(true).when(mSharedPreferences).contains(
+                eq(CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS));
+        doReturn(false).when(mSharedPreferences).getBoolean(
+                eq(CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS), anyBoolean());
+        doReturn(true).when(mSharedPreferences).contains(
+                eq(CellBroadcastSettings.KEY_ENABLE_AREA_UPDATE_INFO_ALERTS));
+        doReturn("2").when(mSharedPreferences).getString(
+                eq(CellBroadcastSettings.KEY_ALERT_REMINDER_INTERVAL), any());
+        listener.getValue().onSharedPreferenceChanged(mSharedPreferences,
+                CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS);
+
+        CellBroadcastAlertPreferences updated = CellBroadcastAlertPreferences.get(mContext);
+        assertNotSame(prefs, updated);
+        assertTrue(prefs.isCmasAmberAlertsEnabled());
+        assertFalse(updated.isCmasAmberAlertsEnabled());
+        assertFalse(updated.getBoolean(CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS, true));
+        assertFalse(updated.isAreaUpdateInfoAlertsEnabled(true));
+        assertEquals("2", updated.getAlertReminderInterval());
+    }
+}
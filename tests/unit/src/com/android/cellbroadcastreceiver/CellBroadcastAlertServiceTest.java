@@ -22,9 +22,11 @@ import static com.android.cellbroadcastreceiver.CellBroadcastAlertService.SHOW_N
 import static org.junit.Assert.assertArrayEquals;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.eq;
 
 import android.content.Intent;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.provider.Telephony;
 import android.telephony.CarrierConfigManager;
 import android.telephony.CellBroadcastMessage;
@@ -32,6 +34,7 @@ import android.telephony.SmsCbCmasInfo;
 import android.telephony.SmsCbEtwsInfo;
 import android.telephony.SmsCbLocation;
 import android.telephony.SmsCbMessage;
+import android.util.Log;
 
 import com.android.internal.telephony.gsm.SmsCbConstants;
 
@@ -53,6 +56,15 @@ public class CellBroadcastAlertServiceTest extends
                 SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY, null, new SmsCbCmasInfo(0, 2, 3, 4, 5, 6));
     }
 
+    static SmsCbMessage createEtwsPrimaryMessage(int serialNumber) {
+        return new SmsCbMessage(SmsCbMessage.MESSAGE_FORMAT_3GPP,
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_CELL_WIDE_IMMEDIATE, serialNumber,
+                new SmsCbLocation(), SmsCbConstants.MESSAGE_ID_ETWS_EARTHQUAKE_WARNING, null, null,
+                SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY,
+                new SmsCbEtwsInfo(SmsCbEtwsInfo.ETWS_WARNING_TYPE_EARTHQUAKE, true, true, true,
+                        null), null);
+    }
+
     @Before
     public void setUp() throws Exception {
         super.setUp();
@@ -222,10 +234,77 @@ public class CellBroadcastAlertServiceTest extends
         mActivityIntentToVerify = null;
     }
 
+    /**
+     * Measure the time from receiving a broadcast to starting the alert audio, storing the
+     * alert before or after showing it.
+     */
+    public void testDisplayBeforePersistLatency() throws Exception {
+        long persistFirst = measureAlertAudioLatency(111111);
+
+        doReturn(true).when(mResources).getBoolean(
+                eq(R.bool.display_before_persist_emergency_alerts));
+        long displayFirst = measureAlertAudioLatency(222222);
+
+        Log.d(getClass().getSimpleName(), "broadcast to alert audio: persist first "
+                + persistFirst + "us, display first " + displayFirst + "us");
+    }
+
+    private long measureAlertAudioLatency(int serialNumber) {
+        mServiceIntentToVerify = null;
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        sendMessage(serialNumber);
+        for (int i = 0; i < 2000 && mServiceIntentToVerify == null; i++) {
+            waitForMs(1);
+        }
+        Intent showIntent = mServiceIntentToVerify;
+        assertEquals(SHOW_NEW_ALERT_ACTION, showIntent.getAction());
+        assertTrue(showIntent.getLongExtra(CellBroadcastAlertService.EXTRA_RECEIVED_TIME, 0) > 0);
+
+        startService(showIntent);
+        assertEquals(CellBroadcastAlertAudio.ACTION_START_ALERT_AUDIO,
+                mServiceIntentToVerify.getAction());
+        return (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000;
+    }
+
+    // Test that ETWS primary notifications start the alert audio without the SHOW_NEW_ALERT
+    // round trip
+    public void testEtwsPrimaryFastPath() throws Exception {
+        putResources(R.array.etws_alerts_range_strings, new String[]{
+                "0x1100-0x1104:rat=gsm, emergency=true",
+        });
+        doReturn(true).when(mResources).getBoolean(eq(R.bool.enable_etws_primary_fast_path));
+        doReturn(true).when(mResources).getBoolean(
+                eq(R.bool.display_before_persist_emergency_alerts));
+        // Armed when the channels are configured.
+        CellBroadcastEtwsFastPath.invalidate();
+        CellBroadcastEtwsFastPath.arm(mContext);
+
+        Intent intent = new Intent(mContext, CellBroadcastAlertService.class);
+        intent.setAction(Telephony.Sms.Intents.SMS_EMERGENCY_CB_RECEIVED_ACTION);
+        sendMessage(createEtwsPrimaryMessage(5566), intent);
+
+        assertEquals(CellBroadcastAlertAudio.ACTION_START_ALERT_AUDIO,
+                mServiceIntentToVerify.getAction());
+        assertEquals(CellBroadcastAlertService.AlertType.ETWS_EARTHQUAKE,
+                mServiceIntentToVerify.getSerializableExtra(ALERT_AUDIO_TONE_TYPE));
+        assertTrue(mServiceIntentToVerify.getLongExtra(
+                CellBroadcastAlertAudio.ALERT_AUDIO_RECEIVED_TIME_EXTRA, 0) > 0);
+        assertTrue(CellBroadcastEtwsFastPath.getAverageDispatchMicros() > 0);
+
+        // The same notification again is a duplicate.
+        mServiceIntentToVerify = null;
+        intent = new Intent(mContext, CellBroadcastAlertService.class);
+        intent.setAction(Telephony.Sms.Intents.SMS_EMERGENCY_CB_RECEIVED_ACTION);
+        sendMessage(createEtwsPrimaryMessage(5566), intent);
+        assertNull(mServiceIntentToVerify);
+    }
+
     public void testExpiration() throws Exception {
         PersistableBundle b = new PersistableBundle();
         b.putLong(CarrierConfigManager.KEY_MESSAGE_EXPIRATION_TIME_LONG, 1000);
         doReturn(b).when(mMockedCarrierConfigManager).getConfigForSubId(anyInt());
+        // As done when the carrier config changes.
+        CellBroadcastAlertService.updateDuplicateExpirationTime(mContext, 0);
 
         sendMessage(91924);
         waitForMs(500);
@@ -132,43 +132,44 @@ public class CellBroadcastBootupConfigTest extends
         startService(intent);
         waitForMs(200);
 
+        // Channels are enabled by setting, then by RAT, then by channel.
         CbConfig[] configs = new CbConfig[] {
                 new CbConfig(MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL,
                         MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL,
                         CELL_BROADCAST_RAN_TYPE_GSM),
-                new CbConfig(SERVICE_CATEGORY_CMAS_PRESIDENTIAL_LEVEL_ALERT,
-                        SERVICE_CATEGORY_CMAS_PRESIDENTIAL_LEVEL_ALERT,
-                        CELL_BROADCAST_RAN_TYPE_CDMA),
                 new CbConfig(MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL_LANGUAGE,
                         MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL_LANGUAGE,
                         CELL_BROADCAST_RAN_TYPE_GSM),
+                new CbConfig(SERVICE_CATEGORY_CMAS_PRESIDENTIAL_LEVEL_ALERT,
+                        SERVICE_CATEGORY_CMAS_PRESIDENTIAL_LEVEL_ALERT,
+                        CELL_BROADCAST_RAN_TYPE_CDMA),
                 new CbConfig(MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_OBSERVED,
                         MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_LIKELY,
                         CELL_BROADCAST_RAN_TYPE_GSM),
-                new CbConfig(SERVICE_CATEGORY_CMAS_EXTREME_THREAT,
-                        SERVICE_CATEGORY_CMAS_EXTREME_THREAT,
-                        CELL_BROADCAST_RAN_TYPE_CDMA),
                 new CbConfig(MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_OBSERVED_LANGUAGE,
                         MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_LIKELY_LANGUAGE,
                         CELL_BROADCAST_RAN_TYPE_GSM),
+                new CbConfig(SERVICE_CATEGORY_CMAS_EXTREME_THREAT,
+                        SERVICE_CATEGORY_CMAS_EXTREME_THREAT,
+                        CELL_BROADCAST_RAN_TYPE_CDMA),
                 new CbConfig(MESSAGE_ID_CMAS_ALERT_EXTREME_EXPECTED_OBSERVED,
                         MESSAGE_ID_CMAS_ALERT_SEVERE_EXPECTED_LIKELY,
                         CELL_BROADCAST_RAN_TYPE_GSM),
-                new CbConfig(SERVICE_CATEGORY_CMAS_SEVERE_THREAT,
-                        SERVICE_CATEGORY_CMAS_SEVERE_THREAT,
-                        CELL_BROADCAST_RAN_TYPE_CDMA),
                 new CbConfig(MESSAGE_ID_CMAS_ALERT_EXTREME_EXPECTED_OBSERVED_LANGUAGE,
                         MESSAGE_ID_CMAS_ALERT_SEVERE_EXPECTED_LIKELY_LANGUAGE,
                         CELL_BROADCAST_RAN_TYPE_GSM),
+                new CbConfig(SERVICE_CATEGORY_CMAS_SEVERE_THREAT,
+                        SERVICE_CATEGORY_CMAS_SEVERE_THREAT,
+                        CELL_BROADCAST_RAN_TYPE_CDMA),
                 new CbConfig(MESSAGE_ID_CMAS_ALERT_CHILD_ABDUCTION_EMERGENCY,
                         MESSAGE_ID_CMAS_ALERT_CHILD_ABDUCTION_EMERGENCY,
                         CELL_BROADCAST_RAN_TYPE_GSM),
-                new CbConfig(SERVICE_CATEGORY_CMAS_CHILD_ABDUCTION_EMERGENCY,
-                        SERVICE_CATEGORY_CMAS_CHILD_ABDUCTION_EMERGENCY,
-                        CELL_BROADCAST_RAN_TYPE_CDMA),
                 new CbConfig(MESSAGE_ID_CMAS_ALERT_CHILD_ABDUCTION_EMERGENCY_LANGUAGE,
                         MESSAGE_ID_CMAS_ALERT_CHILD_ABDUCTION_EMERGENCY_LANGUAGE,
                         CELL_BROADCAST_RAN_TYPE_GSM),
+                new CbConfig(SERVICE_CATEGORY_CMAS_CHILD_ABDUCTION_EMERGENCY,
+                        SERVICE_CATEGORY_CMAS_CHILD_ABDUCTION_EMERGENCY,
+                        CELL_BROADCAST_RAN_TYPE_CDMA),
                 new CbConfig(MESSAGE_ID_ETWS_EARTHQUAKE_WARNING,
                         MESSAGE_ID_ETWS_EARTHQUAKE_AND_TSUNAMI_WARNING,
                         CELL_BROADCAST_RAN_TYPE_GSM),
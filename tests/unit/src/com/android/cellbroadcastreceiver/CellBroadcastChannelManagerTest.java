@@ -17,7 +17,14 @@
 package com.android.cellbroadcastreceiver;
 
 import static org.junit.Assert.assertEquals;
-
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.telephony.CellBroadcastMessage;
+import android.telephony.SmsCbLocation;
+import android.telephony.SmsCbMessage;
+import android.telephony.SubscriptionManager;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.cellbroadcastreceiver.CellBroadcastAlertService.AlertType;
@@ -92,4 +99,82 @@ public class CellBroadcastChannelManagerTest extends CellBroadcastTest {
         assertEquals(AlertType.TEST, list.get(5).mAlertType);
         assertEquals(CellBroadcastChannelRange.LEVEL_EMERGENCY, list.get(5).mEmergencyLevel);
     }
+
+    /**
+     * Test that the compiled channel lookup resolves overlapping ranges in resource key order.
+     */
+    @Test
+    @SmallTest
+    public void testChannelLookupTable() throws Exception {
+        putResources(R.array.additional_cbs_channels_strings, new String[]{
+                "0x1112-0x1120:type=other",
+                "0x2000:emergency=false",
+        });
+        putResources(R.array.cmas_presidential_alerts_channels_range_strings, new String[]{
+                "0x1112-0x1112:emergency=true",
+        });
+        putResources(R.array.cmas_alert_extreme_channels_range_strings, new String[]{
+                "0x1113-0x1114",
+                "0x1110-0x1118:emergency=true",
+        });
+
+        final int subId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        assertTrue(CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId, 0x1112,
+                R.array.cmas_presidential_alerts_channels_range_strings, mContext));
+        assertFalse(CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId, 0x1113,
+                R.array.cmas_presidential_alerts_channels_range_strings, mContext));
+        assertTrue(CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId, 0x1110,
+                R.array.cmas_alert_extreme_channels_range_strings, mContext));
+        assertTrue(CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId, 0x1120,
+                R.array.additional_cbs_channels_strings, mContext));
+        assertFalse(CellBroadcastChannelManager.checkCellBroadcastChannelRange(subId, 0x1121,
+                R.array.additional_cbs_channels_strings, mContext));
+
+        // The additional channels come first, so they own the range of an overlapping channel.
+        CellBroadcastChannelRange range = CellBroadcastChannelManager
+                .getCellBroadcastChannelRangeFromMessage(mContext, createMessage(0x1113));
+        assertEquals(AlertType.OTHER, range.mAlertType);
+        assertEquals(0x1112, range.mStartId);
+        assertNull(CellBroadcastChannelManager.getCellBroadcastChannelRangeFromMessage(
+                mContext, createMessage(0x3000)));
+
+        // The first range with a known emergency level decides.
+        assertTrue(CellBroadcastChannelManager.isEmergencyMessage(mContext,
+                createMessage(0x1112)));
+        assertTrue(CellBroadcastChannelManager.isEmergencyMessage(mContext,
+                createMessage(0x1116)));
+        assertFalse(CellBroadcastChannelManager.isEmergencyMessage(mContext,
+                createMessage(0x2000)));
+    }
+
+    /**
+     * Test that parsed ranges are cached until invalidated.
+     */
+    @Test
+    @SmallTest
+    public void testChannelRangeCache() throws Exception {
+        putResources(R.array.additional_cbs_channels_strings, new String[]{"100-200"});
+
+        long hits = CellBroadcastChannelManager.getCacheHitCount();
+        long misses = CellBroadcastChannelManager.getCacheMissCount();
+        ArrayList<CellBroadcastChannelRange> list = CellBroadcastChannelManager
+                .getCellBroadcastChannelRanges(mContext, R.array.additional_cbs_channels_strings);
+        assertEquals(misses + 1, CellBroadcastChannelManager.getCacheMissCount());
+        assertTrue(list == CellBroadcastChannelManager.getCellBroadcastChannelRanges(mContext,
+                R.array.additional_cbs_channels_strings));
+        assertEquals(hits + 1, CellBroadcastChannelManager.getCacheHitCount());
+
+        putResources(R.array.additional_cbs_channels_strings, new String[]{"300-400"});
+        CellBroadcastChannelManager.invalidateCellBroadcastChannelRanges();
+        list = CellBroadcastChannelManager.getCellBroadcastChannelRanges(mContext,
+                R.array.additional_cbs_channels_strings);
+        assertEquals(misses + 2, CellBroadcastChannelManager.getCacheMissCount());
+        assertEquals(300, list.get(0).mStartId);
+    }
+
+    private static CellBroadcastMessage createMessage(int serviceCategory) {
+        return new CellBroadcastMessage(new SmsCbMessage(SmsCbMessage.MESSAGE_FORMAT_3GPP,
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_CELL_WIDE, 1, new SmsCbLocation(),
+                serviceCategory, "en", "body", SmsCbMessage.MESSAGE_PRIORITY_NORMAL, null, null));
+    }
 }
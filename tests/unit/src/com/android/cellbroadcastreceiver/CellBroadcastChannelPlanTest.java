@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static android.telephony.SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA;
+import static android.telephony.SmsManager.CELL_BROADCAST_RAN_TYPE_GSM;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.test.InstrumentationRegistry;
+
+import com.android.cellbroadcastreceiver.CellBroadcastChannelManager.CellBroadcastChannelRange;
+import com.android.cellbroadcastreceiver.CellBroadcastChannelPlan.Interval;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CellBroadcastChannelPlanTest {
+
+    private static final String TAG = "CBChannelPlanTest";
+
+    /** MCC and MNC of the resource overlays, an MNC of -1 for an MCC-only overlay. */
+    private static final int[][] OVERLAYS = {
+            {246, -1}, {302, -1}, {310, -1}, {310, 120}, {310, 170}, {310, 380}, {310, 410},
+            {310, 560}, {310, 680}, {310, 70}, {311, -1}, {311, 180}, {312, -1}, {312, 530},
+            {312, 670}, {313, -1}, {313, 100}, {313, 110}, {313, 120}, {313, 130}, {313, 140},
+            {314, -1}, {315, -1}, {316, -1}, {334, 3}, {334, 30}, {404, -1}, {405, -1},
+            {424, -1}, {425, -1}, {440, -1}, {440, 10}, {440, 11}, {440, 20}, {440, 50},
+            {440, 51}, {440, 52}, {441, -1}, {450, -1}, {466, -1}, {505, 1}, {505, 11},
+            {505, 71}, {505, 72}, {530, -1}, {704, 3}, {706, 4}, {712, 4}, {716, -1}, {722, 7},
+            {724, -1}, {730, -1}, {732, 123}, {740, 0},
+    };
+
+    private static final int[] RANGE_KEYS = {
+            R.array.additional_cbs_channels_strings,
+            R.array.emergency_alerts_channels_range_strings,
+            R.array.cmas_presidential_alerts_channels_range_strings,
+            R.array.cmas_alert_extreme_channels_range_strings,
+            R.array.cmas_alerts_severe_range_strings,
+            R.array.cmas_amber_alerts_channels_range_strings,
+            R.array.required_monthly_test_range_strings,
+            R.array.exercise_alert_range_strings,
+            R.array.operator_defined_alert_range_strings,
+            R.array.etws_alerts_range_strings,
+            R.array.etws_test_alerts_range_strings,
+            R.array.public_safety_messages_channels_range_strings,
+            R.array.state_local_test_alert_range_strings,
+    };
+
+    private static void assertInterval(Interval interval, boolean enable, int rat, int startId,
+            int endId) {
+        assertEquals(interval.toString(), enable, interval.mEnable);
+        assertEquals(interval.toString(), rat, interval.mRat);
+        assertEquals(interval.toString(), startId, interval.mStartId);
+        assertEquals(interval.toString(), endId, interval.mEndId);
+    }
+
+    @Test
+    @SmallTest
+    public void testMerge() throws Exception {
+        CellBroadcastChannelPlan plan = new CellBroadcastChannelPlan();
+        plan.add(1, true, CELL_BROADCAST_RAN_TYPE_GSM, 0x1115, 0x111A);
+        plan.add(1, true, CELL_BROADCAST_RAN_TYPE_GSM, 0x1112, 0x1112);
+        plan.add(1, true, CELL_BROADCAST_RAN_TYPE_CDMA, 0x1000, 0x1000);
+        plan.add(1, true, CELL_BROADCAST_RAN_TYPE_GSM, 0x1113, 0x1114);
+        plan.add(1, true, CELL_BROADCAST_RAN_TYPE_GSM, 0x1116, 0x1117);
+        plan.add(1, true, CELL_BROADCAST_RAN_TYPE_CDMA, 0x1002, 0x1002);
+        plan.add(1, true, CELL_BROADCAST_RAN_TYPE_GSM, 0x1120, Integer.MAX_VALUE);
+        plan.add(1, true, CELL_BROADCAST_RAN_TYPE_GSM, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        // Ranges ending before they start are ignored.
+        plan.add(1, true, CELL_BROADCAST_RAN_TYPE_GSM, 0x111C, 0x111B);
+
+        List<Interval> intervals = plan.getIntervals();
+        assertEquals(intervals.toString(), 4, intervals.size());
+        assertInterval(intervals.get(0), true, CELL_BROADCAST_RAN_TYPE_GSM, 0x1112, 0x111A);
+        assertInterval(intervals.get(1), true, CELL_BROADCAST_RAN_TYPE_GSM, 0x1120,
+                Integer.MAX_VALUE);
+        assertInterval(intervals.get(2), true, CELL_BROADCAST_RAN_TYPE_CDMA, 0x1000, 0x1000);
+        assertInterval(intervals.get(3), true, CELL_BROADCAST_RAN_TYPE_CDMA, 0x1002, 0x1002);
+    }
+
+    @Test
+    @SmallTest
+    public void testGroupsNotMerged() throws Exception {
+        CellBroadcastChannelPlan plan = new CellBroadcastChannelPlan();
+        plan.add(2, false, CELL_BROADCAST_RAN_TYPE_GSM, 0x1113, 0x1114);
+        plan.add(1, true, CELL_BROADCAST_RAN_TYPE_GSM, 0x1112, 0x1112);
+        plan.add(2, false, CELL_BROADCAST_RAN_TYPE_GSM, 0x1115, 0x1115);
+        plan.add(1, true, CELL_BROADCAST_RAN_TYPE_GSM, 0x1113, 0x1113);
+
+        // Each group is disabled with the bounds it is enabled with, whatever the other groups.
+        List<Interval> intervals = plan.getIntervals();
+        assertEquals(intervals.toString(), 2, intervals.size());
+        assertInterval(intervals.get(0), false, CELL_BROADCAST_RAN_TYPE_GSM, 0x1113, 0x1115);
+        assertInterval(intervals.get(1), true, CELL_BROADCAST_RAN_TYPE_GSM, 0x1112, 0x1113);
+    }
+
+    /** @return the channel ranges of each resource key in the resources */
+    private static SparseArray<List<CellBroadcastChannelRange>> getChannelRanges(
+            Resources res) {
+        SparseArray<List<CellBroadcastChannelRange>> channelRanges = new SparseArray<>();
+        int[] vibrationPattern = res.getIntArray(R.array.default_vibration_pattern);
+        for (int key : RANGE_KEYS) {
+            ArrayList<CellBroadcastChannelRange> ranges = new ArrayList<>();
+            for (String range : res.getStringArray(key)) {
+                try {
+                    ranges.add(new CellBroadcastChannelRange(range, vibrationPattern));
+                } catch (Exception e) {
+                    // Skipped by CellBroadcastChannelManager as well.
+                }
+            }
+            channelRanges.put(key, ranges);
+        }
+        return channelRanges;
+    }
+
+    /**
+     * Count the radio calls configuring the channels of every resource overlay, one call per
+     * range as configured and one call per planned interval.
+     */
+    @Test
+    @SmallTest
+    public void testOverlayCallCount() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        int totalRanges = 0;
+        int totalCalls = 0;
+        for (int[] overlay : OVERLAYS) {
+            Configuration config = new Configuration(context.getResources().getConfiguration());
+            config.mcc = overlay[0];
+            config.mnc = overlay[1] == 0 ? Configuration.MNC_ZERO : Math.max(overlay[1], 0);
+            SparseArray<List<CellBroadcastChannelRange>> channelRanges = getChannelRanges(
+                    context.createConfigurationContext(config).getResources());
+
+            int ranges = 0;
+            for (int i = 0; i < channelRanges.size(); i++) {
+                ranges += channelRanges.valueAt(i).size();
+            }
+            int enableCalls = CellBroadcastConfigService.getChannelPlan(channelRanges::get,
+                    CellBroadcastConfigService.ALL_GROUPS).getIntervals().size();
+            int disableCalls = CellBroadcastConfigService.getChannelPlan(channelRanges::get, 0)
+                    .getIntervals().size();
+
+            Log.d(TAG, "mcc=" + overlay[0] + " mnc=" + overlay[1] + " ranges=" + ranges
+                    + " calls=" + enableCalls);
+            assertTrue(enableCalls <= ranges);
+            // Disabling everything takes the same intervals as enabling everything.
+            assertEquals(enableCalls, disableCalls);
+            totalRanges += ranges;
+            totalCalls += enableCalls;
+        }
+        Log.d(TAG, "overlays=" + OVERLAYS.length + " ranges=" + totalRanges + " calls="
+                + totalCalls);
+        assertTrue(totalCalls < totalRanges);
+    }
+}
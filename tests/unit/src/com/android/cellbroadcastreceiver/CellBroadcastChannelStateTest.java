@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.content.Context;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+
+public class CellBroadcastChannelStateTest {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @After
+    public void tearDown() throws Exception {
+        CellBroadcastChannelState.invalidate(mContext);
+    }
+
+    @Test
+    @SmallTest
+    public void testStaleStateDropped() throws Exception {
+        CellBroadcastChannelState.invalidate(mContext);
+        Set<String> applied = Collections.singleton(
+                CellBroadcastChannelPlan.getKey(1, 4352, 4354));
+        CellBroadcastChannelState.setApplied(mContext, 0, applied,
+                CellBroadcastChannelState.getGeneration());
+        assertEquals(applied, CellBroadcastChannelState.getApplied(mContext, 0));
+
+        // The radio is reset while a configuration of the slot is running.
+        int generation = CellBroadcastChannelState.getGeneration();
+        CellBroadcastChannelState.invalidate(mContext);
+        CellBroadcastChannelState.setApplied(mContext, 0, applied, generation);
+        assertNull(CellBroadcastChannelState.getApplied(mContext, 0));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.HandlerThread;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CellBroadcastConfigSchedulerTest {
+
+    private HandlerThread mThread;
+
+    @Before
+    public void setUp() throws Exception {
+        mThread = new HandlerThread("CellBroadcastConfigSchedulerTest");
+        mThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mThread.quitSafely();
+    }
+
+    /** Counts the reconfigurations, each one taking the given time. */
+    private static class TestConfigurator implements CellBroadcastConfigScheduler.Configurator {
+        private final AtomicInteger mRuns;
+        private final CountDownLatch mIdle;
+        private final long mRunMillis;
+
+        TestConfigurator(AtomicInteger runs, CountDownLatch idle, long runMillis) {
+            mRuns = runs;
+            mIdle = idle;
+            mRunMillis = runMillis;
+        }
+
+        @Override
+        public void configure() {
+            mRuns.incrementAndGet();
+            try {
+                Thread.sleep(mRunMillis);
+            } catch (InterruptedException e) {
+            }
+        }
+
+        @Override
+        public void onIdle() {
+            mIdle.countDown();
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testBurstMerged() throws Exception {
+        CellBroadcastConfigScheduler scheduler =
+                new CellBroadcastConfigScheduler(mThread.getLooper(), 200);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch idle = new CountDownLatch(1);
+        // The first trigger runs right away, the others are merged into one more run.
+        for (int i = 0; i < 4; i++) {
+            scheduler.schedule(new TestConfigurator(runs, idle, 50));
+            Thread.sleep(20);
+        }
+
+        assertTrue(idle.await(2, TimeUnit.SECONDS));
+        assertEquals(2, runs.get());
+        assertEquals(4, scheduler.getTriggerCount());
+        assertEquals(2, scheduler.getRunCount());
+        assertTrue(scheduler.getTotalRunMillis() >= 100);
+        assertTrue(scheduler.getMaxRunMillis() >= 50);
+    }
+
+    @Test
+    @SmallTest
+    public void testTriggerWhileRunning() throws Exception {
+        CellBroadcastConfigScheduler scheduler =
+                new CellBroadcastConfigScheduler(mThread.getLooper(), 0);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch firstIdle = new CountDownLatch(1);
+        CountDownLatch lastIdle = new CountDownLatch(1);
+        scheduler.schedule(new TestConfigurator(runs, firstIdle, 200));
+        Thread.sleep(50);
+        // Settings may have been read already, so the running reconfiguration does not count.
+        scheduler.schedule(new TestConfigurator(runs, lastIdle, 0));
+        scheduler.schedule(new TestConfigurator(runs, lastIdle, 0));
+
+        assertTrue(lastIdle.await(2, TimeUnit.SECONDS));
+        assertEquals(2, runs.get());
+        // Only the configurator of the last trigger is told there is nothing left to run.
+        assertEquals(1, firstIdle.getCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testSubscriptionsInParallel() throws Exception {
+        CellBroadcastConfigScheduler scheduler =
+                new CellBroadcastConfigScheduler(mThread.getLooper(), 0);
+        AtomicInteger configured = new AtomicInteger();
+        AtomicInteger overlapped = new AtomicInteger();
+        // Each subscription waits for the other one to start, which only happens in parallel.
+        CountDownLatch started = new CountDownLatch(2);
+        scheduler.configureSubscriptions(new int[]{1, 2, 3}, subId -> {
+            if (subId == 3) {
+                throw new IllegalStateException("Radio not available");
+            }
+            started.countDown();
+            try {
+                if (started.await(5, TimeUnit.SECONDS)) {
+                    overlapped.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+            }
+            configured.incrementAndGet();
+        });
+
+        // Returns once every subscription is configured, with the subscriptions overlapping.
+        assertEquals(2, configured.get());
+        assertEquals(2, overlapped.get());
+        assertTrue(scheduler.getLastSubscriptionMillis(1) >= 0);
+        assertTrue(scheduler.getLastSubscriptionMillis(2) >= 0);
+        assertTrue(scheduler.getMaxSubscriptionMillis(3) >= 0);
+        assertEquals(-1, scheduler.getLastSubscriptionMillis(4));
+    }
+}
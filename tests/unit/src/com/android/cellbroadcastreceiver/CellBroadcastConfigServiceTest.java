@@ -21,6 +21,7 @@ import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -44,7 +45,9 @@ import org.mockito.Mock;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Cell broadcast config service tests
@@ -274,10 +277,11 @@ public class CellBroadcastConfigServiceTest extends CellBroadcastTest {
                 eq(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_CHILD_ABDUCTION_EMERGENCY),
                 eq(SmsManager.CELL_BROADCAST_RAN_TYPE_GSM));
 
+        // The adjacent test channels are disabled at once.
         verify(mMockedSmsService, times(1)).disableCellBroadcastRangeForSubscriber(
                 eq(0),
                 eq(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_REQUIRED_MONTHLY_TEST),
-                eq(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_REQUIRED_MONTHLY_TEST),
+                eq(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_OPERATOR_DEFINED_USE),
                 eq(SmsManager.CELL_BROADCAST_RAN_TYPE_GSM));
     }
 
@@ -617,4 +621,57 @@ public class CellBroadcastConfigServiceTest extends CellBroadcastTest {
                 eq(SmsCbConstants.MESSAGE_ID_ETWS_OTHER_EMERGENCY_TYPE),
                 eq(SmsManager.CELL_BROADCAST_RAN_TYPE_GSM));
     }
-}
\ No newline at end of file
+
+    /**
+     * Test only the intervals changed since the last configuration are enabled or disabled
+     */
+    @Test
+    @SmallTest
+    public void testApplyChanges() throws Exception {
+        doReturn(true).when(mMockedSmsService).enableCellBroadcastRangeForSubscriber(
+                anyInt(), anyInt(), anyInt(), anyInt());
+        CellBroadcastChannelPlan plan = new CellBroadcastChannelPlan();
+        plan.add(CellBroadcastConfigService.GROUP_PRESIDENTIAL, true,
+                SmsManager.CELL_BROADCAST_RAN_TYPE_GSM, 0x1112, 0x1112);
+        plan.add(CellBroadcastConfigService.GROUP_CMAS_EXTREME, true,
+                SmsManager.CELL_BROADCAST_RAN_TYPE_GSM, 0x1113, 0x1114);
+        Set<String> applied = new HashSet<>();
+        assertEquals(2, plan.applyChanges(mSmsManager, applied));
+        assertEquals(2, applied.size());
+
+        // Nothing changed since.
+        assertEquals(0, plan.applyChanges(mSmsManager, applied));
+
+        plan = new CellBroadcastChannelPlan();
+        plan.add(CellBroadcastConfigService.GROUP_PRESIDENTIAL, true,
+                SmsManager.CELL_BROADCAST_RAN_TYPE_GSM, 0x1112, 0x1112);
+        plan.add(CellBroadcastConfigService.GROUP_CMAS_EXTREME, false,
+                SmsManager.CELL_BROADCAST_RAN_TYPE_GSM, 0x1113, 0x1114);
+        assertEquals(1, plan.applyChanges(mSmsManager, applied));
+        assertEquals(1, applied.size());
+
+        verify(mMockedSmsService, times(1)).enableCellBroadcastRangeForSubscriber(
+                eq(0),
+                eq(0x1112),
+                eq(0x1112),
+                eq(SmsManager.CELL_BROADCAST_RAN_TYPE_GSM));
+
+        verify(mMockedSmsService, times(1)).enableCellBroadcastRangeForSubscriber(
+                eq(0),
+                eq(0x1113),
+                eq(0x1114),
+                eq(SmsManager.CELL_BROADCAST_RAN_TYPE_GSM));
+
+        verify(mMockedSmsService, times(1)).disableCellBroadcastRangeForSubscriber(
+                eq(0),
+                eq(0x1113),
+                eq(0x1114),
+                eq(SmsManager.CELL_BROADCAST_RAN_TYPE_GSM));
+
+        verify(mMockedSmsService, never()).disableCellBroadcastRangeForSubscriber(
+                anyInt(),
+                eq(0x1112),
+                eq(0x1112),
+                anyInt());
+    }
+}
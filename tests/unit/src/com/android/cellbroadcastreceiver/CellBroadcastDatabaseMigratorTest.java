@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.Telephony;
+import android.telephony.SmsCbMessage;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CellBroadcastDatabaseMigratorTest {
+
+    private static final String TAG = "CBDatabaseMigratorTest";
+
+    private CellBroadcastTestDatabase mDatabase;
+    private SQLiteDatabase mDb;
+    private CellBroadcastDatabaseHelper mHelper;
+
+    @Before
+    public void setUp() throws Exception {
+        mDatabase = CellBroadcastTestDatabase.createEmpty();
+        mDb = mDatabase.getDb();
+        mHelper = new CellBroadcastDatabaseHelper(InstrumentationRegistry.getTargetContext());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDatabase.close();
+    }
+
+    /** Store broadcasts in a version 10 table, one in three of them read. */
+    private void createV10Table(int rows) {
+        mDb.execSQL("CREATE TABLE " + CellBroadcastDatabaseHelper.TABLE_NAME + " ("
+                + CellBroadcastDatabaseHelper.COLUMNS_V10 + ");");
+        SQLiteStatement insert = mDb.compileStatement("INSERT INTO "
+                + CellBroadcastDatabaseHelper.TABLE_NAME + " ("
+                + Telephony.CellBroadcasts.SERVICE_CATEGORY + ","
+                + Telephony.CellBroadcasts.MESSAGE_BODY + ","
+                + Telephony.CellBroadcasts.DELIVERY_TIME + ","
+                + Telephony.CellBroadcasts.MESSAGE_READ + ","
+                + Telephony.CellBroadcasts.MESSAGE_FORMAT + ","
+                + Telephony.CellBroadcasts.MESSAGE_PRIORITY + ") VALUES (?,?,?,?,?,?)");
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                insert.bindLong(1, 0x1112 + i % 4);
+                insert.bindString(2, "Flood warning " + i);
+                insert.bindLong(3, i);
+                insert.bindLong(4, i % 3 == 0 ? 1 : 0);
+                insert.bindLong(5, SmsCbMessage.MESSAGE_FORMAT_3GPP);
+                insert.bindLong(6, i % 4 == 0 ? SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY
+                        : SmsCbMessage.MESSAGE_PRIORITY_NORMAL);
+                insert.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            insert.close();
+        }
+    }
+
+    /** Store broadcasts in a version 1 table, one in three of them read. */
+    private void createV1Table(int rows) {
+        mDb.execSQL("CREATE TABLE " + CellBroadcastDatabaseHelper.TABLE_NAME + " ("
+                + Telephony.CellBroadcasts._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE + " INTEGER,"
+                + Telephony.CellBroadcasts.SERIAL_NUMBER + " INTEGER,"
+                + Telephony.CellBroadcasts.V1_MESSAGE_CODE + " INTEGER,"
+                + Telephony.CellBroadcasts.V1_MESSAGE_IDENTIFIER + " INTEGER,"
+                + Telephony.CellBroadcasts.LANGUAGE_CODE + " TEXT,"
+                + Telephony.CellBroadcasts.MESSAGE_BODY + " TEXT,"
+                + Telephony.CellBroadcasts.DELIVERY_TIME + " INTEGER,"
+                + Telephony.CellBroadcasts.MESSAGE_READ + " INTEGER);");
+        SQLiteStatement insert = mDb.compileStatement("INSERT INTO "
+                + CellBroadcastDatabaseHelper.TABLE_NAME + " ("
+                + Telephony.CellBroadcasts.V1_MESSAGE_IDENTIFIER + ","
+                + Telephony.CellBroadcasts.LANGUAGE_CODE + ","
+                + Telephony.CellBroadcasts.MESSAGE_BODY + ","
+                + Telephony.CellBroadcasts.DELIVERY_TIME + ","
+                + Telephony.CellBroadcasts.MESSAGE_READ + ") VALUES (?,?,?,?,?)");
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                insert.bindLong(1, 0x1112 + i % 4);
+                insert.bindString(2, "en");
+                insert.bindString(3, "Flood warning " + i);
+                insert.bindLong(4, i);
+                insert.bindLong(5, i % 3 == 0 ? 1 : 0);
+                insert.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            insert.close();
+        }
+    }
+
+    /** Upgrade the schema in a transaction, as SQLiteOpenHelper does. */
+    private void upgradeSchema(CellBroadcastDatabaseMigrator migrator, int oldVersion) {
+        mDb.beginTransaction();
+        try {
+            migrator.upgrade(mDb, oldVersion, CellBroadcastDatabaseHelper.DATABASE_VERSION);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private void upgrade(int oldVersion) {
+        mDb.beginTransaction();
+        try {
+            mHelper.onUpgrade(mDb, oldVersion, CellBroadcastDatabaseHelper.DATABASE_VERSION);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        while (mHelper.migrateNextChunk(mDb)) {
+            // Migrate the broadcasts in chunks, as the background task does.
+        }
+    }
+
+    private long count(String table, String selection) {
+        return DatabaseUtils.queryNumEntries(mDb, table, selection);
+    }
+
+    private long sumStats(String column) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT IFNULL(SUM(" + column + "),0) FROM "
+                + CellBroadcastDatabaseHelper.STATS_TABLE_NAME, null);
+    }
+
+    private boolean hasProgressTable() {
+        return count("sqlite_master", "type='table' AND name='"
+                + CellBroadcastDatabaseMigrator.PROGRESS_TABLE_NAME + "'") > 0;
+    }
+
+    /** Check every broadcast was migrated, and only once. */
+    private void assertMigrated(int rows) {
+        assertEquals(rows, count(CellBroadcastDatabaseHelper.TABLE_NAME,
+                CellBroadcastDatabaseHelper.BODY_PREVIEW + "="
+                        + Telephony.CellBroadcasts.MESSAGE_BODY));
+        assertEquals(rows, count(CellBroadcastDatabaseHelper.TABLE_NAME,
+                CellBroadcastDatabaseHelper.TITLE_KEY + " IS NOT NULL"));
+        assertEquals(rows, count(CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME,
+                CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME + " MATCH 'flood'"));
+        assertEquals(1, count(CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME,
+                CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME + " MATCH '" + (rows - 1) + "'"));
+        assertEquals(rows, sumStats(CellBroadcastDatabaseHelper.STATS_TOTAL));
+        assertEquals(count(CellBroadcastDatabaseHelper.TABLE_NAME,
+                Telephony.CellBroadcasts.MESSAGE_READ + "=0"),
+                sumStats(CellBroadcastDatabaseHelper.STATS_UNREAD));
+        assertFalse(hasProgressTable());
+    }
+
+    @Test
+    @SmallTest
+    public void testUpgradeFromV10() throws Exception {
+        createV10Table(2500);
+        upgrade(10);
+        assertMigrated(2500);
+    }
+
+    @Test
+    @SmallTest
+    public void testStatsBeforeRowMigration() throws Exception {
+        createV10Table(2500);
+        mDb.beginTransaction();
+        try {
+            mHelper.onUpgrade(mDb, 10, CellBroadcastDatabaseHelper.DATABASE_VERSION);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        // Broadcasts read or deleted before their chunk is migrated are counted once.
+        assertEquals(2500, sumStats(CellBroadcastDatabaseHelper.STATS_TOTAL));
+        mDb.execSQL("UPDATE " + CellBroadcastDatabaseHelper.TABLE_NAME + " SET "
+                + Telephony.CellBroadcasts.MESSAGE_READ + "=1 WHERE "
+                + Telephony.CellBroadcasts._ID + " IN (2400,2401)");
+        mDb.execSQL("DELETE FROM " + CellBroadcastDatabaseHelper.TABLE_NAME + " WHERE "
+                + Telephony.CellBroadcasts._ID + " IN (2401,2402)");
+        while (mHelper.migrateNextChunk(mDb)) {
+            // Migrate the broadcasts in chunks, as the background task does.
+        }
+        assertEquals(2498, sumStats(CellBroadcastDatabaseHelper.STATS_TOTAL));
+        assertEquals(count(CellBroadcastDatabaseHelper.TABLE_NAME,
+                Telephony.CellBroadcasts.MESSAGE_READ + "=0"),
+                sumStats(CellBroadcastDatabaseHelper.STATS_UNREAD));
+    }
+
+    @Test
+    @SmallTest
+    public void testUpgradeFromV1() throws Exception {
+        createV1Table(100);
+        upgrade(1);
+        assertMigrated(100);
+    }
+
+    @Test
+    @SmallTest
+    public void testResume() throws Exception {
+        createV10Table(95);
+        CellBroadcastDatabaseMigrator migrator =
+                new CellBroadcastDatabaseMigrator(mHelper.getUpgradeSteps(), 10);
+        upgradeSchema(migrator, 10);
+        assertTrue(hasProgressTable());
+        for (int i = 0; i < 13; i++) {
+            assertTrue(migrator.migrateNextChunk(mDb));
+        }
+        // A broadcast stored meanwhile is counted and indexed by the triggers, not migrated.
+        mDb.execSQL("INSERT INTO " + CellBroadcastDatabaseHelper.TABLE_NAME + " ("
+                + Telephony.CellBroadcasts.MESSAGE_BODY + ","
+                + Telephony.CellBroadcasts.MESSAGE_READ + ","
+                + CellBroadcastDatabaseHelper.BODY_PREVIEW + ","
+                + CellBroadcastDatabaseHelper.TITLE_KEY + ") VALUES ("
+                + "'Flood warning 95',0,'Flood warning 95','cmas_presidential_level_alert')");
+
+        // The process died, the next one resumes where the last chunk left off.
+        new CellBroadcastDatabaseMigrator(mHelper.getUpgradeSteps(), 10).migrateRows(mDb);
+        assertMigrated(96);
+        assertFalse(migrator.migrateNextChunk(mDb));
+    }
+
+    private void benchmark(int oldVersion, int rows) {
+        long start = System.nanoTime();
+        mDb.beginTransaction();
+        try {
+            mHelper.onUpgrade(mDb, oldVersion, CellBroadcastDatabaseHelper.DATABASE_VERSION);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        long upgradeMs = (System.nanoTime() - start) / 1000000;
+
+        CellBroadcastDatabaseMigrator migrator =
+                new CellBroadcastDatabaseMigrator(mHelper.getUpgradeSteps(), 1000);
+        long[] maxChunkNs = new long[1];
+        long[] chunkStart = {System.nanoTime()};
+        migrator.setProgressListener((version, migratedRows, totalRows) -> {
+            long now = System.nanoTime();
+            maxChunkNs[0] = Math.max(maxChunkNs[0], now - chunkStart[0]);
+            chunkStart[0] = now;
+            if (migratedRows == totalRows) {
+                Log.d(TAG, "Version " + version + ": " + totalRows + " rows");
+            }
+        });
+        start = System.nanoTime();
+        migrator.migrateRows(mDb);
+        long migrateMs = (System.nanoTime() - start) / 1000000;
+
+        Log.d(TAG, "from=" + oldVersion + " rows=" + rows + " upgrade=" + upgradeMs
+                + "ms migrate=" + migrateMs + "ms maxChunk=" + maxChunkNs[0] / 1000 + "us");
+        assertMigrated(rows);
+    }
+
+    @Test
+    @LargeTest
+    public void testUpgradeFromV10Latency() throws Exception {
+        createV10Table(100000);
+        benchmark(10, 100000);
+    }
+
+    @Test
+    @LargeTest
+    public void testUpgradeFromV1Latency() throws Exception {
+        createV1Table(100000);
+        benchmark(1, 100000);
+    }
+}
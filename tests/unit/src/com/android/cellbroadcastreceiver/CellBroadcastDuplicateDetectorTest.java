@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.telephony.SmsCbLocation;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.Random;
+
+public class CellBroadcastDuplicateDetectorTest {
+
+    private static final String TAG = "CBDuplicateDetectorTest";
+
+    private static final long NOT_FOUND = CellBroadcastDuplicateDetector.NOT_FOUND;
+
+    @Test
+    @SmallTest
+    public void testPutAndGet() throws Exception {
+        CellBroadcastDuplicateDetector detector = new CellBroadcastDuplicateDetector(4);
+        assertEquals(NOT_FOUND, detector.getTimestamp(0x1112, 1, 0, 0, false));
+
+        assertFalse(detector.put(0x1112, 1, 0, 0, false, 100));
+        assertEquals(100, detector.getTimestamp(0x1112, 1, 0, 0, false));
+
+        // Every part of the identity counts.
+        assertEquals(NOT_FOUND, detector.getTimestamp(0x1113, 1, 0, 0, false));
+        assertEquals(NOT_FOUND, detector.getTimestamp(0x1112, 2, 0, 0, false));
+        assertEquals(NOT_FOUND, detector.getTimestamp(0x1112, 1, 1, 0, false));
+        assertEquals(NOT_FOUND, detector.getTimestamp(0x1112, 1, 0, 1, false));
+        assertEquals(NOT_FOUND, detector.getTimestamp(0x1112, 1, 0, 0, true));
+
+        // Refreshing an identity updates the timestamp without adding an entry.
+        assertFalse(detector.put(0x1112, 1, 0, 0, false, 200));
+        assertEquals(200, detector.getTimestamp(0x1112, 1, 0, 0, false));
+        assertEquals(1, detector.size());
+
+        detector.clear();
+        assertEquals(0, detector.size());
+        assertEquals(NOT_FOUND, detector.getTimestamp(0x1112, 1, 0, 0, false));
+    }
+
+    @Test
+    @SmallTest
+    public void testEvictOldest() throws Exception {
+        CellBroadcastDuplicateDetector detector = new CellBroadcastDuplicateDetector(3);
+        detector.put(0x1112, 0, 0, 0, false, 0);
+        detector.put(0x1112, 1, 0, 0, false, 1);
+        detector.put(0x1112, 2, 0, 0, false, 2);
+
+        // Refreshing serial 0 keeps it the oldest entry, as LinkedHashMap.put() does.
+        assertFalse(detector.put(0x1112, 0, 0, 0, false, 3));
+        assertTrue(detector.put(0x1112, 3, 0, 0, false, 4));
+
+        assertEquals(3, detector.size());
+        assertEquals(NOT_FOUND, detector.getTimestamp(0x1112, 0, 0, 0, false));
+        assertEquals(1, detector.getTimestamp(0x1112, 1, 0, 0, false));
+        assertEquals(2, detector.getTimestamp(0x1112, 2, 0, 0, false));
+        assertEquals(4, detector.getTimestamp(0x1112, 3, 0, 0, false));
+    }
+
+    @Test
+    @SmallTest
+    public void testEvictExpired() throws Exception {
+        CellBroadcastDuplicateDetector detector = new CellBroadcastDuplicateDetector(8);
+        detector.put(0x1112, 0, 0, 0, false, 0);
+        detector.put(0x1112, 1, 0, 0, false, 10);
+        detector.put(0x1112, 2, 0, 0, false, 20);
+
+        // Looking up evicts the identities recorded before the minimum timestamp.
+        assertEquals(20, detector.getTimestamp(0x1112, 2, 0, 0, false, 15));
+        assertEquals(1, detector.size());
+        assertEquals(NOT_FOUND, detector.getTimestamp(0x1112, 1, 0, 0, false));
+
+        // So does recording one, without counting as an eviction to make room.
+        assertFalse(detector.put(0x1112, 3, 0, 0, false, 30, 25));
+        assertEquals(1, detector.size());
+        assertEquals(30, detector.getTimestamp(0x1112, 3, 0, 0, false));
+    }
+
+    @Test
+    @SmallTest
+    public void testMatchesLinkedHashMap() throws Exception {
+        // Drive both tables with a key space much larger than the capacity so entries are
+        // evicted, refreshed and collide in the index, and check they always agree.
+        final int capacity = 64;
+        CellBroadcastDuplicateDetector detector = new CellBroadcastDuplicateDetector(capacity);
+        LinkedHashMap<Key, Long> map = new LinkedHashMap<>();
+        Random random = new Random(0);
+        for (long now = 0; now < 20000; now++) {
+            Key key = new Key(0x1112 + random.nextInt(3), random.nextInt(200),
+                    random.nextInt(2), 0, random.nextBoolean());
+            Long expected = map.get(key);
+            assertEquals(expected == null ? NOT_FOUND : expected.longValue(),
+                    detector.getTimestamp(key.mServiceCategory, key.mSerialNumber,
+                            key.mLocationHash, key.mBodyHash, key.mIsEtwsPrimary));
+            if (expected == null && map.size() >= capacity) {
+                Iterator<Key> it = map.keySet().iterator();
+                it.next();
+                it.remove();
+            }
+            map.put(key, now);
+            detector.put(key.mServiceCategory, key.mSerialNumber, key.mLocationHash,
+                    key.mBodyHash, key.mIsEtwsPrimary, now);
+            assertEquals(map.size(), detector.size());
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testHashes() throws Exception {
+        assertEquals(CellBroadcastDuplicateDetector.hashBody("body"),
+                CellBroadcastDuplicateDetector.hashBody(new String("body")));
+        assertNotEquals(CellBroadcastDuplicateDetector.hashBody("body"),
+                CellBroadcastDuplicateDetector.hashBody("body2"));
+        assertEquals(0, CellBroadcastDuplicateDetector.hashBody(null));
+
+        assertEquals(CellBroadcastDuplicateDetector.hashLocation(
+                new SmsCbLocation("310260", 1, 2)),
+                CellBroadcastDuplicateDetector.hashLocation(new SmsCbLocation("310260", 1, 2)));
+        assertNotEquals(CellBroadcastDuplicateDetector.hashLocation(
+                new SmsCbLocation("310260", 1, 2)),
+                CellBroadcastDuplicateDetector.hashLocation(new SmsCbLocation("310260", 1, 3)));
+        assertNotEquals(CellBroadcastDuplicateDetector.hashLocation(
+                new SmsCbLocation("310260", 1, 2)),
+                CellBroadcastDuplicateDetector.hashLocation(new SmsCbLocation("310261", 1, 2)));
+    }
+
+    /**
+     * Compare the cost of a lookup followed by an insert against the LinkedHashMap the detector
+     * replaced, at the production capacity and at much larger ones.
+     */
+    @Test
+    @LargeTest
+    public void testBenchmark() throws Exception {
+        for (int capacity : new int[]{1024, 64 * 1024, 1024 * 1024}) {
+            // Insert twice the capacity so half of the operations evict.
+            int operations = capacity * 2;
+
+            long start = System.nanoTime();
+            CellBroadcastDuplicateDetector detector = new CellBroadcastDuplicateDetector(capacity);
+            for (int i = 0; i < operations; i++) {
+                if (detector.getTimestamp(0x1112, i, 1, 2, false) == NOT_FOUND) {
+                    detector.put(0x1112, i, 1, 2, false, i);
+                }
+            }
+            long detectorNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            LinkedHashMap<Key, Long> map = new LinkedHashMap<>();
+            for (int i = 0; i < operations; i++) {
+                Key key = new Key(0x1112, i, 1, 2, false);
+                if (map.get(key) == null) {
+                    if (map.size() >= capacity) {
+                        map.remove(map.keySet().iterator().next());
+                    }
+                    map.put(key, (long) i);
+                }
+            }
+            long mapNs = System.nanoTime() - start;
+
+            Log.d(TAG, "capacity=" + capacity + " detector=" + (detectorNs / operations)
+                    + "ns/op LinkedHashMap=" + (mapNs / operations) + "ns/op");
+            assertEquals(capacity, detector.size());
+            assertEquals(capacity, map.size());
+        }
+    }
+
+    /** Replica of the key the LinkedHashMap-based detection used. */
+    private static final class Key {
+        final int mServiceCategory;
+        final int mSerialNumber;
+        final long mLocationHash;
+        final long mBodyHash;
+        final boolean mIsEtwsPrimary;
+
+        Key(int serviceCategory, int serialNumber, long locationHash, long bodyHash,
+                boolean isEtwsPrimary) {
+            mServiceCategory = serviceCategory;
+            mSerialNumber = serialNumber;
+            mLocationHash = locationHash;
+            mBodyHash = bodyHash;
+            mIsEtwsPrimary = isEtwsPrimary;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mServiceCategory, mSerialNumber, mLocationHash, mBodyHash,
+                    mIsEtwsPrimary);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return mServiceCategory == other.mServiceCategory
+                    && mSerialNumber == other.mSerialNumber
+                    && mLocationHash == other.mLocationHash
+                    && mBodyHash == other.mBodyHash
+                    && mIsEtwsPrimary == other.mIsEtwsPrimary;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static org.junit.Assert.assertEquals;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+public class CellBroadcastDuplicateJournalTest {
+
+    private static final String TAG = "CBDuplicateJournalTest";
+
+    private static final long NOT_FOUND = CellBroadcastDuplicateDetector.NOT_FOUND;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("journal", null);
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    private CellBroadcastDuplicateDetector reload(int capacity) throws Exception {
+        CellBroadcastDuplicateDetector detector = new CellBroadcastDuplicateDetector(capacity);
+        CellBroadcastDuplicateJournal journal = new CellBroadcastDuplicateJournal(mFile, capacity,
+                CellBroadcastDuplicateJournal.MODE_MAPPED);
+        // Elapsed realtime 1000 corresponds to wall clock time 1000000.
+        journal.load(detector, 1000, 1000000);
+        journal.close();
+        return detector;
+    }
+
+    @Test
+    @SmallTest
+    public void testReload() throws Exception {
+        CellBroadcastDuplicateJournal journal = new CellBroadcastDuplicateJournal(mFile, 4,
+                CellBroadcastDuplicateJournal.MODE_MAPPED);
+        assertEquals(0, journal.load(new CellBroadcastDuplicateDetector(4), 0, 0));
+        journal.append(0x1112, 1, 2, 3, false, 999900);
+        journal.append(0x1100, 1, 2, 3, true, 999950);
+        journal.close();
+
+        CellBroadcastDuplicateDetector detector = reload(4);
+        assertEquals(2, detector.size());
+        // Timestamps are converted back to the elapsed realtime base of the new detector.
+        assertEquals(900, detector.getTimestamp(0x1112, 1, 2, 3, false));
+        assertEquals(950, detector.getTimestamp(0x1100, 1, 2, 3, true));
+        assertEquals(NOT_FOUND, detector.getTimestamp(0x1100, 1, 2, 3, false));
+    }
+
+    @Test
+    @SmallTest
+    public void testRingOrder() throws Exception {
+        CellBroadcastDuplicateJournal journal = new CellBroadcastDuplicateJournal(mFile, 3,
+                CellBroadcastDuplicateJournal.MODE_MAPPED);
+        journal.load(new CellBroadcastDuplicateDetector(3), 0, 0);
+        for (int serial = 0; serial < 5; serial++) {
+            journal.append(0x1112, serial, 0, 0, false, serial);
+        }
+        journal.close();
+
+        // Only the three newest records survive the wrap around, and keep appending in order.
+        CellBroadcastDuplicateDetector detector = reload(3);
+        assertEquals(3, detector.size());
+        assertEquals(NOT_FOUND, detector.getTimestamp(0x1112, 1, 0, 0, false));
+        assertEquals(1000 - (1000000 - 2), detector.getTimestamp(0x1112, 2, 0, 0, false));
+
+        journal = new CellBroadcastDuplicateJournal(mFile, 3,
+                CellBroadcastDuplicateJournal.MODE_MAPPED);
+        journal.load(new CellBroadcastDuplicateDetector(3), 0, 0);
+        journal.append(0x1112, 5, 0, 0, false, 5);
+        journal.close();
+        detector = reload(3);
+        assertEquals(NOT_FOUND, detector.getTimestamp(0x1112, 2, 0, 0, false));
+        assertEquals(1000 - (1000000 - 5), detector.getTimestamp(0x1112, 5, 0, 0, false));
+    }
+
+    @Test
+    @SmallTest
+    public void testCorruptRecordIgnored() throws Exception {
+        CellBroadcastDuplicateJournal journal = new CellBroadcastDuplicateJournal(mFile, 4,
+                CellBroadcastDuplicateJournal.MODE_SYNC);
+        journal.load(new CellBroadcastDuplicateDetector(4), 0, 0);
+        journal.append(0x1112, 1, 0, 0, false, 0);
+        journal.append(0x1112, 2, 0, 0, false, 0);
+        journal.close();
+
+        // Flip the serial number of the second record, in slot 2 after the 16 byte header.
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.seek(16 + 2 * 48 + 12);
+            file.write(0x7f);
+        }
+
+        CellBroadcastDuplicateDetector detector = reload(4);
+        assertEquals(1, detector.size());
+        assertEquals(NOT_FOUND, detector.getTimestamp(0x1112, 2, 0, 0, false));
+    }
+
+    @Test
+    @SmallTest
+    public void testClearAndCapacityChange() throws Exception {
+        CellBroadcastDuplicateJournal journal = new CellBroadcastDuplicateJournal(mFile, 4,
+                CellBroadcastDuplicateJournal.MODE_MAPPED);
+        journal.load(new CellBroadcastDuplicateDetector(4), 0, 0);
+        journal.append(0x1112, 1, 0, 0, false, 0);
+        journal.clear();
+        journal.close();
+        assertEquals(0, reload(4).size());
+
+        journal = new CellBroadcastDuplicateJournal(mFile, 4,
+                CellBroadcastDuplicateJournal.MODE_MAPPED);
+        journal.load(new CellBroadcastDuplicateDetector(4), 0, 0);
+        journal.append(0x1112, 1, 0, 0, false, 0);
+        journal.close();
+        // A journal written with another capacity is discarded.
+        assertEquals(0, reload(8).size());
+    }
+
+    /**
+     * Measure the latency added to the alert path by each journal mode.
+     */
+    @Test
+    @LargeTest
+    public void testAppendLatency() throws Exception {
+        final int appends = 1000;
+        for (int mode : new int[]{CellBroadcastDuplicateJournal.MODE_MAPPED,
+                CellBroadcastDuplicateJournal.MODE_SYNC}) {
+            mFile.delete();
+            CellBroadcastDuplicateJournal journal = new CellBroadcastDuplicateJournal(mFile,
+                    1024, mode);
+            journal.load(new CellBroadcastDuplicateDetector(1024), 0, 0);
+            long start = System.nanoTime();
+            for (int i = 0; i < appends; i++) {
+                journal.append(0x1112, i, 0, 0, false, i);
+            }
+            long appendNs = (System.nanoTime() - start) / appends;
+            journal.close();
+
+            start = System.nanoTime();
+            CellBroadcastDuplicateDetector detector = reload(1024);
+            long loadNs = System.nanoTime() - start;
+
+            Log.d(TAG, "mode=" + mode + " append=" + appendNs + "ns load=" + loadNs / 1000
+                    + "us");
+            assertEquals(appends, detector.size());
+        }
+    }
+}
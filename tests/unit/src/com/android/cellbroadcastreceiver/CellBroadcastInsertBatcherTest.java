@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastOperationExecutor.LANE_EMERGENCY;
+import static com.android.cellbroadcastreceiver.CellBroadcastOperationExecutor.LANE_NORMAL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.HandlerThread;
+import android.telephony.CellBroadcastMessage;
+import android.telephony.SmsCbLocation;
+import android.telephony.SmsCbMessage;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CellBroadcastInsertBatcherTest {
+
+    private HandlerThread mThread;
+
+    /** Lane and size of each written batch. */
+    private final List<int[]> mBatches = new ArrayList<>();
+
+    private final CellBroadcastInsertBatcher.BatchWriter mWriter =
+            (lane, messages, titleKeys, onStored) -> {
+                synchronized (mBatches) {
+                    mBatches.add(new int[]{lane, messages.size()});
+                }
+                onStored.accept(100);
+            };
+
+    @Before
+    public void setUp() throws Exception {
+        mThread = new HandlerThread("CellBroadcastInsertBatcherTest");
+        mThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mThread.quitSafely();
+    }
+
+    private static CellBroadcastMessage createMessage(int serialNumber) {
+        return new CellBroadcastMessage(new SmsCbMessage(SmsCbMessage.MESSAGE_FORMAT_3GPP,
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_CELL_WIDE, serialNumber, new SmsCbLocation(),
+                0x1111, "en", "body", SmsCbMessage.MESSAGE_PRIORITY_NORMAL, null, null));
+    }
+
+    @Test
+    @SmallTest
+    public void testWindow() throws Exception {
+        CellBroadcastInsertBatcher batcher =
+                new CellBroadcastInsertBatcher(mThread.getLooper(), 100, 32, mWriter);
+        CountDownLatch stored = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            batcher.insert(createMessage(i), null, false, stored::countDown);
+        }
+        // The first broadcast is not part of a burst yet, so it is stored right away.
+        synchronized (mBatches) {
+            assertEquals(1, mBatches.size());
+            assertEquals(1, mBatches.get(0)[1]);
+        }
+
+        assertTrue(stored.await(1, TimeUnit.SECONDS));
+        synchronized (mBatches) {
+            assertEquals(2, mBatches.size());
+            assertEquals(LANE_NORMAL, mBatches.get(1)[0]);
+            assertEquals(3, mBatches.get(1)[1]);
+        }
+        assertEquals(2, batcher.getBatchCount());
+        assertEquals(100, batcher.getAverageCommitMicros());
+    }
+
+    @Test
+    @SmallTest
+    public void testMaxBatchSize() throws Exception {
+        CellBroadcastInsertBatcher batcher =
+                new CellBroadcastInsertBatcher(mThread.getLooper(), 60000, 4, mWriter);
+        for (int i = 0; i < 9; i++) {
+            batcher.insert(createMessage(i), null, false, null);
+        }
+        synchronized (mBatches) {
+            assertEquals(3, mBatches.size());
+            assertEquals(4, mBatches.get(1)[1]);
+            assertEquals(4, mBatches.get(2)[1]);
+        }
+        assertEquals(4, batcher.getMaxBatchSize());
+    }
+
+    @Test
+    @SmallTest
+    public void testEmergencyFlush() throws Exception {
+        CellBroadcastInsertBatcher batcher =
+                new CellBroadcastInsertBatcher(mThread.getLooper(), 60000, 32, mWriter);
+        batcher.insert(createMessage(1), null, false, null);
+        batcher.insert(createMessage(2), null, false, null);
+        batcher.insert(createMessage(3), null, false, null);
+        batcher.insert(createMessage(4), null, true, null);
+
+        // The emergency alert is stored right away on its own, the batch is left to its window.
+        synchronized (mBatches) {
+            assertEquals(2, mBatches.size());
+            assertEquals(LANE_EMERGENCY, mBatches.get(1)[0]);
+            assertEquals(1, mBatches.get(1)[1]);
+        }
+
+        batcher.flush(LANE_NORMAL);
+        synchronized (mBatches) {
+            assertEquals(3, mBatches.size());
+            assertEquals(LANE_NORMAL, mBatches.get(2)[0]);
+            assertEquals(2, mBatches.get(2)[1]);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Parcel;
+import android.telephony.CellBroadcastMessage;
+import android.telephony.SmsCbCmasInfo;
+import android.telephony.SmsCbLocation;
+import android.telephony.SmsCbMessage;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.cellbroadcastreceiver.CellBroadcastAlertService.AlertType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CellBroadcastMessageClassificationTest extends CellBroadcastTest {
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        putResources(R.array.additional_cbs_channels_strings, new String[]{
+                "0xA804:type=test, emergency=true, vibration=0|100",
+        });
+        putResources(R.array.cmas_presidential_alerts_channels_range_strings, new String[]{
+                "0x1112:rat=gsm, emergency=true",
+        });
+        putResources(R.array.cmas_alert_extreme_channels_range_strings, new String[]{
+                "0x1113-0x1114:rat=gsm, emergency=true",
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private static CellBroadcastMessage createMessage(int serviceCategory) {
+        return new CellBroadcastMessage(new SmsCbMessage(SmsCbMessage.MESSAGE_FORMAT_3GPP,
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_CELL_WIDE, 1, new SmsCbLocation(),
+                serviceCategory, "en", "body", SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY, null,
+                new SmsCbCmasInfo(SmsCbCmasInfo.CMAS_CLASS_EXTREME_THREAT,
+                        SmsCbCmasInfo.CMAS_CATEGORY_GEO, SmsCbCmasInfo.CMAS_RESPONSE_TYPE_EVACUATE,
+                        SmsCbCmasInfo.CMAS_SEVERITY_EXTREME, SmsCbCmasInfo.CMAS_URGENCY_IMMEDIATE,
+                        SmsCbCmasInfo.CMAS_CERTAINTY_OBSERVED)));
+    }
+
+    @Test
+    @SmallTest
+    public void testClassifyCmasChannels() throws Exception {
+        CellBroadcastMessageClassification presidential = CellBroadcastMessageClassification
+                .classify(mContext, createMessage(0x1112));
+        assertTrue(presidential.isEmergency());
+        assertNull(presidential.getPreferenceKey());
+        assertEquals(R.string.cmas_presidential_level_alert, presidential.getTitleResId());
+
+        CellBroadcastMessageClassification extreme = CellBroadcastMessageClassification
+                .classify(mContext, createMessage(0x1113));
+        assertEquals(CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS,
+                extreme.getPreferenceKey());
+        assertTrue(extreme.getPreferenceDefault());
+        assertEquals(R.string.cmas_extreme_immediate_observed_alert, extreme.getTitleResId());
+        assertEquals(R.array.cmas_alert_extreme_channels_range_strings,
+                extreme.getRangeResourceKey());
+    }
+
+    @Test
+    @SmallTest
+    public void testClassifyAdditionalChannel() throws Exception {
+        CellBroadcastMessageClassification test = CellBroadcastMessageClassification
+                .classify(mContext, createMessage(0xA804));
+        assertEquals(AlertType.TEST, test.getAlertType());
+        assertEquals(CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS, test.getPreferenceKey());
+        assertFalse(test.getPreferenceDefault());
+        assertTrue(test.isInScope());
+        assertFalse(test.isAreaInfo());
+        assertEquals(R.string.etws_test_message, test.getTitleResId());
+        assertArrayEquals(new int[]{0, 100}, test.getVibrationPattern());
+
+        // Changing the returned pattern does not change the classification.
+        test.getVibrationPattern()[1] = 0;
+        assertArrayEquals(new int[]{0, 100}, test.getVibrationPattern());
+    }
+
+    @Test
+    @SmallTest
+    public void testParcel() throws Exception {
+        CellBroadcastMessageClassification classification = CellBroadcastMessageClassification
+                .classify(mContext, createMessage(0xA804));
+
+        Parcel p = Parcel.obtain();
+        classification.writeToParcel(p, 0);
+        p.setDataPosition(0);
+        CellBroadcastMessageClassification copy =
+                CellBroadcastMessageClassification.CREATOR.createFromParcel(p);
+        p.recycle();
+
+        assertEquals(classification.getAlertType(), copy.getAlertType());
+        assertEquals(classification.isEmergency(), copy.isEmergency());
+        assertEquals(classification.getTitleResId(), copy.getTitleResId());
+        assertEquals(classification.getRangeResourceKey(), copy.getRangeResourceKey());
+        assertEquals(classification.getPreferenceKey(), copy.getPreferenceKey());
+        assertArrayEquals(classification.getVibrationPattern(), copy.getVibrationPattern());
+    }
+}
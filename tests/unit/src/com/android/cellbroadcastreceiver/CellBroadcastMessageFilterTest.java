@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastMessageFilter.NO_MATCH;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+public class CellBroadcastMessageFilterTest {
+
+    @Test
+    @SmallTest
+    public void testEmptyFilter() throws Exception {
+        assertTrue(CellBroadcastMessageFilter.compile("").isEmpty());
+        assertTrue(CellBroadcastMessageFilter.compile(",,").isEmpty());
+        assertEquals(NO_MATCH, CellBroadcastMessageFilter.compile("").match("any body"));
+        assertEquals(NO_MATCH, CellBroadcastMessageFilter.compile("spam").match(null));
+    }
+
+    @Test
+    @SmallTest
+    public void testOverlappingTerms() throws Exception {
+        CellBroadcastMessageFilter filter = CellBroadcastMessageFilter.compile("he,she,his,hers");
+        assertFalse(filter.isEmpty());
+
+        // "she" and "he" both end at the third character, the longer one is reported.
+        int term = filter.match("ushers");
+        assertEquals("she", filter.getTerm(term));
+        assertEquals("his", filter.getTerm(filter.match("ahishers")));
+        assertEquals(NO_MATCH, filter.match("xyz"));
+    }
+
+    @Test
+    @SmallTest
+    public void testCaseInsensitive() throws Exception {
+        CellBroadcastMessageFilter filter = CellBroadcastMessageFilter.compile("Free Prize,win");
+        assertEquals(0, filter.match("Claim your FREE PRIZE now"));
+        assertEquals(1, filter.match("You WIN"));
+        assertEquals(NO_MATCH, filter.match("Free-prize, w1n"));
+    }
+
+    @Test
+    @SmallTest
+    public void testMatchCounts() throws Exception {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            if (i > 0) source.append(',');
+            source.append("phrase number ").append(i).append(';');
+        }
+        CellBroadcastMessageFilter filter = CellBroadcastMessageFilter.compile(source.toString());
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, filter.match("prefix Phrase Number " + i + "; suffix"));
+        }
+        filter.match("phrase number 7;");
+        assertEquals(2, filter.getMatchCount(7));
+        assertEquals(1, filter.getMatchCount(8));
+        assertEquals(NO_MATCH, filter.match("phrase number 50;"));
+    }
+}
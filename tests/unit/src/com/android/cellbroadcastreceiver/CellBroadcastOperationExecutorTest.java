@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastOperationExecutor.LANE_EMERGENCY;
+import static com.android.cellbroadcastreceiver.CellBroadcastOperationExecutor.LANE_HOUSEKEEPING;
+import static com.android.cellbroadcastreceiver.CellBroadcastOperationExecutor.LANE_NORMAL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CellBroadcastOperationExecutorTest {
+
+    @Test
+    @SmallTest
+    public void testLaneOrder() throws Exception {
+        CellBroadcastOperationExecutor executor = new CellBroadcastOperationExecutor();
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(6);
+        List<String> order = new ArrayList<>();
+
+        // Hold the worker thread so the following operations queue up.
+        executor.execute(LANE_HOUSEKEEPING, () -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+
+        executor.execute(LANE_HOUSEKEEPING, record(order, "delete all", done));
+        executor.execute(LANE_NORMAL, record(order, "insert 1", done));
+        executor.execute(LANE_HOUSEKEEPING, record(order, "mark read", done));
+        executor.execute(LANE_EMERGENCY, record(order, "presidential", done));
+        executor.execute(LANE_NORMAL, record(order, "insert 2", done));
+        executor.execute(LANE_EMERGENCY, record(order, "extreme", done));
+        assertEquals(2, executor.getQueueDepth(LANE_HOUSEKEEPING));
+        assertEquals(2, executor.getQueueDepth(LANE_NORMAL));
+        assertEquals(2, executor.getQueueDepth(LANE_EMERGENCY));
+
+        release.countDown();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        // Operations run one at a time, so everything queued before has completed once this
+        // last one runs.
+        CountDownLatch drained = new CountDownLatch(1);
+        executor.execute(LANE_HOUSEKEEPING, drained::countDown);
+        assertTrue(drained.await(1, TimeUnit.SECONDS));
+
+        synchronized (order) {
+            assertEquals(Arrays.asList("presidential", "extreme", "insert 1", "insert 2",
+                    "delete all", "mark read"), order);
+        }
+        assertEquals(0, executor.getQueueDepth(LANE_EMERGENCY));
+        assertEquals(2, executor.getCompletedCount(LANE_EMERGENCY));
+        assertTrue(executor.getCompletedCount(LANE_HOUSEKEEPING) >= 3);
+        assertTrue(executor.getMaxWaitMillis(LANE_HOUSEKEEPING)
+                >= executor.getAverageWaitMillis(LANE_HOUSEKEEPING));
+    }
+
+    private static Runnable record(List<String> order, String name, CountDownLatch done) {
+        return () -> {
+            synchronized (order) {
+                order.add(name);
+            }
+            done.countDown();
+        };
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CellBroadcastPagedListAdapterTest {
+
+    private CellBroadcastPagedListAdapter mAdapter;
+
+    @Before
+    public void setUp() throws Exception {
+        mAdapter = new CellBroadcastPagedListAdapter(InstrumentationRegistry.getTargetContext(),
+                (beforeDate, beforeId) -> { });
+    }
+
+    /** @return a cursor with a broadcast delivered at the given time for each row ID */
+    private static MatrixCursor createCursor(long... rowIdsAndDates) {
+        MatrixCursor cursor = new MatrixCursor(CellBroadcastContentProvider.SUMMARY_COLUMNS);
+        for (int i = 0; i < rowIdsAndDates.length; i += 2) {
+            cursor.addRow(new Object[]{rowIdsAndDates[i], rowIdsAndDates[i + 1], 0, 4370, null,
+                    "body " + rowIdsAndDates[i]});
+        }
+        return cursor;
+    }
+
+    private void assertRowIds(long... rowIds) {
+        assertEquals(rowIds.length, mAdapter.getCount());
+        for (int i = 0; i < rowIds.length; i++) {
+            assertEquals(rowIds[i], mAdapter.getItemId(i));
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testInsert() throws Exception {
+        mAdapter.swapFirstPage(createCursor(5, 500, 3, 300, 2, 300), 10);
+
+        mAdapter.applyChange(6, createCursor(6, 600));
+        mAdapter.applyChange(4, createCursor(4, 300));
+        mAdapter.applyChange(1, createCursor(1, 100));
+        assertRowIds(6, 5, 4, 3, 2, 1);
+    }
+
+    @Test
+    @SmallTest
+    public void testInsertOlderThanLoaded() throws Exception {
+        // A full page, so older broadcasts come with the next page.
+        mAdapter.swapFirstPage(createCursor(5, 500, 3, 300), 2);
+
+        mAdapter.applyChange(1, createCursor(1, 100));
+        assertRowIds(5, 3);
+    }
+
+    @Test
+    @SmallTest
+    public void testUpdateAndDelete() throws Exception {
+        mAdapter.swapFirstPage(createCursor(3, 300, 2, 200, 1, 100), 10);
+
+        MatrixCursor read = new MatrixCursor(CellBroadcastContentProvider.SUMMARY_COLUMNS);
+        read.addRow(new Object[]{2, 200, 1, 4370, null, "body 2"});
+        mAdapter.applyChange(2, read);
+        assertRowIds(3, 2, 1);
+        assertTrue(mAdapter.getItem(1).mRead);
+        assertFalse(mAdapter.getItem(0).mRead);
+
+        mAdapter.applyChange(2, createCursor());
+        assertRowIds(3, 1);
+        // Deleting a broadcast not loaded changes nothing.
+        mAdapter.applyChange(7, createCursor());
+        assertRowIds(3, 1);
+    }
+
+    @Test
+    @SmallTest
+    public void testNotMigrated() throws Exception {
+        // Broadcasts stored before the upgrade have no title key or preview until migrated.
+        MatrixCursor cursor = new MatrixCursor(CellBroadcastContentProvider.SUMMARY_COLUMNS);
+        cursor.addRow(new Object[]{1, 100, 0, 4370, null, null});
+        mAdapter.swapFirstPage(cursor, 10);
+
+        assertRowIds(1);
+        assertEquals(R.string.cb_other_message_identifiers, mAdapter.getItem(0).mTitleResId);
+        assertEquals("", mAdapter.getItem(0).mBodyPreview.toString());
+    }
+
+    @Test
+    @SmallTest
+    public void testSearchResults() throws Exception {
+        MatrixCursor results = new MatrixCursor(CellBroadcastContentProvider.SEARCH_COLUMNS);
+        results.addRow(new Object[]{1, 100, 0, 4370, null, "body 1",
+                "\u2026\u0002body\u0003 1"});
+        results.addRow(new Object[]{2, 200, 0, 4370, null, "body 2", "\u0002body\u0003 2"});
+        mAdapter.swapSearchResults(results);
+
+        // New broadcasts are not added to the results, updates keep the snippet.
+        mAdapter.applyChange(3, createCursor(3, 300));
+        MatrixCursor read = new MatrixCursor(CellBroadcastContentProvider.SUMMARY_COLUMNS);
+        read.addRow(new Object[]{1, 100, 1, 4370, null, "body 1"});
+        mAdapter.applyChange(1, read);
+        assertRowIds(1, 2);
+        assertTrue(mAdapter.getItem(0).mRead);
+        assertEquals("\u2026body 1", mAdapter.getItem(0).mBodyPreview.toString());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.telephony.cdma.CdmaSmsCbProgramData;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.cdma.sms.SmsEnvelope;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+public class CellBroadcastReceiverTest {
+
+    private static CdmaSmsCbProgramData createProgramData(int operation, int category) {
+        return new CdmaSmsCbProgramData(operation, category, 1, 1, 0, "");
+    }
+
+    @Test
+    @SmallTest
+    public void testCdmaCategorySettings() throws Exception {
+        Map<String, Boolean> settings = CellBroadcastReceiver.getCdmaCategorySettings(
+                new CdmaSmsCbProgramData[]{
+                        createProgramData(CdmaSmsCbProgramData.OPERATION_CLEAR_CATEGORIES, 0),
+                        createProgramData(CdmaSmsCbProgramData.OPERATION_ADD_CATEGORY,
+                                SmsEnvelope.SERVICE_CATEGORY_CMAS_SEVERE_THREAT),
+                        createProgramData(CdmaSmsCbProgramData.OPERATION_ADD_CATEGORY,
+                                SmsEnvelope.SERVICE_CATEGORY_CMAS_PRESIDENTIAL_LEVEL_ALERT),
+                });
+
+        // The operations of the list add up to one value per setting.
+        assertEquals(4, settings.size());
+        assertEquals(false,
+                settings.get(CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS));
+        assertEquals(true,
+                settings.get(CellBroadcastSettings.KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS));
+        assertEquals(false, settings.get(CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS));
+        assertEquals(false, settings.get(CellBroadcastSettings.KEY_ENABLE_TEST_ALERTS));
+    }
+
+    @Test
+    @SmallTest
+    public void testCdmaCategorySettingsUnknown() throws Exception {
+        Map<String, Boolean> settings = CellBroadcastReceiver.getCdmaCategorySettings(
+                new CdmaSmsCbProgramData[]{
+                        createProgramData(CdmaSmsCbProgramData.OPERATION_DELETE_CATEGORY,
+                                SmsEnvelope.SERVICE_CATEGORY_CMAS_PRESIDENTIAL_LEVEL_ALERT),
+                        createProgramData(99, SmsEnvelope.SERVICE_CATEGORY_CMAS_TEST_MESSAGE),
+                });
+        assertTrue(settings.isEmpty());
+    }
+}
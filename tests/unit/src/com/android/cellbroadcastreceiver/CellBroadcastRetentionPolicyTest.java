@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Telephony;
+import android.telephony.SubscriptionManager;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CellBroadcastRetentionPolicyTest {
+
+    private static final String TAG = "CBRetentionPolicyTest";
+
+    private static final long NOW = 1000000000L;
+
+    private CellBroadcastTestDatabase mDatabase;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mDatabase = CellBroadcastTestDatabase.create();
+        mDb = mDatabase.getDb();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDatabase.close();
+    }
+
+    private void insert(int serviceCategory, long deliveryTime, boolean emergency) {
+        mDatabase.insert(serviceCategory, deliveryTime, emergency, false,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID, null);
+    }
+
+    private long count(String selection) {
+        return DatabaseUtils.queryNumEntries(mDb, CellBroadcastDatabaseHelper.TABLE_NAME,
+                selection);
+    }
+
+    private int apply(CellBroadcastRetentionPolicy policy) {
+        int chunks = 0;
+        while (policy.deleteChunk(mDb, NOW) > 0) {
+            chunks++;
+        }
+        return chunks;
+    }
+
+    @Test
+    @SmallTest
+    public void testMaxAge() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            insert(0x1112, NOW - i * 100, false);
+            insert(0x1112, NOW - i * 100, true);
+        }
+        // Broadcasts older than 450ms are deleted, emergency alerts are kept up to 750ms.
+        int chunks = apply(new CellBroadcastRetentionPolicy(450, 750, 0, new SparseIntArray(), 2));
+
+        assertEquals(5, count("NOT " + CellBroadcastRetentionPolicy.EMERGENCY_SELECTION));
+        assertEquals(8, count(CellBroadcastRetentionPolicy.EMERGENCY_SELECTION));
+        // 5 broadcasts and 2 emergency alerts, at most 2 per chunk.
+        assertEquals(4, chunks);
+    }
+
+    @Test
+    @SmallTest
+    public void testMaxRows() throws Exception {
+        SparseIntArray categoryMaxRows = new SparseIntArray();
+        categoryMaxRows.put(50, 3);
+        for (int i = 0; i < 10; i++) {
+            insert(50, NOW - i, false);
+            insert(0x1112, NOW - i, false);
+            insert(0x1112, NOW - i, true);
+        }
+        apply(new CellBroadcastRetentionPolicy(0, 0, 8, categoryMaxRows, 4));
+
+        // The newest 3 area info broadcasts, then the newest 5 others are kept.
+        assertEquals(3, count(Telephony.CellBroadcasts.SERVICE_CATEGORY + "=50"));
+        assertEquals(8, count("NOT " + CellBroadcastRetentionPolicy.EMERGENCY_SELECTION));
+        assertEquals(NOW - 4, DatabaseUtils.longForQuery(mDb, "SELECT MIN("
+                + Telephony.CellBroadcasts.DELIVERY_TIME + ") FROM "
+                + CellBroadcastDatabaseHelper.TABLE_NAME + " WHERE "
+                + Telephony.CellBroadcasts.SERVICE_CATEGORY + "=4370 AND NOT "
+                + CellBroadcastRetentionPolicy.EMERGENCY_SELECTION, null));
+        // Emergency alerts are not removed to make room.
+        assertEquals(10, count(CellBroadcastRetentionPolicy.EMERGENCY_SELECTION));
+    }
+
+    @Test
+    @SmallTest
+    public void testVacuum() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            insert(0x1112, NOW - i, false);
+        }
+        // The database is created with incremental vacuum.
+        assertEquals(2, DatabaseUtils.longForQuery(mDb, "PRAGMA auto_vacuum", null));
+
+        apply(new CellBroadcastRetentionPolicy(0, 0, 10, new SparseIntArray(), 500));
+        assertTrue(DatabaseUtils.longForQuery(mDb, "PRAGMA freelist_count", null) > 0);
+        while (CellBroadcastRetentionPolicy.vacuumChunk(mDb)) {
+            // Release the free pages in chunks.
+        }
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "PRAGMA freelist_count", null));
+    }
+
+    @Test
+    @SmallTest
+    public void testVacuumConvertsSmallDatabase() throws Exception {
+        CellBroadcastTestDatabase database = CellBroadcastTestDatabase.createEmpty();
+        try {
+            SQLiteDatabase db = database.getDb();
+            db.execSQL("CREATE TABLE t (a TEXT)");
+            for (int i = 0; i < 100; i++) {
+                db.execSQL("INSERT INTO t VALUES (zeroblob(1000))");
+            }
+            db.execSQL("DELETE FROM t");
+            assertEquals(0, DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+
+            // A database created before incremental vacuum is left as it is while too large.
+            assertFalse(CellBroadcastRetentionPolicy.vacuumChunk(db, 0));
+            assertEquals(0, DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+
+            // Switched over once small enough, which releases its free pages.
+            assertFalse(CellBroadcastRetentionPolicy.vacuumChunk(db));
+            assertEquals(2, DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+            assertEquals(0, DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null));
+        } finally {
+            database.close();
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void testDeleteLatency() throws Exception {
+        final int rows = 1000000;
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                insert(0x1112 + i % 4, NOW - i, i % 100 == 0);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        CellBroadcastRetentionPolicy policy = new CellBroadcastRetentionPolicy(rows / 2, 0,
+                rows / 10, new SparseIntArray(), 500);
+        long maxChunkNs = 0;
+        int chunks = 0;
+        long start = System.nanoTime();
+        while (true) {
+            long chunkStart = System.nanoTime();
+            if (policy.deleteChunk(mDb, NOW) == 0) {
+                break;
+            }
+            maxChunkNs = Math.max(maxChunkNs, System.nanoTime() - chunkStart);
+            chunks++;
+        }
+        long deleteMs = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        while (CellBroadcastRetentionPolicy.vacuumChunk(mDb)) {
+            // Release the free pages in chunks.
+        }
+        long vacuumMs = (System.nanoTime() - start) / 1000000;
+
+        Log.d(TAG, "rows=" + rows + " chunks=" + chunks + " delete=" + deleteMs
+                + "ms maxChunk=" + maxChunkNs / 1000 + "us vacuum=" + vacuumMs + "ms");
+        assertEquals(rows / 10, count("NOT " + CellBroadcastRetentionPolicy.EMERGENCY_SELECTION));
+    }
+}
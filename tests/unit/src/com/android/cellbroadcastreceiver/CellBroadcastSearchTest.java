@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Telephony;
+import android.telephony.SubscriptionManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CellBroadcastSearchTest {
+
+    private CellBroadcastTestDatabase mDatabase;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mDatabase = CellBroadcastTestDatabase.create();
+        mDb = mDatabase.getDb();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDatabase.close();
+    }
+
+    private long insert(String body) {
+        return mDatabase.insert(0, 0, false, false,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID, body);
+    }
+
+    private long countMatches(String query) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM "
+                + CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME + " WHERE "
+                + CellBroadcastDatabaseHelper.SEARCH_TABLE_NAME + " MATCH ?",
+                new String[]{CellBroadcastContentProvider.getMatchQuery(query)});
+    }
+
+    @Test
+    @SmallTest
+    public void testMatchQuery() throws Exception {
+        assertEquals("", CellBroadcastContentProvider.getMatchQuery(null));
+        assertEquals("", CellBroadcastContentProvider.getMatchQuery("  \" "));
+        assertEquals("\"flood*\" \"warn*\"",
+                CellBroadcastContentProvider.getMatchQuery(" flood  \"warn"));
+        // Search operators are matched as words.
+        assertEquals("\"fire*\" \"OR*\" \"flood*\"",
+                CellBroadcastContentProvider.getMatchQuery("fire OR flood"));
+    }
+
+    @Test
+    @SmallTest
+    public void testIndexFollowsTable() throws Exception {
+        long id = insert("Flash flood warning in this area");
+        insert("Evacuation order for the coast");
+        assertEquals(1, countMatches("flo warn"));
+        assertEquals(1, countMatches("EVAC"));
+
+        ContentValues values = new ContentValues();
+        values.put(Telephony.CellBroadcasts.MESSAGE_BODY, "Fire warning");
+        mDb.update(CellBroadcastDatabaseHelper.TABLE_NAME, values,
+                Telephony.CellBroadcasts._ID + "=" + id, null);
+        assertEquals(0, countMatches("flood"));
+        assertEquals(1, countMatches("fire"));
+
+        mDb.delete(CellBroadcastDatabaseHelper.TABLE_NAME, null, null);
+        assertEquals(0, countMatches("fire"));
+        assertEquals(0, countMatches("evacuation"));
+    }
+}
@@ -116,6 +116,10 @@ public abstract class CellBroadcastServiceTestCase<T extends Service> extends Se
         mMockedServiceManager.replaceService("isub", mSubService);
         mContext = new TestContextWrapper(getContext());
         setContext(mContext);
+        // Ranges are compiled from the mocked resources of each test.
+        CellBroadcastChannelManager.invalidateCellBroadcastChannelRanges();
+        // Preferences are read from the context of each test.
+        CellBroadcastAlertPreferences.invalidate();
     }
 
     @After
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Telephony;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CellBroadcastStatsTest {
+
+    private CellBroadcastTestDatabase mDatabase;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mDatabase = CellBroadcastTestDatabase.create();
+        mDb = mDatabase.getDb();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDatabase.close();
+    }
+
+    private void insert(int serviceCategory, int subId, boolean emergency, boolean read) {
+        mDatabase.insert(serviceCategory, 0, emergency, read, subId, null);
+    }
+
+    private long sum(String column, String selection) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT IFNULL(SUM(" + column + "),0) FROM "
+                + CellBroadcastDatabaseHelper.STATS_TABLE_NAME
+                + (selection == null ? "" : " WHERE " + selection), null);
+    }
+
+    private void assertStatsMatchTable() {
+        assertEquals(DatabaseUtils.queryNumEntries(mDb, CellBroadcastDatabaseHelper.TABLE_NAME),
+                sum(CellBroadcastDatabaseHelper.STATS_TOTAL, null));
+        assertEquals(DatabaseUtils.queryNumEntries(mDb, CellBroadcastDatabaseHelper.TABLE_NAME,
+                Telephony.CellBroadcasts.MESSAGE_READ + "=0"),
+                sum(CellBroadcastDatabaseHelper.STATS_UNREAD, null));
+    }
+
+    @Test
+    @SmallTest
+    public void testCounts() throws Exception {
+        insert(0x1112, 1, true, false);
+        insert(50, 1, false, false);
+        insert(50, 2, false, true);
+        insert(50, 2, false, false);
+
+        assertEquals(3, DatabaseUtils.queryNumEntries(mDb,
+                CellBroadcastDatabaseHelper.STATS_TABLE_NAME));
+        assertEquals(1, sum(CellBroadcastDatabaseHelper.STATS_TOTAL,
+                CellBroadcastDatabaseHelper.STATS_EMERGENCY + "=1"));
+        assertEquals(2, sum(CellBroadcastDatabaseHelper.STATS_UNREAD,
+                CellBroadcastDatabaseHelper.STATS_EMERGENCY + "=0"));
+        assertEquals(2, sum(CellBroadcastDatabaseHelper.STATS_TOTAL,
+                CellBroadcastDatabaseHelper.SUB_ID + "=2"));
+        assertStatsMatchTable();
+    }
+
+    @Test
+    @SmallTest
+    public void testMarkReadAndDelete() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            insert(50 + i % 3, i % 2, i % 4 == 0, false);
+        }
+        ContentValues values = new ContentValues();
+        values.put(Telephony.CellBroadcasts.MESSAGE_READ, 1);
+        mDb.update(CellBroadcastDatabaseHelper.TABLE_NAME, values,
+                Telephony.CellBroadcasts._ID + "<=5", null);
+        // Marking read again does not change the counts.
+        mDb.update(CellBroadcastDatabaseHelper.TABLE_NAME, values,
+                Telephony.CellBroadcasts._ID + "<=3", null);
+        assertEquals(5, sum(CellBroadcastDatabaseHelper.STATS_UNREAD, null));
+        assertStatsMatchTable();
+
+        mDb.delete(CellBroadcastDatabaseHelper.TABLE_NAME, Telephony.CellBroadcasts._ID + "%2=0",
+                null);
+        assertStatsMatchTable();
+
+        // Rows of categories without broadcasts left are removed.
+        mDb.delete(CellBroadcastDatabaseHelper.TABLE_NAME, null, null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb,
+                CellBroadcastDatabaseHelper.STATS_TABLE_NAME));
+    }
+}
@@ -61,6 +61,10 @@ public abstract class CellBroadcastTest {
         mMockedServiceManager = new MockedServiceManager();
         mMockedServiceManager.replaceService("isub", mSubService);
         initContext();
+        // Ranges are compiled from the mocked resources of each test.
+        CellBroadcastChannelManager.invalidateCellBroadcastChannelRanges();
+        // Preferences are read from the context of each test.
+        CellBroadcastAlertPreferences.invalidate();
     }
 
     private void initContext() {
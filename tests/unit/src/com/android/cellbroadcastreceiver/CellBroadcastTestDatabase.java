@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.Telephony;
+import android.telephony.SmsCbMessage;
+
+import androidx.test.InstrumentationRegistry;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Broadcast database in a temporary file, for the tests of the schema and of the queries run
+ * directly on the database. Deleted by {@link #close}.
+ */
+class CellBroadcastTestDatabase {
+
+    private final File mFile;
+    private final SQLiteDatabase mDb;
+    private SQLiteStatement mInsert;
+
+    private CellBroadcastTestDatabase() throws IOException {
+        mFile = File.createTempFile("broadcasts", ".db");
+        mFile.delete();
+        mDb = SQLiteDatabase.openOrCreateDatabase(mFile, null);
+    }
+
+    /**
+     * @return A database configured and created by {@link CellBroadcastDatabaseHelper}, as on
+     *         the first start of the app
+     */
+    static CellBroadcastTestDatabase create() throws IOException {
+        CellBroadcastTestDatabase database = new CellBroadcastTestDatabase();
+        CellBroadcastDatabaseHelper helper =
+                new CellBroadcastDatabaseHelper(InstrumentationRegistry.getTargetContext());
+        helper.onConfigure(database.mDb);
+        helper.onCreate(database.mDb);
+        return database;
+    }
+
+    /** @return A database without any table, to create an older schema in */
+    static CellBroadcastTestDatabase createEmpty() throws IOException {
+        return new CellBroadcastTestDatabase();
+    }
+
+    SQLiteDatabase getDb() {
+        return mDb;
+    }
+
+    /**
+     * Store a broadcast in the current schema, the columns not given left to their defaults.
+     *
+     * @param serviceCategory Service category of the broadcast
+     * @param deliveryTime Delivery time of the broadcast
+     * @param emergency True for an emergency alert
+     * @param read True if the broadcast was read
+     * @param subId Subscription of the broadcast
+     * @param body Body of the broadcast, may be null
+     * @return The row ID of the broadcast
+     */
+    long insert(int serviceCategory, long deliveryTime, boolean emergency, boolean read,
+            int subId, String body) {
+        if (mInsert == null) {
+            mInsert = mDb.compileStatement("INSERT INTO "
+                    + CellBroadcastDatabaseHelper.TABLE_NAME + " ("
+                    + Telephony.CellBroadcasts.SERVICE_CATEGORY + ","
+                    + Telephony.CellBroadcasts.DELIVERY_TIME + ","
+                    + Telephony.CellBroadcasts.MESSAGE_PRIORITY + ","
+                    + Telephony.CellBroadcasts.MESSAGE_READ + ","
+                    + CellBroadcastDatabaseHelper.SUB_ID + ","
+                    + Telephony.CellBroadcasts.MESSAGE_BODY + ") VALUES (?,?,?,?,?,?)");
+        }
+        mInsert.bindLong(1, serviceCategory);
+        mInsert.bindLong(2, deliveryTime);
+        mInsert.bindLong(3, emergency ? SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY
+                : SmsCbMessage.MESSAGE_PRIORITY_NORMAL);
+        mInsert.bindLong(4, read ? 1 : 0);
+        mInsert.bindLong(5, subId);
+        if (body != null) {
+            mInsert.bindString(6, body);
+        } else {
+            mInsert.bindNull(6);
+        }
+        return mInsert.executeInsert();
+    }
+
+    /** Close and delete the database. */
+    void close() {
+        if (mInsert != null) {
+            mInsert.close();
+        }
+        mDb.close();
+        SQLiteDatabase.deleteDatabase(mFile);
+    }
+}